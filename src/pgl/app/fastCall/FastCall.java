@@ -1,8 +1,6 @@
 package pgl.app.fastCall;
 
-import gnu.trove.list.array.TByteArrayList;
 import gnu.trove.set.hash.TByteHashSet;
-import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.math3.stat.inference.ChiSquareTest;
 import pgl.infra.dna.FastaBit;
 import pgl.infra.dna.genot.GenoSiteBlockVCF;
@@ -17,6 +15,7 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 import static cern.jet.math.Arithmetic.factorial;
 
@@ -46,6 +45,13 @@ public class FastCall {
     byte[] possibleIndel = {68, 73};
     //A, C, D, G, I, T
     byte[] possibleAllele = {65, 67, 68, 71, 73, 84};
+    //Indices of alleles in possibleAllele
+    static final int alleleIndexA = 0;
+    static final int alleleIndexC = 1;
+    static final int alleleIndexD = 2;
+    static final int alleleIndexG = 3;
+    static final int alleleIndexI = 4;
+    static final int alleleIndexT = 5;
 
 
     int binSize = 100000;
@@ -57,6 +63,10 @@ public class FastCall {
     double combinedErrorRate = 0.05;
     //Minimum number of taxa where the minor allele shows up
     int minorOccurrenceThresh = 2;
+    //0, pileup of each bam is written to a temporary file; 1, pileup of each bam is streamed from samtools through a bounded queue
+    int pileupMode = 0;
+    //Maximum number of pileup lines buffered for each bam in streaming mode
+    int pileupQueueSize = 20000;
 
     public FastCall(String parameterFileS) {
         this.callSNP(parameterFileS);
@@ -98,6 +108,7 @@ public class FastCall {
         String vcfDirS = pLineList.get(6);
         this.threadsNum = Integer.valueOf(pLineList.get(7));
         this.samtoolsPath = pLineList.get(8);
+        if (pLineList.size() > 9) this.pileupMode = Integer.valueOf(pLineList.get(9));
         long start = System.nanoTime();
         System.out.println("Reading reference genome from "+ referenceFileS);
         genomeFa = new FastaBit(referenceFileS);
@@ -110,14 +121,16 @@ public class FastCall {
             chromLength[i] = genomeFa.getSeqLength(i);
         }
         String pileupDirS = new File(new File(vcfDirS).getParent(), "pileup").getAbsolutePath();
-        new File(pileupDirS).mkdir();
+        if (this.pileupMode == 0) new File(pileupDirS).mkdir();
         new File(vcfDirS).mkdir();
         this.getTaxaBamMap(taxaBamMapFileS);
         this.creatPileupMap(pileupDirS);
         this.creatFactorialMap();
         this.callSNPByRegion(currentChr, regionStart, regionEnd, referenceFileS, vcfDirS);
-        File[] fs = new File(pileupDirS).listFiles();
-        for (int i = 0; i < fs.length; i++) fs[i].delete();
+        if (this.pileupMode == 0) {
+            File[] fs = new File(pileupDirS).listFiles();
+            for (int i = 0; i < fs.length; i++) fs[i].delete();
+        }
         System.out.println("Variant calling completed");
     }
 
@@ -144,13 +157,22 @@ public class FastCall {
                 regionEnd = rEnd;
             }
         }
-        this.performPileup(currentChr, regionStart, regionEnd, referenceFileS);
+        ExecutorService streamPool = null;
+        PileupStream[] pileupStreams = null;
+        if (this.pileupMode == 0) {
+            this.performPileup(currentChr, regionStart, regionEnd, referenceFileS);
+            pileupStreams = this.getPileupStreams(this.getPileupReaders());
+        }
+        else {
+            streamPool = Executors.newFixedThreadPool(this.bamPaths.length);
+            pileupStreams = this.startPileupStreams(currentChr, regionStart, regionEnd, referenceFileS, streamPool);
+        }
         String outfileS = "chr"+PStringUtils.getNDigitNumber(3, currentChr)+".vcf";
         outfileS = new File (vcfDirS, outfileS).getAbsolutePath();
         //note both start and end are inclusive
         int[][] binBound = this.creatBins(currentChr, binSize, regionStart, regionEnd);
+        boolean ifFinished = false;
         try {
-            BufferedReader[] pileupReaders = this.getPileupReaders();
             BufferedWriter bw = IOUtils.getTextWriter(outfileS);
             bw.write(this.getAnnotation(referenceFileS));
             bw.write(this.getVCFHeader());
@@ -159,34 +181,20 @@ public class FastCall {
             for (int i = 0; i < this.bamPaths.length; i++) {
                 bamIndexList.add(i);
             }
-            List<Integer> positionIndexList = new ArrayList();
-            for (int i = 0; i < binSize; i++) {
-                positionIndexList.add(i);
-            }
-            StringBuilder[][] baseSb = this.getPopulatedBaseBuilder(1, this.binSize);
-            int[][] depth = getPopulatedDepthArray(1, this.binSize);
+            AlleleCountBlock block = new AlleleCountBlock(this.binSize, this.taxaNames.length, this.possibleAllele.length);
+            List<String>[] remainder = new List[bamPaths.length];
+            for (int j = 0; j < remainder.length; j++) remainder[j] = new ArrayList<String>();
             List<List<String>>[] pileupResult = null;
             for (int i = 0; i < binBound.length; i++) {
                 long startTimePoint = System.nanoTime();
                 int binStart = binBound[i][0];
                 int binEnd = binBound[i][1];
-                List<String>[] remainder = new List[bamPaths.length];
-                for (int j = 0; j < remainder.length; j++) remainder[j] = new ArrayList<String>();
-                pileupResult = this.getPileupResult(currentChr, binStart, binEnd, pileupReaders, remainder, bamIndexList);
-                if (i < binBound.length - 1) {
-                    this.resetBaseBuilder(baseSb);
-                    this.resetDepthArray(depth);
-                }
-                else {
-                    baseSb = this.getPopulatedBaseBuilder(binStart, binEnd);
-                    depth = this.getPopulatedDepthArray(binStart, binEnd);
-                }
-                this.fillDepthAndBase(pileupResult, baseSb, depth, binStart);
-                String[][] base = this.getBaseMatrix(baseSb);
-                ArrayList<Integer> positionList = this.getPositionList(binStart, binEnd);
-                String[] subVCFs = new String[positionList.size()];
-                this.calculateVCF(subVCFs, positionList, currentChr, binStart, chrSeq, depth, base);
-                for (int j = 0; j < positionList.size(); j++) {
+                pileupResult = this.getPileupResult(currentChr, binStart, binEnd, pileupStreams, remainder, bamIndexList);
+                block.reset(binEnd-binStart+1);
+                this.fillAlleleCount(pileupResult, block, binStart);
+                String[] subVCFs = new String[block.size];
+                this.calculateVCF(subVCFs, currentChr, binStart, chrSeq, block);
+                for (int j = 0; j < subVCFs.length; j++) {
                     String vcfStr = subVCFs[j];
                     if (vcfStr == null) continue;
                     bw.write(vcfStr);
@@ -198,23 +206,33 @@ public class FastCall {
             }
             bw.flush();
             bw.close();
+            ifFinished = true;
         }
         catch (Exception e) {
             e.printStackTrace();
         }
+        finally {
+            for (int i = 0; i < pileupStreams.length; i++) pileupStreams[i].close();
+            if (streamPool != null) streamPool.shutdownNow();
+        }
+        if (!ifFinished) {
+            new File(outfileS).delete();
+            System.out.println("Variant calling failed on chromosome " + String.valueOf(currentChr) + ". Program quits");
+            System.exit(1);
+        }
         System.out.println("Chromosome " + String.valueOf(currentChr) + " is finished. File written to " + outfileS + "\n");
     }
 
-    private void calculateVCF(String[] subVCFs, List<Integer> positionList, int currentChr, int startPos, String chrSeq, int[][] depth, String[][] base) {
-        positionList.parallelStream().forEach(position -> {
-            int index = position-startPos;
+    private void calculateVCF(String[] subVCFs, int currentChr, int startPos, String chrSeq, AlleleCountBlock block) {
+        IntStream.range(0, block.size).parallel().forEach(index -> {
+            int position = index+startPos;
             byte refBase = (byte)(chrSeq.charAt(position-1));
             int baseIndex = Arrays.binarySearch(bases, refBase);
             if (baseIndex < 0) {
 
             }
             else {
-                String vcfStr = this.getVCFStringV2(base[index], depth[index], currentChr, position, refBase); //limit on sequencing depth
+                String vcfStr = this.getVCFStringV2(block, index, currentChr, position, refBase); //limit on sequencing depth
                 if (vcfStr != null) {
                     subVCFs[index] = vcfStr;
                 }
@@ -222,117 +240,100 @@ public class FastCall {
         });
     }
 
+    /**
+     * Primitive allele counts of a bin, in the order of position, taxon and allele ({@link #possibleAllele}).
+     * The block is allocated once and reused across bins.
+     */
+    static class AlleleCountBlock {
+        /**
+         * Number of positions in the current bin
+         */
+        int size = 0;
+        int taxaNumber = 0;
+        int alleleNumber = 0;
+        //alleleCount[siteIndex][taxonIndex*alleleNumber+alleleIndex]
+        int[][] alleleCount = null;
+        //depth[siteIndex][taxonIndex]
+        int[][] depth = null;
+        //Insertion length of a taxon at a site, 0 means no insertion, -1 means more than one insertion length
+        int[][] insertionLength = null;
+        //Deletion length of a taxon at a site, 0 means no deletion, -1 means more than one deletion length
+        int[][] deletionLength = null;
+
+        AlleleCountBlock (int capacity, int taxaNumber, int alleleNumber) {
+            this.taxaNumber = taxaNumber;
+            this.alleleNumber = alleleNumber;
+            alleleCount = new int[capacity][taxaNumber*alleleNumber];
+            depth = new int[capacity][taxaNumber];
+            insertionLength = new int[capacity][taxaNumber];
+            deletionLength = new int[capacity][taxaNumber];
+        }
+
+        void reset (int size) {
+            this.size = size;
+            IntStream.range(0, size).parallel().forEach(i -> {
+                Arrays.fill(alleleCount[i], 0);
+                Arrays.fill(depth[i], 0);
+                Arrays.fill(insertionLength[i], 0);
+                Arrays.fill(deletionLength[i], 0);
+            });
+        }
+
+        static void addIndelLength (int[] indelLength, int taxonIndex, int length) {
+            if (indelLength[taxonIndex] == 0) indelLength[taxonIndex] = length;
+            else if (indelLength[taxonIndex] != length) indelLength[taxonIndex] = -1;
+        }
+
+        /**
+         * Return the number of different indel lengths across taxa, 2 means 2 or more
+         * @param indelLength
+         * @return
+         */
+        static int getIndelTypeCount (int[] indelLength) {
+            int length = 0;
+            for (int i = 0; i < indelLength.length; i++) {
+                if (indelLength[i] == 0) continue;
+                if (indelLength[i] == -1) return 2;
+                if (length == 0) length = indelLength[i];
+                else if (length != indelLength[i]) return 2;
+            }
+            if (length == 0) return 0;
+            return 1;
+        }
+    }
+
     /**
      * For mixed depth sequencing samples
-     * @param base
-     * @param depth
+     * @param block
+     * @param siteIndex
      * @param currentChr
      * @param position
      * @param refBase
      * @return
      */
-    private String getVCFStringV2 (String[] base, int[] depth, int currentChr, int position, byte refBase) {
+    private String getVCFStringV2 (AlleleCountBlock block, int siteIndex, int currentChr, int position, byte refBase) {
+        int[] depth = block.depth[siteIndex];
         int totalDepth = 0;
         for (int i = 0; i < depth.length; i++) {
             totalDepth+=depth[i];
         }
         if (totalDepth == 0) return null;
-        TByteArrayList bList = new TByteArrayList();
-        byte[] ba = null;
-        boolean ifRecordedDeletion = false;
-        TIntHashSet insertionLengthSet = new TIntHashSet();
-        TIntHashSet deletionLengthSet = new TIntHashSet();
-        int[][] pAlleleCount = new int[base.length][this.possibleAllele.length];
-        int[] refDepth = new int[base.length];
-        for (int i = 0; i < base.length; i++) {
-            base[i] = base[i].toUpperCase();
-            bList.clear(base[i].length());
-            ba = base[i].getBytes();
-            for (int j = 0; j < ba.length; j++) {
-                if (ba[j] == '.') {
-                    bList.add(refBase);
-                }
-                else if (ba[j] == ',') {
-                    bList.add(refBase);
-                }
-                else if (ba[j] == 'A') {
-                    bList.add((byte)65);
-                }
-                else if (ba[j] == 'C') {
-                    bList.add((byte)67);
-                }
-                else if (ba[j] == 'G') {
-                    bList.add((byte)71);
-                }
-                else if (ba[j] == 'T') {
-                    bList.add((byte)84);
-                }
-                else if (ba[j] == '+') {
-                    int endIndex = j+2;
-                    for (int k = j+1; k < ba.length; k++) {
-                        if (ba[k] > 57) {
-                            endIndex = k;
-                            break;
-                        }
-                    }
-                    StringBuilder sb = new StringBuilder();
-                    for (int k = j+1; k < endIndex; k++) {
-                        sb.append((char)ba[k]);
-                    }
-                    int length = Integer.valueOf(sb.toString());
-                    insertionLengthSet.add(length);
-                    j+=sb.length();
-                    j+=length;
-                    bList.replace(bList.size()-1, (byte)73);
-                }
-                else if (ba[j] == '-') {
-                    int endIndex = j+2;
-                    for (int k = j+1; k < ba.length; k++) {
-                        if (ba[k] > 57) {
-                            endIndex = k;
-                            break;
-                        }
-                    }
-                    StringBuilder sb = new StringBuilder();
-                    for (int k = j+1; k < endIndex; k++) {
-                        sb.append((char)ba[k]);
-                    }
-                    int length = Integer.valueOf(sb.toString());
-                    deletionLengthSet.add(length);
-                    j+=sb.length();
-                    j+=length;
-                    bList.replace(bList.size()-1, (byte)68);
-                }
-                else if (ba[j] == '^') {
-                    j++;
-                }
-                else if (ba[j] == '*') {
-                    bList.add(refBase);
-                    ifRecordedDeletion = true;
-                }
-                //N, n, $, >, <, |
-                else {
-                    //do nothing
-                }
-            }
-            byte[] taxonBase = bList.toArray();
-            for (int j = 0; j < taxonBase.length; j++) {
-                int index = Arrays.binarySearch(this.possibleAllele, taxonBase[j]);
-                pAlleleCount[i][index]++;
-            }
+        int taxaNumber = block.taxaNumber;
+        int alleleNumber = block.alleleNumber;
+        int[] alleleCount = block.alleleCount[siteIndex];
+        int[] refDepth = new int[taxaNumber];
+        for (int i = 0; i < taxaNumber; i++) {
             int altSum = 0;
-            for (int j = 0; j < pAlleleCount[i].length; j++) {
+            for (int j = 0; j < alleleNumber; j++) {
                 if (this.possibleAllele[j] == refBase) continue;
-//                if (this.possibleAllele[j] == 68) continue;
-//                if (this.possibleAllele[j] == 73) continue;
-                altSum+=pAlleleCount[i][j];
+                altSum+=alleleCount[i*alleleNumber+j];
             }
             refDepth[i] = depth[i] - altSum;
         }
 
         int[] indelTypeCount = new int[2];
-        indelTypeCount[0] = deletionLengthSet.size();
-        indelTypeCount[1] = insertionLengthSet.size();
+        indelTypeCount[0] = AlleleCountBlock.getIndelTypeCount(block.deletionLength[siteIndex]);
+        indelTypeCount[1] = AlleleCountBlock.getIndelTypeCount(block.insertionLength[siteIndex]);
 
         //****************************Filter1 IndelFilter*****************************************
         //Too many indels usually means mis-alignment
@@ -346,15 +347,15 @@ public class FastCall {
         //When depth is low, tend to have assembly errors, LTR
 
         TByteHashSet altAlleleSet = new TByteHashSet();
-        for (int i = 0; i < pAlleleCount[0].length; i++) {
+        for (int i = 0; i < alleleNumber; i++) {
             if (possibleAllele[i] == refBase) continue;
-            for (int j = 0; j < pAlleleCount.length; j++) {
+            for (int j = 0; j < taxaNumber; j++) {
                 if (depth[j] < 2) {}
                 else {
                     double r = depth[j]/this.taxaCoverage[j];
                     if (r < 0.2) continue;
                     if (r > 3) continue;
-                    if ((double)pAlleleCount[j][i]/depth[j] > this.individualDepthRatioThresh) {
+                    if ((double)alleleCount[j*alleleNumber+i]/depth[j] > this.individualDepthRatioThresh) {
                         altAlleleSet.add(this.possibleAllele[i]);
                     }
                 }
@@ -374,8 +375,8 @@ public class FastCall {
         }
         int[] altAlleleTotalDepth = new int[altAllele.length];
         for (int i = 0; i < altAllele.length; i++) {
-            for (int j = 0; j < base.length; j++) {
-                altAlleleTotalDepth[i]+=pAlleleCount[j][altAllele2PAlleleIndex[i]];
+            for (int j = 0; j < taxaNumber; j++) {
+                altAlleleTotalDepth[i]+=alleleCount[j*alleleNumber+altAllele2PAlleleIndex[i]];
             }
         }
         int[] altAlleleDepthDesendingIndex = PArrayUtils.getIndicesByDescendingValue(altAlleleTotalDepth);
@@ -385,10 +386,10 @@ public class FastCall {
         //****************************Filter3 third_allele_test************************************************
         //individual should not have the third allele
         if (altAllele.length > 1) {
-            for (int i = 0; i < base.length; i++) {
+            for (int i = 0; i < taxaNumber; i++) {
                 int[] tempCnt = new int[altAllele.length];
                 for (int j = 0; j < altAllele.length; j++) {
-                    tempCnt[j] = pAlleleCount[i][altAllele2PAlleleIndex[j]];
+                    tempCnt[j] = alleleCount[i*alleleNumber+altAllele2PAlleleIndex[j]];
                 }
                 int sum = refDepth[i];
                 double[] v = new double[altAllele.length+1];
@@ -405,15 +406,15 @@ public class FastCall {
         double[] expected = null;
         double[] segregationP = null;
         if (this.segregationPValueThresh < 1) {
-            observed = new long[base.length];
-            expected = new double[base.length];
+            observed = new long[taxaNumber];
+            expected = new double[taxaNumber];
             segregationP = new double[altAllele.length];
             ChiSquareTest ct = new ChiSquareTest();
             int cnt = 0;
             for (int i = 0; i < altAllele.length; i++) {
                 double r = (double) altAlleleTotalDepth[i] / (refTotalDepth + altAlleleTotalDepth[i]);
-                for (int j = 0; j < base.length; j++) {
-                    observed[j] = pAlleleCount[j][altAllele2PAlleleIndex[i]];
+                for (int j = 0; j < taxaNumber; j++) {
+                    observed[j] = alleleCount[j*alleleNumber+altAllele2PAlleleIndex[i]];
                     expected[j] = r;
                 }
                 segregationP[i] = ct.chiSquareTest(expected, observed);
@@ -425,21 +426,21 @@ public class FastCall {
 
         int nonMissingCnt = 0;
         int[] refAndAllelePresence = new int[altAllele.length+1];
-        for (int i = 0; i < base.length; i++) {
+        for (int i = 0; i < taxaNumber; i++) {
             if (refDepth[i] != 0) {
                 nonMissingCnt++;
                 refAndAllelePresence[0]++;
             }
             else {
                 for (int j = 0; j < altAllele.length; j++) {
-                    if (pAlleleCount[i][altAllele2PAlleleIndex[j]] != 0) {
+                    if (alleleCount[i*alleleNumber+altAllele2PAlleleIndex[j]] != 0) {
                         nonMissingCnt++;
                         break;
                     }
                 }
             }
             for (int j = 0; j < altAllele.length; j++) {
-                if (pAlleleCount[i][altAllele2PAlleleIndex[j]] != 0) {
+                if (alleleCount[i*alleleNumber+altAllele2PAlleleIndex[j]] != 0) {
                     refAndAllelePresence[j+1]++;
                 }
             }
@@ -478,34 +479,18 @@ public class FastCall {
         sb.deleteCharAt(sb.length()-1);
         sb.append("\t").append("GT:AD:PL");
 
-        for (int i = 0; i < base.length; i++) {
+        for (int i = 0; i < taxaNumber; i++) {
             int[] dep = new int[altAllele.length+1];
             dep[0] = refDepth[i];
             for (int j = 0; j < altAllele.length; j++) {
-                dep[j+1] = pAlleleCount[i][altAllele2PAlleleIndex[altAlleleDepthDesendingIndex[j]]];
+                dep[j+1] = alleleCount[i*alleleNumber+altAllele2PAlleleIndex[altAlleleDepthDesendingIndex[j]]];
             }
             sb.append("\t").append(this.getGenotype(dep));
         }
         return sb.toString();
     }
 
-    private ArrayList<Integer> getPositionList (int startPos, int endPos) {
-        ArrayList<Integer> positionList = new ArrayList();
-        for (int i = startPos; i <= endPos; i++) {
-            positionList.add(i);
-        }
-        return positionList;
-    }
-
-    private String[][] getBaseMatrix (StringBuilder[][] baseSb) {
-        String[][] base = new String[baseSb.length][baseSb[0].length];
-        for (int i = 0; i < base.length; i++) {
-            for (int j = 0; j < base[0].length; j++) base[i][j] = baseSb[i][j].toString();
-        }
-        return base;
-    }
-
-    private void fillDepthAndBase(List<List<String>>[] pileupResult, StringBuilder[][] baseSb, int[][] depth, int startPos) {
+    private void fillAlleleCount(List<List<String>>[] pileupResult, AlleleCountBlock block, int startPos) {
         Set<Entry<String, String[]>> entries = this.taxaBamPathMap.entrySet();
         List<Entry<String,String[]>> entryList = new ArrayList(entries);
         entryList.parallelStream().forEach(e -> {
@@ -530,8 +515,8 @@ public class FastCall {
                         String refB = split.get(2);
                         if (Arrays.binarySearch(baseS, refB) < 0) continue;
                         int siteIndex = Integer.valueOf(split.get(1)) - startPos;
-                        depth[siteIndex][taxaIndex]+=Integer.valueOf(split.get(3));
-                        baseSb[siteIndex][taxaIndex].append(split.get(4));
+                        block.depth[siteIndex][taxaIndex]+=Integer.valueOf(split.get(3));
+                        this.countAlleles(split.get(4), (byte)refB.charAt(0), block, siteIndex, taxaIndex);
                     }
                 }
             }
@@ -544,45 +529,91 @@ public class FastCall {
         });
     }
 
-    private int[][] getPopulatedDepthArray (int startPos, int endPos) {
-        int[][] depth = new int[endPos-startPos+1][this.taxaNames.length];
-        return depth;
-    }
-
-    private void resetDepthArray (int[][] depth) {
-        Arrays.stream(depth).forEach(x -> Arrays.fill(x, 0));
-    }
-
-    private StringBuilder[][] getPopulatedBaseBuilder(int startPos, int endPos) {
-        StringBuilder[][] sbs = new StringBuilder[endPos-startPos+1][this.taxaNames.length];
-        for (int i = 0; i < sbs.length; i++) {
-            for (int j = 0; j < sbs[0].length; j++) sbs[i][j] = new StringBuilder();
-        }
-        return sbs;
-    }
-
-    private void resetBaseBuilder (StringBuilder[][] sbs) {
-        for (int i = 0; i < sbs.length; i++) {
-            for (int j = 0; j < sbs[0].length; j++) sbs[i][j].setLength(0);
+    /**
+     * Parse the read bases of a pileup line and add them to the allele counts of a taxon.
+     * An indel replaces the base it follows by D or I.
+     * @param base
+     * @param refBase
+     * @param block
+     * @param siteIndex
+     * @param taxonIndex
+     */
+    private void countAlleles (String base, byte refBase, AlleleCountBlock block, int siteIndex, int taxonIndex) {
+        int[] alleleCount = block.alleleCount[siteIndex];
+        int offset = taxonIndex*block.alleleNumber;
+        int refIndex = offset+Arrays.binarySearch(this.possibleAllele, refBase);
+        int lastIndex = -1;
+        int n = base.length();
+        for (int j = 0; j < n; j++) {
+            char c = base.charAt(j);
+            if (c == '.' || c == ',' || c == '*') {
+                lastIndex = refIndex;
+                alleleCount[lastIndex]++;
+            }
+            else if (c == 'A' || c == 'a') {
+                lastIndex = offset+alleleIndexA;
+                alleleCount[lastIndex]++;
+            }
+            else if (c == 'C' || c == 'c') {
+                lastIndex = offset+alleleIndexC;
+                alleleCount[lastIndex]++;
+            }
+            else if (c == 'G' || c == 'g') {
+                lastIndex = offset+alleleIndexG;
+                alleleCount[lastIndex]++;
+            }
+            else if (c == 'T' || c == 't') {
+                lastIndex = offset+alleleIndexT;
+                alleleCount[lastIndex]++;
+            }
+            else if (c == '+' || c == '-') {
+                int length = 0;
+                int k = j+1;
+                for (; k < n; k++) {
+                    char d = base.charAt(k);
+                    if (d < '0' || d > '9') break;
+                    length = length*10+(d-'0');
+                }
+                j = k-1+length;
+                if (lastIndex == -1) continue;
+                alleleCount[lastIndex]--;
+                if (c == '+') {
+                    lastIndex = offset+alleleIndexI;
+                    AlleleCountBlock.addIndelLength(block.insertionLength[siteIndex], taxonIndex, length);
+                }
+                else {
+                    lastIndex = offset+alleleIndexD;
+                    AlleleCountBlock.addIndelLength(block.deletionLength[siteIndex], taxonIndex, length);
+                }
+                alleleCount[lastIndex]++;
+            }
+            else if (c == '^') {
+                j++;
+            }
+            //N, n, $, >, <, |
+            else {
+                //do nothing
+            }
         }
     }
 
-    private List<List<String>>[] getPileupResult (int currentChr, int binStart, int binEnd, BufferedReader[] pileupReaders, List<String>[] remainders, List<Integer> bamIndexList) {
+    private List<List<String>>[] getPileupResult (int currentChr, int binStart, int binEnd, PileupStream[] pileupStreams, List<String>[] remainders, List<Integer> bamIndexList) {
         ArrayList<String> empty = new ArrayList();
         List<List<String>>[] pileupResult = new List[bamPaths.length];
         bamIndexList.parallelStream().forEach(bamIndex -> {
             ArrayList<List<String>> lineList = new ArrayList();
-            BufferedReader br = pileupReaders[bamIndex];
+            PileupStream ps = pileupStreams[bamIndex];
             List<String> remainder = remainders[bamIndex];
             boolean flag = false;
             if (remainder.size() == 0) {
-                String temp = null;
+                List<String> split = null;
                 try {
-                    temp = br.readLine();
+                    split = ps.next();
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
                 }
-                catch (Exception e) {}
-                if (temp != null) {
-                    List<String> split = PStringUtils.fastSplit(temp, "\t");
+                if (split != null) {
                     int currentPos = Integer.valueOf(split.get(1));
                     if (currentPos > binEnd) {
                         remainders[bamIndex] = split;
@@ -603,9 +634,8 @@ public class FastCall {
             }
             if (flag == true) {
                 try {
-                    String temp;
-                    while ((temp = br.readLine()) != null) {
-                        List<String> split = PStringUtils.fastSplit(temp, "\t");
+                    List<String> split;
+                    while ((split = ps.next()) != null) {
                         int currentPos = Integer.valueOf(split.get(1));
                         if (currentPos < binEnd) {
                             lineList.add(split);
@@ -622,7 +652,7 @@ public class FastCall {
                     }
                 }
                 catch (Exception e) {
-                    e.printStackTrace();
+                    throw new RuntimeException(e);
                 }
             }
             pileupResult[bamIndex] = lineList;
@@ -630,6 +660,147 @@ public class FastCall {
         return pileupResult;
     }
 
+    /**
+     * Source of split pileup lines of a bam, either from a temporary pileup file or streamed from samtools
+     */
+    static class PileupStream {
+        static final List<String> END = new ArrayList<>();
+        /**
+         * Marks a failed pileup, e.g. samtools exits with a non-zero status
+         */
+        static final List<String> FAILED = new ArrayList<>();
+        BufferedReader br = null;
+        BlockingQueue<List<String>> queue = null;
+        boolean finished = false;
+        /**
+         * The samtools process and the task streaming it, when the pileup is streamed
+         */
+        volatile Process process = null;
+        Future<?> producer = null;
+
+        PileupStream (BufferedReader br) {
+            this.br = br;
+        }
+
+        PileupStream (BlockingQueue<List<String>> queue) {
+            this.queue = queue;
+        }
+
+        /**
+         * Return the next split pileup line, null when the pileup is finished
+         * @return
+         * @throws Exception
+         */
+        List<String> next () throws Exception {
+            if (finished) return null;
+            if (br != null) {
+                String temp = br.readLine();
+                if (temp == null) {
+                    finished = true;
+                    return null;
+                }
+                return PStringUtils.fastSplit(temp, "\t");
+            }
+            List<String> split = queue.take();
+            if (split == END) {
+                finished = true;
+                return null;
+            }
+            if (split == FAILED) {
+                finished = true;
+                throw new IOException("Pileup streamed from samtools failed");
+            }
+            return split;
+        }
+
+        /**
+         * Close the stream, a streaming samtools process is stopped and its queue is drained, so that the producer never blocks
+         */
+        void close () {
+            try {
+                if (br != null) br.close();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (queue == null) return;
+            if (producer != null) producer.cancel(true);
+            Process p = process;
+            if (p != null) p.destroy();
+            queue.clear();
+        }
+    }
+
+    /**
+     * Streams the pileup of a bam from samtools stdout into a bounded queue, without writing temporary files
+     */
+    class StreamPileup implements Runnable {
+        String command = null;
+        PileupStream ps = null;
+
+        public StreamPileup (String cmd, PileupStream ps) {
+            this.command = cmd;
+            this.ps = ps;
+        }
+
+        @Override
+        public void run() {
+            List<String> last = PileupStream.FAILED;
+            Process p = null;
+            try {
+                ProcessBuilder pb = new ProcessBuilder(command.split(" "));
+                pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+                p = pb.start();
+                ps.process = p;
+                BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()), 65536);
+                String temp = null;
+                while ((temp = br.readLine()) != null) {
+                    ps.queue.put(PStringUtils.fastSplit(temp, "\t"));
+                }
+                br.close();
+                int exitValue = p.waitFor();
+                if (exitValue == 0) last = PileupStream.END;
+                else System.out.println("samtools exited with status "+String.valueOf(exitValue)+": "+command);
+            }
+            catch (InterruptedException e) {
+                //the stream is closed, nothing is read from the queue anymore
+                if (p != null) p.destroy();
+                return;
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            try {
+                ps.queue.put(last);
+            }
+            catch (InterruptedException e) {
+                if (p != null) p.destroy();
+            }
+        }
+    }
+
+    private PileupStream[] startPileupStreams (int currentChr, int startPos, int endPos, String referenceFileS, ExecutorService pool) {
+        System.out.println("Pileup is being streamed on chromosome "+String.valueOf(currentChr)+" from "+String.valueOf(startPos)+" to "+String.valueOf(endPos));
+        PileupStream[] pss = new PileupStream[this.bamPaths.length];
+        for (int i = 0; i < this.bamPaths.length; i++) {
+            StringBuilder sb = new StringBuilder(this.samtoolsPath);
+            sb.append(" mpileup -A -B -q 30 -Q 20 -f ").append(referenceFileS).append(" ").append(bamPaths[i]).append(" -r ");
+            sb.append(currentChr).append(":").append(startPos).append("-").append(endPos);
+            BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(this.pileupQueueSize);
+            pss[i] = new PileupStream(queue);
+            pss[i].producer = pool.submit(new StreamPileup(sb.toString(), pss[i]));
+        }
+        return pss;
+    }
+
+    private PileupStream[] getPileupStreams (BufferedReader[] brs) {
+        PileupStream[] pss = new PileupStream[brs.length];
+        for (int i = 0; i < brs.length; i++) {
+            pss[i] = new PileupStream(brs[i]);
+        }
+        return pss;
+    }
+
     private BufferedReader[] getPileupReaders () {
         BufferedReader[] brs = new BufferedReader[this.bamPaths.length];
         try {
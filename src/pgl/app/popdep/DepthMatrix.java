@@ -0,0 +1,291 @@
+package pgl.app.popdep;
+
+import pgl.infra.utils.IOUtils;
+
+import java.io.DataOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A random-access binary store of the position × taxon depth matrix of one chromosome.
+ * <p>
+ * Positions are stored in fixed-size blocks, each block is taxon-major and compressed independently.
+ * A block index at the end of the file records the start position, file offset and compressed size of each block,
+ * so that a query of a region and a subset of taxa only inflates the blocks overlapping the region.
+ * <p>
+ * File layout: header (taxa number, taxa names, chromosome, chromosome length, block size), compressed blocks,
+ * block index (block number, then start position, offset and compressed size of each block), offset of the index.
+ * Positions are 1-based.
+ * @author feilu
+ */
+public class DepthMatrix {
+    /**
+     * Default number of positions in a block
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    String[] taxa = null;
+    short chromosome = Short.MIN_VALUE;
+    int chrLength = Integer.MIN_VALUE;
+    /**
+     * Number of positions in a block
+     */
+    int blockSize = DEFAULT_BLOCK_SIZE;
+    /**
+     * 1-based start position of each block
+     */
+    int[] blockStarts = null;
+    long[] blockOffsets = null;
+    int[] blockCompressedSizes = null;
+    RandomAccessFile raf = null;
+
+    /**
+     * Open a depth matrix file for queries
+     * @param infileS
+     */
+    public DepthMatrix (String infileS) {
+        try {
+            raf = new RandomAccessFile(infileS, "r");
+            taxa = new String[raf.readInt()];
+            for (int i = 0; i < taxa.length; i++) {
+                taxa[i] = raf.readUTF();
+            }
+            chromosome = raf.readShort();
+            chrLength = raf.readInt();
+            blockSize = raf.readInt();
+            raf.seek(raf.length()-Long.BYTES);
+            raf.seek(raf.readLong());
+            int blockNumber = raf.readInt();
+            blockStarts = new int[blockNumber];
+            blockOffsets = new long[blockNumber];
+            blockCompressedSizes = new int[blockNumber];
+            for (int i = 0; i < blockNumber; i++) {
+                blockStarts[i] = raf.readInt();
+                blockOffsets[i] = raf.readLong();
+                blockCompressedSizes[i] = raf.readInt();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String[] getTaxa () {
+        return taxa;
+    }
+
+    public int getTaxonIndex (String taxon) {
+        for (int i = 0; i < taxa.length; i++) {
+            if (taxa[i].equals(taxon)) return i;
+        }
+        return -1;
+    }
+
+    public short getChromosome () {
+        return chromosome;
+    }
+
+    public int getChromosomeLength () {
+        return chrLength;
+    }
+
+    /**
+     * Return depth of all taxa in a region
+     * @param startPosition inclusive, 1-based
+     * @param endPosition exclusive
+     * @return depth[taxon][position-startPosition]
+     */
+    public int[][] getDepth (int startPosition, int endPosition) {
+        int[] taxaIndices = new int[taxa.length];
+        for (int i = 0; i < taxaIndices.length; i++) taxaIndices[i] = i;
+        return this.getDepth(startPosition, endPosition, taxaIndices);
+    }
+
+    /**
+     * Return depth of a subset of taxa in a region, only the blocks overlapping the region are inflated
+     * @param startPosition inclusive, 1-based
+     * @param endPosition exclusive
+     * @param taxaIndices indices of the taxa in {@link #getTaxa()}
+     * @return depth[index of taxaIndices][position-startPosition]
+     */
+    public synchronized int[][] getDepth (int startPosition, int endPosition, int[] taxaIndices) {
+        if (startPosition < 1) startPosition = 1;
+        if (endPosition > chrLength+1) endPosition = chrLength+1;
+        if (endPosition <= startPosition) return new int[taxaIndices.length][0];
+        int[][] depth = new int[taxaIndices.length][endPosition-startPosition];
+        int firstBlock = this.getBlockIndex(startPosition);
+        int lastBlock = this.getBlockIndex(endPosition-1);
+        int[] block = new int[blockSize*taxa.length];
+        byte[] compressed = new byte[0];
+        byte[] raw = new byte[block.length*Integer.BYTES];
+        Inflater inf = new Inflater();
+        try {
+            for (int i = firstBlock; i <= lastBlock; i++) {
+                if (compressed.length < blockCompressedSizes[i]) compressed = new byte[blockCompressedSizes[i]];
+                raf.seek(blockOffsets[i]);
+                raf.readFully(compressed, 0, blockCompressedSizes[i]);
+                inf.reset();
+                inf.setInput(compressed, 0, blockCompressedSizes[i]);
+                int rawLength = 0;
+                while (!inf.finished()) {
+                    int n = inf.inflate(raw, rawLength, raw.length-rawLength);
+                    if (n == 0 && (inf.needsInput() || inf.needsDictionary())) break;
+                    rawLength += n;
+                }
+                int currentBlockSize = rawLength/Integer.BYTES/taxa.length;
+                ByteBuffer.wrap(raw, 0, rawLength).asIntBuffer().get(block, 0, rawLength/Integer.BYTES);
+                int from = Math.max(startPosition, blockStarts[i]);
+                int to = Math.min(endPosition, blockStarts[i]+currentBlockSize);
+                for (int j = 0; j < taxaIndices.length; j++) {
+                    System.arraycopy(block, taxaIndices[j]*currentBlockSize+from-blockStarts[i], depth[j], from-startPosition, to-from);
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        inf.end();
+        return depth;
+    }
+
+    private int getBlockIndex (int position) {
+        int index = Arrays.binarySearch(blockStarts, position);
+        if (index < 0) index = -index-2;
+        return index;
+    }
+
+    public void close () {
+        try {
+            raf.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writer of a depth matrix file, depth is added window by window in the order of positions
+     */
+    public static class Writer {
+        DataOutputStream dos = null;
+        int taxaNumber = 0;
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        /**
+         * Depth of the current block, taxon-major
+         */
+        int[][] block = null;
+        int blockStart = 1;
+        int blockFill = 0;
+        ByteBuffer raw = null;
+        byte[] compressed = null;
+        Deflater def = new Deflater(Deflater.BEST_SPEED);
+        long offset = 0;
+        int[] blockStarts = new int[16];
+        long[] blockOffsets = new long[16];
+        int[] blockCompressedSizes = new int[16];
+        int blockNumber = 0;
+
+        public Writer (String outfileS, String[] taxa, short chromosome, int chrLength) {
+            this(outfileS, taxa, chromosome, chrLength, DEFAULT_BLOCK_SIZE);
+        }
+
+        public Writer (String outfileS, String[] taxa, short chromosome, int chrLength, int blockSize) {
+            this.taxaNumber = taxa.length;
+            this.blockSize = blockSize;
+            this.block = new int[taxaNumber][blockSize];
+            this.raw = ByteBuffer.allocate(blockSize*taxaNumber*Integer.BYTES);
+            this.compressed = new byte[raw.capacity()+raw.capacity()/1000+64];
+            try {
+                dos = IOUtils.getBinaryWriter(outfileS);
+                dos.writeInt(taxaNumber);
+                for (int i = 0; i < taxa.length; i++) {
+                    dos.writeUTF(taxa[i]);
+                }
+                dos.writeShort(chromosome);
+                dos.writeInt(chrLength);
+                dos.writeInt(blockSize);
+                offset = dos.size();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Add depth of a window, windows should be added in the order of positions without gaps
+         * @param depth depth[taxon][position-startPosition]
+         * @param size number of positions of the window
+         */
+        public void addWindow (int[][] depth, int size) {
+            int index = 0;
+            while (index < size) {
+                int length = Math.min(size-index, blockSize-blockFill);
+                for (int i = 0; i < taxaNumber; i++) {
+                    System.arraycopy(depth[i], index, block[i], blockFill, length);
+                }
+                blockFill+=length;
+                index+=length;
+                if (blockFill == blockSize) this.writeBlock();
+            }
+        }
+
+        private void writeBlock () {
+            if (blockFill == 0) return;
+            raw.clear();
+            for (int i = 0; i < taxaNumber; i++) {
+                raw.asIntBuffer().put(block[i], 0, blockFill);
+                raw.position(raw.position()+blockFill*Integer.BYTES);
+            }
+            def.reset();
+            def.setInput(raw.array(), 0, raw.position());
+            def.finish();
+            int compressedSize = 0;
+            while (!def.finished()) {
+                if (compressedSize == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length*2);
+                compressedSize += def.deflate(compressed, compressedSize, compressed.length-compressedSize);
+            }
+            if (blockNumber == blockStarts.length) {
+                blockStarts = Arrays.copyOf(blockStarts, blockNumber*2);
+                blockOffsets = Arrays.copyOf(blockOffsets, blockNumber*2);
+                blockCompressedSizes = Arrays.copyOf(blockCompressedSizes, blockNumber*2);
+            }
+            blockStarts[blockNumber] = blockStart;
+            blockOffsets[blockNumber] = offset;
+            blockCompressedSizes[blockNumber] = compressedSize;
+            blockNumber++;
+            try {
+                dos.write(compressed, 0, compressedSize);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            offset+=compressedSize;
+            blockStart+=blockFill;
+            blockFill = 0;
+        }
+
+        /**
+         * Write the remaining positions and the block index
+         */
+        public void close () {
+            this.writeBlock();
+            try {
+                dos.writeInt(blockNumber);
+                for (int i = 0; i < blockNumber; i++) {
+                    dos.writeInt(blockStarts[i]);
+                    dos.writeLong(blockOffsets[i]);
+                    dos.writeInt(blockCompressedSizes[i]);
+                }
+                dos.writeLong(offset);
+                dos.flush();
+                dos.close();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            def.end();
+        }
+    }
+}
@@ -43,12 +43,19 @@ public class PopDep {
      */
     int threadNum = 16;
     String outfileS = null;
+    /**
+     * Optional binary file of the position × taxon depth matrix, see {@link DepthMatrix}
+     */
+    String depthMatrixFileS = null;
     String[] taxa = null;
     String[] references = null;
     HashMap<String, String[]> taxaBamPathsMap = new HashMap<>();
     double[] mode = null;
+    /**
+     * Reciprocal of depth mode of each taxon, used to standardize depth
+     */
+    double[] reciprocalMode = null;
     double minMode = 5;
-    double[] depWithMinMode = null;
     int[] taxaMinModeIndices = null;
 
     /**
@@ -63,17 +70,52 @@ public class PopDep {
      * Sampling size for estimating mode
      */
     int samplingSize = 10000;
+    /**
+     * Method to estimate depth mode in step 1, 0 for scanning all sampled sites, 1 for sampling random regions through BAM index
+     */
+    int modeEstimationMethod = 0;
+    /**
+     * Maximum number of random regions for estimating mode
+     */
+    int samplingRegionNumber = 1000;
+    /**
+     * Length of each random region for estimating mode
+     */
+    int samplingRegionLength = 1000;
+    /**
+     * Mode is regarded as stable when it changes no more than the tolerance in consecutive checks
+     */
+    int modeTolerance = 1;
+    /**
+     * Number of regions added between two checks of mode stability
+     */
+    int modeCheckInterval = 10;
+    /**
+     * Number of consecutive stable checks before the sampling stops
+     */
+    int modeStableCheckNumber = 3;
+    /**
+     * Number of bootstrap replicates of regions to estimate the confidence interval of mode
+     */
+    int bootstrapNumber = 200;
     /**
      * Window size to profile depth
      */
     int windowSize = 500_000;
-    
-    double[][] depth = null;
+    /**
+     * Number of characters buffered before the text output is written
+     */
+    int textBatchSize = 1 << 16;
+    /**
+     * Depth of each taxon in the current window, taxon-major
+     */
+    int[][] depth = null;
 
     public PopDep (String parameterFileS) {
         this.parseParameters(parameterFileS);
         if (this.step == 1) {
-            this.mkTaxaDepthMode();
+            if (this.modeEstimationMethod == 1) this.mkTaxaDepthModeBySampling();
+            else this.mkTaxaDepthMode();
         }
         else if (this.step == 2) {
             this.profileDepth();
@@ -83,6 +125,11 @@ public class PopDep {
     public void profileDepth () {
         int[][] windows = PArrayUtils.getSubsetsIndicesBySubsetSize(this.chrLength, windowSize);
         int[][] subIndices = PArrayUtils.getSubsetsIndicesBySubsetSize(taxa.length, this.threadNum);
+        depth = new int[taxa.length][windowSize];
+        DepthAccumulator rawAcc = new DepthAccumulator(windowSize);
+        DepthAccumulator stdAcc = new DepthAccumulator(windowSize);
+        DepthMatrix.Writer dmw = null;
+        if (this.depthMatrixFileS != null) dmw = new DepthMatrix.Writer(this.depthMatrixFileS, taxa, this.chromosome, this.chrLength);
         try {
             StringBuilder sb = new StringBuilder();
             BufferedWriter bw = IOUtils.getTextGzipWriter(this.outfileS);
@@ -90,9 +137,12 @@ public class PopDep {
             bw.newLine();
             for (int i = 0; i < windows.length; i++) {
                 String[] commands = this.getSamCommands(windows[i][0], windows[i][1]);
-                depth = new double[windows[i][1]-windows[i][0]][taxa.length];
                 int startIndex = windows[i][0];
                 int border = windows[i][1];
+                int blockSize = windows[i][1] - windows[i][0];
+                for (int j = 0; j < depth.length; j++) {
+                    Arrays.fill(depth[j], 0, blockSize, 0);
+                }
                 for (int u = 0; u < subIndices.length; u++) {
                     List<Integer> indices = PArrayUtils.getIndexList(subIndices[u][0], subIndices[u][1]);
                     indices.parallelStream().forEach(j -> {
@@ -104,6 +154,7 @@ public class PopDep {
                             List<String> l = new ArrayList<>();
                             int v = 0;
                             int pos = -1;
+                            int[] taxonDepth = depth[j];
                             while ((temp = br.readLine()) != null) {
                                 v = 0;
                                 l = PStringUtils.fastSplit(temp);
@@ -112,7 +163,7 @@ public class PopDep {
                                 }
                                 pos = Integer.parseInt(l.get(1));
                                 if (pos > border) break;
-                                depth[pos-1-startIndex][j] = v;
+                                taxonDepth[pos-1-startIndex] = v;
                             }
                             br.close();
                             p.waitFor();
@@ -122,31 +173,32 @@ public class PopDep {
                         }
                     });
                 }
-                DescriptiveStatistics d = new DescriptiveStatistics();
-                int blockSize = windows[i][1] - windows[i][0];
+                if (dmw != null) dmw.addWindow(depth, blockSize);
+                rawAcc.reset(blockSize);
+                for (int j = 0; j < taxa.length; j++) {
+                    rawAcc.add(depth[j], 1);
+                }
+                stdAcc.reset(blockSize);
+                for (int k = 0; k < this.taxaMinModeIndices.length; k++) {
+                    stdAcc.add(depth[this.taxaMinModeIndices[k]], this.reciprocalMode[this.taxaMinModeIndices[k]]);
+                }
+                sb.setLength(0);
                 for (int j = 0; j < blockSize; j++) {
-                    sb.setLength(0);
-                    d = new DescriptiveStatistics(depth[j]);
-                    sb.append(j+windows[i][0]+1).append("\t").append((float)d.getMean()).append("\t").append((float)d.getStandardDeviation());
-                    Arrays.fill(this.depWithMinMode, 0);
-                    for (int k = 0; k < this.taxaMinModeIndices.length; k++) {
-                        this.depWithMinMode[k] = depth[j][this.taxaMinModeIndices[k]]/mode[this.taxaMinModeIndices[k]];
+                    sb.append(j+windows[i][0]+1).append("\t").append((float)rawAcc.getMean(j)).append("\t").append((float)rawAcc.getStandardDeviation(j));
+                    sb.append("\t").append((float)stdAcc.getMean(j)).append("\t").append((float)stdAcc.getStandardDeviation(j)).append("\n");
+                    if (sb.length() > textBatchSize) {
+                        bw.append(sb);
+                        sb.setLength(0);
                     }
-
-//                    for (int k = 0; k < taxa.length; k++) {
-//                        depth[j][k] = depth[j][k]/mode[k];
-//                    }
-                    d = new DescriptiveStatistics(this.depWithMinMode);
-                    sb.append("\t").append((float)d.getMean()).append("\t").append((float)d.getStandardDeviation());
-                    bw.write(sb.toString());
-                    bw.newLine();
                 }
+                bw.append(sb);
                 sb.setLength(0);
                 sb.append("Current position: ").append(windows[i][1]).append(" on chromosome ").append(this.chromosome);
                 System.out.println(sb.toString());
             }
             bw.flush();
             bw.close();
+            if (dmw != null) dmw.close();
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -154,6 +206,61 @@ public class PopDep {
         System.out.println("PopDep on chromosome "+String.valueOf(this.chromosome) + " is finished.");
     }
 
+    /**
+     * Running mean and variance (Welford) of depth at every position of a window, updated one taxon at a time.
+     * The taxon-major depth rows are streamed sequentially, so no per-position objects are created.
+     */
+    private static class DepthAccumulator {
+        double[] mean = null;
+        double[] m2 = null;
+        int n = 0;
+        int size = 0;
+
+        DepthAccumulator (int capacity) {
+            mean = new double[capacity];
+            m2 = new double[capacity];
+        }
+
+        void reset (int size) {
+            this.size = size;
+            this.n = 0;
+            Arrays.fill(mean, 0, size, 0);
+            Arrays.fill(m2, 0, size, 0);
+        }
+
+        /**
+         * Add the depth of one taxon over the window
+         * @param taxonDepth depth of the taxon at each position of the window
+         * @param scale multiplier of depth, e.g. the reciprocal of the depth mode of the taxon
+         */
+        void add (int[] taxonDepth, double scale) {
+            n++;
+            double invN = 1.0/n;
+            for (int i = 0; i < size; i++) {
+                double x = taxonDepth[i]*scale;
+                double delta = x - mean[i];
+                mean[i] += delta*invN;
+                m2[i] += delta*(x-mean[i]);
+            }
+        }
+
+        double getMean (int index) {
+            if (n == 0) return Double.NaN;
+            return mean[index];
+        }
+
+        /**
+         * Return the sample standard deviation, consistent with {@link DescriptiveStatistics#getStandardDeviation()}
+         * @param index
+         * @return
+         */
+        double getStandardDeviation (int index) {
+            if (n == 0) return Double.NaN;
+            if (n == 1) return 0;
+            return Math.sqrt(m2[index]/(n-1));
+        }
+    }
+
     private double getMean (double[] vs) {
         return Arrays.stream(vs).sum()/vs.length;
     }
@@ -271,6 +378,155 @@ public class PopDep {
         new File(siteFileS).delete();
     }
 
+    /**
+     * Estimate depth mode of each taxon from random regions, which are retrieved through BAM index.
+     * Regions are added incrementally until the mode is stable within {@link #modeTolerance},
+     * the 95% confidence interval of mode is estimated by bootstrapping the sampled regions.
+     */
+    public void mkTaxaDepthModeBySampling () {
+        String[] regions = this.getRandomRegions();
+        int[] modes = new int[taxa.length];
+        int[] lowerModes = new int[taxa.length];
+        int[] upperModes = new int[taxa.length];
+        int[] regionNumbers = new int[taxa.length];
+        int[][] subIndices = PArrayUtils.getSubsetsIndicesBySubsetSize(taxa.length, this.threadNum);
+        for (int i = 0; i < subIndices.length; i++) {
+            List<Integer> indices = PArrayUtils.getIndexList(subIndices[i][0], subIndices[i][1]);
+            indices.parallelStream().forEach(j -> {
+                int[] depth = new int[maxDepthRange+1];
+                List<int[]> regionDepthList = new ArrayList<>();
+                int currentMode = -1;
+                int stableCount = 0;
+                for (int k = 0; k < regions.length; k++) {
+                    int[] regionDepth = new int[maxDepthRange+1];
+                    try {
+                        Runtime rt = Runtime.getRuntime();
+                        Process p = rt.exec(this.getSamRegionCommand(j, regions[k]));
+                        BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                        String temp = null;
+                        List<String> l = new ArrayList<>();
+                        int v = 0;
+                        while ((temp = br.readLine()) != null) {
+                            v = 0;
+                            l = PStringUtils.fastSplit(temp);
+                            for (int u = 0; u < l.size()-3; u+=3) {
+                                v+=Integer.parseInt(l.get(u+3));
+                            }
+                            if (v > this.maxDepthRange) continue;
+                            regionDepth[v]++;
+                        }
+                        br.close();
+                        p.waitFor();
+                    }
+                    catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    regionDepthList.add(regionDepth);
+                    for (int u = 0; u < depth.length; u++) {
+                        depth[u]+=regionDepth[u];
+                    }
+                    if ((k+1)%this.modeCheckInterval != 0) continue;
+                    int newMode = getMode(depth);
+                    if (currentMode != -1 && Math.abs(newMode-currentMode) <= this.modeTolerance) stableCount++;
+                    else stableCount = 0;
+                    currentMode = newMode;
+                    if (stableCount >= this.modeStableCheckNumber) break;
+                }
+                modes[j] = getMode(depth);
+                regionNumbers[j] = regionDepthList.size();
+                int[] bootModes = new int[this.bootstrapNumber];
+                Random r = new Random(j);
+                for (int k = 0; k < bootModes.length; k++) {
+                    Arrays.fill(depth, 0);
+                    for (int u = 0; u < regionDepthList.size(); u++) {
+                        int[] regionDepth = regionDepthList.get(r.nextInt(regionDepthList.size()));
+                        for (int w = 0; w < depth.length; w++) {
+                            depth[w]+=regionDepth[w];
+                        }
+                    }
+                    bootModes[k] = getMode(depth);
+                }
+                Arrays.sort(bootModes);
+                lowerModes[j] = bootModes[(int)(bootModes.length*0.025)];
+                upperModes[j] = bootModes[Math.min(bootModes.length-1, (int)(bootModes.length*0.975))];
+            });
+            System.out.println(String.valueOf(subIndices[i][1])+ " depth calculation finished in Step 1");
+        }
+        try {
+            BufferedWriter bw = IOUtils.getTextWriter(this.taxaDepthModeFileS);
+            StringBuilder sb = new StringBuilder();
+            bw.write("Taxa\tMode\tMode_CI_Lower\tMode_CI_Upper\tRegion_Number");
+            bw.newLine();
+            for (int i = 0; i < taxa.length; i++) {
+                sb.setLength(0);
+                sb.append(taxa[i]).append("\t").append(modes[i]).append("\t").append(lowerModes[i]).append("\t");
+                sb.append(upperModes[i]).append("\t").append(regionNumbers[i]);
+                bw.write(sb.toString());
+                bw.newLine();
+            }
+            bw.flush();
+            bw.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int getMode (int[] depth) {
+        int maxValue = Integer.MIN_VALUE;
+        int maxDepth = Integer.MAX_VALUE;
+        for (int k = 0; k < depth.length; k++) {
+            if (depth[k] > maxValue) {
+                maxValue = depth[k];
+                maxDepth = k;
+            }
+        }
+        return maxDepth;
+    }
+
+    /**
+     * Return random regions in samtools format, sampled proportionally to chromosome length.
+     * All taxa share the same region order, so that their modes are estimated from the same part of the genome.
+     * @return
+     */
+    private String[] getRandomRegions () {
+        RowTable<String> t = new RowTable<>(this.chrLengthFileS);
+        String[] chrs = new String[t.getRowNumber()];
+        long[] chrEnds = new long[t.getRowNumber()];
+        long totalLength = 0;
+        for (int i = 0; i < t.getRowNumber(); i++) {
+            chrs[i] = t.getCell(i,0);
+            totalLength+=Integer.parseInt(t.getCell(i,1));
+            chrEnds[i] = totalLength;
+        }
+        String[] regions = new String[this.samplingRegionNumber];
+        Random r = new Random(0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < regions.length; i++) {
+            long start = (long)(r.nextDouble()*totalLength);
+            int index = Arrays.binarySearch(chrEnds, start);
+            if (index < 0) index = -index-1;
+            else index++;
+            long chrStart = index == 0 ? 0 : chrEnds[index-1];
+            int regionStart = (int)(start-chrStart)+1;
+            int regionEnd = (int)Math.min(chrEnds[index]-chrStart, (long)regionStart+this.samplingRegionLength-1);
+            sb.setLength(0);
+            sb.append(chrs[index]).append(":").append(regionStart).append("-").append(regionEnd);
+            regions[i] = sb.toString();
+        }
+        return regions;
+    }
+
+    private String getSamRegionCommand (int taxonIndex, String region) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(this.samPath).append(" mpileup -A -B -Q 20 -f ").append(this.references[taxonIndex]).append(" -r ").append(region);
+        String[] paths = this.taxaBamPathsMap.get(taxa[taxonIndex]);
+        for (int j = 0; j < paths.length; j++) {
+            sb.append(" ").append(paths[j]);
+        }
+        return sb.toString();
+    }
+
     private String[] getSamCommand (String siteFileS) {
         String[] commands = new String[taxa.length];
         StringBuilder sb = new StringBuilder();
@@ -319,6 +575,10 @@ public class PopDep {
         this.chrLengthFileS = pLineList.get(2);
         this.samPath = pLineList.get(3);
         this.threadNum = Integer.parseInt(pLineList.get(4));
+        if (pLineList.size() > 5) this.modeEstimationMethod = Integer.parseInt(pLineList.get(5));
+        if (pLineList.size() > 6) this.samplingRegionNumber = Integer.parseInt(pLineList.get(6));
+        if (pLineList.size() > 7) this.samplingRegionLength = Integer.parseInt(pLineList.get(7));
+        if (pLineList.size() > 8) this.modeTolerance = Integer.parseInt(pLineList.get(8));
         HashMap<String, String> taxaRefMap = new HashMap<>();
         try {
             BufferedReader br = IOUtils.getTextReader(this.taxaRefBamFileS);
@@ -357,6 +617,7 @@ public class PopDep {
         this.threadNum = Integer.parseInt(pLineList.get(6));
         HashMap<String, String> taxaRefMap = new HashMap<>();
         this.outfileS = pLineList.get(7);
+        if (pLineList.size() > 8) this.depthMatrixFileS = pLineList.get(8);
         try {
             BufferedReader br = IOUtils.getTextReader(this.taxaRefBamFileS);
             String temp = br.readLine();
@@ -391,11 +652,12 @@ public class PopDep {
             if (mode < this.minMode) continue;
             minModeIndexList.add(i);
         }
-        this.depWithMinMode = new double[minModeIndexList.size()];
         this.taxaMinModeIndices = minModeIndexList.toArray();
         this.mode = new double[this.taxa.length];
+        this.reciprocalMode = new double[this.taxa.length];
         for (int i = 0; i < taxa.length; i++) {
             mode[i] = taxaModeMap.get(taxa[i]);
+            reciprocalMode[i] = 1/mode[i];
         }
     }
 }
@@ -0,0 +1,332 @@
+package pgl.infra.dna.genot;
+
+import pgl.infra.utils.BitMatrixUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * A bit matrix held in contiguous 64-bit words, used as a genotype plane (phase 1, phase 2, or missing) of {@link GenotypeGrid}.
+ * <p>
+ * Each row occupies a fixed number of words (the stride). Rows are packed back to back in large word arrays (chunks),
+ * a chunk holds a power-of-two number of rows, which is a multiple of 64, so that a row never crosses chunks.
+ * Bits of a row follow the order of {@link BitSet#toLongArray()}.
+ * <p>
+ * Setting bits is not thread-safe when two threads write to the same word.
+ *
+ * @author feilu
+ */
+public class BitPlane {
+    /**
+     * Maximum number of words in a chunk, 1 GB
+     */
+    static final int maxChunkWordNumber = 1 << 27;
+
+    /**
+     * Number of rows
+     */
+    int rowNumber = 0;
+    /**
+     * Number of columns, i.e. bits of a row
+     */
+    int columnNumber = 0;
+    /**
+     * Number of words of a row
+     */
+    int stride = 0;
+    /**
+     * log2 of the number of rows in a chunk
+     */
+    int rowShift = 0;
+    int rowMask = 0;
+    long[][] chunks = null;
+
+    /**
+     * Construct an empty plane
+     * @param rowNumber
+     * @param columnNumber
+     */
+    public BitPlane (int rowNumber, int columnNumber) {
+        this.rowNumber = rowNumber;
+        this.columnNumber = columnNumber;
+        this.stride = BitMatrixUtils.getWordNumber(columnNumber);
+        int rowsPerChunk = BitMatrixUtils.wordSize;
+        while (rowsPerChunk < rowNumber && (long)rowsPerChunk*2*stride <= maxChunkWordNumber) {
+            rowsPerChunk*=2;
+        }
+        this.rowShift = Integer.numberOfTrailingZeros(rowsPerChunk);
+        this.rowMask = rowsPerChunk-1;
+        int chunkNumber = (int)(((long)rowNumber+rowsPerChunk-1)/rowsPerChunk);
+        chunks = new long[chunkNumber][];
+        for (int i = 0; i < chunkNumber; i++) {
+            int rows = Math.min(rowsPerChunk, rowNumber-(i << rowShift));
+            chunks[i] = new long[rows*stride];
+        }
+    }
+
+    /**
+     * Construct a plane from bit sets, one per row
+     * @param rows
+     * @param columnNumber
+     */
+    public BitPlane (BitSet[] rows, int columnNumber) {
+        this(rows.length, columnNumber);
+        IntStream.range(0, rows.length).parallel().forEach(i -> this.setRow(i, rows[i]));
+    }
+
+    public int getRowNumber () {
+        return rowNumber;
+    }
+
+    public int getColumnNumber () {
+        return columnNumber;
+    }
+
+    /**
+     * Return the number of words of a row
+     * @return
+     */
+    public int getStride () {
+        return stride;
+    }
+
+    /**
+     * Return the word array holding a row, use together with {@link #getOffset(int)}
+     * @param row
+     * @return
+     */
+    public long[] getWords (int row) {
+        return chunks[row >>> rowShift];
+    }
+
+    /**
+     * Return the index of the first word of a row in {@link #getWords(int)}
+     * @param row
+     * @return
+     */
+    public int getOffset (int row) {
+        return (row & rowMask)*stride;
+    }
+
+    public long getWord (int row, int wordIndex) {
+        return chunks[row >>> rowShift][(row & rowMask)*stride+wordIndex];
+    }
+
+    public boolean get (int row, int column) {
+        return (chunks[row >>> rowShift][(row & rowMask)*stride+(column >>> 6)] & (1L << column)) != 0;
+    }
+
+    public void set (int row, int column) {
+        chunks[row >>> rowShift][(row & rowMask)*stride+(column >>> 6)] |= (1L << column);
+    }
+
+    public void clear (int row, int column) {
+        chunks[row >>> rowShift][(row & rowMask)*stride+(column >>> 6)] &= ~(1L << column);
+    }
+
+    /**
+     * Return the number of set bits of a row
+     * @param row
+     * @return
+     */
+    public int cardinality (int row) {
+        long[] words = this.getWords(row);
+        int offset = this.getOffset(row);
+        int cnt = 0;
+        for (int i = 0; i < stride; i++) {
+            cnt+=Long.bitCount(words[offset+i]);
+        }
+        return cnt;
+    }
+
+    /**
+     * Return a copy of a row
+     * @param row
+     * @return
+     */
+    public BitSet getBitSet (int row) {
+        int offset = this.getOffset(row);
+        return BitSet.valueOf(Arrays.copyOfRange(this.getWords(row), offset, offset+stride));
+    }
+
+    /**
+     * Overwrite a row with a bit set, bits beyond the column number are ignored
+     * @param row
+     * @param bs
+     */
+    public void setRow (int row, BitSet bs) {
+        long[] words = this.getWords(row);
+        int offset = this.getOffset(row);
+        long[] source = bs.toLongArray();
+        int length = Math.min(source.length, stride);
+        System.arraycopy(source, 0, words, offset, length);
+        Arrays.fill(words, offset+length, offset+stride, 0);
+        this.clearTail(words, offset);
+    }
+
+    /**
+     * Overwrite a row with little-endian bytes, e.g. from {@link BitSet#toByteArray()}, the position of the buffer is advanced by the byte size of a row
+     * @param row
+     * @param bb
+     */
+    public void readRow (int row, ByteBuffer bb) {
+        long[] words = this.getWords(row);
+        int offset = this.getOffset(row);
+        for (int i = 0; i < stride; i++) {
+            words[offset+i] = Long.reverseBytes(bb.getLong());
+        }
+        this.clearTail(words, offset);
+    }
+
+    /**
+     * Write a row as little-endian bytes, the same as a padded {@link BitSet#toByteArray()}
+     * @param row
+     * @param bb
+     */
+    public void writeRow (int row, ByteBuffer bb) {
+        long[] words = this.getWords(row);
+        int offset = this.getOffset(row);
+        for (int i = 0; i < stride; i++) {
+            bb.putLong(Long.reverseBytes(words[offset+i]));
+        }
+    }
+
+    private void clearTail (long[] words, int offset) {
+        int remainder = columnNumber & 63;
+        if (remainder != 0) words[offset+stride-1] &= (-1L >>> (64-remainder));
+    }
+
+    /**
+     * Copy rows of the plane to another plane with the same column number
+     * @param fromRow
+     * @param dest
+     * @param destRow
+     * @param length number of rows
+     */
+    public void copyRows (int fromRow, BitPlane dest, int destRow, int length) {
+        for (int i = 0; i < length; i++) {
+            System.arraycopy(this.getWords(fromRow+i), this.getOffset(fromRow+i), dest.getWords(destRow+i), dest.getOffset(destRow+i), stride);
+        }
+    }
+
+    /**
+     * Copy the words of a range of rows into an array, rows are laid out one after another, each takes {@link #getStride()} words
+     * @param startRow inclusive
+     * @param endRow exclusive
+     * @param dest
+     * @param destOffset
+     */
+    public void copyWords (int startRow, int endRow, long[] dest, int destOffset) {
+        int row = startRow;
+        while (row < endRow) {
+            int chunkEnd = Math.min(endRow, ((row >>> rowShift)+1) << rowShift);
+            System.arraycopy(this.getWords(row), this.getOffset(row), dest, destOffset, (chunkEnd-row)*stride);
+            destOffset+=(chunkEnd-row)*stride;
+            row = chunkEnd;
+        }
+    }
+
+    /**
+     * Return a new plane of selected rows
+     * @param rowIndices
+     * @return
+     */
+    public BitPlane getRows (int[] rowIndices) {
+        BitPlane plane = new BitPlane(rowIndices.length, columnNumber);
+        IntStream.range(0, rowIndices.length).parallel().forEach(i -> this.copyRows(rowIndices[i], plane, i, 1));
+        return plane;
+    }
+
+    /**
+     * Return a new plane of the selected columns
+     * @param columnIndices
+     * @return
+     */
+    public BitPlane getColumns (int[] columnIndices) {
+        BitPlane plane = new BitPlane(rowNumber, columnIndices.length);
+        IntStream.range(0, rowNumber).parallel().forEach(i -> {
+            long[] words = this.getWords(i);
+            int offset = this.getOffset(i);
+            long[] dWords = plane.getWords(i);
+            int dOffset = plane.getOffset(i);
+            for (int j = 0; j < columnIndices.length; j++) {
+                if ((words[offset+(columnIndices[j] >>> 6)] & (1L << columnIndices[j])) == 0) continue;
+                dWords[dOffset+(j >>> 6)] |= (1L << j);
+            }
+        });
+        return plane;
+    }
+
+    /**
+     * Swap two rows
+     * @param row1
+     * @param row2
+     */
+    public void swapRows (int row1, int row2) {
+        long[] words1 = this.getWords(row1);
+        long[] words2 = this.getWords(row2);
+        int offset1 = this.getOffset(row1);
+        int offset2 = this.getOffset(row2);
+        for (int i = 0; i < stride; i++) {
+            long temp = words1[offset1+i];
+            words1[offset1+i] = words2[offset2+i];
+            words2[offset2+i] = temp;
+        }
+    }
+
+    /**
+     * Return the transposed plane. The plane is cut into 64 × 64 tiles, which are transposed word by word
+     * by {@link BitMatrixUtils#transpose64(long[])}. Blocks of 64 output rows are processed in parallel,
+     * so that each output word is written by one thread only.
+     * @return
+     */
+    public BitPlane transpose () {
+        BitPlane t = new BitPlane(columnNumber, rowNumber);
+        int rowWordNumber = t.stride;
+        IntStream.range(0, stride).parallel().forEach(cb -> {
+            long[] tile = new long[BitMatrixUtils.wordSize];
+            int columnStart = cb*BitMatrixUtils.wordSize;
+            int columnEnd = Math.min(columnStart+BitMatrixUtils.wordSize, columnNumber);
+            for (int rb = 0; rb < rowWordNumber; rb++) {
+                int rowStart = rb*BitMatrixUtils.wordSize;
+                int rowEnd = Math.min(rowStart+BitMatrixUtils.wordSize, rowNumber);
+                long[] words = this.getWords(rowStart);
+                int offset = this.getOffset(rowStart)+cb;
+                for (int i = 0; i < rowEnd-rowStart; i++) {
+                    tile[i] = words[offset+i*stride];
+                }
+                for (int i = rowEnd-rowStart; i < BitMatrixUtils.wordSize; i++) {
+                    tile[i] = 0;
+                }
+                BitMatrixUtils.transpose64(tile);
+                long[] tWords = t.getWords(columnStart);
+                int tOffset = t.getOffset(columnStart)+rb;
+                for (int i = 0; i < columnEnd-columnStart; i++) {
+                    tWords[tOffset+i*rowWordNumber] = tile[i];
+                }
+            }
+        });
+        return t;
+    }
+
+    /**
+     * Return a new plane concatenating the rows of planes with the same column number
+     * @param planes
+     * @return
+     */
+    public static BitPlane concatenateRows (BitPlane... planes) {
+        int rowNumber = 0;
+        for (int i = 0; i < planes.length; i++) {
+            rowNumber+=planes[i].rowNumber;
+        }
+        BitPlane plane = new BitPlane(rowNumber, planes[0].columnNumber);
+        int cnt = 0;
+        for (int i = 0; i < planes.length; i++) {
+            planes[i].copyRows(0, plane, cnt, planes[i].rowNumber);
+            cnt+=planes[i].rowNumber;
+        }
+        return plane;
+    }
+}
@@ -0,0 +1,215 @@
+package pgl.infra.dna.genot;
+
+import pgl.infra.dna.allele.AlleleEncoder;
+import pgl.infra.dna.snp.BiSNP;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Block codec of the uncompressed binary genotype format, see {@link GenoIOFormat}
+ * <p>
+ * Sites are moved between the file and the bit planes in blocks of about {@link #bufferSize} bytes through a {@link FileChannel}.
+ * A block is encoded or decoded in parallel in a direct buffer, while the previous block is written, or the next block is read, on another thread.
+ * No buffer is allocated per site, and the reader decodes words straight into the planes of the table.
+ *
+ * @author feilu
+ */
+class GenoBinaryCodec {
+    /**
+     * Byte size of a buffer, two buffers are used at a time
+     */
+    static final int bufferSize = 1 << 26;
+
+    /**
+     * Write a genotype table in the uncompressed binary format
+     * @param gt
+     * @param outfileS
+     */
+    static void write (GenotypeTable gt, String outfileS) {
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try (FileChannel fc = FileChannel.open(Paths.get(outfileS), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int siteNumber = gt.getSiteNumber();
+            int taxaNumber = gt.getTaxaNumber();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(siteNumber);
+            dos.writeInt(taxaNumber);
+            for (int i = 0; i < taxaNumber; i++) {
+                dos.writeUTF(gt.getTaxonName(i));
+            }
+            dos.flush();
+            writeFully(fc, ByteBuffer.wrap(baos.toByteArray()));
+            int siteByteSize = GenotypeExport.getByteSizeOfSiteInBinary(taxaNumber);
+            int blockSiteNumber = getBlockSiteNumber(siteByteSize);
+            ByteBuffer[] buffers = new ByteBuffer[2];
+            Future<?> pending = null;
+            int bufferIndex = 0;
+            for (int i = 0; i < siteNumber; i+=blockSiteNumber) {
+                int startSite = i;
+                int endSite = Math.min(siteNumber, i+blockSiteNumber);
+                if (buffers[bufferIndex] == null) buffers[bufferIndex] = ByteBuffer.allocateDirect(blockSiteNumber*siteByteSize);
+                ByteBuffer buffer = buffers[bufferIndex];
+                buffer.clear();
+                IntStream.range(startSite, endSite).parallel().forEach(j -> {
+                    ByteBuffer bb = buffer.duplicate();
+                    bb.position((j-startSite)*siteByteSize);
+                    gt.getBinaryOutput(j, bb);
+                });
+                if (pending != null) pending.get();
+                buffer.position(0).limit((endSite-startSite)*siteByteSize);
+                pending = writer.submit(() -> {
+                    writeFully(fc, buffer);
+                    return null;
+                });
+                bufferIndex = 1-bufferIndex;
+            }
+            if (pending != null) pending.get();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        writer.shutdown();
+    }
+
+    /**
+     * Read an uncompressed binary genotype file into a genotype table, the taxa, the SNPs, and the planes of sites are set, the planes of taxa are not built
+     * @param infileS
+     * @param gt
+     */
+    static void read (String infileS, GenotypeGrid gt) {
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try (FileChannel fc = FileChannel.open(Paths.get(infileS), StandardOpenOption.READ)) {
+            readHeader(fc, gt);
+            int siteNumber = gt.snps.length;
+            int siteByteSize = GenotypeExport.getByteSizeOfSiteInBinary(gt.taxa.length);
+            int blockSiteNumber = getBlockSiteNumber(siteByteSize);
+            ByteBuffer[] buffers = new ByteBuffer[2];
+            Future<?> pending = null;
+            int bufferIndex = 0;
+            if (siteNumber > 0) pending = submitRead(reader, fc, buffers, bufferIndex, Math.min(siteNumber, blockSiteNumber), blockSiteNumber*siteByteSize, siteByteSize);
+            for (int i = 0; i < siteNumber; i+=blockSiteNumber) {
+                int startSite = i;
+                int endSite = Math.min(siteNumber, i+blockSiteNumber);
+                pending.get();
+                ByteBuffer buffer = buffers[bufferIndex];
+                bufferIndex = 1-bufferIndex;
+                if (endSite < siteNumber) {
+                    pending = submitRead(reader, fc, buffers, bufferIndex, Math.min(siteNumber-endSite, blockSiteNumber), blockSiteNumber*siteByteSize, siteByteSize);
+                }
+                ByteBuffer words = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                IntStream.range(startSite, endSite).parallel().forEach(j -> {
+                    decodeSite(gt, j, buffer, words, (j-startSite)*siteByteSize);
+                });
+                if (endSite/1000000 > startSite/1000000) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("Read in ").append(endSite).append(" SNPs from ").append(infileS);
+                    System.out.println(sb.toString());
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        reader.shutdown();
+    }
+
+    /**
+     * Read the header, the taxa, the array of SNPs, and empty planes of sites are set, the channel is positioned at the first site
+     * @param fc
+     * @param gt
+     * @throws Exception
+     */
+    private static void readHeader (FileChannel fc, GenotypeGrid gt) throws Exception {
+        int size = 1 << 16;
+        while (true) {
+            ByteBuffer bb = ByteBuffer.allocate((int)Math.min(size, fc.size()));
+            fc.read(bb, 0);
+            ByteArrayInputStream bais = new ByteArrayInputStream(bb.array(), 0, bb.position());
+            DataInputStream dis = new DataInputStream(bais);
+            try {
+                int siteNumber = dis.readInt();
+                String[] taxa = new String[dis.readInt()];
+                for (int i = 0; i < taxa.length; i++) {
+                    taxa[i] = dis.readUTF();
+                }
+                fc.position(bb.position()-bais.available());
+                gt.taxa = taxa;
+                gt.snps = new BiSNP[siteNumber];
+                gt.genoSite = new BitPlane[3];
+                for (int i = 0; i < gt.genoSite.length; i++) {
+                    gt.genoSite[i] = new BitPlane(siteNumber, taxa.length);
+                }
+                return;
+            }
+            catch (EOFException e) {
+                if (size >= fc.size()) throw e;
+                size*=2;
+            }
+        }
+    }
+
+    private static Future<?> submitRead (ExecutorService reader, FileChannel fc, ByteBuffer[] buffers, int bufferIndex, int siteNumber, int capacity, int siteByteSize) {
+        if (buffers[bufferIndex] == null) buffers[bufferIndex] = ByteBuffer.allocateDirect(capacity);
+        ByteBuffer buffer = buffers[bufferIndex];
+        return reader.submit(() -> {
+            buffer.clear().limit(siteNumber*siteByteSize);
+            while (buffer.hasRemaining()) {
+                if (fc.read(buffer) < 0) throw new EOFException("Unexpected end of the binary genotype file");
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Decode a site with absolute reads, the buffers are shared by threads
+     * @param gt
+     * @param siteIndex
+     * @param bb buffer in big-endian order, for chromosome and position
+     * @param words the same buffer in little-endian order, for words of the planes
+     * @param offset
+     */
+    private static void decodeSite (GenotypeGrid gt, int siteIndex, ByteBuffer bb, ByteBuffer words, int offset) {
+        short chr = bb.getShort(offset);
+        int pos = bb.getInt(offset+2);
+        byte geno = bb.get(offset+6);
+        BiSNP snp = new BiSNP(chr, pos, AlleleEncoder.getAlleleBase1FromGenotypeByte(geno), AlleleEncoder.getAlleleBase2FromGenotypeByte(geno), null);
+        snp.setReferenceAlleleFeature(bb.get(offset+7));
+        snp.setAlternativeAlleleFeature(bb.get(offset+8));
+        gt.snps[siteIndex] = snp;
+        int current = offset+GenotypeExport.getByteSizeOfSNPInBinary();
+        for (int i = 0; i < gt.genoSite.length; i++) {
+            BitPlane plane = gt.genoSite[i];
+            long[] w = plane.getWords(siteIndex);
+            int o = plane.getOffset(siteIndex);
+            for (int j = 0; j < plane.getStride(); j++) {
+                w[o+j] = words.getLong(current);
+                current+=Long.BYTES;
+            }
+            int remainder = plane.getColumnNumber() & 63;
+            if (remainder != 0) w[o+plane.getStride()-1] &= (-1L >>> (64-remainder));
+        }
+    }
+
+    private static int getBlockSiteNumber (int siteByteSize) {
+        return Math.max(1, bufferSize/siteByteSize);
+    }
+
+    private static void writeFully (FileChannel fc, ByteBuffer bb) throws Exception {
+        while (bb.hasRemaining()) {
+            fc.write(bb);
+        }
+    }
+}
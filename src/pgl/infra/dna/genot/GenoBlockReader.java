@@ -0,0 +1,166 @@
+package pgl.infra.dna.genot;
+
+import pgl.infra.dna.snp.BiSNP;
+import pgl.infra.utils.IOUtils;
+
+import java.io.DataInputStream;
+import java.util.concurrent.Callable;
+import java.util.stream.IntStream;
+
+/**
+ * Sequential reader of decoded blocks of sites of a genotype file, used when several files are read side by side, e.g. by {@link GenotypeMerger}.
+ * <p>
+ * A batch of blocks is read and decoded in parallel, blocks are then handed out one at a time by {@link #next()}.
+ * Memory is proportional to the batch size, the block size, and the taxa number.
+ *
+ * @author feilu
+ */
+class GenoBlockReader {
+    String infileS = null;
+    GenoIOFormat format = null;
+    String[] taxa = null;
+    int batchSize = 1;
+    VCFByteReader vr = null;
+    DataInputStream dis = null;
+    int siteNumber = 0;
+    int siteCount = 0;
+    GenoChunkFile gcf = null;
+    int chunkCount = 0;
+    boolean ifEnd = false;
+    Callable<?>[] batch = null;
+    int batchNumber = 0;
+    int batchIndex = 0;
+    /**
+     * The current block
+     */
+    BiSNP[] snps = null;
+    BitPlane[] planes = null;
+    int blockSiteNumber = 0;
+
+    /**
+     * Open a genotype file, only the taxa are read
+     * @param infileS
+     * @param format
+     * @param batchSize number of blocks decoded in parallel
+     */
+    GenoBlockReader (String infileS, GenoIOFormat format, int batchSize) {
+        this.infileS = infileS;
+        this.format = format;
+        this.batchSize = Math.max(1, batchSize);
+        this.batch = new Callable<?>[this.batchSize];
+        try {
+            if (format == GenoIOFormat.VCF || format == GenoIOFormat.VCF_GZ) {
+                vr = new VCFByteReader(infileS);
+                taxa = vr.getTaxa();
+            }
+            else if (format == GenoIOFormat.Binary || format == GenoIOFormat.Binary_GZ) {
+                if (infileS.endsWith(".gz")) dis = IOUtils.getBinaryGzipReader(infileS);
+                else dis = IOUtils.getBinaryReader(infileS);
+                siteNumber = dis.readInt();
+                taxa = new String[dis.readInt()];
+                for (int i = 0; i < taxa.length; i++) {
+                    taxa[i] = dis.readUTF();
+                }
+            }
+            else if (format == GenoIOFormat.HDF5) {
+                gcf = new GenoChunkFile(infileS);
+                taxa = gcf.getTaxa();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    String[] getTaxa () {
+        return taxa;
+    }
+
+    /**
+     * Move to the next block
+     * @return false if the end of the file is reached
+     */
+    boolean next () {
+        if (batchIndex == batchNumber && !this.readBatch()) {
+            snps = null;
+            planes = null;
+            blockSiteNumber = 0;
+            return false;
+        }
+        Callable<?> b = batch[batchIndex];
+        batch[batchIndex++] = null;
+        if (b instanceof GenoSiteBlockVCF) {
+            GenoSiteBlockVCF block = (GenoSiteBlockVCF)b;
+            snps = block.getSNPBlock();
+            planes = block.getGenoSiteBlock();
+            blockSiteNumber = block.actBlockSize;
+        }
+        else {
+            GenoSiteBlockBinary block = (GenoSiteBlockBinary)b;
+            snps = block.getSNPBlock();
+            planes = block.getGenoSiteBlock();
+            blockSiteNumber = block.actBlockSize;
+        }
+        return true;
+    }
+
+    private boolean readBatch () {
+        if (ifEnd) return false;
+        batchNumber = 0;
+        batchIndex = 0;
+        try {
+            if (vr != null) {
+                int lineNumber = 0;
+                while (batchNumber < batchSize && (lineNumber = vr.readLines(GenoSiteBlockVCF.blockSize)) != 0) {
+                    batch[batchNumber++] = new GenoSiteBlockVCF(vr.getLines(), lineNumber, siteCount);
+                    siteCount+=lineNumber;
+                }
+                if (lineNumber == 0) ifEnd = true;
+            }
+            else if (dis != null) {
+                int siteByteSize = GenotypeExport.getByteSizeOfSiteInBinary(taxa.length);
+                while (batchNumber < batchSize && siteCount < siteNumber) {
+                    int size = Math.min(GenoSiteBlockBinary.blockSize, siteNumber-siteCount);
+                    byte[][] lines = new byte[size][siteByteSize];
+                    for (int i = 0; i < size; i++) {
+                        dis.readFully(lines[i]);
+                    }
+                    batch[batchNumber++] = new GenoSiteBlockBinary(lines, siteCount, size, taxa.length);
+                    siteCount+=size;
+                }
+                if (siteCount == siteNumber) ifEnd = true;
+            }
+            else if (gcf != null) {
+                int n = Math.min(batchSize, gcf.getChunkNumber()-chunkCount);
+                GenoSiteBlockBinary[] chunks = gcf.readChunks(IntStream.range(chunkCount, chunkCount+n).toArray());
+                System.arraycopy(chunks, 0, batch, 0, n);
+                batchNumber = n;
+                chunkCount+=n;
+                if (chunkCount == gcf.getChunkNumber()) ifEnd = true;
+                return batchNumber > 0;
+            }
+            IntStream.range(0, batchNumber).parallel().forEach(i -> {
+                try {
+                    batch[i].call();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        return batchNumber > 0;
+    }
+
+    void close () {
+        try {
+            if (vr != null) vr.close();
+            if (dis != null) dis.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package pgl.infra.dna.genot;
+
+import pgl.PGLConstraints;
+import pgl.infra.dna.snp.BiSNP;
+import pgl.infra.utils.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A chunked, compressed genotype container, the format of {@link GenoIOFormat#HDF5}. It is implemented in pure Java and is not compatible with HDF5 libraries.
+ * <p>
+ * Sites are cut into chunks of a fixed number of sites. A chunk holds the records of its sites in the binary format
+ * (see {@link GenotypeExport#getByteSizeOfSiteInBinary(int)}), and is compressed independently by deflate.
+ * An index at the end of the file records the offset, the size, and the chromosome/position range of each chunk,
+ * so that a region query only reads and decompresses the chunks overlapping the region. Chunks are decompressed in parallel.
+ * <p>
+ * File layout: header (site number, taxa number, taxa names, site number of a chunk), chunks, index (chunk number,
+ * offset, compressed size, site number, first chromosome/position, last chromosome/position of each chunk), offset of the index.
+ *
+ * @author feilu
+ */
+public class GenoChunkFile {
+    /**
+     * Default number of sites in a chunk
+     */
+    public static final int DEFAULT_CHUNK_SITE_NUMBER = 4096;
+
+    String infileS = null;
+    String[] taxa = null;
+    int siteNumber = 0;
+    int chunkSiteNumber = DEFAULT_CHUNK_SITE_NUMBER;
+    int siteByteSize = 0;
+    long[] chunkOffsets = null;
+    int[] chunkSizes = null;
+    int[] chunkSiteNumbers = null;
+    short[] firstChrs = null;
+    int[] firstPoss = null;
+    short[] lastChrs = null;
+    int[] lastPoss = null;
+
+    /**
+     * Open a chunk file, only the header and the index are read
+     * @param infileS
+     */
+    public GenoChunkFile (String infileS) {
+        this.infileS = infileS;
+        try (RandomAccessFile raf = new RandomAccessFile(infileS, "r")) {
+            siteNumber = raf.readInt();
+            taxa = new String[raf.readInt()];
+            for (int i = 0; i < taxa.length; i++) {
+                taxa[i] = raf.readUTF();
+            }
+            chunkSiteNumber = raf.readInt();
+            siteByteSize = GenotypeExport.getByteSizeOfSiteInBinary(taxa.length);
+            raf.seek(raf.length()-Long.BYTES);
+            raf.seek(raf.readLong());
+            int chunkNumber = raf.readInt();
+            chunkOffsets = new long[chunkNumber];
+            chunkSizes = new int[chunkNumber];
+            chunkSiteNumbers = new int[chunkNumber];
+            firstChrs = new short[chunkNumber];
+            firstPoss = new int[chunkNumber];
+            lastChrs = new short[chunkNumber];
+            lastPoss = new int[chunkNumber];
+            byte[] index = new byte[chunkNumber*getByteSizeOfChunkIndex()];
+            raf.readFully(index);
+            ByteBuffer bb = ByteBuffer.wrap(index);
+            for (int i = 0; i < chunkNumber; i++) {
+                chunkOffsets[i] = bb.getLong();
+                chunkSizes[i] = bb.getInt();
+                chunkSiteNumbers[i] = bb.getInt();
+                firstChrs[i] = bb.getShort();
+                firstPoss[i] = bb.getInt();
+                lastChrs[i] = bb.getShort();
+                lastPoss[i] = bb.getInt();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String[] getTaxa () {
+        return taxa;
+    }
+
+    public int getSiteNumber () {
+        return siteNumber;
+    }
+
+    public int getChunkNumber () {
+        return chunkOffsets.length;
+    }
+
+    /**
+     * Return indices of chunks overlapping a region, sites should be sorted by position
+     * @param chromosome
+     * @param startPosition inclusive
+     * @param endPosition exclusive
+     * @return
+     */
+    public int[] getChunkIndices (short chromosome, int startPosition, int endPosition) {
+        return IntStream.range(0, this.getChunkNumber()).filter(i -> {
+            if (compare(lastChrs[i], lastPoss[i], chromosome, startPosition) < 0) return false;
+            if (compare(firstChrs[i], firstPoss[i], chromosome, endPosition) >= 0) return false;
+            return true;
+        }).toArray();
+    }
+
+    /**
+     * Read and decompress chunks in parallel
+     * @param chunkIndices
+     * @return blocks of sites of each chunk
+     */
+    public GenoSiteBlockBinary[] readChunks (int[] chunkIndices) {
+        GenoSiteBlockBinary[] blocks = new GenoSiteBlockBinary[chunkIndices.length];
+        int[] startIndices = new int[chunkIndices.length];
+        for (int i = 1; i < chunkIndices.length; i++) {
+            startIndices[i] = startIndices[i-1]+chunkSiteNumbers[chunkIndices[i-1]];
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(infileS, "r")) {
+            FileChannel fc = raf.getChannel();
+            IntStream.range(0, chunkIndices.length).parallel().forEach(i -> {
+                try {
+                    blocks[i] = new GenoSiteBlockBinary(this.readChunk(fc, chunkIndices[i]), startIndices[i], chunkSiteNumbers[chunkIndices[i]], taxa.length).call();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        return blocks;
+    }
+
+    private byte[][] readChunk (FileChannel fc, int chunkIndex) throws Exception {
+        ByteBuffer bb = ByteBuffer.allocate(chunkSizes[chunkIndex]);
+        long offset = chunkOffsets[chunkIndex];
+        while (bb.hasRemaining()) {
+            int n = fc.read(bb, offset);
+            if (n < 0) throw new EOFException(infileS);
+            offset+=n;
+        }
+        Inflater inflater = new Inflater();
+        inflater.setInput(bb.array());
+        byte[][] lines = new byte[chunkSiteNumbers[chunkIndex]][siteByteSize];
+        for (int i = 0; i < lines.length; i++) {
+            int cnt = 0;
+            while (cnt < siteByteSize) {
+                int n = inflater.inflate(lines[i], cnt, siteByteSize-cnt);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) throw new EOFException(infileS);
+                cnt+=n;
+            }
+        }
+        inflater.end();
+        return lines;
+    }
+
+    /**
+     * Return the genotype of all sites, chunks are decompressed in parallel
+     * @return
+     */
+    public GenotypeGrid getGenotypeGrid () {
+        return this.getGenotypeGrid(IntStream.range(0, this.getChunkNumber()).toArray(), Short.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return the genotype of sites in a region, only chunks overlapping the region are decompressed
+     * @param chromosome
+     * @param startPosition inclusive
+     * @param endPosition exclusive
+     * @return
+     */
+    public GenotypeGrid getGenotypeGrid (short chromosome, int startPosition, int endPosition) {
+        return this.getGenotypeGrid(this.getChunkIndices(chromosome, startPosition, endPosition), chromosome, startPosition, endPosition);
+    }
+
+    private GenotypeGrid getGenotypeGrid (int[] chunkIndices, short chromosome, int startPosition, int endPosition) {
+        GenoSiteBlockBinary[] blocks = this.readChunks(chunkIndices);
+        List<BiSNP> snpList = new ArrayList<>();
+        for (int i = 0; i < blocks.length; i++) {
+            BiSNP[] snps = blocks[i].getSNPBlock();
+            for (int j = 0; j < blocks[i].actBlockSize; j++) {
+                snpList.add(snps[j]);
+            }
+        }
+        BitPlane[] planes = new BitPlane[3];
+        for (int i = 0; i < planes.length; i++) {
+            BitPlane[] blockPlanes = new BitPlane[blocks.length];
+            for (int j = 0; j < blocks.length; j++) {
+                blockPlanes[j] = blocks[j].getGenoSiteBlock()[i];
+            }
+            planes[i] = blockPlanes.length == 0 ? new BitPlane(0, taxa.length) : BitPlane.concatenateRows(blockPlanes);
+        }
+        if (chromosome != Short.MIN_VALUE) {
+            List<BiSNP> blockList = snpList;
+            int[] indices = IntStream.range(0, blockList.size()).filter(i -> {
+                BiSNP snp = blockList.get(i);
+                return snp.getChromosome() == chromosome && snp.getPosition() >= startPosition && snp.getPosition() < endPosition;
+            }).toArray();
+            List<BiSNP> nList = new ArrayList<>();
+            for (int i = 0; i < indices.length; i++) {
+                nList.add(blockList.get(indices[i]));
+            }
+            snpList = nList;
+            for (int i = 0; i < planes.length; i++) {
+                planes[i] = planes[i].getRows(indices);
+            }
+        }
+        GenotypeGrid gt = new GenotypeGrid(planes, GenotypeGrid.GridDirection.BySite, taxa.clone(), snpList.toArray(new BiSNP[snpList.size()]));
+        gt.sortByTaxa();
+        return gt;
+    }
+
+    /**
+     * Return the genotype of all sites in rows of {@link SiteGenotypeBit}, chunks are decompressed in parallel
+     * @return
+     */
+    public GenotypeRows getGenotypeRows () {
+        GenoSiteBlockBinary[] blocks = this.readChunks(IntStream.range(0, this.getChunkNumber()).toArray());
+        SiteGenotypeBit[] geno = new SiteGenotypeBit[siteNumber];
+        IntStream.range(0, blocks.length).parallel().forEach(i -> {
+            BiSNP[] snps = blocks[i].getSNPBlock();
+            BitPlane[] planes = blocks[i].getGenoSiteBlock();
+            for (int j = 0; j < blocks[i].actBlockSize; j++) {
+                SiteGenotypeBit sgb = new SiteGenotypeBit(snps[j].getChromosome(), snps[j].getPosition(), snps[j].getReferenceAlleleBase(),
+                        snps[j].getAlternativeAlleleBase(), null, planes[0].getBitSet(j), planes[1].getBitSet(j), planes[2].getBitSet(j), taxa.length);
+                sgb.setReferenceAlleleFeature(snps[j].getReferenceAlleleFeature());
+                sgb.setAlternativeAlleleFeature(snps[j].getAlternativeAlleleFeature());
+                geno[blocks[i].getStartIndex()+j] = sgb;
+            }
+        });
+        return new GenotypeRows(geno, taxa.clone());
+    }
+
+    /**
+     * Write a genotype table to a chunk file with the default chunk size
+     * @param gt
+     * @param outfileS
+     */
+    public static void write (GenotypeTable gt, String outfileS) {
+        write(gt, outfileS, DEFAULT_CHUNK_SITE_NUMBER);
+    }
+
+    /**
+     * Write a genotype table to a chunk file, chunks are compressed in parallel
+     * @param gt
+     * @param outfileS
+     * @param chunkSiteNumber number of sites in a chunk
+     */
+    public static void write (GenotypeTable gt, String outfileS, int chunkSiteNumber) {
+        int siteNumber = gt.getSiteNumber();
+        int taxaNumber = gt.getTaxaNumber();
+        int siteByteSize = GenotypeExport.getByteSizeOfSiteInBinary(taxaNumber);
+        int chunkNumber = (siteNumber+chunkSiteNumber-1)/chunkSiteNumber;
+        ByteBuffer index = ByteBuffer.allocate(Integer.BYTES+chunkNumber*getByteSizeOfChunkIndex()+Long.BYTES);
+        index.putInt(chunkNumber);
+        try {
+            DataOutputStream dos = IOUtils.getBinaryWriter(outfileS);
+            dos.writeInt(siteNumber);
+            dos.writeInt(taxaNumber);
+            for (int i = 0; i < taxaNumber; i++) {
+                dos.writeUTF(gt.getTaxonName(i));
+            }
+            dos.writeInt(chunkSiteNumber);
+            long offset = dos.size();
+            byte[][] chunks = new byte[PGLConstraints.parallelLevel][];
+            for (int i = 0; i < chunkNumber; i+=chunks.length) {
+                int batchStart = i;
+                int batchSize = Math.min(chunks.length, chunkNumber-i);
+                IntStream.range(0, batchSize).parallel().forEach(j -> {
+                    int startIndex = (batchStart+j)*chunkSiteNumber;
+                    int endIndex = Math.min(startIndex+chunkSiteNumber, siteNumber);
+                    ByteBuffer bb = ByteBuffer.allocate(siteByteSize);
+                    Deflater deflater = new Deflater();
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[65536];
+                    for (int k = startIndex; k < endIndex; k++) {
+                        bb.clear();
+                        gt.getBinaryOutput(k, bb);
+                        deflater.setInput(bb.array(), 0, bb.position());
+                        while (!deflater.needsInput()) {
+                            baos.write(buffer, 0, deflater.deflate(buffer));
+                        }
+                    }
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        baos.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                    deflater.end();
+                    chunks[j] = baos.toByteArray();
+                });
+                for (int j = 0; j < batchSize; j++) {
+                    int startIndex = (batchStart+j)*chunkSiteNumber;
+                    int endIndex = Math.min(startIndex+chunkSiteNumber, siteNumber);
+                    dos.write(chunks[j]);
+                    index.putLong(offset);
+                    index.putInt(chunks[j].length);
+                    index.putInt(endIndex-startIndex);
+                    index.putShort(gt.getChromosome(startIndex));
+                    index.putInt(gt.getPosition(startIndex));
+                    index.putShort(gt.getChromosome(endIndex-1));
+                    index.putInt(gt.getPosition(endIndex-1));
+                    offset+=chunks[j].length;
+                    chunks[j] = null;
+                }
+            }
+            index.putLong(offset);
+            dos.write(index.array());
+            dos.flush();
+            dos.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int getByteSizeOfChunkIndex () {
+        //long offset, int size, int site number, short first chr, int first pos, short last chr, int last pos
+        return 28;
+    }
+
+    private static int compare (short chr1, int pos1, short chr2, int pos2) {
+        if (chr1 != chr2) return chr1 < chr2 ? -1 : 1;
+        return Integer.compare(pos1, pos2);
+    }
+}
@@ -21,7 +21,7 @@ public enum GenoIOFormat {
      */
     Binary_GZ,
     /**
-     * HDF5 format
+     * Chunked compressed format with a position index, see {@link GenoChunkFile}. It is implemented in pure Java, not the HDF5 library
      */
     HDF5;
 }
@@ -2,10 +2,8 @@ package pgl.infra.dna.genot;
 
 import pgl.infra.dna.allele.AlleleEncoder;
 import pgl.infra.dna.snp.BiSNP;
-import pgl.infra.utils.Dyad;
 
 import java.nio.ByteBuffer;
-import java.util.BitSet;
 import java.util.concurrent.Callable;
 
 /**
@@ -20,20 +18,25 @@ public class GenoSiteBlockBinary implements Callable<GenoSiteBlockBinary> {
     byte[][] lines = null;
     int startIndex = Integer.MIN_VALUE;
     int actBlockSize = Integer.MIN_VALUE;
-    BitSet[][] genoSiteBlock = null;
+    int taxaNumber = Integer.MIN_VALUE;
+    /**
+     * Planes of phase 1, phase 2, and missing of the block, rows are sites
+     */
+    BitPlane[] genoSiteBlock = null;
     BiSNP[] snpBlock = null;
 
-    public GenoSiteBlockBinary (byte[][] lines, int startIndex, int actBlockSize) {
+    public GenoSiteBlockBinary (byte[][] lines, int startIndex, int actBlockSize, int taxaNumber) {
         this.lines = lines;
         this.startIndex = startIndex;
         this.actBlockSize = actBlockSize;
+        this.taxaNumber = taxaNumber;
     }
 
     public BiSNP[] getSNPBlock () {
         return this.snpBlock;
     }
 
-    public BitSet[][] getGenoSiteBlock () {
+    public BitPlane[] getGenoSiteBlock () {
         return this.genoSiteBlock;
     }
 
@@ -43,22 +46,20 @@ public class GenoSiteBlockBinary implements Callable<GenoSiteBlockBinary> {
 
     @Override
     public GenoSiteBlockBinary call() throws Exception {
-        this.genoSiteBlock = new BitSet[this.actBlockSize][3];
+        this.genoSiteBlock = new BitPlane[3];
+        for (int i = 0; i < genoSiteBlock.length; i++) {
+            genoSiteBlock[i] = new BitPlane(this.actBlockSize, taxaNumber);
+        }
         this.snpBlock = new BiSNP[this.actBlockSize];
-        ByteBuffer bb = ByteBuffer.allocate(lines[0].length);
         for (int i = 0; i < this.actBlockSize; i++) {
-            bb.put(lines[i]);
-            Dyad<BiSNP, BitSet[]> d = buildFromBinaryLine(bb);
-            snpBlock[i] = d.getFirstElement();
-            genoSiteBlock[i] = d.getSecondElement();
+            snpBlock[i] = buildFromBinaryLine(ByteBuffer.wrap(lines[i]), i);
         }
         lines = null;
         return this;
     }
 
-    private Dyad<BiSNP, BitSet[]> buildFromBinaryLine (ByteBuffer bb) {
+    private BiSNP buildFromBinaryLine (ByteBuffer bb, int siteIndex) {
         //short chr, int pos, char refBase, char altBase, String info, BitSet phase1, BitSet phase2, BitSet missing, int taxaNumber
-        bb.flip();
         short chr = bb.getShort();
         int pos = bb.getInt();
         byte geno = bb.get();
@@ -66,18 +67,12 @@ public class GenoSiteBlockBinary implements Callable<GenoSiteBlockBinary> {
         char altBase = AlleleEncoder.getAlleleBase2FromGenotypeByte(geno);
         byte refFeature = bb.get();
         byte altFeature = bb.get();
-        int size = (bb.capacity()-GenotypeExport.getByteSizeOfSNPInBinary())/3;
-        BitSet[] genoSite = new BitSet[3];
-        for (int i = 0; i < genoSite.length; i++) {
-            byte[] ba = new byte[size];
-            bb.get(ba);
-            genoSite[i] = BitSet.valueOf(ba);
+        for (int i = 0; i < genoSiteBlock.length; i++) {
+            genoSiteBlock[i].readRow(siteIndex, bb);
         }
         BiSNP snp = new BiSNP(chr, pos, refBase, altBase, null);
         snp.setReferenceAlleleFeature(refFeature);
         snp.setAlternativeAlleleFeature(altFeature);
-        bb.clear();
-        Dyad<BiSNP, BitSet[]> d = new Dyad<>(snp, genoSite);
-        return d;
+        return snp;
     }
 }
@@ -1,10 +1,8 @@
 package pgl.infra.dna.genot;
 
 import pgl.infra.dna.snp.BiSNP;
-import pgl.infra.utils.Dyad;
 import pgl.infra.utils.PStringUtils;
 
-import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -18,9 +16,16 @@ import java.util.concurrent.Callable;
 public class GenoSiteBlockVCF implements Callable<GenoSiteBlockVCF> {
     public static final int blockSize = 4096;
     List<String> lines = null;
+    /**
+     * Records in raw bytes, see {@link VCFByteReader}
+     */
+    byte[] lineBytes = null;
     int startIndex = Integer.MIN_VALUE;
     int actBlockSize = Integer.MIN_VALUE;
-    BitSet[][] genoSiteBlock = null;
+    /**
+     * Planes of phase 1, phase 2, and missing of the block, rows are sites
+     */
+    BitPlane[] genoSiteBlock = null;
     BiSNP[] snpBlock = null;
 
     public GenoSiteBlockVCF (List<String> lines, int startIndex) {
@@ -29,11 +34,23 @@ public class GenoSiteBlockVCF implements Callable<GenoSiteBlockVCF> {
         this.actBlockSize = lines.size();
     }
 
+    /**
+     * Construct a block of records in raw bytes
+     * @param lineBytes records separated by line breaks
+     * @param lineNumber number of records
+     * @param startIndex
+     */
+    public GenoSiteBlockVCF (byte[] lineBytes, int lineNumber, int startIndex) {
+        this.lineBytes = lineBytes;
+        this.startIndex = startIndex;
+        this.actBlockSize = lineNumber;
+    }
+
     public BiSNP[] getSNPBlock () {
         return this.snpBlock;
     }
 
-    public BitSet[][] getGenoSiteBlock () {
+    public BitPlane[] getGenoSiteBlock () {
         return this.genoSiteBlock;
     }
 
@@ -43,18 +60,53 @@ public class GenoSiteBlockVCF implements Callable<GenoSiteBlockVCF> {
 
     @Override
     public GenoSiteBlockVCF call() throws Exception {
-        this.genoSiteBlock = new BitSet[this.actBlockSize][3];
+        if (lineBytes != null) return this.callBytes();
+        String first = lines.get(0);
+        int taxaNumber = -8;
+        for (int i = 0; i < first.length(); i++) {
+            if (first.charAt(i) == '\t') taxaNumber++;
+        }
+        this.genoSiteBlock = new BitPlane[3];
+        for (int i = 0; i < genoSiteBlock.length; i++) {
+            genoSiteBlock[i] = new BitPlane(this.actBlockSize, taxaNumber);
+        }
         this.snpBlock = new BiSNP[this.actBlockSize];
         for (int i = 0; i < this.actBlockSize; i++) {
-            Dyad<BiSNP, BitSet[]> d = buildFromVCFLine(lines.get(i));
-            snpBlock[i] = d.getFirstElement();
-            genoSiteBlock[i] = d.getSecondElement();
+            snpBlock[i] = buildFromVCFLine(lines.get(i), genoSiteBlock, i);
         }
         lines = null;
         return this;
     }
 
-    public static Dyad<BiSNP, BitSet[]> buildFromVCFLine (String line) {
+    private GenoSiteBlockVCF callBytes () {
+        int taxaNumber = -8;
+        for (int i = 0; i < lineBytes.length && lineBytes[i] != '\n'; i++) {
+            if (lineBytes[i] == '\t') taxaNumber++;
+        }
+        this.genoSiteBlock = new BitPlane[3];
+        for (int i = 0; i < genoSiteBlock.length; i++) {
+            genoSiteBlock[i] = new BitPlane(this.actBlockSize, taxaNumber);
+        }
+        this.snpBlock = new BiSNP[this.actBlockSize];
+        int start = 0;
+        for (int i = 0; i < this.actBlockSize; i++) {
+            int end = start;
+            while (end < lineBytes.length && lineBytes[end] != '\n') end++;
+            snpBlock[i] = buildFromVCFLine(lineBytes, start, end, genoSiteBlock, i);
+            start = end+1;
+        }
+        lineBytes = null;
+        return this;
+    }
+
+    /**
+     * Parse a VCF record, genotypes are set to a row of the planes
+     * @param line
+     * @param genoSite planes of phase 1, phase 2, and missing
+     * @param siteIndex row of the planes
+     * @return
+     */
+    public static BiSNP buildFromVCFLine (String line, BitPlane[] genoSite, int siteIndex) {
         List<String> l = PStringUtils.fastSplit(line);
         List<String> ll = null;
         String current = null;
@@ -65,27 +117,105 @@ public class GenoSiteBlockVCF implements Callable<GenoSiteBlockVCF> {
         String info = l.get(7);
         BiSNP snp = new BiSNP(chr, pos, refBase, altBase, null);
         int taxaNumber = l.size()-9;
-        BitSet[] genoSite = new BitSet[3];
-        genoSite[0] = new BitSet(taxaNumber);
-        genoSite[1] = new BitSet(taxaNumber);
-        genoSite[2] = new BitSet(taxaNumber);
         byte[] values = null;
         for (int i = 0; i < taxaNumber; i++) {
             current = l.get(i+9);
             if (current.startsWith(".")) {
-                genoSite[2].set(i);
+                genoSite[2].set(siteIndex, i);
                 continue;
             }
             ll = PStringUtils.fastSplit(current, ":");
             values = ll.get(0).getBytes();
             if (values[0] == 49) {
-                genoSite[0].set(i);
+                genoSite[0].set(siteIndex, i);
             }
             if (values[2] == 49) {
-                genoSite[1].set(i);
+                genoSite[1].set(siteIndex, i);
             }
         }
-        Dyad<BiSNP, BitSet[]> d = new Dyad<>(snp, genoSite);
-        return d;
+        return snp;
+    }
+
+    /**
+     * Parse a VCF record in raw bytes, genotypes are set to a row of the planes. Fields are scanned in place,
+     * only the GT subfield of each genotype is read.
+     * @param line
+     * @param start start index of the record in the line, inclusive
+     * @param end end index of the record, exclusive, a trailing carriage return is ignored
+     * @param genoSite planes of phase 1, phase 2, and missing
+     * @param siteIndex row of the planes
+     * @return
+     */
+    public static BiSNP buildFromVCFLine (byte[] line, int start, int end, BitPlane[] genoSite, int siteIndex) {
+        if (end > start && line[end-1] == '\r') end--;
+        int p = start;
+        int q = nextTab(line, p, end);
+        short chr = (short)parseInt(line, p, q);
+        p = q+1;
+        q = nextTab(line, p, end);
+        int pos = parseInt(line, p, q);
+        p = nextTab(line, q+1, end)+1;
+        char refBase = (char)line[p];
+        p = nextTab(line, p, end)+1;
+        char altBase = (char)line[p];
+        for (int i = 0; i < 4; i++) {
+            p = nextTab(line, p, end)+1;
+        }
+        q = nextTab(line, p, end);
+        int gtIndex = getGTIndex(line, p, q);
+        p = q+1;
+        BiSNP snp = new BiSNP(chr, pos, refBase, altBase, null);
+        int taxonIndex = 0;
+        while (p < end) {
+            q = nextTab(line, p, end);
+            int g = p;
+            for (int i = 0; i < gtIndex && g < q; i++) {
+                while (g < q && line[g] != ':') g++;
+                g++;
+            }
+            if (g >= q || line[g] == '.') {
+                genoSite[2].set(siteIndex, taxonIndex);
+            }
+            else {
+                if (line[g] == '1') genoSite[0].set(siteIndex, taxonIndex);
+                if (g+2 < q && line[g+2] == '1') genoSite[1].set(siteIndex, taxonIndex);
+            }
+            taxonIndex++;
+            p = q+1;
+        }
+        return snp;
+    }
+
+    static int nextTab (byte[] line, int from, int end) {
+        while (from < end && line[from] != '\t') from++;
+        return from;
+    }
+
+    static int parseInt (byte[] line, int from, int to) {
+        boolean ifNegative = line[from] == '-';
+        if (ifNegative) from++;
+        int v = 0;
+        for (int i = from; i < to; i++) {
+            int d = line[i]-'0';
+            if (d < 0 || d > 9) throw new NumberFormatException(new String(line, from, to-from));
+            v = v*10+d;
+        }
+        return ifNegative ? -v : v;
+    }
+
+    /**
+     * Return the index of GT in the FORMAT field, 0 if GT is absent
+     * @param line
+     * @param from
+     * @param to
+     * @return
+     */
+    private static int getGTIndex (byte[] line, int from, int to) {
+        int index = 0;
+        for (int i = from; i+1 < to; i++) {
+            if (line[i] == 'G' && line[i+1] == 'T' && (i == from || line[i-1] == ':') && (i+2 == to || line[i+2] == ':')) return index;
+            if (line[i] == ':') index++;
+        }
+        return 0;
     }
-}
\ No newline at end of file
+}
@@ -1,10 +1,20 @@
 package pgl.infra.dna.genot;
 
+import pgl.PGLConstraints;
+import pgl.infra.utils.BGZFOutputStream;
 import pgl.infra.utils.IOUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
 
 /**
  * Data output utilities for genotype object implemented {@link GenotypeTable}
@@ -27,20 +37,154 @@ public class GenotypeExport {
             toBinary(gt, outfileS, true);
         }
         else if (format == GenoIOFormat.HDF5) {
-
+            GenoChunkFile.write(gt, outfileS);
         }
         System.out.println("Genotype table exported to "+ outfileS);
     }
 
-    private static void toBinary (GenotypeTable gt, String outfileS, boolean ifGZ) {
+    /**
+     * Write sites of a stream passing its filters, sites are written as they are decoded
+     * @param stream
+     * @param outfileS
+     * @param format
+     */
+    public static void output(GenotypeSiteStream stream, String outfileS, GenoIOFormat format) {
+        long siteNumber = 0;
+        if (format == GenoIOFormat.VCF) {
+            siteNumber = toVCF(stream, outfileS,false);
+        }
+        else if (format == GenoIOFormat.VCF_GZ) {
+            siteNumber = toVCF(stream, outfileS,true);
+        }
+        else if (format == GenoIOFormat.Binary) {
+            siteNumber = toBinary(stream, outfileS);
+        }
+        else if (format == GenoIOFormat.Binary_GZ || format == GenoIOFormat.HDF5) {
+            String tempFileS = outfileS+".tmp.bin";
+            siteNumber = toBinary(stream, tempFileS);
+            convertBinary(tempFileS, outfileS, format);
+            new File(tempFileS).delete();
+        }
+        System.out.println(siteNumber+" sites exported to "+ outfileS);
+    }
+
+    /**
+     * Write sites of a stream in VCF, the compressed file is in BGZF, see {@link BGZFOutputStream}
+     * @param stream
+     * @param outfileS
+     * @param ifGZ
+     * @return
+     */
+    private static long toVCF (GenotypeSiteStream stream, String outfileS, boolean ifGZ) {
+        long siteNumber = 0;
+        try {
+            BufferedWriter bw = null;
+            if (ifGZ) bw = new BufferedWriter(new OutputStreamWriter(new BGZFOutputStream(outfileS)), 1 << 20);
+            else bw = IOUtils.getTextWriter(outfileS);
+            bw.write(VCFUtils.getVCFAnnotation());
+            bw.write(VCFUtils.getVCFHeader(stream.getTaxaNames()));
+            bw.newLine();
+            BufferedWriter w = bw;
+            siteNumber = stream.forEach(site -> {
+                try {
+                    w.write(site.getUnphasedVCFRecord());
+                    w.newLine();
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            bw.flush();
+            bw.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        return siteNumber;
+    }
+
+    /**
+     * Write sites of a stream in uncompressed binary format, the site number in the header is written at the end
+     * @param stream
+     * @param outfileS
+     * @return
+     */
+    private static long toBinary (GenotypeSiteStream stream, String outfileS) {
+        long siteNumber = 0;
+        try {
+            DataOutputStream dos = IOUtils.getBinaryWriter(outfileS);
+            String[] taxa = stream.getTaxaNames();
+            dos.writeInt(0);
+            dos.writeInt(taxa.length);
+            for (int i = 0; i < taxa.length; i++) {
+                dos.writeUTF(taxa[i]);
+            }
+            ByteBuffer bb = ByteBuffer.allocate(getByteSizeOfSiteInBinary(taxa.length));
+            siteNumber = stream.forEach(site -> {
+                try {
+                    bb.clear();
+                    site.getBinaryOutput(bb);
+                    dos.write(bb.array());
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            dos.close();
+            RandomAccessFile raf = new RandomAccessFile(outfileS, "rw");
+            raf.writeInt((int)siteNumber);
+            raf.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        return siteNumber;
+    }
+
+    /**
+     * Convert an uncompressed binary genotype file to {@link GenoIOFormat#Binary_GZ} or {@link GenoIOFormat#HDF5}
+     * @param infileS
+     * @param outfileS
+     * @param format
+     */
+    static void convertBinary (String infileS, String outfileS, GenoIOFormat format) {
+        if (format == GenoIOFormat.Binary_GZ) {
+            compressBinary(infileS, outfileS);
+        }
+        else if (format == GenoIOFormat.HDF5) {
+            GenotypeMapped gm = new GenotypeMapped(infileS);
+            GenoChunkFile.write(gm, outfileS);
+            gm.close();
+        }
+    }
+
+    private static void compressBinary (String infileS, String outfileS) {
         try {
-            DataOutputStream dos = null;
-            if (ifGZ) {
-                dos = IOUtils.getBinaryGzipWriter(outfileS);
+            DataInputStream dis = IOUtils.getBinaryReader(infileS);
+            DataOutputStream dos = IOUtils.getBinaryGzipWriter(outfileS);
+            byte[] buffer = new byte[65536];
+            int n = 0;
+            while ((n = dis.read(buffer)) > 0) {
+                dos.write(buffer, 0, n);
             }
-            else  {
-                dos = IOUtils.getBinaryWriter(outfileS);
+            dis.close();
+            dos.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void toBinary (GenotypeTable gt, String outfileS, boolean ifGZ) {
+        if (!ifGZ) {
+            GenoBinaryCodec.write(gt, outfileS);
+            if (gt instanceof GenotypeGrid) {
+                ((GenotypeGrid)gt).getStatistics().writeAlongside(outfileS);
             }
+            return;
+        }
+        try {
+            DataOutputStream dos = IOUtils.getBinaryGzipWriter(outfileS);
             int siteNumber = gt.getSiteNumber();
             int taxaNumber = gt.getTaxaNumber();
             dos.writeInt(siteNumber);
@@ -57,6 +201,9 @@ public class GenotypeExport {
                 bb.clear();
             }
             dos.close();
+            if (gt instanceof GenotypeGrid) {
+                ((GenotypeGrid)gt).getStatistics().writeAlongside(outfileS);
+            }
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -89,23 +236,130 @@ public class GenotypeExport {
         return n;
     }
 
+    /**
+     * Write a genotype table in VCF. Blocks of sites are formatted in parallel into byte arrays and written in order,
+     * the compressed file is in BGZF, see {@link BGZFOutputStream}
+     * @param gt
+     * @param outfileS
+     * @param ifGZ
+     */
     private static void toVCF (GenotypeTable gt, String outfileS, boolean ifGZ) {
-        BufferedWriter bw = null;
-        if (ifGZ) bw = IOUtils.getTextGzipWriter(outfileS);
-        else bw = IOUtils.getTextWriter(outfileS);
         try {
-            bw.write(VCFUtils.getVCFAnnotation());
-            bw.write(VCFUtils.getVCFHeader(gt.getTaxaNames()));
-            bw.newLine();
-            for (int i = 0; i < gt.getSiteNumber(); i++) {
-                bw.write(gt.getUnphasedVCFRecord(i));
-                bw.newLine();
+            OutputStream os = null;
+            if (ifGZ) os = new BGZFOutputStream(outfileS);
+            else os = new BufferedOutputStream(new FileOutputStream(outfileS), 1 << 20);
+            StringBuilder sb = new StringBuilder();
+            sb.append(VCFUtils.getVCFAnnotation()).append(VCFUtils.getVCFHeader(gt.getTaxaNames())).append("\n");
+            os.write(sb.toString().getBytes());
+            int siteNumber = gt.getSiteNumber();
+            int blockSize = getVCFBlockSize(gt.getTaxaNumber());
+            int blockNumber = (siteNumber+blockSize-1)/blockSize;
+            byte[][] blocks = new byte[PGLConstraints.parallelLevel][];
+            for (int i = 0; i < blockNumber; i+=blocks.length) {
+                int start = i;
+                int n = Math.min(blocks.length, blockNumber-i);
+                IntStream.range(0, n).parallel().forEach(j -> {
+                    int startSiteIndex = (start+j)*blockSize;
+                    blocks[j] = getVCFBlock(gt, startSiteIndex, Math.min(siteNumber, startSiteIndex+blockSize));
+                });
+                for (int j = 0; j < n; j++) {
+                    os.write(blocks[j]);
+                    blocks[j] = null;
+                }
             }
-            bw.flush();
-            bw.close();
+            os.flush();
+            os.close();
         }
         catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Return the number of sites of a block in VCF writing, a block is about 4 MB
+     * @param taxaNumber
+     * @return
+     */
+    private static int getVCFBlockSize (int taxaNumber) {
+        return Math.max(1, (1 << 22)/(4*taxaNumber+64));
+    }
+
+    /**
+     * Format VCF records of a block of sites. Genotypes of bi-allelic tables are read by {@link GenotypeTable#getSiteWords(int, int, long[], long[], long[])},
+     * and copied from {@link #vcfGenotypeTokens}
+     * @param gt
+     * @param startSiteIndex inclusive
+     * @param endSiteIndex exclusive
+     * @return
+     */
+    private static byte[] getVCFBlock (GenotypeTable gt, int startSiteIndex, int endSiteIndex) {
+        int siteNumber = endSiteIndex-startSiteIndex;
+        byte[][] prefixes = new byte[siteNumber][];
+        if (!gt.isBiallelic()) {
+            for (int i = 0; i < siteNumber; i++) {
+                prefixes[i] = (gt.getUnphasedVCFRecord(startSiteIndex+i)+"\n").getBytes();
+            }
+            return concatenate(prefixes);
+        }
+        int taxaNumber = gt.getTaxaNumber();
+        int stride = gt.getWordNumberBySite();
+        long[] w1 = new long[siteNumber*stride];
+        long[] w2 = new long[w1.length];
+        long[] wm = new long[w1.length];
+        gt.getSiteWords(startSiteIndex, endSiteIndex, w1, w2, wm);
+        StringBuilder sb = new StringBuilder();
+        int size = 0;
+        for (int i = 0; i < siteNumber; i++) {
+            int siteIndex = startSiteIndex+i;
+            sb.setLength(0);
+            sb.append(gt.getChromosome(siteIndex)).append("\t").append(gt.getPosition(siteIndex)).append("\t").append(gt.getChromosome(siteIndex)).append("-").append(gt.getPosition(siteIndex)).append("\t");
+            sb.append(gt.getReferenceAlleleBase(siteIndex)).append("\t").append(gt.getAlternativeAlleleBase(siteIndex)).append("\t.\t.\t");
+            String info = gt.getSNPInfo(siteIndex);
+            if (info == null) sb.append(".");
+            else sb.append(info);
+            sb.append("\t").append("GT");
+            prefixes[i] = sb.toString().getBytes();
+            size+=prefixes[i].length+taxaNumber*vcfGenotypeTokenSize+1;
+        }
+        byte[] block = new byte[size];
+        int position = 0;
+        for (int i = 0; i < siteNumber; i++) {
+            System.arraycopy(prefixes[i], 0, block, position, prefixes[i].length);
+            position+=prefixes[i].length;
+            int offset = i*stride;
+            for (int j = 0; j < taxaNumber; j++) {
+                int w = offset+(j >>> 6);
+                int k = (int)(w1[w] >>> j & 1) | (int)(w2[w] >>> j & 1) << 1 | (int)(wm[w] >>> j & 1) << 2;
+                byte[] token = vcfGenotypeTokens[k];
+                block[position] = token[0];
+                block[position+1] = token[1];
+                block[position+2] = token[2];
+                block[position+3] = token[3];
+                position+=vcfGenotypeTokenSize;
+            }
+            block[position++] = '\n';
+        }
+        return block;
+    }
+
+    /**
+     * Tab and genotype of a taxon in VCF, indexed by phase 1 alternative, phase 2 alternative, and missing as bits 0, 1, and 2
+     */
+    private static final byte[][] vcfGenotypeTokens = {"\t0/0".getBytes(), "\t1/0".getBytes(), "\t0/1".getBytes(), "\t1/1".getBytes(),
+            "\t./.".getBytes(), "\t./.".getBytes(), "\t./.".getBytes(), "\t./.".getBytes()};
+    private static final int vcfGenotypeTokenSize = 4;
+
+    private static byte[] concatenate (byte[][] arrays) {
+        int size = 0;
+        for (int i = 0; i < arrays.length; i++) {
+            size+=arrays[i].length;
+        }
+        byte[] array = new byte[size];
+        int position = 0;
+        for (int i = 0; i < arrays.length; i++) {
+            System.arraycopy(arrays[i], 0, array, position, arrays[i].length);
+            position+=arrays[i].length;
+        }
+        return array;
+    }
 }
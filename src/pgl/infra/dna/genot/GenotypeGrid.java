@@ -9,7 +9,6 @@ import pgl.infra.dna.allele.AlleleType;
 import pgl.infra.dna.snp.BiSNP;
 import pgl.infra.pos.ChrPos;
 import pgl.infra.utils.*;
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -17,9 +16,10 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.stream.IntStream;
 
 /**
- * Class holding genotype data. Genotypes are presented by both site and taxon in bitset.
+ * Class holding genotype data. Genotypes are presented by both site and taxon in {@link BitPlane}s of contiguous words.
  * <p>
  * Supports only bi-allelic SNPs, 3rd+ allele will be ignored. Allele depth is ignored.
  *
@@ -46,14 +46,19 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
     float[] mafs = null;
 
     /**
-     * Bit genotype by site, the first dimension is site; the second dimension is phase 1, phase 2, and missing
+     * Bit genotype by site, planes of phase 1, phase 2, and missing; rows of a plane are sites, columns are taxa
      */
-    BitSet[][] genoSite = null;
+    BitPlane[] genoSite = null;
 
     /**
-     * Bit genotype by taxon, the first dimension is taxon; the second dimension is phase 1, phase 2, and missing
+     * Bit genotype by taxon, planes of phase 1, phase 2, and missing; rows of a plane are taxa, columns are sites
      */
-    BitSet[][] genoTaxon = null;
+    BitPlane[] genoTaxon = null;
+
+    /**
+     * Per-site and per-taxon statistics, null if not computed or invalidated by sorting
+     */
+    GenotypeStatistics statistics = null;
 
 
     /**
@@ -75,26 +80,56 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
             this.buildFromBinary(infileS);
         }
         else if (format == GenoIOFormat.HDF5) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+            this.buildFromChunkFile(infileS);
         }
         this.sortByTaxa();
     }
 
+    /**
+     * Construct an object from bit sets
+     * @param bArray the first dimension is site (BySite) or taxon (ByTaxon); the second dimension is phase 1, phase 2, and missing
+     * @param gd
+     * @param taxa
+     * @param snps
+     */
     public GenotypeGrid (BitSet[][] bArray, GridDirection gd, String[] taxa, BiSNP[] snps) {
+        this(getBitPlanes(bArray, gd == GridDirection.BySite ? taxa.length : snps.length), gd, taxa, snps);
+    }
+
+    /**
+     * Construct an object from bit planes
+     * @param planes planes of phase 1, phase 2, and missing; rows are sites (BySite) or taxa (ByTaxon)
+     * @param gd
+     * @param taxa
+     * @param snps
+     */
+    public GenotypeGrid (BitPlane[] planes, GridDirection gd, String[] taxa, BiSNP[] snps) {
         this.taxa = taxa;
         this.snps = snps;
         if (gd == GridDirection.BySite) {
-            genoSite = bArray;
+            genoSite = planes;
             this.transposeSiteToTaxon();
         }
         else if (gd == GridDirection.ByTaxon) {
-            genoTaxon = bArray;
+            genoTaxon = planes;
             this.transposeTaxonToSite();
         }
         this.mafs = new float[this.getSiteNumber()];
         Arrays.fill(mafs, Float.MIN_VALUE);
     }
 
+    private static BitPlane[] getBitPlanes (BitSet[][] bArray, int columnNumber) {
+        BitPlane[] planes = new BitPlane[3];
+        BitSet[] rows = new BitSet[bArray.length];
+        for (int i = 0; i < planes.length; i++) {
+            for (int j = 0; j < rows.length; j++) {
+                rows[j] = bArray[j][i];
+            }
+            planes[i] = new BitPlane(rows, columnNumber);
+        }
+        return planes;
+    }
+
     @Override
     public int getTaxaNumber() {
         return this.taxa.length;
@@ -128,11 +163,64 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
         return this.snps[siteIndex].getPosition();
     }
 
+    /**
+     * Return per-site and per-taxon statistics, which are computed in one parallel pass over the bit planes when they are not available.
+     * Once computed, count methods (e.g. {@link #getMissingNumberBySite(int)}) return cached values until the table is sorted.
+     * MAF and major/minor allele types of all sites are set from the statistics.
+     * @return
+     */
+    public synchronized GenotypeStatistics getStatistics () {
+        if (statistics == null) {
+            statistics = new GenotypeStatistics(this.genoSite, this.genoTaxon);
+            this.setMinorAlleleFrequencies(statistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * Set MAF and major/minor allele types of sites whose MAF is not available yet, sites are processed in parallel
+     * @param gs
+     */
+    private void setMinorAlleleFrequencies (GenotypeStatistics gs) {
+        IntStream.range(0, this.getSiteNumber()).parallel().forEach(i -> {
+            if (mafs[i] != Float.MIN_VALUE) return;
+            float altFre = gs.getAlternativeAlleleFrequency(i);
+            if (altFre < 0.5) {
+                this.setAlternativeAlleleType(AlleleType.Minor, i);
+                this.setReferenceAlleleType(AlleleType.Major, i);
+            }
+            else {
+                this.setReferenceAlleleType(AlleleType.Minor, i);
+                this.setAlternativeAlleleType(AlleleType.Major, i);
+                altFre = 1 - altFre;
+            }
+            mafs[i] = altFre;
+        });
+    }
+
     @Override
     public void sortBySite() {
         System.out.println("Start sorting genotype table by site");
+        this.statistics = null;
         long start = System.nanoTime();
-        GenericSorting.quickSort(0, this.getSiteNumber(), this, this);
+        int[] indices = new int[this.getSiteNumber()];
+        for (int i = 0; i < indices.length; i++) indices[i] = i;
+        GenericSorting.quickSort(0, indices.length, (index1, index2) -> snps[indices[index1]].compareTo(snps[indices[index2]]), (index1, index2) -> {
+            int temp = indices[index1];
+            indices[index1] = indices[index2];
+            indices[index2] = temp;
+        });
+        BiSNP[] nsnps = new BiSNP[indices.length];
+        float[] nmafs = new float[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            nsnps[i] = this.snps[indices[i]];
+            nmafs[i] = this.mafs[indices[i]];
+        }
+        this.snps = nsnps;
+        this.mafs = nmafs;
+        for (int i = 0; i < genoSite.length; i++) {
+            genoSite[i] = genoSite[i].getRows(indices);
+        }
         StringBuilder sb = new StringBuilder();
         sb.append("Sorting finished in ").append(Benchmark.getTimeSpanSeconds(start)).append(" seconds.");
         System.out.println(sb.toString());
@@ -144,12 +232,21 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
         System.out.println("Start sorting genotype table by taxon");
         long start = System.nanoTime();
         int[] indices = PArrayUtils.getIndicesByAscendingValue(this.taxa);
+        boolean ifSorted = true;
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] == i) continue;
+            ifSorted = false;
+            break;
+        }
+        if (ifSorted) {
+            System.out.println("Genotype table is already sorted by taxon");
+            return;
+        }
         Arrays.sort(this.taxa);
-        BitSet[][] nGenoTaxon = new BitSet[this.getTaxaNumber()][];
-        for (int i = 0; i < this.getTaxaNumber(); i++) {
-            nGenoTaxon[i] = this.genoTaxon[indices[i]];
+        this.statistics = null;
+        for (int i = 0; i < genoTaxon.length; i++) {
+            genoTaxon[i] = genoTaxon[i].getRows(indices);
         }
-        this.genoTaxon = nGenoTaxon;
         StringBuilder sb = new StringBuilder();
         sb.append("Sorting finished in ").append(Benchmark.getTimeSpanSeconds(start)).append(" seconds.");
         System.out.println(sb.toString());
@@ -198,19 +295,19 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
 
     @Override
     public boolean isMissing(int siteIndex, int taxonIndex) {
-        if (this.genoSite[siteIndex][2].get(taxonIndex)) return true;
+        if (this.genoSite[2].get(siteIndex, taxonIndex)) return true;
         return false;
     }
 
     @Override
     public boolean isPhase1Alternative(int siteIndex, int taxonIndex) {
-        if (this.genoSite[siteIndex][0].get(taxonIndex)) return true;
+        if (this.genoSite[0].get(siteIndex, taxonIndex)) return true;
         return false;
     }
 
     @Override
     public boolean isPhase2Alternative(int siteIndex, int taxonIndex) {
-        if (this.genoSite[siteIndex][1].get(taxonIndex)) return true;
+        if (this.genoSite[1].get(siteIndex, taxonIndex)) return true;
         return false;
     }
 
@@ -240,12 +337,16 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
 
     @Override
     public int getMissingNumberBySite(int siteIndex) {
-        return this.genoSite[siteIndex][2].cardinality();
+        GenotypeStatistics gs = this.statistics;
+        if (gs != null) return gs.getMissingNumberBySite(siteIndex);
+        return this.genoSite[2].cardinality(siteIndex);
     }
 
     @Override
     public int getMissingNumberByTaxon(int taxonIndex) {
-        return this.genoTaxon[taxonIndex][2].cardinality();
+        GenotypeStatistics gs = this.statistics;
+        if (gs != null) return gs.getMissingNumberByTaxon(taxonIndex);
+        return this.genoTaxon[2].cardinality(taxonIndex);
     }
 
     @Override
@@ -270,32 +371,52 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
 
     @Override
     public int getHeterozygoteNumberBySite(int siteIndex) {
-        BitSet phase1C = this.genoSite[siteIndex][0].get(0, this.getTaxaNumber());
-        phase1C.xor(this.genoSite[siteIndex][1]);
-        return phase1C.cardinality();
+        GenotypeStatistics gs = this.statistics;
+        if (gs != null) return gs.getHeterozygoteNumberBySite(siteIndex);
+        return getXorCardinality(this.genoSite, siteIndex);
     }
 
     @Override
     public int getHeterozygoteNumberByTaxon(int taxonIndex) {
-        BitSet phase1C = this.genoTaxon[taxonIndex][0].get(0, this.getSiteNumber());
-        phase1C.xor(this.genoTaxon[taxonIndex][1]);
-        return phase1C.cardinality();
+        GenotypeStatistics gs = this.statistics;
+        if (gs != null) return gs.getHeterozygoteNumberByTaxon(taxonIndex);
+        return getXorCardinality(this.genoTaxon, taxonIndex);
     }
 
     @Override
     public int getAlternativeAlleleNumberBySite(int siteIndex) {
+        GenotypeStatistics gs = this.statistics;
+        if (gs != null) return gs.getAlternativeAlleleNumberBySite(siteIndex);
+        return this.genoSite[0].cardinality(siteIndex)+this.genoSite[1].cardinality(siteIndex);
+    }
+
+    @Override
+    public int getAlternativeAlleleOccurrenceBySite (int siteIndex) {
+        long[] w1 = this.genoSite[0].getWords(siteIndex);
+        long[] w2 = this.genoSite[1].getWords(siteIndex);
+        int offset = this.genoSite[0].getOffset(siteIndex);
         int cnt = 0;
-        for (int i = 0; i < 2; i++) {
-            cnt+=this.genoSite[siteIndex][i].cardinality();
+        for (int i = 0; i < this.genoSite[0].getStride(); i++) {
+            cnt+=Long.bitCount(w1[offset+i] | w2[offset+i]);
         }
         return cnt;
     }
 
-    @Override
-    public int getAlternativeAlleleOccurrenceBySite (int siteIndex) {
-        BitSet bs = (BitSet)this.genoSite[siteIndex][0].clone();
-        bs.or(this.genoSite[siteIndex][1]);
-        return bs.cardinality();
+    /**
+     * Return the number of bits differing between phase 1 and phase 2 of a row, i.e. the number of heterozygotes
+     * @param planes
+     * @param row
+     * @return
+     */
+    private static int getXorCardinality (BitPlane[] planes, int row) {
+        long[] w1 = planes[0].getWords(row);
+        long[] w2 = planes[1].getWords(row);
+        int offset = planes[0].getOffset(row);
+        int cnt = 0;
+        for (int i = 0; i < planes[0].getStride(); i++) {
+            cnt+=Long.bitCount(w1[offset+i] ^ w2[offset+i]);
+        }
+        return cnt;
     }
 
     @Override
@@ -326,19 +447,8 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
 
     @Override
     public float getMinorAlleleFrequency(int siteIndex) {
-        if (this.mafs[siteIndex] != Float.MIN_VALUE) return this.mafs[siteIndex];
-        float altFre = this.getAlternativeAlleleFrequency(siteIndex);
-        if (altFre < 0.5) {
-            this.setAlternativeAlleleType(AlleleType.Minor, siteIndex);
-            this.setReferenceAlleleType(AlleleType.Major, siteIndex);
-        }
-        else {
-            this.setReferenceAlleleType(AlleleType.Minor, siteIndex);
-            this.setAlternativeAlleleType(AlleleType.Major, siteIndex);
-            altFre = (float)(1 - altFre);
-        }
-        mafs[siteIndex] = altFre;
-        return altFre;
+        if (this.mafs[siteIndex] == Float.MIN_VALUE) this.getStatistics();
+        return this.mafs[siteIndex];
     }
 
     @Override
@@ -436,55 +546,12 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
 
     @Override
     public float getIBSDistance(int taxonIndex1, int taxonIndex2, int startSiteIndex, int endSiteIndex) {
-        int length = endSiteIndex - startSiteIndex;
-        BitSet[] t1 = new BitSet[2];
-        BitSet[] t2 = new BitSet[2];
-        BitSet bothMissing = this.genoTaxon[taxonIndex1][2].get(startSiteIndex, endSiteIndex);
-        bothMissing.or(this.genoTaxon[taxonIndex2][2].get(startSiteIndex, endSiteIndex));
-        for (int i = 0; i < t1.length; i++) {
-            t1[i] = this.genoTaxon[taxonIndex1][i].get(startSiteIndex, endSiteIndex);
-            t1[i].or(bothMissing);
-            t2[i] = this.genoTaxon[taxonIndex2][i].get(startSiteIndex, endSiteIndex);
-            t2[i].or(bothMissing);
-        }
-        int cnt = 0;
-        for (int i = 0; i < t1.length; i++) {
-            for (int j = 0; j < t2.length; j++) {
-                BitSet bs = (BitSet)t1[i].clone();
-                bs.xor(t2[j]);
-                cnt+=bs.cardinality();
-            }
-        }
-        float dxy = (float) ((double)cnt/4/(endSiteIndex-startSiteIndex-bothMissing.cardinality()));
-//        float dxy = (float) ((double)cnt/4/(endSiteIndex-startSiteIndex)); //incorrect calculation which is used in Tassel, didn't count missing data
-        return dxy;
+        return new IBSDistanceKernel(this.genoTaxon, startSiteIndex, endSiteIndex).getDistance(taxonIndex1, taxonIndex2);
     }
 
     @Override
     public float getIBSDistance(int taxonIndex1, int taxonIndex2, int[] siteIndices) {
-        BitSet selected = new BitSet(this.getSiteNumber());
-        for (int i = 0; i < siteIndices.length; i++) {
-            selected.set(siteIndices[i]);
-        }
-        int cnt = 0;
-        for (int i = 0; i < 2; i++) {
-            for (int j = 0; j < 2; j++) {
-                BitSet bs1 = this.genoTaxon[taxonIndex1][i].get(0, this.getSiteNumber());
-                bs1.and(selected);
-                BitSet bs2 = this.genoTaxon[taxonIndex2][i].get(0, this.getSiteNumber());
-                bs2.and(selected);
-                bs1.xor(bs2);;
-                cnt+=bs1.cardinality();
-            }
-        }
-        BitSet bs1 = this.genoTaxon[taxonIndex1][2].get(0, this.getSiteNumber());
-        bs1.and(selected);
-        BitSet bs2 = this.genoTaxon[taxonIndex2][2].get(0, this.getSiteNumber());
-        bs2.and(selected);
-        bs1.or(bs2);
-        float dxy = (float) ((double)cnt/4/(siteIndices.length-bs1.cardinality()));
-//        float dxy = (float) ((double)cnt/4/(endSiteIndex-startSiteIndex)); //incorrect calculation which is used in Tassel, didn't count missing data
-        return dxy;
+        return new IBSDistanceKernel(this.genoTaxon, siteIndices).getDistance(taxonIndex1, taxonIndex2);
     }
 
     @Override
@@ -494,58 +561,79 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
 
     @Override
     public float[][] getIBSDistanceMatrix(int startIndex, int endIndex) {
-        float[][] matrix = new float[this.getTaxaNumber()][this.getTaxaNumber()];
-        List<Integer> indexList = new ArrayList<>();
-        for (int i = 0; i < matrix.length-1; i++) {
-            indexList.add(i);
-        }
-        indexList.parallelStream().forEach(i -> {
-            for (int j = i + 1; j < this.getTaxaNumber(); j++) {
-                matrix[i][j] = this.getIBSDistance(i, j, startIndex, endIndex);
-                matrix[j][i] = matrix[i][j];
+        return new IBSDistanceKernel(this.genoTaxon, startIndex, endIndex).getDistanceMatrix();
+    }
+
+    @Override
+    public void getSiteWords(int startSiteIndex, int endSiteIndex, long[] phase1, long[] phase2, long[] missing) {
+        copyWords(genoSite, startSiteIndex, endSiteIndex, phase1, phase2, missing);
+    }
+
+    @Override
+    public void getTaxonWords(int startTaxonIndex, int endTaxonIndex, long[] phase1, long[] phase2, long[] missing) {
+        copyWords(genoTaxon, startTaxonIndex, endTaxonIndex, phase1, phase2, missing);
+    }
+
+    /**
+     * Copy the words of a range of rows of planes, phase bits of missing genotypes (e.g. 1/. in VCF) are cleared
+     * @param planes
+     * @param startRow inclusive
+     * @param endRow exclusive
+     * @param phase1
+     * @param phase2
+     * @param missing
+     */
+    private static void copyWords (BitPlane[] planes, int startRow, int endRow, long[] phase1, long[] phase2, long[] missing) {
+        int length = (endRow-startRow)*planes[2].getStride();
+        long[] m = missing;
+        if (m == null) {
+            if (phase1 == null && phase2 == null) return;
+            m = new long[length];
+        }
+        planes[2].copyWords(startRow, endRow, m, 0);
+        long[][] buffers = {phase1, phase2};
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] == null) continue;
+            planes[i].copyWords(startRow, endRow, buffers[i], 0);
+            for (int j = 0; j < length; j++) {
+                buffers[i][j]&=~m[j];
             }
-        });
-        return matrix;
+        }
     }
 
     @Override
     public float[][] getIBSDistanceMatrix(int[] siteIndices) {
-        float[][] matrix = new float[this.getTaxaNumber()][this.getTaxaNumber()];
-        List<Integer> indexList = new ArrayList<>();
-        for (int i = 0; i < matrix.length-1; i++) {
-            indexList.add(i);
-        }
-        indexList.parallelStream().forEach(i -> {
-            for (int j = i + 1; j < this.getTaxaNumber(); j++) {
-                matrix[i][j] = this.getIBSDistance(i, j, siteIndices);
-                matrix[j][i] = matrix[i][j];
-            }
-        });
-        return matrix;
+        return new IBSDistanceKernel(this.genoTaxon, siteIndices).getDistanceMatrix();
+    }
+
+    /**
+     * Return the IBS distance kernel of the genotype table, e.g. to compute the distance matrix tile by tile
+     * @param startIndex inclusive
+     * @param endIndex exclusive
+     * @return
+     */
+    public IBSDistanceKernel getIBSDistanceKernel(int startIndex, int endIndex) {
+        return new IBSDistanceKernel(this.genoTaxon, startIndex, endIndex);
     }
 
     @Override
     public GenotypeTable getSubGenotypeTableBySite(int[] siteIndices) {
-        BitSet[][] bArray = new BitSet[siteIndices.length][3];
-        for (int i = 0; i < siteIndices.length; i++) {
-            for (int j = 0; j < bArray[0].length; j++) {
-                bArray[i][j] = this.genoSite[siteIndices[i]][j];
-            }
+        BitPlane[] planes = new BitPlane[this.genoSite.length];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = this.genoSite[i].getRows(siteIndices);
         }
         BiSNP[] nsnps = new BiSNP[siteIndices.length];
         for (int i = 0; i < siteIndices.length; i++) {
             nsnps[i] = this.snps[siteIndices[i]];
         }
-        return new GenotypeGrid(bArray, GridDirection.BySite, this.taxa, nsnps);
+        return new GenotypeGrid(planes, GridDirection.BySite, this.taxa, nsnps);
     }
 
     @Override
     public GenotypeTable getSubGenotypeTableByTaxa(int[] taxaIndices) {
-        BitSet[][] bArray = new BitSet[taxaIndices.length][3];
-        for (int i = 0; i < taxaIndices.length; i++) {
-            for (int j = 0; j < bArray[0].length; j++) {
-                bArray[i][j] = this.genoTaxon[taxaIndices[i]][j];
-            }
+        BitPlane[] planes = new BitPlane[this.genoTaxon.length];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = this.genoTaxon[i].getRows(taxaIndices);
         }
         String[] nTaxa = new String[taxaIndices.length];
         for (int i = 0; i < taxaIndices.length; i++) {
@@ -555,7 +643,12 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
         for (int i = 0; i < this.getSiteNumber(); i++) {
             nsnps[i] = this.snps[i].replicateWithoutFeature();
         }
-        return new GenotypeGrid(bArray, GridDirection.ByTaxon, nTaxa, nsnps);
+        return new GenotypeGrid(planes, GridDirection.ByTaxon, nTaxa, nsnps);
+    }
+
+    @Override
+    public String getSNPInfo(int siteIndex) {
+        return this.snps[siteIndex].getSNPInfo();
     }
 
     @Override
@@ -589,12 +682,8 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
         bb.put(AlleleEncoder.getGenotypeByte(this.getReferenceAlleleByte(siteIndex), this.getAlternativeAlleleByte(siteIndex)));
         bb.put(this.snps[siteIndex].getReferenceAlleleFeature());
         bb.put(this.snps[siteIndex].getAlternativeAlleleFeature());
-        int size = (bb.capacity()-GenotypeExport.getByteSizeOfSNPInBinary())/3;
-        for (int i = 0; i < this.genoSite[siteIndex].length; i++) {
-            byte[] b = new byte[size];
-            byte[] ob = this.genoSite[siteIndex][i].toByteArray();
-            System.arraycopy(ob,0,b,0,ob.length);
-            bb.put(b);
+        for (int i = 0; i < this.genoSite.length; i++) {
+            this.genoSite[i].writeRow(siteIndex, bb);
         }
         return bb;
     }
@@ -609,21 +698,58 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
         this.snps[siteIndex].setReferenceAlleleType(at);
     }
 
+    /**
+     * Reader of a chunked genotype file, see {@link GenoChunkFile}
+     * @param infileS
+     */
+    private void buildFromChunkFile (String infileS) {
+        GenotypeGrid gt = new GenoChunkFile(infileS).getGenotypeGrid();
+        this.taxa = gt.taxa;
+        this.snps = gt.snps;
+        this.mafs = gt.mafs;
+        this.genoSite = gt.genoSite;
+        this.genoTaxon = gt.genoTaxon;
+        StringBuilder sb = new StringBuilder();
+        sb.append("A total of ").append(this.getSiteNumber()).append(" SNPs are in ").append(infileS).append("\n");
+        sb.append("Genotype table is successfully built");
+        System.out.println(sb.toString());
+    }
+
     /**
      * Reader of a binary genotype file
      * @param infileS
      */
     private void buildFromBinary (String infileS) {
+        if (!infileS.endsWith(".gz")) {
+            GenoBinaryCodec.read(infileS, this);
+            StringBuilder sb = new StringBuilder();
+            sb.append("A total of ").append(this.getSiteNumber()).append(" SNPs are in ").append(infileS).append("\n");
+            sb.append("Genotype table is successfully built");
+            System.out.println(sb.toString());
+        }
+        else {
+            this.buildFromBinaryStream(infileS);
+        }
+        this.transposeSiteToTaxon();
+        mafs = new float[this.getSiteNumber()];
+        Arrays.fill(mafs, Float.MIN_VALUE);
+        GenotypeStatistics gs = GenotypeStatistics.readAlongside(infileS);
+        if (gs != null && gs.getSiteNumber() == this.getSiteNumber() && gs.getTaxaNumber() == this.getTaxaNumber()) {
+            this.statistics = gs;
+            this.setMinorAlleleFrequencies(gs);
+            System.out.println("Genotype statistics are read from "+GenotypeStatistics.getStatisticsFileName(infileS));
+        }
+    }
+
+    /**
+     * Reader of a gzipped binary genotype file, sites are read one by one from the stream
+     * @param infileS
+     */
+    private void buildFromBinaryStream (String infileS) {
         try{
-            DataInputStream dis = null;
-            if (infileS.endsWith(".gz")) {
-                dis = IOUtils.getBinaryGzipReader(infileS);
-            }
-            else {
-                dis = IOUtils.getBinaryReader(infileS);
-            }
+            DataInputStream dis = IOUtils.getBinaryGzipReader(infileS);
             int siteNumber = dis.readInt();
-            short taxaNumber = (short)dis.readInt();
+            int taxaNumber = dis.readInt();
             this.taxa = new String[taxaNumber];
             for (int i = 0; i < taxaNumber; i++) {
                 this.taxa[i] = dis.readUTF();
@@ -636,11 +762,11 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
             int actBlockSize = 0;
             StringBuilder sb = new StringBuilder();
             for (int i = 0; i < siteNumber; i++) {
-                dis.read(input[actBlockSize]);
+                dis.readFully(input[actBlockSize]);
                 siteCount++;
                 actBlockSize++;
                 if (siteCount% GenoSiteBlockBinary.blockSize == 0) {
-                    GenoSiteBlockBinary gsb = new GenoSiteBlockBinary(input, startIndex, actBlockSize);
+                    GenoSiteBlockBinary gsb = new GenoSiteBlockBinary(input, startIndex, actBlockSize, taxaNumber);
                     Future<GenoSiteBlockBinary> result = pool.submit(gsb);
                     resultList.add(result);
                     startIndex+=actBlockSize;
@@ -655,19 +781,22 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
             }
             dis.close();
             if (actBlockSize != 0) {
-                GenoSiteBlockBinary gsb = new GenoSiteBlockBinary(input, startIndex, actBlockSize);
+                GenoSiteBlockBinary gsb = new GenoSiteBlockBinary(input, startIndex, actBlockSize, taxaNumber);
                 Future<GenoSiteBlockBinary> result = pool.submit(gsb);
                 resultList.add(result);
             }
             pool.shutdown();
             pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MICROSECONDS);
-            this.genoSite = new BitSet[siteCount][];
+            this.genoSite = new BitPlane[3];
+            for (int i = 0; i < genoSite.length; i++) {
+                genoSite[i] = new BitPlane(siteCount, taxaNumber);
+            }
             this.snps = new BiSNP[siteCount];
             for (int i = 0; i < resultList.size(); i++) {
                 GenoSiteBlockBinary block = resultList.get(i).get();
-                for (int j = 0; j < block.actBlockSize; j++) {
-                    this.snps[block.getStartIndex()+j] = block.getSNPBlock()[j];
-                    this.genoSite[block.getStartIndex()+j] = block.getGenoSiteBlock()[j];
+                System.arraycopy(block.getSNPBlock(), 0, this.snps, block.getStartIndex(), block.actBlockSize);
+                for (int j = 0; j < genoSite.length; j++) {
+                    block.getGenoSiteBlock()[j].copyRows(0, genoSite[j], block.getStartIndex(), block.actBlockSize);
                 }
             }
             sb.setLength(0);
@@ -678,68 +807,41 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
         catch (Exception e) {
             e.printStackTrace();
         }
-        this.transposeSiteToTaxon();
-        mafs = new float[this.getSiteNumber()];
-        Arrays.fill(mafs, Float.MIN_VALUE);
     }
 
     private void buildFromVCF (String infileS) {
         try {
-            List<String> vcfAnnotationList = new ArrayList<>();
-            BufferedReader br = null;
-            if (infileS.endsWith(".gz")) {
-                br = IOUtils.getTextGzipReader(infileS);
-            }
-            else {
-                br = IOUtils.getTextReader(infileS);
-            }
-            String temp = null;
-            while ((temp = br.readLine()).startsWith("##")) {
-                vcfAnnotationList.add(temp);
-            }
-            List<String> l = new ArrayList<>();
-            l = PStringUtils.fastSplit(temp);
-            this.taxa = new String[l.size()-9];
-            for (int i = 9; i < l.size(); i++) {
-                taxa[i-9] = l.get(i);
-            }
+            VCFByteReader vr = new VCFByteReader(infileS);
+            this.taxa = vr.getTaxa();
             ExecutorService pool = Executors.newFixedThreadPool(PGLConstraints.parallelLevel);
             List<Future<GenoSiteBlockVCF>> resultList = new ArrayList<>();
             int siteCount = 0;
-            int startIndex = 0;
-            List<String> lines = new ArrayList ();
+            int lineNumber = 0;
             StringBuilder sb = new StringBuilder();
-            while ((temp = br.readLine()) != null) {
-                lines.add(temp);
-                if (lines.size()%GenoSiteBlockVCF.blockSize == 0) {
-                    GenoSiteBlockVCF gsb = new GenoSiteBlockVCF(lines, startIndex);
-                    Future<GenoSiteBlockVCF> result = pool.submit(gsb);
-                    resultList.add(result);
-                    startIndex+=lines.size();
-                    lines = new ArrayList<>();
-                }
-                siteCount++;
-                if (siteCount%1000000 == 0) {
+            while ((lineNumber = vr.readLines(GenoSiteBlockVCF.blockSize)) != 0) {
+                GenoSiteBlockVCF gsb = new GenoSiteBlockVCF(vr.getLines(), lineNumber, siteCount);
+                Future<GenoSiteBlockVCF> result = pool.submit(gsb);
+                resultList.add(result);
+                if ((siteCount+lineNumber)/1000000 > siteCount/1000000) {
                     sb.setLength(0);
-                    sb.append("Read in ").append(siteCount).append(" SNPs from ").append(infileS);
+                    sb.append("Read in ").append((siteCount+lineNumber)/1000000*1000000).append(" SNPs from ").append(infileS);
                     System.out.println(sb.toString());
                 }
+                siteCount+=lineNumber;
             }
-            br.close();
-            if (lines.size() != 0) {
-                GenoSiteBlockVCF gsb = new GenoSiteBlockVCF(lines, startIndex);
-                Future<GenoSiteBlockVCF> result = pool.submit(gsb);
-                resultList.add(result);
-            }
+            vr.close();
             pool.shutdown();
             pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MICROSECONDS);
-            this.genoSite = new BitSet[siteCount][];
+            this.genoSite = new BitPlane[3];
+            for (int i = 0; i < genoSite.length; i++) {
+                genoSite[i] = new BitPlane(siteCount, this.getTaxaNumber());
+            }
             this.snps = new BiSNP[siteCount];
             for (int i = 0; i < resultList.size(); i++) {
                 GenoSiteBlockVCF block = resultList.get(i).get();
-                for (int j = 0; j < block.actBlockSize; j++) {
-                    this.snps[block.getStartIndex()+j] = block.getSNPBlock()[j];
-                    this.genoSite[block.getStartIndex()+j] = block.getGenoSiteBlock()[j];
+                System.arraycopy(block.getSNPBlock(), 0, this.snps, block.getStartIndex(), block.actBlockSize);
+                for (int j = 0; j < genoSite.length; j++) {
+                    block.getGenoSiteBlock()[j].copyRows(0, genoSite[j], block.getStartIndex(), block.actBlockSize);
                 }
             }
             sb.setLength(0);
@@ -757,20 +859,10 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
 
     private void transposeSiteToTaxon () {
         long start = System.nanoTime();
-        genoTaxon = new BitSet[this.getTaxaNumber()][3];
-        Arrays.stream(genoTaxon).parallel().forEach(e -> {
-            for (int i = 0; i < genoTaxon[0].length; i++) {
-                e[i] = new BitSet(this.getSiteNumber());
-            }
-        });
-        List<Integer> tIndexList = PArrayUtils.getIndexList(this.getTaxaNumber());
-        tIndexList.parallelStream().forEach(i -> {
-            for (int j = 0; j < genoTaxon[0].length; j++) {
-                for (int k = 0; k < this.getSiteNumber(); k++) {
-                    if (genoSite[k][j].get(i)) genoTaxon[i][j].set(k);
-                }
-            }
-        });
+        genoTaxon = new BitPlane[genoSite.length];
+        for (int i = 0; i < genoSite.length; i++) {
+            genoTaxon[i] = genoSite[i].transpose();
+        }
         StringBuilder sb = new StringBuilder();
         sb.append("Transpose genoSite to genoTaxon takes ").append(Benchmark.getTimeSpanSeconds(start)).append(" seconds.");
         System.out.println(sb.toString());
@@ -778,20 +870,10 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
 
     public void transposeTaxonToSite () {
         long start = System.nanoTime();
-        genoSite = new BitSet[this.getSiteNumber()][3];
-        Arrays.stream(genoSite).parallel().forEach(e -> {
-            for (int i = 0; i < genoSite[0].length; i++) {
-                e[i] = new BitSet(this.getTaxaNumber());
-            }
-        });
-        List<Integer> tIndexList = PArrayUtils.getIndexList(this.getTaxaNumber());
-        tIndexList.parallelStream().forEach(i -> {
-            for (int j = 0; j < genoTaxon[0].length; j++) {
-                for (int k = 0; k < this.getSiteNumber(); k++) {
-                    if (genoTaxon[i][j].get(k)) genoSite[k][j].set(i);
-                }
-            }
-        });
+        genoSite = new BitPlane[genoTaxon.length];
+        for (int i = 0; i < genoTaxon.length; i++) {
+            genoSite[i] = genoTaxon[i].transpose();
+        }
         StringBuilder sb = new StringBuilder();
         sb.append("Transpose genoTaxon to genoSite takes ").append(Benchmark.getTimeSpanSeconds(start)).append(" seconds.");
         System.out.println(sb.toString());
@@ -799,6 +881,7 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
 
     @Override
     public void swap(int index1, int index2) {
+        this.statistics = null;
         BiSNP tempB = null;
         tempB = snps[index1];
         snps[index1] = snps[index2];
@@ -807,10 +890,9 @@ public class GenotypeGrid implements GenotypeTable, Swapper, IntComparator {
         tempM = mafs[index1];
         mafs[index1] = mafs[index2];
         mafs[index2] = tempM;
-        BitSet[] tempS = null;
-        tempS = genoSite[index1];
-        genoSite[index1] = genoSite[index2];
-        genoSite[index2] = tempS;
+        for (int i = 0; i < genoSite.length; i++) {
+            genoSite[i].swapRows(index1, index2);
+        }
     }
 
     @Override
@@ -0,0 +1,783 @@
+package pgl.infra.dna.genot;
+
+import cern.colt.GenericSorting;
+import pgl.infra.dna.allele.AlleleEncoder;
+import pgl.infra.dna.allele.AlleleType;
+import pgl.infra.dna.snp.BiSNP;
+import pgl.infra.utils.PArrayUtils;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A read-only genotype table backed by a memory-mapped binary genotype file, see {@link GenoIOFormat#Binary}.
+ * <p>
+ * Sites in the binary file have a fixed size ({@link GenotypeExport#getByteSizeOfSiteInBinary(int)}), so that a site is located
+ * by its index without reading the file. Opening a file only reads the header, genotypes are read from the mapped pages on demand.
+ * Site based queries are fast; taxon based queries read all sites. Sub-tables are materialized as {@link GenotypeGrid}.
+ * <p>
+ * Sorting does not change the file, taxa and sites are sorted through index maps.
+ * Allele types set by {@link #setReferenceAlleleType(AlleleType, int)} are kept in memory.
+ * Gzipped binary files can not be mapped.
+ *
+ * @author feilu
+ */
+public class GenotypeMapped implements GenotypeTable {
+    /**
+     * Maximum size of a mapped segment is 1 GB
+     */
+    static final int maxSegmentSize = 1 << 30;
+
+    String infileS = null;
+    /**
+     * The taxa in the genotype table, in the current order
+     */
+    String[] taxa = null;
+    /**
+     * File index of taxa in the current order, null if the taxa are in the order of the file
+     */
+    int[] taxonMap = null;
+    /**
+     * File index of sites in the current order, null if the sites are in the order of the file
+     */
+    int[] siteMap = null;
+    int siteNumber = 0;
+    /**
+     * Number of bytes of a site
+     */
+    int siteByteSize = 0;
+    /**
+     * Number of bytes of a genotype plane of a site
+     */
+    int planeByteSize = 0;
+    int sitesPerSegment = 0;
+    MappedByteBuffer[] segments = null;
+    RandomAccessFile raf = null;
+    /**
+     * Allele features set in memory, Short.MIN_VALUE if not set, allocated on the first setting
+     */
+    short[] refFeatures = null;
+    short[] altFeatures = null;
+
+    /**
+     * Open a binary genotype file, only the header is read
+     * @param infileS
+     */
+    public GenotypeMapped (String infileS) {
+        if (infileS.endsWith(".gz")) {
+            throw new UnsupportedOperationException("Gzipped binary genotype can not be mapped, use GenotypeGrid or GenotypeRows");
+        }
+        this.infileS = infileS;
+        try {
+            raf = new RandomAccessFile(infileS, "r");
+            siteNumber = raf.readInt();
+            int taxaNumber = raf.readInt();
+            this.taxa = new String[taxaNumber];
+            for (int i = 0; i < taxaNumber; i++) {
+                this.taxa[i] = raf.readUTF();
+            }
+            long dataStart = raf.getFilePointer();
+            siteByteSize = GenotypeExport.getByteSizeOfSiteInBinary(taxaNumber);
+            planeByteSize = (siteByteSize-GenotypeExport.getByteSizeOfSNPInBinary())/3;
+            sitesPerSegment = Math.max(1, maxSegmentSize/siteByteSize);
+            FileChannel fc = raf.getChannel();
+            segments = new MappedByteBuffer[(siteNumber+sitesPerSegment-1)/sitesPerSegment];
+            for (int i = 0; i < segments.length; i++) {
+                int sites = Math.min(sitesPerSegment, siteNumber-i*sitesPerSegment);
+                segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, dataStart+(long)i*sitesPerSegment*siteByteSize, (long)sites*siteByteSize);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        this.sortByTaxa();
+    }
+
+    /**
+     * Close the file, the table can not be used afterwards
+     */
+    public void close () {
+        try {
+            segments = null;
+            raf.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private int getFileSiteIndex (int siteIndex) {
+        if (siteMap == null) return siteIndex;
+        return siteMap[siteIndex];
+    }
+
+    private int getFileTaxonIndex (int taxonIndex) {
+        if (taxonMap == null) return taxonIndex;
+        return taxonMap[taxonIndex];
+    }
+
+    private static int[] getRange (int startIndex, int endIndex) {
+        return IntStream.range(startIndex, endIndex).toArray();
+    }
+
+    private MappedByteBuffer getSegment (int fileSiteIndex) {
+        return segments[fileSiteIndex/sitesPerSegment];
+    }
+
+    private int getSiteOffset (int fileSiteIndex) {
+        return (fileSiteIndex%sitesPerSegment)*siteByteSize;
+    }
+
+    /**
+     * Return a bit of a genotype plane
+     * @param siteIndex
+     * @param plane 0, 1, and 2 are phase 1, phase 2, and missing
+     * @param taxonIndex
+     * @return
+     */
+    private boolean getBit (int siteIndex, int plane, int taxonIndex) {
+        int fileSiteIndex = this.getFileSiteIndex(siteIndex);
+        int fileTaxonIndex = this.getFileTaxonIndex(taxonIndex);
+        int offset = this.getSiteOffset(fileSiteIndex)+GenotypeExport.getByteSizeOfSNPInBinary()+plane*planeByteSize+(fileTaxonIndex >>> 3);
+        return (this.getSegment(fileSiteIndex).get(offset) & (1 << (fileTaxonIndex & 7))) != 0;
+    }
+
+    /**
+     * Return the number of set bits of a genotype plane of a site
+     * @param siteIndex
+     * @param plane 0, 1, and 2 are phase 1, phase 2, and missing
+     * @return
+     */
+    private int getCardinality (int siteIndex, int plane) {
+        int fileSiteIndex = this.getFileSiteIndex(siteIndex);
+        MappedByteBuffer segment = this.getSegment(fileSiteIndex);
+        int offset = this.getSiteOffset(fileSiteIndex)+GenotypeExport.getByteSizeOfSNPInBinary()+plane*planeByteSize;
+        int cnt = 0;
+        for (int i = 0; i < planeByteSize; i+=Long.BYTES) {
+            cnt+=Long.bitCount(segment.getLong(offset+i));
+        }
+        return cnt;
+    }
+
+    /**
+     * Read the genotype planes of sites into bit planes of the file taxa order
+     * @param siteIndices
+     * @return
+     */
+    private BitPlane[] getSitePlanes (int[] siteIndices) {
+        BitPlane[] planes = new BitPlane[3];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = new BitPlane(siteIndices.length, this.getTaxaNumber());
+        }
+        IntStream.range(0, siteIndices.length).parallel().forEach(i -> {
+            int fileSiteIndex = this.getFileSiteIndex(siteIndices[i]);
+            ByteBuffer bb = this.getSegment(fileSiteIndex).duplicate();
+            bb.position(this.getSiteOffset(fileSiteIndex)+GenotypeExport.getByteSizeOfSNPInBinary());
+            for (int j = 0; j < planes.length; j++) {
+                planes[j].readRow(i, bb);
+            }
+        });
+        if (taxonMap == null) return planes;
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = planes[i].getColumns(taxonMap);
+        }
+        return planes;
+    }
+
+    /**
+     * Return the SNP of a site, including allele types
+     * @param siteIndex
+     * @return
+     */
+    public BiSNP getSNP (int siteIndex) {
+        BiSNP snp = new BiSNP(this.getChromosome(siteIndex), this.getPosition(siteIndex), this.getReferenceAlleleBase(siteIndex), this.getAlternativeAlleleBase(siteIndex), null);
+        snp.setReferenceAlleleFeature(this.getReferenceAlleleFeature(siteIndex));
+        snp.setAlternativeAlleleFeature(this.getAlternativeAlleleFeature(siteIndex));
+        return snp;
+    }
+
+    private byte getReferenceAlleleFeature (int siteIndex) {
+        if (refFeatures != null && refFeatures[siteIndex] != Short.MIN_VALUE) return (byte)refFeatures[siteIndex];
+        int fileSiteIndex = this.getFileSiteIndex(siteIndex);
+        return this.getSegment(fileSiteIndex).get(this.getSiteOffset(fileSiteIndex)+7);
+    }
+
+    private byte getAlternativeAlleleFeature (int siteIndex) {
+        if (altFeatures != null && altFeatures[siteIndex] != Short.MIN_VALUE) return (byte)altFeatures[siteIndex];
+        int fileSiteIndex = this.getFileSiteIndex(siteIndex);
+        return this.getSegment(fileSiteIndex).get(this.getSiteOffset(fileSiteIndex)+8);
+    }
+
+    private byte getAlleleGenotypeByte (int siteIndex) {
+        int fileSiteIndex = this.getFileSiteIndex(siteIndex);
+        return this.getSegment(fileSiteIndex).get(this.getSiteOffset(fileSiteIndex)+6);
+    }
+
+    @Override
+    public int getTaxaNumber() {
+        return taxa.length;
+    }
+
+    @Override
+    public int getSiteNumber() {
+        return siteNumber;
+    }
+
+    @Override
+    public String getTaxonName(int taxonIndex) {
+        return taxa[taxonIndex];
+    }
+
+    @Override
+    public String[] getTaxaNames() {
+        return taxa;
+    }
+
+    @Override
+    public short getChromosome(int siteIndex) {
+        int fileSiteIndex = this.getFileSiteIndex(siteIndex);
+        return this.getSegment(fileSiteIndex).getShort(this.getSiteOffset(fileSiteIndex));
+    }
+
+    @Override
+    public int getPosition(int siteIndex) {
+        int fileSiteIndex = this.getFileSiteIndex(siteIndex);
+        return this.getSegment(fileSiteIndex).getInt(this.getSiteOffset(fileSiteIndex)+2);
+    }
+
+    /**
+     * Sort sites by position through an index map, the positions of all sites are read
+     */
+    @Override
+    public void sortBySite() {
+        int[] indices = new int[siteNumber];
+        short[] chrs = new short[siteNumber];
+        int[] poss = new int[siteNumber];
+        this.siteMap = null;
+        IntStream.range(0, siteNumber).parallel().forEach(i -> {
+            indices[i] = i;
+            chrs[i] = this.getChromosome(i);
+            poss[i] = this.getPosition(i);
+        });
+        GenericSorting.quickSort(0, siteNumber, (index1, index2) -> {
+            int i1 = indices[index1];
+            int i2 = indices[index2];
+            if (chrs[i1] != chrs[i2]) return chrs[i1] < chrs[i2] ? -1 : 1;
+            return Integer.compare(poss[i1], poss[i2]);
+        }, (index1, index2) -> {
+            int temp = indices[index1];
+            indices[index1] = indices[index2];
+            indices[index2] = temp;
+        });
+        if (refFeatures != null) {
+            short[] nRef = new short[siteNumber];
+            short[] nAlt = new short[siteNumber];
+            for (int i = 0; i < siteNumber; i++) {
+                nRef[i] = refFeatures[indices[i]];
+                nAlt[i] = altFeatures[indices[i]];
+            }
+            refFeatures = nRef;
+            altFeatures = nAlt;
+        }
+        this.siteMap = indices;
+    }
+
+    /**
+     * Sort taxa by name through an index map
+     */
+    @Override
+    public void sortByTaxa() {
+        int[] indices = PArrayUtils.getIndicesByAscendingValue(this.taxa);
+        boolean ifSorted = true;
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] == i) continue;
+            ifSorted = false;
+            break;
+        }
+        if (ifSorted) return;
+        int[] nMap = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            nMap[i] = this.getFileTaxonIndex(indices[i]);
+        }
+        Arrays.sort(this.taxa);
+        this.taxonMap = nMap;
+    }
+
+    @Override
+    public int getTaxonIndex(String taxon) {
+        return Arrays.binarySearch(taxa, taxon);
+    }
+
+    @Override
+    public int getSiteIndex(short chromosome, int position) {
+        int low = 0;
+        int high = siteNumber-1;
+        while (low <= high) {
+            int mid = (low+high) >>> 1;
+            short chr = this.getChromosome(mid);
+            int cmp = chr == chromosome ? Integer.compare(this.getPosition(mid), position) : (chr < chromosome ? -1 : 1);
+            if (cmp < 0) low = mid+1;
+            else if (cmp > 0) high = mid-1;
+            else return mid;
+        }
+        return -(low+1);
+    }
+
+    @Override
+    public byte getGenotypeByte(int siteIndex, int taxonIndex) {
+        if (isMissing(siteIndex, taxonIndex)) return AlleleEncoder.genotypeMissingByte;
+        byte ref = this.getReferenceAlleleByte(siteIndex);
+        byte alt = this.getAlternativeAlleleByte(siteIndex);
+        byte b1 = ref;
+        byte b2 = ref;
+        if (isPhase1Alternative(siteIndex, taxonIndex)) b1 = alt;
+        if (isPhase2Alternative(siteIndex, taxonIndex)) b2 = alt;
+        return AlleleEncoder.getGenotypeByte(b1, b2);
+    }
+
+    @Override
+    public boolean isHeterozygous(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex, taxonIndex)) return false;
+        return this.isPhase1Alternative(siteIndex, taxonIndex) != this.isPhase2Alternative(siteIndex, taxonIndex);
+    }
+
+    @Override
+    public boolean isHomozygous(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex, taxonIndex)) return false;
+        return this.isPhase1Alternative(siteIndex, taxonIndex) == this.isPhase2Alternative(siteIndex, taxonIndex);
+    }
+
+    @Override
+    public boolean isMissing(int siteIndex, int taxonIndex) {
+        return this.getBit(siteIndex, 2, taxonIndex);
+    }
+
+    @Override
+    public boolean isPhase1Alternative(int siteIndex, int taxonIndex) {
+        return this.getBit(siteIndex, 0, taxonIndex);
+    }
+
+    @Override
+    public boolean isPhase2Alternative(int siteIndex, int taxonIndex) {
+        return this.getBit(siteIndex, 1, taxonIndex);
+    }
+
+    @Override
+    public boolean isPhase1Reference(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex, taxonIndex)) return false;
+        return !this.isPhase1Alternative(siteIndex, taxonIndex);
+    }
+
+    @Override
+    public boolean isPhase2Reference(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex, taxonIndex)) return false;
+        return !this.isPhase2Alternative(siteIndex, taxonIndex);
+    }
+
+    @Override
+    public boolean isAlternativeAlleleTypeOf(AlleleType at, int siteIndex) {
+        return (this.getAlternativeAlleleFeature(siteIndex) & at.getFeature()) != 0;
+    }
+
+    @Override
+    public boolean isReferenceAlleleTypeOf(AlleleType at, int siteIndex) {
+        return (this.getReferenceAlleleFeature(siteIndex) & at.getFeature()) != 0;
+    }
+
+    @Override
+    public int getMissingNumberBySite(int siteIndex) {
+        return this.getCardinality(siteIndex, 2);
+    }
+
+    @Override
+    public int getMissingNumberByTaxon(int taxonIndex) {
+        return (int)IntStream.range(0, siteNumber).parallel().filter(i -> this.isMissing(i, taxonIndex)).count();
+    }
+
+    @Override
+    public int getNonMissingNumberBySite(int siteIndex) {
+        return this.getTaxaNumber()-this.getMissingNumberBySite(siteIndex);
+    }
+
+    @Override
+    public int getNonMissingNumberByTaxon(int taxonIndex) {
+        return this.getSiteNumber()-this.getMissingNumberByTaxon(taxonIndex);
+    }
+
+    @Override
+    public int getHomozygoteNumberBySite(int siteIndex) {
+        return this.getNonMissingNumberBySite(siteIndex)-this.getHeterozygoteNumberBySite(siteIndex);
+    }
+
+    @Override
+    public int getHomozygoteNumberByTaxon(int taxonIndex) {
+        return this.getNonMissingNumberByTaxon(taxonIndex)-this.getHeterozygoteNumberByTaxon(taxonIndex);
+    }
+
+    @Override
+    public int getHeterozygoteNumberBySite(int siteIndex) {
+        int fileSiteIndex = this.getFileSiteIndex(siteIndex);
+        MappedByteBuffer segment = this.getSegment(fileSiteIndex);
+        int offset = this.getSiteOffset(fileSiteIndex)+GenotypeExport.getByteSizeOfSNPInBinary();
+        int cnt = 0;
+        for (int i = 0; i < planeByteSize; i+=Long.BYTES) {
+            cnt+=Long.bitCount(segment.getLong(offset+i) ^ segment.getLong(offset+planeByteSize+i));
+        }
+        return cnt;
+    }
+
+    @Override
+    public int getHeterozygoteNumberByTaxon(int taxonIndex) {
+        return (int)IntStream.range(0, siteNumber).parallel().filter(i -> this.isHeterozygous(i, taxonIndex)).count();
+    }
+
+    @Override
+    public int getAlternativeAlleleNumberBySite(int siteIndex) {
+        return this.getCardinality(siteIndex, 0)+this.getCardinality(siteIndex, 1);
+    }
+
+    @Override
+    public int getAlternativeAlleleOccurrenceBySite(int siteIndex) {
+        int fileSiteIndex = this.getFileSiteIndex(siteIndex);
+        MappedByteBuffer segment = this.getSegment(fileSiteIndex);
+        int offset = this.getSiteOffset(fileSiteIndex)+GenotypeExport.getByteSizeOfSNPInBinary();
+        int cnt = 0;
+        for (int i = 0; i < planeByteSize; i+=Long.BYTES) {
+            cnt+=Long.bitCount(segment.getLong(offset+i) | segment.getLong(offset+planeByteSize+i));
+        }
+        return cnt;
+    }
+
+    @Override
+    public float getHeterozygousProportionByTaxon(int taxonIndex) {
+        return (float)((double)this.getHeterozygoteNumberByTaxon(taxonIndex)/this.getNonMissingNumberByTaxon(taxonIndex));
+    }
+
+    @Override
+    public float getHeterozygousProportionBySite(int siteIndex) {
+        return (float)((double)this.getHeterozygoteNumberBySite(siteIndex)/this.getNonMissingNumberBySite(siteIndex));
+    }
+
+    /**
+     * Return if the alternative allele is the minor allele, allele types in the file or in memory are used when available
+     * @param siteIndex
+     * @return
+     */
+    private boolean isAlternativeMinor (int siteIndex) {
+        if (this.isAlternativeAlleleTypeOf(AlleleType.Minor, siteIndex)) return true;
+        if (this.isReferenceAlleleTypeOf(AlleleType.Minor, siteIndex)) return false;
+        return this.getAlternativeAlleleFrequency(siteIndex) < 0.5;
+    }
+
+    @Override
+    public byte getMinorAlleleByte(int siteIndex) {
+        if (this.isAlternativeMinor(siteIndex)) return this.getAlternativeAlleleByte(siteIndex);
+        return this.getReferenceAlleleByte(siteIndex);
+    }
+
+    @Override
+    public char getMinorAlleleBase(int siteIndex) {
+        return AlleleEncoder.getAlleleBaseFromByte(this.getMinorAlleleByte(siteIndex));
+    }
+
+    @Override
+    public float getMinorAlleleFrequency(int siteIndex) {
+        float altFre = this.getAlternativeAlleleFrequency(siteIndex);
+        if (this.isAlternativeMinor(siteIndex)) return altFre;
+        return 1-altFre;
+    }
+
+    @Override
+    public byte getMajorAlleleByte(int siteIndex) {
+        if (this.isAlternativeMinor(siteIndex)) return this.getReferenceAlleleByte(siteIndex);
+        return this.getAlternativeAlleleByte(siteIndex);
+    }
+
+    @Override
+    public char getMajorAlleleBase(int siteIndex) {
+        return AlleleEncoder.getAlleleBaseFromByte(this.getMajorAlleleByte(siteIndex));
+    }
+
+    @Override
+    public float getMajorAlleleFrequency(int siteIndex) {
+        return 1-this.getMinorAlleleFrequency(siteIndex);
+    }
+
+    @Override
+    public byte getReferenceAlleleByte(int siteIndex) {
+        return AlleleEncoder.getAlleleByte1FromGenotypeByte(this.getAlleleGenotypeByte(siteIndex));
+    }
+
+    @Override
+    public char getReferenceAlleleBase(int siteIndex) {
+        return AlleleEncoder.getAlleleBase1FromGenotypeByte(this.getAlleleGenotypeByte(siteIndex));
+    }
+
+    @Override
+    public float getReferenceAlleleFrequency(int siteIndex) {
+        return 1-this.getAlternativeAlleleFrequency(siteIndex);
+    }
+
+    @Override
+    public byte getAlternativeAlleleByte(int siteIndex) {
+        return AlleleEncoder.getAlleleByte2FromGenotypeByte(this.getAlleleGenotypeByte(siteIndex));
+    }
+
+    @Override
+    public char getAlternativeAlleleBase(int siteIndex) {
+        return AlleleEncoder.getAlleleBase2FromGenotypeByte(this.getAlleleGenotypeByte(siteIndex));
+    }
+
+    @Override
+    public float getAlternativeAlleleFrequency(int siteIndex) {
+        return (float)((double)this.getAlternativeAlleleNumberBySite(siteIndex)/(this.getNonMissingNumberBySite(siteIndex)*2));
+    }
+
+    @Override
+    public int getStartIndexOfChromosome(short chromosome) {
+        int index = this.getSiteIndex(chromosome, Integer.MIN_VALUE);
+        if (index < 0) {
+            index = -index - 1;
+            if (index < this.getSiteNumber() && this.getChromosome(index) == chromosome) return index;
+            return -1;
+        }
+        else {
+            while (index > 0 && this.getChromosome(index-1) == chromosome) {
+                index--;
+            }
+            return index;
+        }
+    }
+
+    @Override
+    public int getEndIndexOfChromosome(short chromosome) {
+        int index = this.getSiteIndex(chromosome, Integer.MAX_VALUE);
+        if (index < 0) {
+            index = -index - 2;
+            if (index >= 0 && this.getChromosome(index) == chromosome) return index+1;
+            else return -1;
+        }
+        else {
+            while ((index+1) < this.getSiteNumber() && this.getChromosome(index+1) == chromosome) {
+                index++;
+            }
+            return index+1;
+        }
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2) {
+        return this.getIBSDistance(taxonIndex1, taxonIndex2, 0, this.getSiteNumber());
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2, int startSiteIndex, int endSiteIndex) {
+        return this.getIBSDistance(taxonIndex1, taxonIndex2, getRange(startSiteIndex, endSiteIndex));
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2, int[] siteIndices) {
+        long cnt = 0;
+        int siteCount = 0;
+        for (int i = 0; i < siteIndices.length; i++) {
+            int s = siteIndices[i];
+            if (this.isMissing(s, taxonIndex1) || this.isMissing(s, taxonIndex2)) continue;
+            int c1 = (this.isPhase1Alternative(s, taxonIndex1) ? 1 : 0)+(this.isPhase2Alternative(s, taxonIndex1) ? 1 : 0);
+            int c2 = (this.isPhase1Alternative(s, taxonIndex2) ? 1 : 0)+(this.isPhase2Alternative(s, taxonIndex2) ? 1 : 0);
+            cnt+=c1*(2-c2)+c2*(2-c1);
+            siteCount++;
+        }
+        return (float)((double)cnt/4/siteCount);
+    }
+
+    /**
+     * Return the IBS distance matrix, sites are loaded into a {@link GenotypeGrid}
+     * @return
+     */
+    @Override
+    public float[][] getIBSDistanceMatrix() {
+        return this.getIBSDistanceMatrix(0, this.getSiteNumber());
+    }
+
+    /**
+     * Return the IBS distance matrix, sites in the range are loaded into a {@link GenotypeGrid}
+     * @param startIndex
+     * @param endIndex
+     * @return
+     */
+    @Override
+    public float[][] getIBSDistanceMatrix(int startIndex, int endIndex) {
+        return this.getIBSDistanceMatrix(getRange(startIndex, endIndex));
+    }
+
+    /**
+     * Copy the bit words of a range of sites, words are read from the mapped pages when taxa are in the order of the file,
+     * phase bits of missing genotypes are cleared
+     * @param startSiteIndex inclusive
+     * @param endSiteIndex exclusive
+     * @param phase1
+     * @param phase2
+     * @param missing
+     */
+    @Override
+    public void getSiteWords(int startSiteIndex, int endSiteIndex, long[] phase1, long[] phase2, long[] missing) {
+        if (taxonMap != null) {
+            GenotypeTable.super.getSiteWords(startSiteIndex, endSiteIndex, phase1, phase2, missing);
+            return;
+        }
+        int stride = this.getWordNumberBySite();
+        long[][] buffers = {phase1, phase2, missing};
+        IntStream.range(startSiteIndex, endSiteIndex).parallel().forEach(i -> {
+            int fileSiteIndex = this.getFileSiteIndex(i);
+            MappedByteBuffer segment = this.getSegment(fileSiteIndex);
+            int siteOffset = this.getSiteOffset(fileSiteIndex)+GenotypeExport.getByteSizeOfSNPInBinary();
+            int offset = (i-startSiteIndex)*stride;
+            for (int k = 0; k < stride; k++) {
+                long m = Long.reverseBytes(segment.getLong(siteOffset+2*planeByteSize+k*Long.BYTES));
+                if (missing != null) missing[offset+k] = m;
+                for (int j = 0; j < 2; j++) {
+                    if (buffers[j] == null) continue;
+                    buffers[j][offset+k] = Long.reverseBytes(segment.getLong(siteOffset+j*planeByteSize+k*Long.BYTES)) & ~m;
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the IBS distance matrix, selected sites are loaded into a {@link GenotypeGrid}
+     * @param siteIndices
+     * @return
+     */
+    @Override
+    public float[][] getIBSDistanceMatrix(int[] siteIndices) {
+        return this.getSubGenotypeTableBySite(siteIndices).getIBSDistanceMatrix();
+    }
+
+    /**
+     * Return a {@link GenotypeGrid} of sites, only the pages of the sites are read
+     * @param siteIndices
+     * @return
+     */
+    @Override
+    public GenotypeGrid getSubGenotypeTableBySite(int[] siteIndices) {
+        BiSNP[] snps = new BiSNP[siteIndices.length];
+        for (int i = 0; i < siteIndices.length; i++) {
+            snps[i] = this.getSNP(siteIndices[i]);
+        }
+        return new GenotypeGrid(this.getSitePlanes(siteIndices), GenotypeGrid.GridDirection.BySite, taxa, snps);
+    }
+
+    /**
+     * Return a {@link GenotypeGrid} of sites in a region
+     * @param chromosome
+     * @param startPosition inclusive
+     * @param endPosition exclusive
+     * @return
+     */
+    public GenotypeGrid getSubGenotypeTableByRegion(short chromosome, int startPosition, int endPosition) {
+        int startIndex = this.getSiteIndex(chromosome, startPosition);
+        if (startIndex < 0) startIndex = -startIndex-1;
+        int endIndex = this.getSiteIndex(chromosome, endPosition);
+        if (endIndex < 0) endIndex = -endIndex-1;
+        return this.getSubGenotypeTableBySite(getRange(startIndex, Math.max(startIndex, endIndex)));
+    }
+
+    /**
+     * Return a {@link GenotypeGrid} of taxa, all sites are read
+     * @param taxaIndices
+     * @return
+     */
+    @Override
+    public GenotypeGrid getSubGenotypeTableByTaxa(int[] taxaIndices) {
+        BitPlane[] planes = this.getSitePlanes(getRange(0, siteNumber));
+        String[] nTaxa = new String[taxaIndices.length];
+        for (int i = 0; i < nTaxa.length; i++) {
+            nTaxa[i] = taxa[taxaIndices[i]];
+        }
+        BiSNP[] snps = new BiSNP[siteNumber];
+        for (int i = 0; i < siteNumber; i++) {
+            snps[i] = this.getSNP(i).replicateWithoutFeature();
+        }
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = planes[i].getColumns(taxaIndices);
+        }
+        return new GenotypeGrid(planes, GenotypeGrid.GridDirection.BySite, nTaxa, snps);
+    }
+
+    @Override
+    public String getUnphasedVCFRecord(int siteIndex) {
+        StringBuilder vsb = new StringBuilder();
+        char delimiter = '/';
+        vsb.append(this.getChromosome(siteIndex)).append("\t").append(this.getPosition(siteIndex)).append("\t").append(this.getChromosome(siteIndex)).append("-").append(this.getPosition(siteIndex)).append("\t");
+        vsb.append(this.getReferenceAlleleBase(siteIndex)).append("\t").append(this.getAlternativeAlleleBase(siteIndex)).append("\t.\t.\t.\tGT");
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            if (isMissing(siteIndex, i)) vsb.append("\t").append(".").append(delimiter).append(".");
+            else {
+                vsb.append("\t");
+                if (isPhase1Alternative(siteIndex, i)) vsb.append("1");
+                else vsb.append("0");
+                vsb.append(delimiter);
+                if (isPhase2Alternative(siteIndex, i)) vsb.append("1");
+                else vsb.append("0");
+            }
+        }
+        return vsb.toString();
+    }
+
+    @Override
+    public ByteBuffer getBinaryOutput(int siteIndex, ByteBuffer bb) {
+        int fileSiteIndex = this.getFileSiteIndex(siteIndex);
+        MappedByteBuffer segment = this.getSegment(fileSiteIndex);
+        int offset = this.getSiteOffset(fileSiteIndex);
+        bb.putShort(this.getChromosome(siteIndex));
+        bb.putInt(this.getPosition(siteIndex));
+        bb.put(this.getAlleleGenotypeByte(siteIndex));
+        bb.put(this.getReferenceAlleleFeature(siteIndex));
+        bb.put(this.getAlternativeAlleleFeature(siteIndex));
+        offset+=GenotypeExport.getByteSizeOfSNPInBinary();
+        if (taxonMap == null) {
+            for (int i = 0; i < planeByteSize*3; i++) {
+                bb.put(segment.get(offset+i));
+            }
+            return bb;
+        }
+        for (int i = 0; i < 3; i++) {
+            long[] words = new long[planeByteSize/Long.BYTES];
+            for (int j = 0; j < taxa.length; j++) {
+                if (this.getBit(siteIndex, i, j)) words[j >>> 6] |= 1L << j;
+            }
+            for (int j = 0; j < words.length; j++) {
+                bb.putLong(Long.reverseBytes(words[j]));
+            }
+        }
+        return bb;
+    }
+
+    @Override
+    public void setAlternativeAlleleType(AlleleType at, int siteIndex) {
+        byte feature = this.getAlternativeAlleleFeature(siteIndex);
+        this.initializeFeatures();
+        altFeatures[siteIndex] = (short)((feature | at.getFeature()) & 0xFF);
+    }
+
+    @Override
+    public void setReferenceAlleleType(AlleleType at, int siteIndex) {
+        byte feature = this.getReferenceAlleleFeature(siteIndex);
+        this.initializeFeatures();
+        refFeatures[siteIndex] = (short)((feature | at.getFeature()) & 0xFF);
+    }
+
+    private synchronized void initializeFeatures () {
+        if (refFeatures != null) return;
+        short[] nRef = new short[siteNumber];
+        short[] nAlt = new short[siteNumber];
+        Arrays.fill(nRef, Short.MIN_VALUE);
+        Arrays.fill(nAlt, Short.MIN_VALUE);
+        altFeatures = nAlt;
+        refFeatures = nRef;
+    }
+}
@@ -0,0 +1,400 @@
+package pgl.infra.dna.genot;
+
+import pgl.PGLConstraints;
+import pgl.infra.dna.snp.BiSNP;
+import pgl.infra.utils.BGZFOutputStream;
+import pgl.infra.utils.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Streaming merge of genotype files, without loading them as {@link GenotypeTable}.
+ * <p>
+ * By site: files of the same taxa, e.g. one file per chromosome, are concatenated in the order of their first sites.
+ * Taxa of a file may be in a different order, they are arranged in the order of the first file.
+ * <p>
+ * By taxon: files of different taxa, e.g. sequencing batches, are joined on chromosome and position. Sites of each file should be sorted.
+ * A site absent from a file is missing for the taxa of the file. When the alleles of a file are swapped relative to the first file having the site,
+ * genotypes are flipped; when the alleles are different, genotypes are missing.
+ * <p>
+ * Files are decoded and merged in blocks of sites, blocks are encoded for output in parallel. Memory is proportional to the block size and the taxa number.
+ *
+ * @author feilu
+ */
+public class GenotypeMerger {
+    /**
+     * Number of sites in an output block
+     */
+    public static final int blockSize = 4096;
+
+    /**
+     * Concatenate files of the same taxa
+     * @param infileS
+     * @param inFormat format of all input files
+     * @param outfileS
+     * @param outFormat
+     * @return number of sites written
+     */
+    public static long mergeBySite (String[] infileS, GenoIOFormat inFormat, String outfileS, GenoIOFormat outFormat) {
+        GenoIOFormat[] formats = new GenoIOFormat[infileS.length];
+        Arrays.fill(formats, inFormat);
+        return mergeBySite(infileS, formats, outfileS, outFormat);
+    }
+
+    /**
+     * Concatenate files of the same taxa, files are ordered by their first sites
+     * @param infileS
+     * @param inFormats
+     * @param outfileS
+     * @param outFormat
+     * @return number of sites written
+     */
+    public static long mergeBySite (String[] infileS, GenoIOFormat[] inFormats, String outfileS, GenoIOFormat outFormat) {
+        int fileNumber = infileS.length;
+        BiSNP[] firstSNPs = new BiSNP[fileNumber];
+        String[] taxa = null;
+        for (int i = 0; i < fileNumber; i++) {
+            GenoBlockReader br = new GenoBlockReader(infileS[i], inFormats[i], 1);
+            if (taxa == null) taxa = br.getTaxa();
+            if (br.getTaxa().length != taxa.length) {
+                br.close();
+                throw new IllegalArgumentException("Taxa of "+infileS[i]+" are different from taxa of "+infileS[0]);
+            }
+            if (br.next()) firstSNPs[i] = br.snps[0];
+            br.close();
+        }
+        Integer[] order = new Integer[fileNumber];
+        for (int i = 0; i < fileNumber; i++) order[i] = i;
+        Arrays.sort(order, (o1, o2) -> {
+            if (firstSNPs[o1] == null || firstSNPs[o2] == null) return Boolean.compare(firstSNPs[o1] == null, firstSNPs[o2] == null);
+            return firstSNPs[o1].compareTo(firstSNPs[o2]);
+        });
+        BlockWriter bw = new BlockWriter(outfileS, outFormat, taxa);
+        BiSNP last = null;
+        for (int i = 0; i < fileNumber; i++) {
+            int f = order[i];
+            if (firstSNPs[f] == null) continue;
+            GenoBlockReader br = new GenoBlockReader(infileS[f], inFormats[f], PGLConstraints.parallelLevel);
+            int[] columnIndices = getColumnIndices(taxa, br.getTaxa(), infileS[f]);
+            if (last != null && firstSNPs[f].compareTo(last) <= 0) {
+                System.out.println("Warning: sites of "+infileS[f]+" overlap sites of the previous file");
+            }
+            while (br.next()) {
+                BitPlane[] planes = br.planes;
+                if (columnIndices != null) {
+                    planes = new BitPlane[br.planes.length];
+                    for (int j = 0; j < planes.length; j++) {
+                        planes[j] = br.planes[j].getColumns(columnIndices);
+                    }
+                }
+                bw.write(br.snps, planes, br.blockSiteNumber);
+                last = br.snps[br.blockSiteNumber-1];
+            }
+            br.close();
+            System.out.println(infileS[f]+" is merged");
+        }
+        return bw.close();
+    }
+
+    /**
+     * Return the column indices of taxa of a file in the order of the merged taxa
+     * @return null if taxa are in the same order
+     */
+    private static int[] getColumnIndices (String[] taxa, String[] fileTaxa, String infileS) {
+        if (Arrays.equals(taxa, fileTaxa)) return null;
+        HashMap<String, Integer> indexMap = new HashMap<>();
+        for (int i = 0; i < fileTaxa.length; i++) {
+            indexMap.put(fileTaxa[i], i);
+        }
+        int[] indices = new int[taxa.length];
+        for (int i = 0; i < taxa.length; i++) {
+            Integer index = indexMap.get(taxa[i]);
+            if (index == null) throw new IllegalArgumentException("Taxon "+taxa[i]+" is absent from "+infileS);
+            indices[i] = index;
+        }
+        return indices;
+    }
+
+    /**
+     * Join files of different taxa on sites
+     * @param infileS
+     * @param inFormat format of all input files
+     * @param outfileS
+     * @param outFormat
+     * @return number of sites written
+     */
+    public static long mergeByTaxon (String[] infileS, GenoIOFormat inFormat, String outfileS, GenoIOFormat outFormat) {
+        GenoIOFormat[] formats = new GenoIOFormat[infileS.length];
+        Arrays.fill(formats, inFormat);
+        return mergeByTaxon(infileS, formats, outfileS, outFormat);
+    }
+
+    /**
+     * Join files of different taxa on sites, taxa are in the order of the files
+     * @param infileS
+     * @param inFormats
+     * @param outfileS
+     * @param outFormat
+     * @return number of sites written
+     */
+    public static long mergeByTaxon (String[] infileS, GenoIOFormat[] inFormats, String outfileS, GenoIOFormat outFormat) {
+        int fileNumber = infileS.length;
+        int batchSize = Math.max(1, PGLConstraints.parallelLevel/fileNumber);
+        GenoBlockReader[] brs = new GenoBlockReader[fileNumber];
+        int[] columnOffsets = new int[fileNumber+1];
+        List<String> taxaList = new ArrayList<>();
+        for (int i = 0; i < fileNumber; i++) {
+            brs[i] = new GenoBlockReader(infileS[i], inFormats[i], batchSize);
+            taxaList.addAll(Arrays.asList(brs[i].getTaxa()));
+            columnOffsets[i+1] = taxaList.size();
+        }
+        String[] taxa = taxaList.toArray(new String[0]);
+        int[] rows = new int[fileNumber];
+        boolean[] ifUnsorted = new boolean[fileNumber];
+        for (int i = 0; i < fileNumber; i++) {
+            if (!brs[i].next()) brs[i] = null;
+        }
+        BlockWriter bw = new BlockWriter(outfileS, outFormat, taxa);
+        BiSNP[] snps = new BiSNP[blockSize];
+        BitPlane[] planes = getBlockPlanes(taxa.length);
+        int n = 0;
+        while (true) {
+            BiSNP current = null;
+            int first = -1;
+            for (int i = 0; i < fileNumber; i++) {
+                if (brs[i] == null) continue;
+                BiSNP snp = brs[i].snps[rows[i]];
+                if (current == null || snp.compareTo(current) < 0) {
+                    current = snp;
+                    first = i;
+                }
+            }
+            if (current == null) break;
+            snps[n] = current.replicateWithoutFeature();
+            for (int i = 0; i < fileNumber; i++) {
+                int columnNumber = columnOffsets[i+1]-columnOffsets[i];
+                if (brs[i] == null || brs[i].snps[rows[i]].compareTo(current) != 0) {
+                    setMissing(planes[2], n, columnOffsets[i], columnNumber);
+                    continue;
+                }
+                BiSNP snp = brs[i].snps[rows[i]];
+                if (i == first || (snp.getReferenceAlleleByte() == current.getReferenceAlleleByte() && snp.getAlternativeAlleleByte() == current.getAlternativeAlleleByte())) {
+                    copyRow(brs[i].planes, rows[i], planes, n, columnOffsets[i], columnNumber, false);
+                }
+                else if (snp.getReferenceAlleleByte() == current.getAlternativeAlleleByte() && snp.getAlternativeAlleleByte() == current.getReferenceAlleleByte()) {
+                    copyRow(brs[i].planes, rows[i], planes, n, columnOffsets[i], columnNumber, true);
+                }
+                else {
+                    setMissing(planes[2], n, columnOffsets[i], columnNumber);
+                }
+                rows[i]++;
+                if (rows[i] == brs[i].blockSiteNumber) {
+                    rows[i] = 0;
+                    if (!brs[i].next()) {
+                        brs[i].close();
+                        brs[i] = null;
+                        continue;
+                    }
+                }
+                if (!ifUnsorted[i] && brs[i].snps[rows[i]].compareTo(current) < 0) {
+                    ifUnsorted[i] = true;
+                    System.out.println("Warning: sites of "+infileS[i]+" are not sorted, genotypes of the unsorted sites are split");
+                }
+            }
+            n++;
+            if (n == blockSize) {
+                bw.write(snps, planes, n);
+                snps = new BiSNP[blockSize];
+                planes = getBlockPlanes(taxa.length);
+                n = 0;
+            }
+        }
+        if (n > 0) bw.write(snps, planes, n);
+        return bw.close();
+    }
+
+    private static BitPlane[] getBlockPlanes (int taxaNumber) {
+        BitPlane[] planes = new BitPlane[3];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = new BitPlane(blockSize, taxaNumber);
+        }
+        return planes;
+    }
+
+    /**
+     * Copy a row of source planes to a row of target planes, starting from a column of the target
+     * @param source planes of phase 1, phase 2, and missing
+     * @param sourceRow
+     * @param target planes of phase 1, phase 2, and missing
+     * @param targetRow
+     * @param columnOffset
+     * @param columnNumber number of columns of the source
+     * @param ifSwap if reference and alternative alleles are swapped
+     */
+    private static void copyRow (BitPlane[] source, int sourceRow, BitPlane[] target, int targetRow, int columnOffset, int columnNumber, boolean ifSwap) {
+        int stride = source[0].getStride();
+        int sOffset = source[0].getOffset(sourceRow);
+        long[] sm = source[2].getWords(sourceRow);
+        for (int i = 0; i < source.length; i++) {
+            long[] sw = source[i].getWords(sourceRow);
+            long[] tw = target[i].getWords(targetRow);
+            int tOffset = target[i].getOffset(targetRow);
+            int tEnd = tOffset+target[i].getStride();
+            for (int j = 0; j < stride; j++) {
+                long w = sw[sOffset+j];
+                if (ifSwap && i < 2) {
+                    w = ~w & ~sm[sOffset+j];
+                    int remainder = columnNumber-(j << 6);
+                    if (remainder < 64) w &= -1L >>> (64-remainder);
+                }
+                if (w == 0) continue;
+                int bit = columnOffset+(j << 6);
+                int index = tOffset+(bit >>> 6);
+                int shift = bit & 63;
+                tw[index] |= w << shift;
+                if (shift != 0 && index+1 < tEnd) tw[index+1] |= w >>> (64-shift);
+            }
+        }
+    }
+
+    private static void setMissing (BitPlane missing, int row, int columnOffset, int columnNumber) {
+        long[] words = missing.getWords(row);
+        int offset = missing.getOffset(row);
+        int end = columnOffset+columnNumber;
+        for (int i = columnOffset; i < end;) {
+            int shift = i & 63;
+            int length = Math.min(64-shift, end-i);
+            long mask = length == 64 ? -1L : ((1L << length)-1) << shift;
+            words[offset+(i >>> 6)] |= mask;
+            i+=length;
+        }
+    }
+
+    /**
+     * Writer of blocks of sites, blocks are buffered and encoded in parallel
+     */
+    private static class BlockWriter {
+        String outfileS = null;
+        GenoIOFormat format = null;
+        String binaryFileS = null;
+        String[] taxa = null;
+        BufferedWriter bw = null;
+        DataOutputStream dos = null;
+        List<BiSNP[]> snpList = new ArrayList<>();
+        List<BitPlane[]> planeList = new ArrayList<>();
+        List<Integer> sizeList = new ArrayList<>();
+        long siteNumber = 0;
+
+        BlockWriter (String outfileS, GenoIOFormat format, String[] taxa) {
+            this.outfileS = outfileS;
+            this.format = format;
+            this.taxa = taxa;
+            try {
+                if (format == GenoIOFormat.VCF || format == GenoIOFormat.VCF_GZ) {
+                    if (format == GenoIOFormat.VCF_GZ) bw = new BufferedWriter(new OutputStreamWriter(new BGZFOutputStream(outfileS)), 1 << 20);
+                    else bw = IOUtils.getTextWriter(outfileS);
+                    bw.write(VCFUtils.getVCFAnnotation());
+                    bw.write(VCFUtils.getVCFHeader(taxa));
+                    bw.newLine();
+                }
+                else {
+                    binaryFileS = format == GenoIOFormat.Binary ? outfileS : outfileS+".tmp.bin";
+                    dos = IOUtils.getBinaryWriter(binaryFileS);
+                    dos.writeInt(0);
+                    dos.writeInt(taxa.length);
+                    for (int i = 0; i < taxa.length; i++) {
+                        dos.writeUTF(taxa[i]);
+                    }
+                }
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        void write (BiSNP[] snps, BitPlane[] planes, int size) {
+            snpList.add(snps);
+            planeList.add(planes);
+            sizeList.add(size);
+            if (snpList.size() == PGLConstraints.parallelLevel) this.flush();
+        }
+
+        private void flush () {
+            int n = snpList.size();
+            if (n == 0) return;
+            String[][] records = bw == null ? null : new String[n][];
+            byte[][] bytes = dos == null ? null : new byte[n][];
+            int siteByteSize = GenotypeExport.getByteSizeOfSiteInBinary(taxa.length);
+            IntStream.range(0, n).parallel().forEach(i -> {
+                int size = sizeList.get(i);
+                GenotypeSiteStream.Site site = new GenotypeSiteStream.Site(taxa.length);
+                if (records != null) records[i] = new String[size];
+                ByteBuffer bb = null;
+                if (bytes != null) {
+                    bytes[i] = new byte[size*siteByteSize];
+                    bb = ByteBuffer.wrap(bytes[i]);
+                }
+                for (int j = 0; j < size; j++) {
+                    site.set(snpList.get(i)[j], planeList.get(i), j, 0, 0, 0);
+                    if (records != null) records[i][j] = site.getUnphasedVCFRecord();
+                    else site.getBinaryOutput(bb);
+                }
+            });
+            try {
+                for (int i = 0; i < n; i++) {
+                    if (records != null) {
+                        for (int j = 0; j < records[i].length; j++) {
+                            bw.write(records[i][j]);
+                            bw.newLine();
+                        }
+                    }
+                    else {
+                        dos.write(bytes[i]);
+                    }
+                    siteNumber+=sizeList.get(i);
+                }
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            snpList.clear();
+            planeList.clear();
+            sizeList.clear();
+        }
+
+        long close () {
+            this.flush();
+            try {
+                if (bw != null) {
+                    bw.flush();
+                    bw.close();
+                }
+                else {
+                    dos.close();
+                    RandomAccessFile raf = new RandomAccessFile(binaryFileS, "rw");
+                    raf.writeInt((int)siteNumber);
+                    raf.close();
+                    if (format != GenoIOFormat.Binary) {
+                        GenotypeExport.convertBinary(binaryFileS, outfileS, format);
+                        new File(binaryFileS).delete();
+                    }
+                }
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            System.out.println(siteNumber+" sites are merged into "+outfileS);
+            return siteNumber;
+        }
+    }
+}
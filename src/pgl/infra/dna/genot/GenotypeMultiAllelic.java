@@ -0,0 +1,1238 @@
+package pgl.infra.dna.genot;
+
+import cern.colt.GenericSorting;
+import pgl.PGLConstraints;
+import pgl.infra.dna.allele.AlleleEncoder;
+import pgl.infra.dna.allele.AlleleType;
+import pgl.infra.dna.snp.BiSNP;
+import pgl.infra.utils.PArrayUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * A compact genotype table of multi-allelic sites, e.g. the output of FastCall2, where a site has a reference allele and
+ * one or more alternative alleles, including deletion (D) and insertion (I).
+ * <p>
+ * Each genotype is stored as the allele indices of phase 1 and phase 2, 0 is the reference allele, 1 and later are the alternative alleles in the order of ALT.
+ * The bit width of an allele index depends on the allele number of the site, e.g. 2 bits for 2 or 3 alleles, 3 bits for 4 to 7 alleles.
+ * The largest index of the width is reserved for missing, a genotype with either phase missing is missing in both phases.
+ * Allele depths (AD) are optionally kept, saturated at 65535.
+ * <p>
+ * Methods of {@link GenotypeTable} treat all non-reference alleles as alternative; {@link #getAlternativeAlleleByte(int)} returns the first one.
+ * The major allele is the most frequent allele, the minor allele is the second most frequent allele.
+ * Sites of 2 or 3 alleles are counted 32 allele indices at a time. Sub-tables by site share the genotypes of the table.
+ * Bi-allelic sites can be loaded into a {@link GenotypeGrid}, see {@link #getBiallelicGenotypeGrid()}.
+ *
+ * @author feilu
+ */
+public class GenotypeMultiAllelic implements GenotypeTable {
+    /**
+     * Maximum number of alleles of a site, allele indices are at most 4 bits
+     */
+    public static final int maxAlleleNumber = 15;
+    /**
+     * Maximum allele depth, larger depths are saturated
+     */
+    public static final int maxAlleleDepth = Character.MAX_VALUE;
+    private static final long lowMask = 0x5555555555555555L;
+    private static final long nibbleMask = 0x1111111111111111L;
+
+    String[] taxa = null;
+    short[] chrs = null;
+    int[] poss = null;
+    /**
+     * Allele bytes of sites, the first allele is the reference allele
+     */
+    byte[][] alleles = null;
+    /**
+     * Packed allele indices of sites, index of phase p of taxon t is the (2t+p)th element
+     */
+    long[][] codes = null;
+    /**
+     * Allele depths of sites, depth of allele a of taxon t is the (t*alleleNumber+a)th element, null if allele depths are not kept
+     */
+    char[][] depths = null;
+    byte[] refFeatures = null;
+    byte[] altFeatures = null;
+    GenotypeStatistics statistics = null;
+
+    /**
+     * Construct an object from a VCF file, genotypes of other formats are bi-allelic and are converted from {@link GenotypeGrid}
+     * @param infileS
+     * @param format
+     */
+    public GenotypeMultiAllelic (String infileS, GenoIOFormat format) {
+        if (format == GenoIOFormat.VCF || format == GenoIOFormat.VCF_GZ) {
+            this.buildFromVCF(infileS);
+        }
+        else {
+            this.buildFromGenotypeTable(new GenotypeGrid(infileS, format));
+        }
+        this.sortByTaxa();
+    }
+
+    /**
+     * Construct an object from a bi-allelic genotype table
+     * @param gt
+     */
+    public GenotypeMultiAllelic (GenotypeTable gt) {
+        this.buildFromGenotypeTable(gt);
+    }
+
+    /**
+     * Construct an object from allele indices, e.g. genotypes called in memory
+     * @param taxa
+     * @param chrs
+     * @param poss
+     * @param alleles allele bytes of sites, the first allele is the reference allele
+     * @param alleleIndices allele indices of sites, index of phase p of taxon t is the (2t+p)th element, -1 is missing
+     * @param alleleDepths allele depths of sites, depth of allele a of taxon t is the (t*alleleNumber+a)th element, null if not available
+     */
+    public GenotypeMultiAllelic (String[] taxa, short[] chrs, int[] poss, byte[][] alleles, byte[][] alleleIndices, int[][] alleleDepths) {
+        this(taxa, chrs, poss, alleles, new long[chrs.length][], alleleDepths == null ? null : new char[chrs.length][]);
+        IntStream.range(0, chrs.length).parallel().forEach(i -> {
+            codes[i] = pack(alleleIndices[i], alleles[i].length);
+            if (depths != null) depths[i] = getSaturatedDepths(alleleDepths[i]);
+        });
+        this.sortByTaxa();
+    }
+
+    private GenotypeMultiAllelic (String[] taxa, short[] chrs, int[] poss, byte[][] alleles, long[][] codes, char[][] depths) {
+        this.taxa = taxa;
+        this.chrs = chrs;
+        this.poss = poss;
+        this.alleles = alleles;
+        this.codes = codes;
+        this.depths = depths;
+        this.refFeatures = new byte[chrs.length];
+        this.altFeatures = new byte[chrs.length];
+        for (int i = 0; i < alleles.length; i++) {
+            if (alleles[i].length > maxAlleleNumber) {
+                throw new IllegalArgumentException("More than "+maxAlleleNumber+" alleles at site "+chrs[i]+"-"+poss[i]);
+            }
+        }
+    }
+
+    /**
+     * Return the bit width of an allele index, the largest index of the width is reserved for missing
+     * @param alleleNumber
+     * @return
+     */
+    public static int getCodeWidth (int alleleNumber) {
+        return 32-Integer.numberOfLeadingZeros(alleleNumber);
+    }
+
+    private static long[] pack (byte[] alleleIndices, int alleleNumber) {
+        int width = getCodeWidth(alleleNumber);
+        int missingCode = (1 << width)-1;
+        long[] words = new long[(int)(((long)alleleIndices.length*width+63) >>> 6)];
+        for (int i = 0; i < alleleIndices.length; i+=2) {
+            int v1 = alleleIndices[i];
+            int v2 = alleleIndices[i+1];
+            if (v1 < 0 || v1 >= alleleNumber || v2 < 0 || v2 >= alleleNumber) {
+                v1 = missingCode;
+                v2 = missingCode;
+            }
+            setCode(words, i, width, v1);
+            setCode(words, i+1, width, v2);
+        }
+        return words;
+    }
+
+    private static void setCode (long[] words, int index, int width, int v) {
+        long bit = (long)index*width;
+        int word = (int)(bit >>> 6);
+        int offset = (int)(bit & 63);
+        words[word] |= (long)v << offset;
+        if (offset+width > 64) words[word+1] |= (long)v >>> (64-offset);
+    }
+
+    private static int getCode (long[] words, int index, int width) {
+        long bit = (long)index*width;
+        int word = (int)(bit >>> 6);
+        int offset = (int)(bit & 63);
+        long v = words[word] >>> offset;
+        if (offset+width > 64) v |= words[word+1] << (64-offset);
+        return (int)(v & ((1 << width)-1));
+    }
+
+    private static char[] getSaturatedDepths (int[] alleleDepths) {
+        char[] d = new char[alleleDepths.length];
+        for (int i = 0; i < d.length; i++) {
+            d[i] = (char)Math.max(0, Math.min(maxAlleleDepth, alleleDepths[i]));
+        }
+        return d;
+    }
+
+    /**
+     * Return the allele index of phase p of a taxon, -1 if missing
+     * @param siteIndex
+     * @param taxonIndex
+     * @param phase 0 or 1
+     * @return
+     */
+    private int getAlleleIndex (int siteIndex, int taxonIndex, int phase) {
+        int n = alleles[siteIndex].length;
+        int width = getCodeWidth(n);
+        int v = getCode(codes[siteIndex], 2*taxonIndex+phase, width);
+        if (v >= n) return -1;
+        return v;
+    }
+
+    /**
+     * Return the allele index of phase 1 of a taxon
+     * @param siteIndex
+     * @param taxonIndex
+     * @return -1 if missing
+     */
+    public int getPhase1AlleleIndex (int siteIndex, int taxonIndex) {
+        return this.getAlleleIndex(siteIndex, taxonIndex, 0);
+    }
+
+    /**
+     * Return the allele index of phase 2 of a taxon
+     * @param siteIndex
+     * @param taxonIndex
+     * @return -1 if missing
+     */
+    public int getPhase2AlleleIndex (int siteIndex, int taxonIndex) {
+        return this.getAlleleIndex(siteIndex, taxonIndex, 1);
+    }
+
+    /**
+     * Return the number of alleles of a site, including the reference allele
+     * @param siteIndex
+     * @return
+     */
+    public int getAlleleNumber (int siteIndex) {
+        return alleles[siteIndex].length;
+    }
+
+    public byte getAlleleByte (int siteIndex, int alleleIndex) {
+        return alleles[siteIndex][alleleIndex];
+    }
+
+    public char getAlleleBase (int siteIndex, int alleleIndex) {
+        return AlleleEncoder.getAlleleBaseFromByte(alleles[siteIndex][alleleIndex]);
+    }
+
+    /**
+     * Return if a site has exactly one alternative allele
+     * @param siteIndex
+     * @return
+     */
+    public boolean isBiallelic (int siteIndex) {
+        return alleles[siteIndex].length == 2;
+    }
+
+    /**
+     * Return false, sites may have more than one alternative allele, records are formatted by the table
+     * @return
+     */
+    @Override
+    public boolean isBiallelic () {
+        return false;
+    }
+
+    /**
+     * Return if allele depths are kept
+     * @return
+     */
+    public boolean hasAlleleDepth () {
+        return depths != null;
+    }
+
+    /**
+     * Return the depth of an allele of a taxon
+     * @param siteIndex
+     * @param taxonIndex
+     * @param alleleIndex
+     * @return 0 if allele depths are not kept
+     */
+    public int getAlleleDepth (int siteIndex, int taxonIndex, int alleleIndex) {
+        if (depths == null) return 0;
+        return depths[siteIndex][taxonIndex*alleles[siteIndex].length+alleleIndex];
+    }
+
+    /**
+     * Return the numbers of alleles of a site, phase 1 and phase 2 are both counted
+     * @param siteIndex
+     * @return counts in the order of allele indices
+     */
+    public int[] getAlleleCounts (int siteIndex) {
+        int n = alleles[siteIndex].length;
+        int[] counts = new int[n];
+        long[] words = codes[siteIndex];
+        if (getCodeWidth(n) == 2) {
+            int missing = 0;
+            for (int i = 0; i < words.length; i++) {
+                long x = words[i];
+                missing+=Long.bitCount(x & (x >>> 1) & lowMask);
+                counts[1]+=Long.bitCount(x & ~(x >>> 1) & lowMask);
+                if (n == 3) counts[2]+=Long.bitCount(~x & (x >>> 1) & lowMask);
+            }
+            counts[0] = this.getTaxaNumber()*2-missing-counts[1]-(n == 3 ? counts[2] : 0);
+            return counts;
+        }
+        for (int i = 0; i < this.getTaxaNumber()*2; i++) {
+            int v = getCode(words, i, getCodeWidth(n));
+            if (v < n) counts[v]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Return the allele indices of the major allele and the minor allele, ties are resolved in favor of smaller indices
+     * @param siteIndex
+     * @return the minor allele index is -1 if the site has one allele
+     */
+    private int[] getMajorMinorAlleleIndices (int siteIndex) {
+        int[] counts = this.getAlleleCounts(siteIndex);
+        int major = 0;
+        for (int i = 1; i < counts.length; i++) {
+            if (counts[i] > counts[major]) major = i;
+        }
+        int minor = -1;
+        for (int i = 0; i < counts.length; i++) {
+            if (i == major) continue;
+            if (minor < 0 || counts[i] > counts[minor]) minor = i;
+        }
+        return new int[]{major, minor};
+    }
+
+    /**
+     * Return the SNP of a site, alleles after the first alternative allele are ignored
+     * @param siteIndex
+     * @return
+     */
+    public BiSNP getSNP (int siteIndex) {
+        BiSNP snp = new BiSNP(chrs[siteIndex], poss[siteIndex], this.getReferenceAlleleBase(siteIndex), this.getAlternativeAlleleBase(siteIndex), null);
+        snp.setReferenceAlleleFeature(refFeatures[siteIndex]);
+        snp.setAlternativeAlleleFeature(altFeatures[siteIndex]);
+        return snp;
+    }
+
+    /**
+     * Return the indices of bi-allelic sites
+     * @return
+     */
+    public int[] getBiallelicSiteIndices () {
+        return IntStream.range(0, this.getSiteNumber()).filter(i -> this.isBiallelic(i)).toArray();
+    }
+
+    /**
+     * Return a {@link GenotypeGrid} of bi-allelic sites
+     * @return
+     */
+    public GenotypeGrid getBiallelicGenotypeGrid () {
+        return this.getBiallelicGenotypeGrid(this.getBiallelicSiteIndices());
+    }
+
+    private GenotypeGrid getBiallelicGenotypeGrid (int[] siteIndices) {
+        BitPlane[] planes = new BitPlane[3];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = new BitPlane(siteIndices.length, this.getTaxaNumber());
+        }
+        BiSNP[] snps = new BiSNP[siteIndices.length];
+        IntStream.range(0, siteIndices.length).parallel().forEach(i -> {
+            int s = siteIndices[i];
+            snps[i] = this.getSNP(s);
+            for (int j = 0; j < this.getTaxaNumber(); j++) {
+                int a1 = this.getPhase1AlleleIndex(s, j);
+                int a2 = this.getPhase2AlleleIndex(s, j);
+                if (a1 < 0 || a2 < 0) {
+                    planes[2].set(i, j);
+                    continue;
+                }
+                if (a1 == 1) planes[0].set(i, j);
+                if (a2 == 1) planes[1].set(i, j);
+            }
+        });
+        return new GenotypeGrid(planes, GenotypeGrid.GridDirection.BySite, taxa, snps);
+    }
+
+    /**
+     * Return per-site and per-taxon statistics, computed on the first call
+     * @return
+     */
+    public synchronized GenotypeStatistics getStatistics () {
+        if (statistics == null) statistics = new GenotypeStatistics(this);
+        return statistics;
+    }
+
+    @Override
+    public int getTaxaNumber() {
+        return taxa.length;
+    }
+
+    @Override
+    public int getSiteNumber() {
+        return chrs.length;
+    }
+
+    @Override
+    public String getTaxonName(int taxonIndex) {
+        return taxa[taxonIndex];
+    }
+
+    @Override
+    public String[] getTaxaNames() {
+        return taxa;
+    }
+
+    @Override
+    public short getChromosome(int siteIndex) {
+        return chrs[siteIndex];
+    }
+
+    @Override
+    public int getPosition(int siteIndex) {
+        return poss[siteIndex];
+    }
+
+    @Override
+    public void sortBySite() {
+        int[] indices = IntStream.range(0, this.getSiteNumber()).toArray();
+        GenericSorting.quickSort(0, indices.length, (index1, index2) -> {
+            int i1 = indices[index1];
+            int i2 = indices[index2];
+            if (chrs[i1] != chrs[i2]) return chrs[i1] < chrs[i2] ? -1 : 1;
+            return Integer.compare(poss[i1], poss[i2]);
+        }, (index1, index2) -> {
+            int temp = indices[index1];
+            indices[index1] = indices[index2];
+            indices[index2] = temp;
+        });
+        this.setSites(indices);
+        statistics = null;
+    }
+
+    private void setSites (int[] siteIndices) {
+        short[] nChrs = new short[siteIndices.length];
+        int[] nPoss = new int[siteIndices.length];
+        byte[][] nAlleles = new byte[siteIndices.length][];
+        long[][] nCodes = new long[siteIndices.length][];
+        char[][] nDepths = depths == null ? null : new char[siteIndices.length][];
+        byte[] nRefFeatures = new byte[siteIndices.length];
+        byte[] nAltFeatures = new byte[siteIndices.length];
+        for (int i = 0; i < siteIndices.length; i++) {
+            int s = siteIndices[i];
+            nChrs[i] = chrs[s];
+            nPoss[i] = poss[s];
+            nAlleles[i] = alleles[s];
+            nCodes[i] = codes[s];
+            if (nDepths != null) nDepths[i] = depths[s];
+            nRefFeatures[i] = refFeatures[s];
+            nAltFeatures[i] = altFeatures[s];
+        }
+        chrs = nChrs;
+        poss = nPoss;
+        alleles = nAlleles;
+        codes = nCodes;
+        depths = nDepths;
+        refFeatures = nRefFeatures;
+        altFeatures = nAltFeatures;
+    }
+
+    @Override
+    public void sortByTaxa() {
+        int[] indices = PArrayUtils.getIndicesByAscendingValue(this.taxa);
+        boolean ifSorted = true;
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] == i) continue;
+            ifSorted = false;
+            break;
+        }
+        if (ifSorted) return;
+        this.setTaxa(indices);
+        statistics = null;
+    }
+
+    private void setTaxa (int[] taxaIndices) {
+        String[] nTaxa = new String[taxaIndices.length];
+        for (int i = 0; i < taxaIndices.length; i++) {
+            nTaxa[i] = taxa[taxaIndices[i]];
+        }
+        long[][] nCodes = new long[this.getSiteNumber()][];
+        char[][] nDepths = depths == null ? null : new char[this.getSiteNumber()][];
+        IntStream.range(0, this.getSiteNumber()).parallel().forEach(i -> {
+            int n = alleles[i].length;
+            int width = getCodeWidth(n);
+            long[] words = new long[(int)(((long)taxaIndices.length*2*width+63) >>> 6)];
+            for (int j = 0; j < taxaIndices.length; j++) {
+                setCode(words, 2*j, width, getCode(codes[i], 2*taxaIndices[j], width));
+                setCode(words, 2*j+1, width, getCode(codes[i], 2*taxaIndices[j]+1, width));
+            }
+            nCodes[i] = words;
+            if (nDepths == null) return;
+            nDepths[i] = new char[taxaIndices.length*n];
+            for (int j = 0; j < taxaIndices.length; j++) {
+                System.arraycopy(depths[i], taxaIndices[j]*n, nDepths[i], j*n, n);
+            }
+        });
+        taxa = nTaxa;
+        codes = nCodes;
+        depths = nDepths;
+    }
+
+    @Override
+    public int getTaxonIndex(String taxon) {
+        return Arrays.binarySearch(taxa, taxon);
+    }
+
+    @Override
+    public int getSiteIndex(short chromosome, int position) {
+        int low = 0;
+        int high = this.getSiteNumber()-1;
+        while (low <= high) {
+            int mid = (low+high) >>> 1;
+            int cmp = chrs[mid] == chromosome ? Integer.compare(poss[mid], position) : (chrs[mid] < chromosome ? -1 : 1);
+            if (cmp < 0) low = mid+1;
+            else if (cmp > 0) high = mid-1;
+            else return mid;
+        }
+        return -(low+1);
+    }
+
+    @Override
+    public byte getGenotypeByte(int siteIndex, int taxonIndex) {
+        int a1 = this.getPhase1AlleleIndex(siteIndex, taxonIndex);
+        int a2 = this.getPhase2AlleleIndex(siteIndex, taxonIndex);
+        if (a1 < 0 || a2 < 0) return AlleleEncoder.genotypeMissingByte;
+        return AlleleEncoder.getGenotypeByte(alleles[siteIndex][a1], alleles[siteIndex][a2]);
+    }
+
+    @Override
+    public boolean isHeterozygous(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex, taxonIndex)) return false;
+        return this.getPhase1AlleleIndex(siteIndex, taxonIndex) != this.getPhase2AlleleIndex(siteIndex, taxonIndex);
+    }
+
+    @Override
+    public boolean isHomozygous(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex, taxonIndex)) return false;
+        return this.getPhase1AlleleIndex(siteIndex, taxonIndex) == this.getPhase2AlleleIndex(siteIndex, taxonIndex);
+    }
+
+    @Override
+    public boolean isMissing(int siteIndex, int taxonIndex) {
+        return this.getPhase1AlleleIndex(siteIndex, taxonIndex) < 0 || this.getPhase2AlleleIndex(siteIndex, taxonIndex) < 0;
+    }
+
+    @Override
+    public boolean isPhase1Alternative(int siteIndex, int taxonIndex) {
+        return this.getPhase1AlleleIndex(siteIndex, taxonIndex) > 0;
+    }
+
+    @Override
+    public boolean isPhase2Alternative(int siteIndex, int taxonIndex) {
+        return this.getPhase2AlleleIndex(siteIndex, taxonIndex) > 0;
+    }
+
+    @Override
+    public boolean isPhase1Reference(int siteIndex, int taxonIndex) {
+        return this.getPhase1AlleleIndex(siteIndex, taxonIndex) == 0;
+    }
+
+    @Override
+    public boolean isPhase2Reference(int siteIndex, int taxonIndex) {
+        return this.getPhase2AlleleIndex(siteIndex, taxonIndex) == 0;
+    }
+
+    @Override
+    public boolean isAlternativeAlleleTypeOf(AlleleType at, int siteIndex) {
+        return (altFeatures[siteIndex] & at.getFeature()) != 0;
+    }
+
+    @Override
+    public boolean isReferenceAlleleTypeOf(AlleleType at, int siteIndex) {
+        return (refFeatures[siteIndex] & at.getFeature()) != 0;
+    }
+
+    @Override
+    public int getMissingNumberBySite(int siteIndex) {
+        int n = alleles[siteIndex].length;
+        long[] words = codes[siteIndex];
+        int cnt = 0;
+        if (getCodeWidth(n) == 2) {
+            for (int i = 0; i < words.length; i++) {
+                long m = words[i] & (words[i] >>> 1) & lowMask;
+                cnt+=Long.bitCount((m | (m >>> 2)) & nibbleMask);
+            }
+            return cnt;
+        }
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            if (this.isMissing(siteIndex, i)) cnt++;
+        }
+        return cnt;
+    }
+
+    @Override
+    public int getMissingNumberByTaxon(int taxonIndex) {
+        return this.getStatistics().getMissingNumberByTaxon(taxonIndex);
+    }
+
+    @Override
+    public int getNonMissingNumberBySite(int siteIndex) {
+        return this.getTaxaNumber()-this.getMissingNumberBySite(siteIndex);
+    }
+
+    @Override
+    public int getNonMissingNumberByTaxon(int taxonIndex) {
+        return this.getStatistics().getNonMissingNumberByTaxon(taxonIndex);
+    }
+
+    @Override
+    public int getHomozygoteNumberBySite(int siteIndex) {
+        return this.getNonMissingNumberBySite(siteIndex)-this.getHeterozygoteNumberBySite(siteIndex);
+    }
+
+    @Override
+    public int getHomozygoteNumberByTaxon(int taxonIndex) {
+        return this.getNonMissingNumberByTaxon(taxonIndex)-this.getHeterozygoteNumberByTaxon(taxonIndex);
+    }
+
+    @Override
+    public int getHeterozygoteNumberBySite(int siteIndex) {
+        int n = alleles[siteIndex].length;
+        long[] words = codes[siteIndex];
+        int cnt = 0;
+        if (getCodeWidth(n) == 2) {
+            for (int i = 0; i < words.length; i++) {
+                long d = words[i] ^ (words[i] >>> 2);
+                cnt+=Long.bitCount((d | (d >>> 1)) & nibbleMask);
+            }
+            return cnt;
+        }
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            if (this.isHeterozygous(siteIndex, i)) cnt++;
+        }
+        return cnt;
+    }
+
+    @Override
+    public int getHeterozygoteNumberByTaxon(int taxonIndex) {
+        return this.getStatistics().getHeterozygoteNumberByTaxon(taxonIndex);
+    }
+
+    /**
+     * Return the number of non-reference alleles of a site, phase 1 and phase 2 are both counted
+     * @param siteIndex
+     * @return
+     */
+    @Override
+    public int getAlternativeAlleleNumberBySite(int siteIndex) {
+        int n = alleles[siteIndex].length;
+        long[] words = codes[siteIndex];
+        int cnt = 0;
+        if (getCodeWidth(n) == 2) {
+            for (int i = 0; i < words.length; i++) {
+                cnt+=Long.bitCount((words[i] ^ (words[i] >>> 1)) & lowMask);
+            }
+            return cnt;
+        }
+        int[] counts = this.getAlleleCounts(siteIndex);
+        for (int i = 1; i < counts.length; i++) {
+            cnt+=counts[i];
+        }
+        return cnt;
+    }
+
+    /**
+     * Return the number of taxa carrying any non-reference allele at a site
+     * @param siteIndex
+     * @return
+     */
+    @Override
+    public int getAlternativeAlleleOccurrenceBySite(int siteIndex) {
+        int n = alleles[siteIndex].length;
+        long[] words = codes[siteIndex];
+        int cnt = 0;
+        if (getCodeWidth(n) == 2) {
+            for (int i = 0; i < words.length; i++) {
+                long a = (words[i] ^ (words[i] >>> 1)) & lowMask;
+                cnt+=Long.bitCount((a | (a >>> 2)) & nibbleMask);
+            }
+            return cnt;
+        }
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            if (this.isPhase1Alternative(siteIndex, i) || this.isPhase2Alternative(siteIndex, i)) cnt++;
+        }
+        return cnt;
+    }
+
+    @Override
+    public float getHeterozygousProportionByTaxon(int taxonIndex) {
+        return (float)((double)this.getHeterozygoteNumberByTaxon(taxonIndex)/this.getNonMissingNumberByTaxon(taxonIndex));
+    }
+
+    @Override
+    public float getHeterozygousProportionBySite(int siteIndex) {
+        return (float)((double)this.getHeterozygoteNumberBySite(siteIndex)/this.getNonMissingNumberBySite(siteIndex));
+    }
+
+    @Override
+    public byte getMinorAlleleByte(int siteIndex) {
+        int minor = this.getMajorMinorAlleleIndices(siteIndex)[1];
+        if (minor < 0) return AlleleEncoder.alleleMissingByte;
+        return alleles[siteIndex][minor];
+    }
+
+    @Override
+    public char getMinorAlleleBase(int siteIndex) {
+        return AlleleEncoder.getAlleleBaseFromByte(this.getMinorAlleleByte(siteIndex));
+    }
+
+    @Override
+    public float getMinorAlleleFrequency(int siteIndex) {
+        int minor = this.getMajorMinorAlleleIndices(siteIndex)[1];
+        if (minor < 0) return 0;
+        return (float)((double)this.getAlleleCounts(siteIndex)[minor]/(this.getNonMissingNumberBySite(siteIndex)*2));
+    }
+
+    @Override
+    public byte getMajorAlleleByte(int siteIndex) {
+        return alleles[siteIndex][this.getMajorMinorAlleleIndices(siteIndex)[0]];
+    }
+
+    @Override
+    public char getMajorAlleleBase(int siteIndex) {
+        return AlleleEncoder.getAlleleBaseFromByte(this.getMajorAlleleByte(siteIndex));
+    }
+
+    @Override
+    public float getMajorAlleleFrequency(int siteIndex) {
+        int major = this.getMajorMinorAlleleIndices(siteIndex)[0];
+        return (float)((double)this.getAlleleCounts(siteIndex)[major]/(this.getNonMissingNumberBySite(siteIndex)*2));
+    }
+
+    @Override
+    public byte getReferenceAlleleByte(int siteIndex) {
+        return alleles[siteIndex][0];
+    }
+
+    @Override
+    public char getReferenceAlleleBase(int siteIndex) {
+        return AlleleEncoder.getAlleleBaseFromByte(alleles[siteIndex][0]);
+    }
+
+    @Override
+    public float getReferenceAlleleFrequency(int siteIndex) {
+        return 1-this.getAlternativeAlleleFrequency(siteIndex);
+    }
+
+    /**
+     * Return the first alternative allele of a site
+     * @param siteIndex
+     * @return {@link AlleleEncoder#alleleMissingByte} if the site has no alternative allele
+     */
+    @Override
+    public byte getAlternativeAlleleByte(int siteIndex) {
+        if (alleles[siteIndex].length < 2) return AlleleEncoder.alleleMissingByte;
+        return alleles[siteIndex][1];
+    }
+
+    @Override
+    public char getAlternativeAlleleBase(int siteIndex) {
+        return AlleleEncoder.getAlleleBaseFromByte(this.getAlternativeAlleleByte(siteIndex));
+    }
+
+    /**
+     * Return the frequency of non-reference alleles of a site
+     * @param siteIndex
+     * @return
+     */
+    @Override
+    public float getAlternativeAlleleFrequency(int siteIndex) {
+        return (float)((double)this.getAlternativeAlleleNumberBySite(siteIndex)/(this.getNonMissingNumberBySite(siteIndex)*2));
+    }
+
+    @Override
+    public int getStartIndexOfChromosome(short chromosome) {
+        int index = this.getSiteIndex(chromosome, Integer.MIN_VALUE);
+        if (index < 0) {
+            index = -index - 1;
+            if (index < this.getSiteNumber() && this.getChromosome(index) == chromosome) return index;
+            return -1;
+        }
+        else {
+            while (index > 0 && this.getChromosome(index-1) == chromosome) {
+                index--;
+            }
+            return index;
+        }
+    }
+
+    @Override
+    public int getEndIndexOfChromosome(short chromosome) {
+        int index = this.getSiteIndex(chromosome, Integer.MAX_VALUE);
+        if (index < 0) {
+            index = -index - 2;
+            if (index >= 0 && this.getChromosome(index) == chromosome) return index+1;
+            else return -1;
+        }
+        else {
+            while ((index+1) < this.getSiteNumber() && this.getChromosome(index+1) == chromosome) {
+                index++;
+            }
+            return index+1;
+        }
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2) {
+        return this.getIBSDistance(taxonIndex1, taxonIndex2, 0, this.getSiteNumber());
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2, int startSiteIndex, int endSiteIndex) {
+        return this.getIBSDistance(taxonIndex1, taxonIndex2, IntStream.range(startSiteIndex, endSiteIndex).toArray());
+    }
+
+    /**
+     * Return the IBS distance between two taxa, i.e. the proportion of different alleles among the four phase combinations
+     * @param taxonIndex1
+     * @param taxonIndex2
+     * @param siteIndices
+     * @return
+     */
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2, int[] siteIndices) {
+        long cnt = 0;
+        int siteCount = 0;
+        for (int i = 0; i < siteIndices.length; i++) {
+            int s = siteIndices[i];
+            int a11 = this.getPhase1AlleleIndex(s, taxonIndex1);
+            int a12 = this.getPhase2AlleleIndex(s, taxonIndex1);
+            int a21 = this.getPhase1AlleleIndex(s, taxonIndex2);
+            int a22 = this.getPhase2AlleleIndex(s, taxonIndex2);
+            if (a11 < 0 || a21 < 0) continue;
+            cnt+=getDifference(a11, a12, a21, a22);
+            siteCount++;
+        }
+        return (float)((double)cnt/4/siteCount);
+    }
+
+    private static int getDifference (int a11, int a12, int a21, int a22) {
+        return (a11 == a21 ? 0 : 1)+(a11 == a22 ? 0 : 1)+(a12 == a21 ? 0 : 1)+(a12 == a22 ? 0 : 1);
+    }
+
+    @Override
+    public float[][] getIBSDistanceMatrix() {
+        return this.getIBSDistanceMatrix(0, this.getSiteNumber());
+    }
+
+    @Override
+    public float[][] getIBSDistanceMatrix(int startIndex, int endIndex) {
+        return this.getIBSDistanceMatrix(IntStream.range(startIndex, endIndex).toArray());
+    }
+
+    /**
+     * Return the IBS distance matrix. When all sites are bi-allelic, the sites are loaded into a {@link GenotypeGrid} and
+     * {@link IBSDistanceKernel} is used, otherwise allele indices of a block of sites are decoded and taxa pairs are compared in parallel
+     * @param siteIndices
+     * @return
+     */
+    @Override
+    public float[][] getIBSDistanceMatrix(int[] siteIndices) {
+        boolean ifBiallelic = true;
+        for (int i = 0; i < siteIndices.length; i++) {
+            if (this.isBiallelic(siteIndices[i])) continue;
+            ifBiallelic = false;
+            break;
+        }
+        if (ifBiallelic) return this.getBiallelicGenotypeGrid(siteIndices).getIBSDistanceMatrix();
+        int taxaNumber = this.getTaxaNumber();
+        int blockSize = 1024;
+        long[][] diffs = new long[taxaNumber][taxaNumber];
+        int[][] siteCounts = new int[taxaNumber][taxaNumber];
+        byte[][] blockIndices = new byte[taxaNumber][blockSize*2];
+        for (int i = 0; i < siteIndices.length; i+=blockSize) {
+            int start = i;
+            int size = Math.min(blockSize, siteIndices.length-i);
+            IntStream.range(0, taxaNumber).parallel().forEach(j -> {
+                for (int k = 0; k < size; k++) {
+                    blockIndices[j][2*k] = (byte)this.getPhase1AlleleIndex(siteIndices[start+k], j);
+                    blockIndices[j][2*k+1] = (byte)this.getPhase2AlleleIndex(siteIndices[start+k], j);
+                }
+            });
+            IntStream.range(0, taxaNumber).parallel().forEach(j -> {
+                byte[] b1 = blockIndices[j];
+                for (int u = j+1; u < taxaNumber; u++) {
+                    byte[] b2 = blockIndices[u];
+                    long diff = 0;
+                    int cnt = 0;
+                    for (int k = 0; k < size*2; k+=2) {
+                        if (b1[k] < 0 || b2[k] < 0) continue;
+                        diff+=getDifference(b1[k], b1[k+1], b2[k], b2[k+1]);
+                        cnt++;
+                    }
+                    diffs[j][u]+=diff;
+                    siteCounts[j][u]+=cnt;
+                }
+            });
+        }
+        float[][] matrix = new float[taxaNumber][taxaNumber];
+        for (int i = 0; i < taxaNumber; i++) {
+            for (int j = i+1; j < taxaNumber; j++) {
+                matrix[i][j] = (float)((double)diffs[i][j]/4/siteCounts[i][j]);
+                matrix[j][i] = matrix[i][j];
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Return a table of sites, genotypes are shared with this table
+     * @param siteIndices
+     * @return
+     */
+    @Override
+    public GenotypeMultiAllelic getSubGenotypeTableBySite(int[] siteIndices) {
+        GenotypeMultiAllelic gt = new GenotypeMultiAllelic(taxa, chrs, poss, alleles, codes, depths);
+        gt.refFeatures = refFeatures;
+        gt.altFeatures = altFeatures;
+        gt.setSites(siteIndices);
+        return gt;
+    }
+
+    @Override
+    public GenotypeMultiAllelic getSubGenotypeTableByTaxa(int[] taxaIndices) {
+        GenotypeMultiAllelic gt = new GenotypeMultiAllelic(taxa, chrs, poss, alleles, codes, depths);
+        gt.refFeatures = refFeatures.clone();
+        gt.altFeatures = altFeatures.clone();
+        gt.setTaxa(taxaIndices);
+        return gt;
+    }
+
+    /**
+     * Return an unphased VCF record, all alternative alleles are listed in ALT, allele depths are added as AD when they are kept
+     * @param siteIndex
+     * @return
+     */
+    @Override
+    public String getUnphasedVCFRecord(int siteIndex) {
+        StringBuilder vsb = new StringBuilder();
+        char delimiter = '/';
+        int n = alleles[siteIndex].length;
+        vsb.append(this.getChromosome(siteIndex)).append("\t").append(this.getPosition(siteIndex)).append("\t").append(this.getChromosome(siteIndex)).append("-").append(this.getPosition(siteIndex)).append("\t");
+        vsb.append(this.getReferenceAlleleBase(siteIndex)).append("\t");
+        if (n == 1) vsb.append(".");
+        for (int i = 1; i < n; i++) {
+            if (i > 1) vsb.append(",");
+            vsb.append(this.getAlleleBase(siteIndex, i));
+        }
+        vsb.append("\t.\t.\t.\tGT");
+        if (depths != null) vsb.append(":AD");
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            vsb.append("\t");
+            int a1 = this.getPhase1AlleleIndex(siteIndex, i);
+            int a2 = this.getPhase2AlleleIndex(siteIndex, i);
+            if (a1 < 0 || a2 < 0) vsb.append(".").append(delimiter).append(".");
+            else vsb.append(a1).append(delimiter).append(a2);
+            if (depths == null) continue;
+            vsb.append(":");
+            for (int j = 0; j < n; j++) {
+                if (j > 0) vsb.append(",");
+                vsb.append((int)depths[siteIndex][i*n+j]);
+            }
+        }
+        return vsb.toString();
+    }
+
+    /**
+     * Write a site in the bi-allelic binary format, genotypes carrying alleles after the first alternative allele are written as missing
+     * @param siteIndex
+     * @param bb
+     * @return
+     */
+    @Override
+    public ByteBuffer getBinaryOutput(int siteIndex, ByteBuffer bb) {
+        bb.putShort(this.getChromosome(siteIndex));
+        bb.putInt(this.getPosition(siteIndex));
+        bb.put(AlleleEncoder.getGenotypeByte(this.getReferenceAlleleByte(siteIndex), this.getAlternativeAlleleByte(siteIndex)));
+        bb.put(refFeatures[siteIndex]);
+        bb.put(altFeatures[siteIndex]);
+        int wordNumber = (this.getTaxaNumber()+63) >>> 6;
+        long[][] words = new long[3][wordNumber];
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            int a1 = this.getPhase1AlleleIndex(siteIndex, i);
+            int a2 = this.getPhase2AlleleIndex(siteIndex, i);
+            if (a1 < 0 || a2 < 0 || a1 > 1 || a2 > 1) {
+                words[2][i >>> 6] |= 1L << i;
+                continue;
+            }
+            if (a1 == 1) words[0][i >>> 6] |= 1L << i;
+            if (a2 == 1) words[1][i >>> 6] |= 1L << i;
+        }
+        for (int i = 0; i < words.length; i++) {
+            for (int j = 0; j < wordNumber; j++) {
+                bb.putLong(Long.reverseBytes(words[i][j]));
+            }
+        }
+        return bb;
+    }
+
+    @Override
+    public void setAlternativeAlleleType(AlleleType at, int siteIndex) {
+        altFeatures[siteIndex] = (byte)(altFeatures[siteIndex] | at.getFeature());
+    }
+
+    @Override
+    public void setReferenceAlleleType(AlleleType at, int siteIndex) {
+        refFeatures[siteIndex] = (byte)(refFeatures[siteIndex] | at.getFeature());
+    }
+
+    private void buildFromGenotypeTable (GenotypeTable gt) {
+        int siteNumber = gt.getSiteNumber();
+        int taxaNumber = gt.getTaxaNumber();
+        this.taxa = gt.getTaxaNames().clone();
+        this.chrs = new short[siteNumber];
+        this.poss = new int[siteNumber];
+        this.alleles = new byte[siteNumber][];
+        this.codes = new long[siteNumber][];
+        this.refFeatures = new byte[siteNumber];
+        this.altFeatures = new byte[siteNumber];
+        IntStream.range(0, siteNumber).parallel().forEach(i -> {
+            chrs[i] = gt.getChromosome(i);
+            poss[i] = gt.getPosition(i);
+            alleles[i] = new byte[]{gt.getReferenceAlleleByte(i), gt.getAlternativeAlleleByte(i)};
+            byte[] indices = new byte[taxaNumber*2];
+            for (int j = 0; j < taxaNumber; j++) {
+                if (gt.isMissing(i, j)) {
+                    indices[2*j] = -1;
+                    indices[2*j+1] = -1;
+                    continue;
+                }
+                if (gt.isPhase1Alternative(i, j)) indices[2*j] = 1;
+                if (gt.isPhase2Alternative(i, j)) indices[2*j+1] = 1;
+            }
+            codes[i] = pack(indices, 2);
+        });
+    }
+
+    private void buildFromVCF (String infileS) {
+        try {
+            VCFByteReader vr = new VCFByteReader(infileS);
+            this.taxa = vr.getTaxa();
+            ExecutorService pool = Executors.newFixedThreadPool(PGLConstraints.parallelLevel);
+            List<Future<SiteBlockVCF>> resultList = new ArrayList<>();
+            int siteCount = 0;
+            int lineNumber = 0;
+            StringBuilder sb = new StringBuilder();
+            while ((lineNumber = vr.readLines(GenoSiteBlockVCF.blockSize)) != 0) {
+                resultList.add(pool.submit(new SiteBlockVCF(vr.getLines(), lineNumber, taxa.length)));
+                if ((siteCount+lineNumber)/1000000 > siteCount/1000000) {
+                    sb.setLength(0);
+                    sb.append("Read in ").append((siteCount+lineNumber)/1000000*1000000).append(" sites from ").append(infileS);
+                    System.out.println(sb.toString());
+                }
+                siteCount+=lineNumber;
+            }
+            vr.close();
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MICROSECONDS);
+            this.chrs = new short[siteCount];
+            this.poss = new int[siteCount];
+            this.alleles = new byte[siteCount][];
+            this.codes = new long[siteCount][];
+            this.refFeatures = new byte[siteCount];
+            this.altFeatures = new byte[siteCount];
+            boolean ifDepth = false;
+            for (int i = 0; i < resultList.size(); i++) {
+                if (resultList.get(i).get().depths != null) ifDepth = true;
+            }
+            if (ifDepth) this.depths = new char[siteCount][];
+            int startIndex = 0;
+            for (int i = 0; i < resultList.size(); i++) {
+                SiteBlockVCF block = resultList.get(i).get();
+                int size = block.chrs.length;
+                System.arraycopy(block.chrs, 0, chrs, startIndex, size);
+                System.arraycopy(block.poss, 0, poss, startIndex, size);
+                System.arraycopy(block.alleles, 0, alleles, startIndex, size);
+                System.arraycopy(block.codes, 0, codes, startIndex, size);
+                if (ifDepth) {
+                    for (int j = 0; j < size; j++) {
+                        depths[startIndex+j] = block.depths == null || block.depths[j] == null ? new char[taxa.length*alleles[startIndex+j].length] : block.depths[j];
+                    }
+                }
+                startIndex+=size;
+            }
+            sb.setLength(0);
+            sb.append("A total of ").append(this.getSiteNumber()).append(" sites are in ").append(infileS).append("\n");
+            sb.append("Genotype table is successfully built");
+            System.out.println(sb.toString());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Parsing of a block of multi-allelic VCF records in raw bytes
+     */
+    private static class SiteBlockVCF implements Callable<SiteBlockVCF> {
+        byte[] lineBytes = null;
+        int taxaNumber = 0;
+        short[] chrs = null;
+        int[] poss = null;
+        byte[][] alleles = null;
+        long[][] codes = null;
+        /**
+         * Allele depths of the block, null if no record has AD, elements are null for records without AD
+         */
+        char[][] depths = null;
+
+        SiteBlockVCF (byte[] lineBytes, int lineNumber, int taxaNumber) {
+            this.lineBytes = lineBytes;
+            this.taxaNumber = taxaNumber;
+            this.chrs = new short[lineNumber];
+            this.poss = new int[lineNumber];
+            this.alleles = new byte[lineNumber][];
+            this.codes = new long[lineNumber][];
+        }
+
+        @Override
+        public SiteBlockVCF call() throws Exception {
+            int start = 0;
+            for (int i = 0; i < chrs.length; i++) {
+                int end = start;
+                while (end < lineBytes.length && lineBytes[end] != '\n') end++;
+                this.parseLine(start, end, i);
+                start = end+1;
+            }
+            lineBytes = null;
+            return this;
+        }
+
+        private void parseLine (int start, int end, int siteIndex) {
+            byte[] line = lineBytes;
+            if (end > start && line[end-1] == '\r') end--;
+            int p = start;
+            int q = GenoSiteBlockVCF.nextTab(line, p, end);
+            chrs[siteIndex] = (short)GenoSiteBlockVCF.parseInt(line, p, q);
+            p = q+1;
+            q = GenoSiteBlockVCF.nextTab(line, p, end);
+            poss[siteIndex] = GenoSiteBlockVCF.parseInt(line, p, q);
+            p = GenoSiteBlockVCF.nextTab(line, q+1, end)+1;
+            byte ref = AlleleEncoder.getAlleleByteFromBase((char)line[p]);
+            p = GenoSiteBlockVCF.nextTab(line, p, end)+1;
+            q = GenoSiteBlockVCF.nextTab(line, p, end);
+            int n = 1;
+            if (line[p] != '.') {
+                for (int i = p; i < q; i++) {
+                    if (line[i] == ',') n++;
+                }
+                n++;
+            }
+            if (n > maxAlleleNumber) {
+                throw new IllegalArgumentException("More than "+maxAlleleNumber+" alleles at site "+chrs[siteIndex]+"-"+poss[siteIndex]);
+            }
+            byte[] siteAlleles = new byte[n];
+            siteAlleles[0] = ref;
+            for (int i = 1, j = p; i < n; i++) {
+                siteAlleles[i] = AlleleEncoder.getAlleleByteFromBase((char)line[j]);
+                while (j < q && line[j] != ',') j++;
+                j++;
+            }
+            alleles[siteIndex] = siteAlleles;
+            p = q+1;
+            for (int i = 0; i < 3; i++) {
+                p = GenoSiteBlockVCF.nextTab(line, p, end)+1;
+            }
+            q = GenoSiteBlockVCF.nextTab(line, p, end);
+            int gtIndex = getFormatIndex(line, p, q, (byte)'G', (byte)'T');
+            if (gtIndex < 0) gtIndex = 0;
+            int adIndex = getFormatIndex(line, p, q, (byte)'A', (byte)'D');
+            char[] siteDepths = null;
+            if (adIndex >= 0) {
+                siteDepths = new char[taxaNumber*n];
+                if (depths == null) depths = new char[chrs.length][];
+                depths[siteIndex] = siteDepths;
+            }
+            p = q+1;
+            int width = getCodeWidth(n);
+            int missingCode = (1 << width)-1;
+            long[] words = new long[(int)(((long)taxaNumber*2*width+63) >>> 6)];
+            int taxonIndex = 0;
+            while (p < end && taxonIndex < taxaNumber) {
+                q = GenoSiteBlockVCF.nextTab(line, p, end);
+                int g = getSubfieldStart(line, p, q, gtIndex);
+                int a1 = -1;
+                int a2 = -1;
+                if (g < q && line[g] != '.') {
+                    a1 = 0;
+                    while (g < q && line[g] >= '0' && line[g] <= '9') a1 = a1*10+line[g++]-'0';
+                    if (g < q && (line[g] == '/' || line[g] == '|')) {
+                        g++;
+                        if (g < q && line[g] >= '0' && line[g] <= '9') {
+                            a2 = 0;
+                            while (g < q && line[g] >= '0' && line[g] <= '9') a2 = a2*10+line[g++]-'0';
+                        }
+                    }
+                    else {
+                        a2 = a1;
+                    }
+                }
+                if (a1 < 0 || a2 < 0 || a1 >= n || a2 >= n) {
+                    a1 = missingCode;
+                    a2 = missingCode;
+                }
+                setCode(words, 2*taxonIndex, width, a1);
+                setCode(words, 2*taxonIndex+1, width, a2);
+                if (siteDepths != null) {
+                    int d = getSubfieldStart(line, p, q, adIndex);
+                    for (int i = 0; i < n && d < q && line[d] != ':'; i++) {
+                        int v = 0;
+                        while (d < q && line[d] >= '0' && line[d] <= '9') v = v*10+line[d++]-'0';
+                        siteDepths[taxonIndex*n+i] = (char)Math.min(v, maxAlleleDepth);
+                        while (d < q && line[d] != ',' && line[d] != ':') d++;
+                        if (d < q && line[d] == ',') d++;
+                    }
+                }
+                taxonIndex++;
+                p = q+1;
+            }
+            for (int i = taxonIndex; i < taxaNumber; i++) {
+                setCode(words, 2*i, width, missingCode);
+                setCode(words, 2*i+1, width, missingCode);
+            }
+            codes[siteIndex] = words;
+        }
+
+        /**
+         * Return the index of a two-letter key in the FORMAT field
+         * @return -1 if the key is absent
+         */
+        private static int getFormatIndex (byte[] line, int from, int to, byte c1, byte c2) {
+            int index = 0;
+            for (int i = from; i+1 < to; i++) {
+                if (line[i] == c1 && line[i+1] == c2 && (i == from || line[i-1] == ':') && (i+2 == to || line[i+2] == ':')) return index;
+                if (line[i] == ':') index++;
+            }
+            return -1;
+        }
+
+        /**
+         * Return the start of a subfield of a genotype field
+         * @return the end of the field if the subfield is absent
+         */
+        private static int getSubfieldStart (byte[] line, int from, int to, int subfieldIndex) {
+            int g = from;
+            for (int i = 0; i < subfieldIndex && g < to; i++) {
+                while (g < to && line[g] != ':') g++;
+                g++;
+            }
+            return Math.min(g, to);
+        }
+    }
+}
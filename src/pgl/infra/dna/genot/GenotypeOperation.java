@@ -12,6 +12,7 @@ public class GenotypeOperation {
     /**
      * Merge the second genotype into the first genotype. Return a new one.
      * <p> Two genotypes should have the same number of taxa in the same order.
+     * <p> Genotype files too large to be loaded are merged by {@link GenotypeMerger}.
      * @param gt1
      * @param gt2
      * @return Return null if the merging is not successful
@@ -19,22 +20,12 @@ public class GenotypeOperation {
     public static GenotypeGrid mergeGenotypesBySite(GenotypeGrid gt1, GenotypeGrid gt2) {
         if (gt1.getTaxaNumber() != gt2.getTaxaNumber()) return null;
         int snpCount = gt1.getSiteNumber()+gt2.getSiteNumber();
-        BitSet[][] bArray = new BitSet[snpCount][3];
-        int cnt = 0;
-        for (int i = 0; i < gt1.getSiteNumber(); i++) {
-            for (int j = 0; j < gt1.genoSite[0].length; j++) {
-                bArray[cnt][j] = gt1.genoSite[i][j];
-            }
-            cnt++;
-        }
-        for (int i = 0; i < gt2.getSiteNumber(); i++) {
-            for (int j = 0; j < gt2.genoSite[0].length; j++) {
-                bArray[cnt][j] = gt2.genoSite[i][j];
-            }
-            cnt++;
+        BitPlane[] planes = new BitPlane[gt1.genoSite.length];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = BitPlane.concatenateRows(gt1.genoSite[i], gt2.genoSite[i]);
         }
         BiSNP[] nsnps = new BiSNP[snpCount];
-        cnt = 0;
+        int cnt = 0;
         for (int i = 0; i < gt1.getSiteNumber(); i++) {
             nsnps[cnt] = gt1.snps[i];
             cnt++;
@@ -43,7 +34,7 @@ public class GenotypeOperation {
             nsnps[cnt] = gt2.snps[i];
             cnt++;
         }
-        GenotypeGrid gt = new GenotypeGrid(bArray, GenotypeGrid.GridDirection.BySite, gt1.taxa, nsnps);
+        GenotypeGrid gt = new GenotypeGrid(planes, GenotypeGrid.GridDirection.BySite, gt1.taxa, nsnps);
         return gt;
     }
 
@@ -63,8 +54,8 @@ public class GenotypeOperation {
             geno[cnt] = gt1.geno[i];
             cnt++;
         }
-        for (int i = 0; i < gt1.getSiteNumber(); i++) {
-            geno[cnt] = gt1.geno[i];
+        for (int i = 0; i < gt2.getSiteNumber(); i++) {
+            geno[cnt] = gt2.geno[i];
             cnt++;
         }
         GenotypeRows gt = new GenotypeRows(geno, gt1.taxa);
@@ -74,6 +65,7 @@ public class GenotypeOperation {
     /**
      * Merge the second genotype into the first genotype. Return a new one.
      * <p> Two genotypes should have the same number of sites in the same order
+     * <p> Genotype files too large to be loaded are merged by {@link GenotypeMerger}.
      * @param gt1
      * @param gt2
      * @return Return null if the merging is not successful
@@ -81,20 +73,17 @@ public class GenotypeOperation {
     public static GenotypeGrid mergeGenotypesByTaxon(GenotypeGrid gt1, GenotypeGrid gt2) {
         if (gt1.getSiteNumber() != gt2.getSiteNumber()) return null;
         int taxaCount = gt1.getTaxaNumber()+gt2.getTaxaNumber();
-        BitSet[][] bArray = new BitSet[taxaCount][3];
+        BitPlane[] planes = new BitPlane[gt1.genoTaxon.length];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = BitPlane.concatenateRows(gt1.genoTaxon[i], gt2.genoTaxon[i]);
+        }
         String[] taxa = new String[taxaCount];
         int cnt = 0;
         for (int i = 0; i < gt1.getTaxaNumber(); i++) {
-            for (int j = 0; j < gt1.genoTaxon[0].length; j++) {
-                bArray[cnt][j] = gt1.genoTaxon[i][j];
-            }
             taxa[cnt] = gt1.getTaxonName(i);
             cnt++;
         }
         for (int i = 0; i < gt2.getTaxaNumber(); i++) {
-            for (int j = 0; j < gt2.genoTaxon[0].length; j++) {
-                bArray[cnt][j] = gt2.genoTaxon[i][j];
-            }
             taxa[cnt] = gt2.getTaxonName(i);
             cnt++;
         }
@@ -102,7 +91,7 @@ public class GenotypeOperation {
         for (int i = 0; i < nsnps.length; i++) {
             nsnps[i] = gt1.snps[i].replicateWithoutFeature();
         }
-        GenotypeGrid gt = new GenotypeGrid(bArray, GenotypeGrid.GridDirection.ByTaxon, taxa, nsnps);
+        GenotypeGrid gt = new GenotypeGrid(planes, GenotypeGrid.GridDirection.ByTaxon, taxa, nsnps);
         return gt;
     }
 
@@ -118,10 +107,10 @@ public class GenotypeOperation {
             int pos = gt.getPosition(i);
             char refBase = gt.getReferenceAlleleBase(i);
             char altBase = gt.getAlternativeAlleleBase(i);
-            BitSet phase1 = gt.genoSite[i][0];
-            BitSet phase2 = gt.genoSite[i][1];
-            BitSet missingP = gt.genoSite[i][2];
-            SiteGenotypeBit sgb = new SiteGenotypeBit(chr, pos, refBase, altBase, null, phase1, phase2, missingP, gt.getTaxaNumber());
+            BitSet phase1 = gt.genoSite[0].getBitSet(i);
+            BitSet phase2 = gt.genoSite[1].getBitSet(i);
+            BitSet missingP = gt.genoSite[2].getBitSet(i);
+            geno[i] = new SiteGenotypeBit(chr, pos, refBase, altBase, null, phase1, phase2, missingP, gt.getTaxaNumber());
         }
         return new GenotypeRows(geno, gt.taxa);
     }
@@ -133,17 +122,16 @@ public class GenotypeOperation {
      */
     public static GenotypeGrid getConvertedGenotype(GenotypeRows gt) {
         BitSet[][] bArray = new BitSet[gt.getSiteNumber()][3];
-        int cnt = 0;
         for (int i = 0; i < gt.getSiteNumber(); i++) {
-            bArray[cnt][0] = gt.geno[i].phase1;
-            bArray[cnt][1] = gt.geno[i].phase2;
-            bArray[cnt][2] = gt.geno[i].missing;
+            bArray[i][0] = gt.geno[i].phase1;
+            bArray[i][1] = gt.geno[i].phase2;
+            bArray[i][2] = gt.geno[i].missing;
         }
         BiSNP[] nsnps = new BiSNP[gt.getSiteNumber()];
         for (int i = 0; i < nsnps.length; i++) {
             nsnps[i] = (BiSNP) gt.geno[i];
         }
-        return new GenotypeGrid(bArray, GenotypeGrid.GridDirection.ByTaxon, gt.taxa, nsnps);
+        return new GenotypeGrid(bArray, GenotypeGrid.GridDirection.BySite, gt.taxa, nsnps);
     }
 
     /**
@@ -168,17 +156,15 @@ public class GenotypeOperation {
      * @return
      */
     public static GenotypeGrid getSubsetGenotypeBySite(GenotypeGrid gt, int[] siteIndices) {
-        BitSet[][] bArray = new BitSet[siteIndices.length][3];
-        for (int i = 0; i < siteIndices.length; i++) {
-            for (int j = 0; j < bArray[0].length; j++) {
-                bArray[i][j] = gt.genoSite[siteIndices[i]][j];
-            }
+        BitPlane[] planes = new BitPlane[gt.genoSite.length];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = gt.genoSite[i].getRows(siteIndices);
         }
         BiSNP[] nsnps = new BiSNP[siteIndices.length];
         for (int i = 0; i < siteIndices.length; i++) {
             nsnps[i] = gt.snps[siteIndices[i]];
         }
-        return new GenotypeGrid(bArray, GenotypeGrid.GridDirection.BySite, gt.taxa, nsnps);
+        return new GenotypeGrid(planes, GenotypeGrid.GridDirection.BySite, gt.taxa, nsnps);
     }
 
     /**
@@ -188,11 +174,9 @@ public class GenotypeOperation {
      * @return
      */
     public static GenotypeGrid getSubsetGenotypeByTaxon(GenotypeGrid gt, int[] taxaIndices) {
-        BitSet[][] bArray = new BitSet[taxaIndices.length][3];
-        for (int i = 0; i < taxaIndices.length; i++) {
-            for (int j = 0; j < bArray[0].length; j++) {
-                bArray[i][j] = gt.genoTaxon[taxaIndices[i]][j];
-            }
+        BitPlane[] planes = new BitPlane[gt.genoTaxon.length];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = gt.genoTaxon[i].getRows(taxaIndices);
         }
         String[] nTaxa = new String[taxaIndices.length];
         for (int i = 0; i < taxaIndices.length; i++) {
@@ -202,7 +186,27 @@ public class GenotypeOperation {
         for (int i = 0; i < gt.getSiteNumber(); i++) {
             nsnps[i] = gt.snps[i].replicateWithoutFeature();
         }
-        return new GenotypeGrid(bArray, GenotypeGrid.GridDirection.ByTaxon, nTaxa, nsnps);
+        return new GenotypeGrid(planes, GenotypeGrid.GridDirection.ByTaxon, nTaxa, nsnps);
+    }
+
+    /**
+     * Return a view of sites of the original genotype, nothing is copied, see {@link GenotypeView}
+     * @param gt
+     * @param siteIndices
+     * @return
+     */
+    public static GenotypeView getSubsetGenotypeViewBySite(GenotypeTable gt, int[] siteIndices) {
+        return new GenotypeView(gt, siteIndices, null);
+    }
+
+    /**
+     * Return a view of taxa of the original genotype, nothing is copied, see {@link GenotypeView}
+     * @param gt
+     * @param taxaIndices
+     * @return
+     */
+    public static GenotypeView getSubsetGenotypeViewByTaxon(GenotypeTable gt, int[] taxaIndices) {
+        return new GenotypeView(gt, null, taxaIndices);
     }
 
     /**
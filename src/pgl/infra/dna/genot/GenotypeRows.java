@@ -3,10 +3,9 @@ package pgl.infra.dna.genot;
 import pgl.PGLConstraints;
 import pgl.infra.dna.allele.AlleleEncoder;
 import pgl.infra.dna.allele.AlleleType;
+import pgl.infra.utils.BitMatrixUtils;
 import pgl.infra.utils.IOUtils;
 import pgl.infra.utils.PArrayUtils;
-import pgl.infra.utils.PStringUtils;
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -18,6 +17,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 import pgl.infra.pos.ChrPos;
 
 /**
@@ -66,7 +66,7 @@ public class GenotypeRows implements GenotypeTable {
             this.buildFromBinary(infileS);
         }
         else if (format == GenoIOFormat.HDF5) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+            this.buildFromChunkFile(infileS);
         }
     }
 
@@ -325,6 +325,11 @@ public class GenotypeRows implements GenotypeTable {
         return geno[siteIndex].getReferenceAlleleFrequency();
     }
 
+    @Override
+    public String getSNPInfo(int siteIndex) {
+        return geno[siteIndex].getSNPInfo();
+    }
+
     @Override
     public String getUnphasedVCFRecord(int siteIndex) {
         return geno[siteIndex].getUnphasedVCFOutput();
@@ -445,6 +450,70 @@ public class GenotypeRows implements GenotypeTable {
         }
     }
 
+    @Override
+    public void getSiteWords(int startSiteIndex, int endSiteIndex, long[] phase1, long[] phase2, long[] missing) {
+        int stride = this.getWordNumberBySite();
+        long[][] buffers = {phase1, phase2, missing};
+        IntStream.range(startSiteIndex, endSiteIndex).parallel().forEach(i -> {
+            long[][] words = getWords(geno[i]);
+            int offset = (i-startSiteIndex)*stride;
+            for (int j = 0; j < buffers.length; j++) {
+                if (buffers[j] == null) continue;
+                System.arraycopy(words[j], 0, buffers[j], offset, words[j].length);
+                Arrays.fill(buffers[j], offset+words[j].length, offset+stride, 0);
+            }
+        });
+    }
+
+    @Override
+    public void getTaxonWords(int startTaxonIndex, int endTaxonIndex, long[] phase1, long[] phase2, long[] missing) {
+        int stride = this.getWordNumberByTaxon();
+        long[][] buffers = {phase1, phase2, missing};
+        int startWord = startTaxonIndex >>> 6;
+        int endWord = (endTaxonIndex+63) >>> 6;
+        IntStream.range(0, stride).parallel().forEach(rb -> {
+            int siteStart = rb*BitMatrixUtils.wordSize;
+            int siteEnd = Math.min(siteStart+BitMatrixUtils.wordSize, this.getSiteNumber());
+            long[][][] words = new long[siteEnd-siteStart][][];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = getWords(geno[siteStart+i]);
+            }
+            long[] tile = new long[BitMatrixUtils.wordSize];
+            for (int j = 0; j < buffers.length; j++) {
+                if (buffers[j] == null) continue;
+                for (int cb = startWord; cb < endWord; cb++) {
+                    Arrays.fill(tile, 0);
+                    for (int i = 0; i < words.length; i++) {
+                        if (cb < words[i][j].length) tile[i] = words[i][j][cb];
+                    }
+                    BitMatrixUtils.transpose64(tile);
+                    int columnStart = cb*BitMatrixUtils.wordSize;
+                    int taxonStart = Math.max(columnStart, startTaxonIndex);
+                    int taxonEnd = Math.min(columnStart+BitMatrixUtils.wordSize, endTaxonIndex);
+                    for (int k = taxonStart; k < taxonEnd; k++) {
+                        buffers[j][(k-startTaxonIndex)*stride+rb] = tile[k-columnStart];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the words of phase 1 alternative, phase 2 alternative, and missing of a site, phase bits of missing genotypes are cleared
+     * @param site
+     * @return
+     */
+    private static long[][] getWords (SiteGenotypeBit site) {
+        long[] m = site.missing.toLongArray();
+        long[][] words = {site.phase1.toLongArray(), site.phase2.toLongArray(), m};
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < Math.min(words[i].length, m.length); j++) {
+                words[i][j]&=~m[j];
+            }
+        }
+        return words;
+    }
+
     @Override
     public float[][] getIBSDistanceMatrix(int[] siteIndices) {
         float[][] matrix = new float[this.getTaxaNumber()][this.getTaxaNumber()];
@@ -508,6 +577,20 @@ public class GenotypeRows implements GenotypeTable {
         return new GenotypeRows(nGeno, nTaxa);
     }
 
+    /**
+     * Build an object from a chunked genotype file, see {@link GenoChunkFile}
+     * @param infileS
+     */
+    private void buildFromChunkFile (String infileS) {
+        GenotypeRows gt = new GenoChunkFile(infileS).getGenotypeRows();
+        this.taxa = gt.taxa;
+        this.geno = gt.geno;
+        StringBuilder sb = new StringBuilder();
+        sb.append("A total of ").append(this.getSiteNumber()).append(" SNPs are in ").append(infileS).append("\n");
+        sb.append("Genotype table is successfully built");
+        System.out.println(sb.toString());
+    }
+
     /**
      * Build an object from a binary genotype file
      * @param infileS
@@ -622,52 +705,25 @@ public class GenotypeRows implements GenotypeTable {
      */
     private void buildFromVCF (String infileS) {
         try {
-            List<String> vcfAnnotationList = new ArrayList<>();
-            BufferedReader br = null;
-            if (infileS.endsWith(".gz")) {
-                br = IOUtils.getTextGzipReader(infileS);
-            }
-            else {
-                br = IOUtils.getTextReader(infileS);
-            }
-            String temp = null;
-            while ((temp = br.readLine()).startsWith("##")) {
-                vcfAnnotationList.add(temp);
-            }
-            List<String> l = new ArrayList<>();
-            l = PStringUtils.fastSplit(temp);
-            this.taxa = new String[l.size()-9];
-            for (int i = 9; i < l.size(); i++) {
-                taxa[i-9] = l.get(i);
-            }
+            VCFByteReader vr = new VCFByteReader(infileS);
+            this.taxa = vr.getTaxa();
             ExecutorService pool = Executors.newFixedThreadPool(PGLConstraints.parallelLevel);
             List<Future<SGBBlockVCF>> resultList = new ArrayList<>();
             int siteCount = 0;
-            int startIndex = 0;
-            List<String> lines = new ArrayList ();
+            int lineNumber = 0;
             StringBuilder sb = new StringBuilder();
-            while ((temp = br.readLine()) != null) {
-                lines.add(temp);
-                if (lines.size()%SGBBlockVCF.blockSize == 0) {
-                    SGBBlockVCF sgb = new SGBBlockVCF(lines, startIndex);
-                    Future<SGBBlockVCF> result = pool.submit(sgb);
-                    resultList.add(result);
-                    startIndex+=lines.size();
-                    lines = new ArrayList<>();
-                }
-                siteCount++;
-                if (siteCount%1000000 == 0) {
+            while ((lineNumber = vr.readLines(SGBBlockVCF.blockSize)) != 0) {
+                SGBBlockVCF sgb = new SGBBlockVCF(vr.getLines(), lineNumber, siteCount, taxa.length);
+                Future<SGBBlockVCF> result = pool.submit(sgb);
+                resultList.add(result);
+                if ((siteCount+lineNumber)/1000000 > siteCount/1000000) {
                     sb.setLength(0);
-                    sb.append("Read in ").append(siteCount).append(" SNPs from ").append(infileS);
+                    sb.append("Read in ").append((siteCount+lineNumber)/1000000*1000000).append(" SNPs from ").append(infileS);
                     System.out.println(sb.toString());
                 }
+                siteCount+=lineNumber;
             }
-            br.close();
-            if (lines.size() != 0) {
-                SGBBlockVCF sgb = new SGBBlockVCF(lines, startIndex);
-                Future<SGBBlockVCF> result = pool.submit(sgb);
-                resultList.add(result);
-            }
+            vr.close();
             pool.shutdown();
             pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MICROSECONDS);
             this.geno = new SiteGenotypeBit[siteCount];
@@ -692,15 +748,17 @@ public class GenotypeRows implements GenotypeTable {
      */
     class SGBBlockVCF implements Callable<SGBBlockVCF> {
         public static final int blockSize = 4096;
-        List<String> lines = null;
+        byte[] lines = null;
         int startIndex = Integer.MIN_VALUE;
         int actBlockSize = Integer.MIN_VALUE;
+        int taxaNumber = Integer.MIN_VALUE;
         SiteGenotypeBit[] sgbArray = null;
 
-        public SGBBlockVCF (List<String> lines, int startIndex) {
+        public SGBBlockVCF (byte[] lines, int lineNumber, int startIndex, int taxaNumber) {
             this.lines = lines;
             this.startIndex = startIndex;
-            this.actBlockSize = lines.size();
+            this.actBlockSize = lineNumber;
+            this.taxaNumber = taxaNumber;
         }
 
         public int getStartIndex () {
@@ -714,8 +772,12 @@ public class GenotypeRows implements GenotypeTable {
         @Override
         public SGBBlockVCF call() throws Exception {
             this.sgbArray = new SiteGenotypeBit[this.actBlockSize];
+            int start = 0;
             for (int i = 0; i < this.actBlockSize; i++) {
-                sgbArray[i] = SiteGenotypeBit.buildFromVCFLine(lines.get(i));
+                int end = start;
+                while (end < lines.length && lines[end] != '\n') end++;
+                sgbArray[i] = SiteGenotypeBit.buildFromVCFLine(lines, start, end, taxaNumber);
+                start = end+1;
             }
             lines = null;
             return this;
@@ -0,0 +1,447 @@
+package pgl.infra.dna.genot;
+
+import pgl.PGLConstraints;
+import pgl.infra.dna.allele.AlleleEncoder;
+import pgl.infra.dna.snp.BiSNP;
+import pgl.infra.utils.IOUtils;
+
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * A stream of sites of a genotype file, for files too large to be loaded as a {@link GenotypeTable}.
+ * <p>
+ * Sites are decoded in blocks, a batch of blocks is decoded in parallel. Site filters (MAF, missing rate, heterozygous rate, and region)
+ * are applied right after decoding, sites passing the filters are handed to a callback in the order of the file as a reusable {@link Site}.
+ * Memory is proportional to the block size and the taxa number, not to the file size.
+ * <p>
+ * Taxa are in the order of the file. Filtered sites can be written by {@link GenotypeExport#output(GenotypeSiteStream, String, GenoIOFormat)}.
+ *
+ * @author feilu
+ */
+public class GenotypeSiteStream {
+    /**
+     * Number of sites in a block
+     */
+    public static final int blockSize = 4096;
+
+    String infileS = null;
+    GenoIOFormat format = null;
+    String[] taxa = null;
+    float minMAF = 0;
+    float maxMissingRate = 1;
+    float maxHeterozygousRate = 1;
+    short chromosome = Short.MIN_VALUE;
+    int startPosition = Integer.MIN_VALUE;
+    int endPosition = Integer.MAX_VALUE;
+
+    /**
+     * Construct a stream, only the taxa of the file are read
+     * @param infileS
+     * @param format
+     */
+    public GenotypeSiteStream (String infileS, GenoIOFormat format) {
+        this.infileS = infileS;
+        this.format = format;
+        if (format == GenoIOFormat.VCF || format == GenoIOFormat.VCF_GZ) {
+            VCFByteReader vr = new VCFByteReader(infileS);
+            this.taxa = vr.getTaxa();
+            vr.close();
+        }
+        else if (format == GenoIOFormat.Binary || format == GenoIOFormat.Binary_GZ) {
+            try {
+                DataInputStream dis = this.getBinaryReader();
+                dis.readInt();
+                this.taxa = new String[dis.readInt()];
+                for (int i = 0; i < taxa.length; i++) {
+                    taxa[i] = dis.readUTF();
+                }
+                dis.close();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        else if (format == GenoIOFormat.HDF5) {
+            this.taxa = new GenoChunkFile(infileS).getTaxa();
+        }
+    }
+
+    public String[] getTaxaNames () {
+        return taxa;
+    }
+
+    public int getTaxaNumber () {
+        return taxa.length;
+    }
+
+    /**
+     * Keep sites with minor allele frequency no less than a value
+     * @param minMAF
+     * @return
+     */
+    public GenotypeSiteStream setMinMAF (float minMAF) {
+        this.minMAF = minMAF;
+        return this;
+    }
+
+    /**
+     * Keep sites with the proportion of missing taxa no more than a value
+     * @param maxMissingRate
+     * @return
+     */
+    public GenotypeSiteStream setMaxMissingRate (float maxMissingRate) {
+        this.maxMissingRate = maxMissingRate;
+        return this;
+    }
+
+    /**
+     * Keep sites with the proportion of heterozygous taxa (of non-missing taxa) no more than a value
+     * @param maxHeterozygousRate
+     * @return
+     */
+    public GenotypeSiteStream setMaxHeterozygousRate (float maxHeterozygousRate) {
+        this.maxHeterozygousRate = maxHeterozygousRate;
+        return this;
+    }
+
+    /**
+     * Keep sites in a region. Only chunks overlapping the region are read from {@link GenoIOFormat#HDF5} files
+     * @param chromosome
+     * @param startPosition inclusive
+     * @param endPosition exclusive
+     * @return
+     */
+    public GenotypeSiteStream setRegion (short chromosome, int startPosition, int endPosition) {
+        this.chromosome = chromosome;
+        this.startPosition = startPosition;
+        this.endPosition = endPosition;
+        return this;
+    }
+
+    /**
+     * Decode all sites and hand the sites passing the filters to a callback, in the order of the file.
+     * The {@link Site} is reused, it is only valid during the call.
+     * @param action
+     * @return number of sites passing the filters
+     */
+    public long forEach (Consumer<Site> action) {
+        long cnt = 0;
+        int batchSize = Math.max(1, Math.min(PGLConstraints.parallelLevel, Runtime.getRuntime().availableProcessors()));
+        Site site = new Site(taxa.length);
+        try {
+            if (format == GenoIOFormat.VCF || format == GenoIOFormat.VCF_GZ) {
+                VCFByteReader vr = new VCFByteReader(infileS);
+                int lineNumber = 0;
+                Block[] blocks = new Block[batchSize];
+                int n = 0;
+                while (true) {
+                    lineNumber = vr.readLines(blockSize);
+                    if (lineNumber != 0) {
+                        blocks[n++] = new Block(new GenoSiteBlockVCF(vr.getLines(), lineNumber, 0));
+                    }
+                    if (n == batchSize || (lineNumber == 0 && n != 0)) {
+                        cnt+=this.process(blocks, n, site, action);
+                        n = 0;
+                    }
+                    if (lineNumber == 0) break;
+                }
+                vr.close();
+            }
+            else if (format == GenoIOFormat.Binary || format == GenoIOFormat.Binary_GZ) {
+                DataInputStream dis = this.getBinaryReader();
+                int siteNumber = dis.readInt();
+                int taxaNumber = dis.readInt();
+                for (int i = 0; i < taxaNumber; i++) {
+                    dis.readUTF();
+                }
+                int siteByteSize = GenotypeExport.getByteSizeOfSiteInBinary(taxaNumber);
+                Block[] blocks = new Block[batchSize];
+                int n = 0;
+                for (int i = 0; i < siteNumber; i+=blockSize) {
+                    int size = Math.min(blockSize, siteNumber-i);
+                    byte[][] lines = new byte[size][siteByteSize];
+                    for (int j = 0; j < size; j++) {
+                        dis.readFully(lines[j]);
+                    }
+                    blocks[n++] = new Block(new GenoSiteBlockBinary(lines, i, size, taxaNumber));
+                    if (n == batchSize || i+size == siteNumber) {
+                        cnt+=this.process(blocks, n, site, action);
+                        n = 0;
+                    }
+                }
+                dis.close();
+            }
+            else if (format == GenoIOFormat.HDF5) {
+                GenoChunkFile gcf = new GenoChunkFile(infileS);
+                int[] chunkIndices = chromosome == Short.MIN_VALUE ? IntStream.range(0, gcf.getChunkNumber()).toArray() : gcf.getChunkIndices(chromosome, startPosition, endPosition);
+                Block[] blocks = new Block[batchSize];
+                for (int i = 0; i < chunkIndices.length; i+=batchSize) {
+                    int n = Math.min(batchSize, chunkIndices.length-i);
+                    GenoSiteBlockBinary[] chunks = gcf.readChunks(Arrays.copyOfRange(chunkIndices, i, i+n));
+                    for (int j = 0; j < n; j++) {
+                        blocks[j] = new Block(chunks[j].getSNPBlock(), chunks[j].getGenoSiteBlock(), chunks[j].actBlockSize);
+                    }
+                    cnt+=this.process(blocks, n, site, action);
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        return cnt;
+    }
+
+    /**
+     * Decode and filter blocks in parallel, then hand sites passing the filters to the callback in order
+     * @param blocks
+     * @param n number of blocks
+     * @param site
+     * @param action
+     * @return
+     */
+    private long process (Block[] blocks, int n, Site site, Consumer<Site> action) {
+        IntStream.range(0, n).parallel().forEach(i -> blocks[i].decode(this));
+        long cnt = 0;
+        for (int i = 0; i < n; i++) {
+            Block b = blocks[i];
+            for (int j = 0; j < b.siteNumber; j++) {
+                if (!b.ifKept[j]) continue;
+                site.set(b.snps[j], b.planes, j, b.missingNumbers[j], b.heterozygoteNumbers[j], b.alternativeNumbers[j]);
+                action.accept(site);
+                cnt++;
+            }
+            blocks[i] = null;
+        }
+        return cnt;
+    }
+
+    private boolean isKept (BiSNP snp, int missing, int het, int alt) {
+        if (chromosome != Short.MIN_VALUE) {
+            if (snp.getChromosome() != chromosome) return false;
+            if (snp.getPosition() < startPosition || snp.getPosition() >= endPosition) return false;
+        }
+        int nonMissing = taxa.length-missing;
+        if ((float)((double)missing/taxa.length) > maxMissingRate) return false;
+        if (nonMissing == 0) return minMAF <= 0 && maxHeterozygousRate >= 1;
+        if ((float)((double)het/nonMissing) > maxHeterozygousRate) return false;
+        float altFre = (float)((double)alt/(nonMissing*2));
+        if (Math.min(altFre, 1-altFre) < minMAF) return false;
+        return true;
+    }
+
+    private DataInputStream getBinaryReader () {
+        if (infileS.endsWith(".gz")) return IOUtils.getBinaryGzipReader(infileS);
+        return IOUtils.getBinaryReader(infileS);
+    }
+
+    /**
+     * A block of decoded sites
+     */
+    private static class Block {
+        Callable<?> decoder = null;
+        BiSNP[] snps = null;
+        BitPlane[] planes = null;
+        int siteNumber = 0;
+        int[] missingNumbers = null;
+        int[] heterozygoteNumbers = null;
+        int[] alternativeNumbers = null;
+        boolean[] ifKept = null;
+
+        Block (Callable<?> decoder) {
+            this.decoder = decoder;
+        }
+
+        Block (BiSNP[] snps, BitPlane[] planes, int siteNumber) {
+            this.snps = snps;
+            this.planes = planes;
+            this.siteNumber = siteNumber;
+        }
+
+        void decode (GenotypeSiteStream stream) {
+            try {
+                if (decoder instanceof GenoSiteBlockVCF) {
+                    GenoSiteBlockVCF b = (GenoSiteBlockVCF)decoder;
+                    b.call();
+                    snps = b.getSNPBlock();
+                    planes = b.getGenoSiteBlock();
+                    siteNumber = b.actBlockSize;
+                }
+                else if (decoder instanceof GenoSiteBlockBinary) {
+                    GenoSiteBlockBinary b = (GenoSiteBlockBinary)decoder;
+                    b.call();
+                    snps = b.getSNPBlock();
+                    planes = b.getGenoSiteBlock();
+                    siteNumber = b.actBlockSize;
+                }
+                decoder = null;
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            missingNumbers = new int[siteNumber];
+            heterozygoteNumbers = new int[siteNumber];
+            alternativeNumbers = new int[siteNumber];
+            ifKept = new boolean[siteNumber];
+            int stride = planes[0].getStride();
+            for (int i = 0; i < siteNumber; i++) {
+                long[] p1 = planes[0].getWords(i);
+                long[] p2 = planes[1].getWords(i);
+                long[] m = planes[2].getWords(i);
+                int offset = planes[0].getOffset(i);
+                int missing = 0;
+                int het = 0;
+                int alt = 0;
+                for (int j = offset; j < offset+stride; j++) {
+                    missing+=Long.bitCount(m[j]);
+                    het+=Long.bitCount(p1[j]^p2[j]);
+                    alt+=Long.bitCount(p1[j])+Long.bitCount(p2[j]);
+                }
+                missingNumbers[i] = missing;
+                heterozygoteNumbers[i] = het;
+                alternativeNumbers[i] = alt;
+                ifKept[i] = stream.isKept(snps[i], missing, het, alt);
+            }
+        }
+    }
+
+    /**
+     * A reusable view of a decoded site, valid only during a callback of {@link #forEach(Consumer)}
+     */
+    public static class Site {
+        BiSNP snp = null;
+        BitPlane[] planes = null;
+        int row = 0;
+        int taxaNumber = 0;
+        int missingNumber = 0;
+        int heterozygoteNumber = 0;
+        int alternativeNumber = 0;
+
+        Site (int taxaNumber) {
+            this.taxaNumber = taxaNumber;
+        }
+
+        void set (BiSNP snp, BitPlane[] planes, int row, int missingNumber, int heterozygoteNumber, int alternativeNumber) {
+            this.snp = snp;
+            this.planes = planes;
+            this.row = row;
+            this.missingNumber = missingNumber;
+            this.heterozygoteNumber = heterozygoteNumber;
+            this.alternativeNumber = alternativeNumber;
+        }
+
+        /**
+         * Return the SNP of the site, the object is not reused
+         * @return
+         */
+        public BiSNP getSNP () {
+            return snp;
+        }
+
+        public short getChromosome () {
+            return snp.getChromosome();
+        }
+
+        public int getPosition () {
+            return snp.getPosition();
+        }
+
+        public int getTaxaNumber () {
+            return taxaNumber;
+        }
+
+        public boolean isMissing (int taxonIndex) {
+            return planes[2].get(row, taxonIndex);
+        }
+
+        public boolean isPhase1Alternative (int taxonIndex) {
+            return planes[0].get(row, taxonIndex);
+        }
+
+        public boolean isPhase2Alternative (int taxonIndex) {
+            return planes[1].get(row, taxonIndex);
+        }
+
+        public boolean isHeterozygous (int taxonIndex) {
+            if (this.isMissing(taxonIndex)) return false;
+            return this.isPhase1Alternative(taxonIndex) != this.isPhase2Alternative(taxonIndex);
+        }
+
+        public byte getGenotypeByte (int taxonIndex) {
+            if (this.isMissing(taxonIndex)) return AlleleEncoder.genotypeMissingByte;
+            byte ref = snp.getReferenceAlleleByte();
+            byte alt = snp.getAlternativeAlleleByte();
+            return AlleleEncoder.getGenotypeByte(this.isPhase1Alternative(taxonIndex) ? alt : ref, this.isPhase2Alternative(taxonIndex) ? alt : ref);
+        }
+
+        public int getMissingNumber () {
+            return missingNumber;
+        }
+
+        public int getNonMissingNumber () {
+            return taxaNumber-missingNumber;
+        }
+
+        public int getHeterozygoteNumber () {
+            return heterozygoteNumber;
+        }
+
+        public int getAlternativeAlleleNumber () {
+            return alternativeNumber;
+        }
+
+        public float getAlternativeAlleleFrequency () {
+            return (float)((double)alternativeNumber/(this.getNonMissingNumber()*2));
+        }
+
+        public float getMinorAlleleFrequency () {
+            float altFre = this.getAlternativeAlleleFrequency();
+            return altFre < 0.5 ? altFre : 1-altFre;
+        }
+
+        /**
+         * Return the record in VCF format, the same as {@link GenotypeGrid#getUnphasedVCFRecord(int)}
+         * @return
+         */
+        public String getUnphasedVCFRecord () {
+            StringBuilder vsb = new StringBuilder(taxaNumber*4+100);
+            char delimiter = '/';
+            vsb.append(snp.getChromosome()).append("\t").append(snp.getPosition()).append("\t").append(snp.getChromosome()).append("-").append(snp.getPosition()).append("\t");
+            vsb.append(snp.getReferenceAlleleBase()).append("\t").append(snp.getAlternativeAlleleBase()).append("\t.\t.\t");
+            if (snp.getSNPInfo() == null) vsb.append(".");
+            else vsb.append(snp.getSNPInfo());
+            vsb.append("\t").append("GT");
+            for (int i = 0; i < taxaNumber; i++) {
+                if (this.isMissing(i)) vsb.append("\t").append(".").append(delimiter).append(".");
+                else {
+                    vsb.append("\t");
+                    vsb.append(this.isPhase1Alternative(i) ? '1' : '0');
+                    vsb.append(delimiter);
+                    vsb.append(this.isPhase2Alternative(i) ? '1' : '0');
+                }
+            }
+            return vsb.toString();
+        }
+
+        /**
+         * Write the site in binary format, the same as {@link GenotypeGrid#getBinaryOutput(int, ByteBuffer)}
+         * @param bb
+         * @return
+         */
+        public ByteBuffer getBinaryOutput (ByteBuffer bb) {
+            bb.putShort(snp.getChromosome());
+            bb.putInt(snp.getPosition());
+            bb.put(AlleleEncoder.getGenotypeByte(snp.getReferenceAlleleByte(), snp.getAlternativeAlleleByte()));
+            bb.put(snp.getReferenceAlleleFeature());
+            bb.put(snp.getAlternativeAlleleFeature());
+            for (int i = 0; i < planes.length; i++) {
+                planes[i].writeRow(row, bb);
+            }
+            return bb;
+        }
+    }
+}
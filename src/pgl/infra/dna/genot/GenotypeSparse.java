@@ -0,0 +1,1117 @@
+package pgl.infra.dna.genot;
+
+import cern.colt.GenericSorting;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import pgl.PGLConstraints;
+import pgl.infra.dna.allele.AlleleEncoder;
+import pgl.infra.dna.allele.AlleleType;
+import pgl.infra.dna.snp.BiSNP;
+import pgl.infra.pos.ChrPos;
+import pgl.infra.utils.Benchmark;
+import pgl.infra.utils.PArrayUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Class holding genotype data of panels dominated by rare variants. Genotypes of a site are stored by its minor allele,
+ * i.e. taxa carrying the minor allele on phase 1 and phase 2, and missing taxa. When the alternative allele is the major allele of a site,
+ * the reference allele is stored instead.
+ * <p>
+ * Each site is either sparse or dense. Sparse sites hold the taxa in {@link RoaringBitmap}s, dense sites hold words of bits like {@link GenotypeGrid}.
+ * A site is sparse when its minor alleles and missing genotypes are fewer than {@link #sparseDensity} of the taxa, where a bitmap is smaller than words.
+ * Counts by site are cardinalities of the bitmaps. Counts by taxon and IBS distance use bitmaps of sparse sites by taxon,
+ * i.e. heterozygous sites, sites homozygous for the minor allele, and missing sites, together with {@link BitPlane}s of dense sites by taxon,
+ * which are counted by {@link IBSDistanceKernel}. Both are built on first use.
+ * <p>
+ * Supports only bi-allelic SNPs, 3rd+ allele will be ignored. Allele depth is ignored.
+ *
+ * @author feilu
+ */
+public class GenotypeSparse implements GenotypeTable {
+    /**
+     * A site is sparse when the number of minor alleles and missing genotypes is less than this proportion of the taxa number.
+     * A bitmap takes about 2 bytes a value, words of three planes take 3/8 bytes a taxon.
+     */
+    public static final float sparseDensity = 3f/16;
+    /**
+     * Number of sites converted at a time when a table is built from another table
+     */
+    static final int blockSize = 4096;
+
+    /**
+     * The taxa in the genotype table
+     */
+    String[] taxa = null;
+    /**
+     * SNPs of the genotype table
+     */
+    BiSNP[] snps = null;
+    /**
+     * Minor allele frequency of all SNPs
+     */
+    float[] mafs = null;
+    /**
+     * Number of words of a plane of a dense site
+     */
+    int stride = 0;
+    /**
+     * True if the alternative allele is more frequent than the reference allele at a site, genotypes of the site are stored by the reference allele
+     */
+    boolean[] altMajors = null;
+    /**
+     * Bitmaps of taxa of sparse sites, i.e. minor allele on phase 1, minor allele on phase 2, and missing; null for dense sites
+     */
+    RoaringBitmap[][] sparseSites = null;
+    /**
+     * Words of dense sites, planes of minor allele on phase 1, minor allele on phase 2, and missing one after another; null for sparse sites
+     */
+    long[][] denseSites = null;
+    /**
+     * Bitmaps of sparse sites by taxon, i.e. heterozygous, homozygous for the minor allele, and missing; null if not built or invalidated by sorting
+     */
+    RoaringBitmap[][] taxonSites = null;
+    /**
+     * Planes of dense sites by taxon, i.e. minor allele on phase 1, minor allele on phase 2, and missing; columns are dense sites in order
+     */
+    BitPlane[] denseTaxon = null;
+    /**
+     * Index of a site among dense sites, -1 for sparse sites
+     */
+    int[] denseOrdinals = null;
+
+    /**
+     * Construct an object by reading a file, blocks of sites are decoded and compressed one batch at a time
+     * @param infileS
+     * @param format
+     */
+    public GenotypeSparse (String infileS, GenoIOFormat format) {
+        GenoBlockReader reader = new GenoBlockReader(infileS, format, PGLConstraints.parallelLevel);
+        this.initialize(reader.getTaxa());
+        List<BiSNP> snpList = new ArrayList<>();
+        List<RoaringBitmap[]> sparseList = new ArrayList<>();
+        List<long[]> denseList = new ArrayList<>();
+        List<Boolean> majorList = new ArrayList<>();
+        while (reader.next()) {
+            BiSNP[] bSNPs = reader.snps;
+            BitPlane[] planes = reader.planes;
+            int n = reader.blockSiteNumber;
+            boolean[] bMajors = new boolean[n];
+            RoaringBitmap[][] bSparse = new RoaringBitmap[n][];
+            long[][] bDense = new long[n][];
+            IntStream.range(0, n).parallel().forEach(i -> {
+                bMajors[i] = this.encode(planes[0].getWords(i), planes[1].getWords(i), planes[2].getWords(i), planes[0].getOffset(i), bSparse, bDense, i);
+            });
+            for (int i = 0; i < n; i++) {
+                snpList.add(bSNPs[i]);
+                sparseList.add(bSparse[i]);
+                denseList.add(bDense[i]);
+                majorList.add(bMajors[i]);
+            }
+        }
+        reader.close();
+        this.snps = snpList.toArray(new BiSNP[snpList.size()]);
+        this.sparseSites = sparseList.toArray(new RoaringBitmap[sparseList.size()][]);
+        this.denseSites = denseList.toArray(new long[denseList.size()][]);
+        this.altMajors = new boolean[majorList.size()];
+        for (int i = 0; i < altMajors.length; i++) {
+            altMajors[i] = majorList.get(i);
+        }
+        this.mafs = new float[this.getSiteNumber()];
+        Arrays.fill(mafs, Float.MIN_VALUE);
+        StringBuilder sb = new StringBuilder();
+        sb.append("A total of ").append(this.getSiteNumber()).append(" SNPs are in ").append(infileS).append(", ");
+        sb.append(this.getSparseSiteNumber()).append(" of them are sparse\n");
+        sb.append("Genotype table is successfully built");
+        System.out.println(sb.toString());
+        this.sortByTaxa();
+    }
+
+    /**
+     * Construct an object from another genotype table, genotypes are read by {@link GenotypeTable#getSiteWords(int, int, long[], long[], long[])}.
+     * SNPs are replicated without allele types.
+     * @param gt
+     */
+    public GenotypeSparse (GenotypeTable gt) {
+        this.initialize(gt.getTaxaNames().clone());
+        int siteNumber = gt.getSiteNumber();
+        this.snps = new BiSNP[siteNumber];
+        this.altMajors = new boolean[siteNumber];
+        this.sparseSites = new RoaringBitmap[siteNumber][];
+        this.denseSites = new long[siteNumber][];
+        this.mafs = new float[siteNumber];
+        Arrays.fill(mafs, Float.MIN_VALUE);
+        long[] w1 = new long[blockSize*stride];
+        long[] w2 = new long[w1.length];
+        long[] wm = new long[w1.length];
+        for (int i = 0; i < siteNumber; i+=blockSize) {
+            int start = i;
+            int end = Math.min(siteNumber, i+blockSize);
+            gt.getSiteWords(start, end, w1, w2, wm);
+            IntStream.range(start, end).parallel().forEach(j -> {
+                snps[j] = new BiSNP(gt.getChromosome(j), gt.getPosition(j), gt.getReferenceAlleleBase(j), gt.getAlternativeAlleleBase(j), gt.getSNPInfo(j));
+                altMajors[j] = this.encode(w1, w2, wm, (j-start)*stride, sparseSites, denseSites, j);
+            });
+        }
+    }
+
+    /**
+     * Construct an object from encoded sites
+     * @param taxa
+     * @param snps
+     * @param altMajors
+     * @param sparseSites
+     * @param denseSites
+     */
+    GenotypeSparse (String[] taxa, BiSNP[] snps, boolean[] altMajors, RoaringBitmap[][] sparseSites, long[][] denseSites) {
+        this.initialize(taxa);
+        this.snps = snps;
+        this.altMajors = altMajors;
+        this.sparseSites = sparseSites;
+        this.denseSites = denseSites;
+        this.mafs = new float[this.getSiteNumber()];
+        Arrays.fill(mafs, Float.MIN_VALUE);
+    }
+
+    private void initialize (String[] taxa) {
+        this.taxa = taxa;
+        this.stride = (taxa.length+63) >>> 6;
+    }
+
+    /**
+     * Encode a site from words of phase 1 alternative, phase 2 alternative, and missing
+     * @param w1
+     * @param w2
+     * @param wm
+     * @param offset index of the first word of the site
+     * @param sparse bitmaps of the encoded site are set at siteIndex if it is sparse
+     * @param dense words of the encoded site are set at siteIndex if it is dense
+     * @param siteIndex
+     * @return true if the alternative allele is the major allele
+     */
+    private boolean encode (long[] w1, long[] w2, long[] wm, int offset, RoaringBitmap[][] sparse, long[][] dense, int siteIndex) {
+        int missing = 0;
+        int alt = 0;
+        for (int i = offset; i < offset+stride; i++) {
+            missing+=Long.bitCount(wm[i]);
+            alt+=Long.bitCount(w1[i] & ~wm[i])+Long.bitCount(w2[i] & ~wm[i]);
+        }
+        int nonMissing = this.getTaxaNumber()-missing;
+        boolean altMajor = alt > nonMissing;
+        int minor = altMajor ? 2*nonMissing-alt : alt;
+        long[] words = new long[3*stride];
+        for (int i = 0; i < stride; i++) {
+            long m = wm[offset+i];
+            long valid = ~m & this.getValidMask(i);
+            words[i] = (altMajor ? ~w1[offset+i] : w1[offset+i]) & valid;
+            words[stride+i] = (altMajor ? ~w2[offset+i] : w2[offset+i]) & valid;
+            words[2*stride+i] = m;
+        }
+        if (minor+missing < sparseDensity*this.getTaxaNumber()) {
+            RoaringBitmap[] bitmaps = new RoaringBitmap[3];
+            for (int i = 0; i < bitmaps.length; i++) {
+                bitmaps[i] = new RoaringBitmap();
+                for (int j = 0; j < stride; j++) {
+                    long w = words[i*stride+j];
+                    while (w != 0) {
+                        bitmaps[i].add((j << 6)+Long.numberOfTrailingZeros(w));
+                        w&=w-1;
+                    }
+                }
+            }
+            sparse[siteIndex] = bitmaps;
+        }
+        else {
+            dense[siteIndex] = words;
+        }
+        return altMajor;
+    }
+
+    /**
+     * Return the mask of taxa of a word, the unused bits of the last word are 0
+     * @param wordIndex
+     * @return
+     */
+    private long getValidMask (int wordIndex) {
+        if (wordIndex < stride-1 || (this.getTaxaNumber() & 63) == 0) return -1L;
+        return -1L >>> (64-(this.getTaxaNumber() & 63));
+    }
+
+    /**
+     * Decode a site to words of phase 1 alternative, phase 2 alternative, and missing. A buffer can be null if it is not needed.
+     * @param siteIndex
+     * @param w1
+     * @param o1 index of the first word of the site in w1
+     * @param w2
+     * @param o2
+     * @param wm
+     * @param om
+     */
+    private void decode (int siteIndex, long[] w1, int o1, long[] w2, int o2, long[] wm, int om) {
+        long[][] buffers = {w1, w2};
+        int[] offsets = {o1, o2};
+        long[] missings = wm == null ? new long[stride] : wm;
+        int mOffset = wm == null ? 0 : om;
+        if (sparseSites[siteIndex] != null) {
+            Arrays.fill(missings, mOffset, mOffset+stride, 0);
+            sparseSites[siteIndex][2].forEach((int t) -> missings[mOffset+(t >>> 6)]|=1L << t);
+            for (int i = 0; i < buffers.length; i++) {
+                long[] buffer = buffers[i];
+                int offset = offsets[i];
+                if (buffer == null) continue;
+                Arrays.fill(buffer, offset, offset+stride, 0);
+                sparseSites[siteIndex][i].forEach((int t) -> buffer[offset+(t >>> 6)]|=1L << t);
+            }
+        }
+        else {
+            System.arraycopy(denseSites[siteIndex], 2*stride, missings, mOffset, stride);
+            for (int i = 0; i < buffers.length; i++) {
+                if (buffers[i] == null) continue;
+                System.arraycopy(denseSites[siteIndex], i*stride, buffers[i], offsets[i], stride);
+            }
+        }
+        if (!altMajors[siteIndex]) return;
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] == null) continue;
+            for (int j = 0; j < stride; j++) {
+                buffers[i][offsets[i]+j] = ~buffers[i][offsets[i]+j] & ~missings[mOffset+j] & this.getValidMask(j);
+            }
+        }
+    }
+
+    /**
+     * Return words of phase 1 alternative, phase 2 alternative, and missing of a site, planes are one after another
+     * @param siteIndex
+     * @return
+     */
+    private long[] decode (int siteIndex) {
+        long[] words = new long[3*stride];
+        this.decode(siteIndex, words, 0, words, stride, words, 2*stride);
+        return words;
+    }
+
+    /**
+     * Return if the minor allele of a site is on a phase of a taxon
+     * @param siteIndex
+     * @param plane 0, 1, and 2 are phase 1, phase 2, and missing
+     * @param taxonIndex
+     * @return
+     */
+    private boolean getBit (int siteIndex, int plane, int taxonIndex) {
+        if (sparseSites[siteIndex] != null) return sparseSites[siteIndex][plane].contains(taxonIndex);
+        return (denseSites[siteIndex][plane*stride+(taxonIndex >>> 6)] & (1L << taxonIndex)) != 0;
+    }
+
+    /**
+     * Return the number of set bits of a plane of a site
+     * @param siteIndex
+     * @param plane 0, 1, and 2 are phase 1, phase 2, and missing
+     * @return
+     */
+    private int getCardinality (int siteIndex, int plane) {
+        if (sparseSites[siteIndex] != null) return sparseSites[siteIndex][plane].getCardinality();
+        long[] words = denseSites[siteIndex];
+        int cnt = 0;
+        for (int i = plane*stride; i < (plane+1)*stride; i++) {
+            cnt+=Long.bitCount(words[i]);
+        }
+        return cnt;
+    }
+
+    /**
+     * Return the number of sparse sites
+     * @return
+     */
+    public int getSparseSiteNumber () {
+        int cnt = 0;
+        for (int i = 0; i < sparseSites.length; i++) {
+            if (sparseSites[i] != null) cnt++;
+        }
+        return cnt;
+    }
+
+    /**
+     * Return if a site is stored in bitmaps
+     * @param siteIndex
+     * @return
+     */
+    public boolean isSparse (int siteIndex) {
+        return sparseSites[siteIndex] != null;
+    }
+
+    /**
+     * Return the number of minor alleles of a site, counted from the stored allele, phase 1 and phase 2 are both counted
+     * @param siteIndex
+     * @return
+     */
+    public int getMinorAlleleNumberBySite (int siteIndex) {
+        return this.getCardinality(siteIndex, 0)+this.getCardinality(siteIndex, 1);
+    }
+
+    /**
+     * Build bitmaps of sparse sites by taxon and planes of dense sites by taxon. For bitmaps, taxa are split into word aligned ranges
+     * which are processed in parallel.
+     */
+    private synchronized void buildTaxonSide () {
+        if (taxonSites != null) return;
+        int taxaNumber = this.getTaxaNumber();
+        int siteNumber = this.getSiteNumber();
+        int[] ordinals = new int[siteNumber];
+        int denseNumber = 0;
+        for (int i = 0; i < siteNumber; i++) {
+            ordinals[i] = denseSites[i] == null ? -1 : denseNumber++;
+        }
+        BitPlane[] planes = new BitPlane[3];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = new BitPlane(denseNumber, taxaNumber);
+        }
+        IntStream.range(0, siteNumber).parallel().forEach(i -> {
+            if (ordinals[i] < 0) return;
+            for (int j = 0; j < planes.length; j++) {
+                System.arraycopy(denseSites[i], j*stride, planes[j].getWords(ordinals[i]), planes[j].getOffset(ordinals[i]), stride);
+            }
+        });
+        BitPlane[] nDenseTaxon = new BitPlane[3];
+        for (int i = 0; i < planes.length; i++) {
+            nDenseTaxon[i] = planes[i].transpose();
+        }
+        RoaringBitmap[][] bitmaps = new RoaringBitmap[taxaNumber][3];
+        int wordsPerRange = Math.max(1, (stride+PGLConstraints.parallelLevel-1)/PGLConstraints.parallelLevel);
+        int rangeNumber = (stride+wordsPerRange-1)/wordsPerRange;
+        IntStream.range(0, rangeNumber).parallel().forEach(r -> {
+            int w0 = r*wordsPerRange;
+            int w1 = Math.min(stride, w0+wordsPerRange);
+            int width = w1-w0;
+            int t0 = w0 << 6;
+            int t1 = Math.min(taxaNumber, w1 << 6);
+            for (int i = t0; i < t1; i++) {
+                for (int j = 0; j < 3; j++) {
+                    bitmaps[i][j] = new RoaringBitmap();
+                }
+            }
+            long[] words = new long[3*width];
+            for (int i = 0; i < siteNumber; i++) {
+                if (sparseSites[i] == null) continue;
+                Arrays.fill(words, 0);
+                for (int j = 0; j < 3; j++) {
+                    PeekableIntIterator it = sparseSites[i][j].getIntIterator();
+                    it.advanceIfNeeded(t0);
+                    while (it.hasNext() && it.peekNext() < t1) {
+                        int t = it.next();
+                        words[j*width+(t >>> 6)-w0]|=1L << t;
+                    }
+                }
+                for (int j = 0; j < width; j++) {
+                    long x1 = words[j];
+                    long x2 = words[width+j];
+                    long[] classes = {x1 ^ x2, x1 & x2, words[2*width+j]};
+                    for (int k = 0; k < classes.length; k++) {
+                        long w = classes[k];
+                        while (w != 0) {
+                            bitmaps[((w0+j) << 6)+Long.numberOfTrailingZeros(w)][k].add(i);
+                            w&=w-1;
+                        }
+                    }
+                }
+            }
+        });
+        this.denseOrdinals = ordinals;
+        this.denseTaxon = nDenseTaxon;
+        this.taxonSites = bitmaps;
+    }
+
+    /**
+     * Return the bitmaps of sparse sites by taxon, i.e. heterozygous, homozygous for the minor allele, and missing
+     * @return
+     */
+    private RoaringBitmap[][] getTaxonSites () {
+        if (taxonSites == null) this.buildTaxonSide();
+        return taxonSites;
+    }
+
+    /**
+     * Return the planes of dense sites by taxon, i.e. minor allele on phase 1, minor allele on phase 2, and missing
+     * @return
+     */
+    private BitPlane[] getDenseTaxon () {
+        if (taxonSites == null) this.buildTaxonSide();
+        return denseTaxon;
+    }
+
+    @Override
+    public int getTaxaNumber() {
+        return this.taxa.length;
+    }
+
+    @Override
+    public int getSiteNumber() {
+        return this.snps.length;
+    }
+
+    @Override
+    public String getTaxonName(int taxonIndex) {
+        return this.taxa[taxonIndex];
+    }
+
+    @Override
+    public String[] getTaxaNames() {
+        return this.taxa;
+    }
+
+    @Override
+    public short getChromosome(int siteIndex) {
+        return this.snps[siteIndex].getChromosome();
+    }
+
+    @Override
+    public int getPosition(int siteIndex) {
+        return this.snps[siteIndex].getPosition();
+    }
+
+    @Override
+    public void sortBySite() {
+        System.out.println("Start sorting genotype table by site");
+        long start = System.nanoTime();
+        int[] indices = new int[this.getSiteNumber()];
+        for (int i = 0; i < indices.length; i++) indices[i] = i;
+        GenericSorting.quickSort(0, indices.length, (index1, index2) -> snps[indices[index1]].compareTo(snps[indices[index2]]), (index1, index2) -> {
+            int temp = indices[index1];
+            indices[index1] = indices[index2];
+            indices[index2] = temp;
+        });
+        BiSNP[] nsnps = new BiSNP[indices.length];
+        float[] nmafs = new float[indices.length];
+        boolean[] nAltMajors = new boolean[indices.length];
+        RoaringBitmap[][] nSparseSites = new RoaringBitmap[indices.length][];
+        long[][] nDenseSites = new long[indices.length][];
+        for (int i = 0; i < indices.length; i++) {
+            nsnps[i] = this.snps[indices[i]];
+            nmafs[i] = this.mafs[indices[i]];
+            nAltMajors[i] = this.altMajors[indices[i]];
+            nSparseSites[i] = this.sparseSites[indices[i]];
+            nDenseSites[i] = this.denseSites[indices[i]];
+        }
+        this.snps = nsnps;
+        this.mafs = nmafs;
+        this.altMajors = nAltMajors;
+        this.sparseSites = nSparseSites;
+        this.denseSites = nDenseSites;
+        this.taxonSites = null;
+        this.denseTaxon = null;
+        this.denseOrdinals = null;
+        StringBuilder sb = new StringBuilder();
+        sb.append("Sorting finished in ").append(Benchmark.getTimeSpanSeconds(start)).append(" seconds.");
+        System.out.println(sb.toString());
+    }
+
+    @Override
+    public void sortByTaxa() {
+        System.out.println("Start sorting genotype table by taxon");
+        long start = System.nanoTime();
+        int[] indices = PArrayUtils.getIndicesByAscendingValue(this.taxa);
+        boolean ifSorted = true;
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] == i) continue;
+            ifSorted = false;
+            break;
+        }
+        if (ifSorted) {
+            System.out.println("Genotype table is already sorted by taxon");
+            return;
+        }
+        GenotypeSparse gs = this.getSubGenotypeTableByTaxa(indices);
+        this.taxa = gs.taxa;
+        this.altMajors = gs.altMajors;
+        this.sparseSites = gs.sparseSites;
+        this.denseSites = gs.denseSites;
+        this.taxonSites = null;
+        this.denseTaxon = null;
+        this.denseOrdinals = null;
+        StringBuilder sb = new StringBuilder();
+        sb.append("Sorting finished in ").append(Benchmark.getTimeSpanSeconds(start)).append(" seconds.");
+        System.out.println(sb.toString());
+    }
+
+    @Override
+    public int getTaxonIndex(String taxon) {
+        return Arrays.binarySearch(taxa, taxon);
+    }
+
+    @Override
+    public int getSiteIndex(short chromosome, int position) {
+        ChrPos query = new ChrPos (chromosome, position);
+        int index = Arrays.binarySearch(this.snps, query);
+        return index;
+    }
+
+    @Override
+    public byte getGenotypeByte(int siteIndex, int taxonIndex) {
+        if (isMissing(siteIndex, taxonIndex)) return AlleleEncoder.genotypeMissingByte;
+        byte ref = this.getReferenceAlleleByte(siteIndex);
+        byte alt = this.getAlternativeAlleleByte(siteIndex);
+        byte b1 = isPhase1Alternative(siteIndex, taxonIndex) ? alt : ref;
+        byte b2 = isPhase2Alternative(siteIndex, taxonIndex) ? alt : ref;
+        return AlleleEncoder.getGenotypeByte(b1, b2);
+    }
+
+    @Override
+    public boolean isHeterozygous(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex,taxonIndex)) return false;
+        return this.getBit(siteIndex, 0, taxonIndex) != this.getBit(siteIndex, 1, taxonIndex);
+    }
+
+    @Override
+    public boolean isHomozygous(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex,taxonIndex)) return false;
+        return this.getBit(siteIndex, 0, taxonIndex) == this.getBit(siteIndex, 1, taxonIndex);
+    }
+
+    @Override
+    public boolean isMissing(int siteIndex, int taxonIndex) {
+        return this.getBit(siteIndex, 2, taxonIndex);
+    }
+
+    @Override
+    public boolean isPhase1Alternative(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex, taxonIndex)) return false;
+        return this.getBit(siteIndex, 0, taxonIndex) != altMajors[siteIndex];
+    }
+
+    @Override
+    public boolean isPhase2Alternative(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex, taxonIndex)) return false;
+        return this.getBit(siteIndex, 1, taxonIndex) != altMajors[siteIndex];
+    }
+
+    @Override
+    public boolean isPhase1Reference(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex, taxonIndex)) return false;
+        return !this.isPhase1Alternative(siteIndex, taxonIndex);
+    }
+
+    @Override
+    public boolean isPhase2Reference(int siteIndex, int taxonIndex) {
+        if (this.isMissing(siteIndex, taxonIndex)) return false;
+        return !this.isPhase2Alternative(siteIndex, taxonIndex);
+    }
+
+    @Override
+    public boolean isAlternativeAlleleTypeOf(AlleleType at, int siteIndex) {
+        return snps[siteIndex].isAlternativeAlleleTypeOf(at);
+    }
+
+    @Override
+    public boolean isReferenceAlleleTypeOf(AlleleType at, int siteIndex) {
+        return snps[siteIndex].isReferenceAlleleTypeOf(at);
+    }
+
+    @Override
+    public int getMissingNumberBySite(int siteIndex) {
+        return this.getCardinality(siteIndex, 2);
+    }
+
+    @Override
+    public int getMissingNumberByTaxon(int taxonIndex) {
+        return this.getTaxonSites()[taxonIndex][2].getCardinality()+this.getDenseTaxon()[2].cardinality(taxonIndex);
+    }
+
+    @Override
+    public int getNonMissingNumberBySite(int siteIndex) {
+        return this.getTaxaNumber() - this.getMissingNumberBySite(siteIndex);
+    }
+
+    @Override
+    public int getNonMissingNumberByTaxon(int taxonIndex) {
+        return this.getSiteNumber() - this.getMissingNumberByTaxon(taxonIndex);
+    }
+
+    @Override
+    public int getHomozygoteNumberBySite(int siteIndex) {
+        return this.getNonMissingNumberBySite(siteIndex) - this.getHeterozygoteNumberBySite(siteIndex);
+    }
+
+    @Override
+    public int getHomozygoteNumberByTaxon(int taxonIndex) {
+        return this.getNonMissingNumberByTaxon(taxonIndex) - this.getHeterozygoteNumberByTaxon(taxonIndex);
+    }
+
+    @Override
+    public int getHeterozygoteNumberBySite(int siteIndex) {
+        if (sparseSites[siteIndex] != null) return RoaringBitmap.xorCardinality(sparseSites[siteIndex][0], sparseSites[siteIndex][1]);
+        long[] words = denseSites[siteIndex];
+        int cnt = 0;
+        for (int i = 0; i < stride; i++) {
+            cnt+=Long.bitCount(words[i] ^ words[stride+i]);
+        }
+        return cnt;
+    }
+
+    @Override
+    public int getHeterozygoteNumberByTaxon(int taxonIndex) {
+        BitPlane[] planes = this.getDenseTaxon();
+        long[] w1 = planes[0].getWords(taxonIndex);
+        long[] w2 = planes[1].getWords(taxonIndex);
+        int offset = planes[0].getOffset(taxonIndex);
+        int cnt = this.getTaxonSites()[taxonIndex][0].getCardinality();
+        for (int i = offset; i < offset+planes[0].getStride(); i++) {
+            cnt+=Long.bitCount(w1[i] ^ w2[i]);
+        }
+        return cnt;
+    }
+
+    @Override
+    public int getAlternativeAlleleNumberBySite(int siteIndex) {
+        int minor = this.getMinorAlleleNumberBySite(siteIndex);
+        if (!altMajors[siteIndex]) return minor;
+        return 2*this.getNonMissingNumberBySite(siteIndex)-minor;
+    }
+
+    @Override
+    public int getAlternativeAlleleOccurrenceBySite (int siteIndex) {
+        int cnt = 0;
+        if (sparseSites[siteIndex] != null) {
+            RoaringBitmap[] bitmaps = sparseSites[siteIndex];
+            if (!altMajors[siteIndex]) return RoaringBitmap.orCardinality(bitmaps[0], bitmaps[1]);
+            cnt = RoaringBitmap.andCardinality(bitmaps[0], bitmaps[1]);
+        }
+        else {
+            long[] words = denseSites[siteIndex];
+            for (int i = 0; i < stride; i++) {
+                if (altMajors[siteIndex]) cnt+=Long.bitCount(words[i] & words[stride+i]);
+                else cnt+=Long.bitCount(words[i] | words[stride+i]);
+            }
+            if (!altMajors[siteIndex]) return cnt;
+        }
+        return this.getNonMissingNumberBySite(siteIndex)-cnt;
+    }
+
+    @Override
+    public float getHeterozygousProportionByTaxon(int taxonIndex) {
+        return (float)((double)this.getHeterozygoteNumberByTaxon(taxonIndex)/this.getNonMissingNumberByTaxon(taxonIndex));
+    }
+
+    @Override
+    public float getHeterozygousProportionBySite(int siteIndex) {
+        return (float)((double)this.getHeterozygoteNumberBySite(siteIndex)/this.getNonMissingNumberBySite(siteIndex));
+    }
+
+    @Override
+    public byte getMinorAlleleByte(int siteIndex) {
+        if (this.snps[siteIndex].reference.isAlleleTypeOf(AlleleType.Minor)) return this.getReferenceAlleleByte(siteIndex);
+        if (this.snps[siteIndex].alternative.isAlleleTypeOf(AlleleType.Minor)) return this.getAlternativeAlleleByte(siteIndex);
+        this.getMinorAlleleFrequency(siteIndex);
+        return this.getMinorAlleleByte(siteIndex);
+    }
+
+    @Override
+    public char getMinorAlleleBase(int siteIndex) {
+        if (this.snps[siteIndex].reference.isAlleleTypeOf(AlleleType.Minor)) return this.getReferenceAlleleBase(siteIndex);
+        if (this.snps[siteIndex].alternative.isAlleleTypeOf(AlleleType.Minor)) return this.getAlternativeAlleleBase(siteIndex);
+        this.getMinorAlleleFrequency(siteIndex);
+        return this.getMinorAlleleBase(siteIndex);
+    }
+
+    @Override
+    public float getMinorAlleleFrequency(int siteIndex) {
+        if (this.mafs[siteIndex] != Float.MIN_VALUE) return this.mafs[siteIndex];
+        float altFre = this.getAlternativeAlleleFrequency(siteIndex);
+        if (altFre < 0.5) {
+            this.setAlternativeAlleleType(AlleleType.Minor, siteIndex);
+            this.setReferenceAlleleType(AlleleType.Major, siteIndex);
+        }
+        else {
+            this.setReferenceAlleleType(AlleleType.Minor, siteIndex);
+            this.setAlternativeAlleleType(AlleleType.Major, siteIndex);
+            altFre = 1 - altFre;
+        }
+        mafs[siteIndex] = altFre;
+        return altFre;
+    }
+
+    @Override
+    public byte getMajorAlleleByte(int siteIndex) {
+        if (this.snps[siteIndex].reference.isAlleleTypeOf(AlleleType.Major)) return this.getReferenceAlleleByte(siteIndex);
+        if (this.snps[siteIndex].alternative.isAlleleTypeOf(AlleleType.Major)) return this.getAlternativeAlleleByte(siteIndex);
+        this.getMinorAlleleFrequency(siteIndex);
+        return this.getMajorAlleleByte(siteIndex);
+    }
+
+    @Override
+    public char getMajorAlleleBase(int siteIndex) {
+        if (this.snps[siteIndex].reference.isAlleleTypeOf(AlleleType.Major)) return this.getReferenceAlleleBase(siteIndex);
+        if (this.snps[siteIndex].alternative.isAlleleTypeOf(AlleleType.Major)) return this.getAlternativeAlleleBase(siteIndex);
+        this.getMinorAlleleFrequency(siteIndex);
+        return this.getMajorAlleleBase(siteIndex);
+    }
+
+    @Override
+    public float getMajorAlleleFrequency(int siteIndex) {
+        return 1-this.getMinorAlleleFrequency(siteIndex);
+    }
+
+    @Override
+    public byte getReferenceAlleleByte(int siteIndex) {
+        return snps[siteIndex].getReferenceAlleleByte();
+    }
+
+    @Override
+    public char getReferenceAlleleBase(int siteIndex) {
+        return snps[siteIndex].getReferenceAlleleBase();
+    }
+
+    @Override
+    public float getReferenceAlleleFrequency(int siteIndex) {
+        if (this.isReferenceAlleleTypeOf(AlleleType.Minor, siteIndex)) return this.mafs[siteIndex];
+        if (this.isReferenceAlleleTypeOf(AlleleType.Major, siteIndex)) return 1-this.mafs[siteIndex];
+        this.getMinorAlleleFrequency(siteIndex);
+        return this.getReferenceAlleleFrequency(siteIndex);
+    }
+
+    @Override
+    public byte getAlternativeAlleleByte(int siteIndex) {
+        return snps[siteIndex].getAlternativeAlleleByte();
+    }
+
+    @Override
+    public char getAlternativeAlleleBase(int siteIndex) {
+        return snps[siteIndex].getAlternativeAlleleBase();
+    }
+
+    @Override
+    public float getAlternativeAlleleFrequency(int siteIndex) {
+        if (this.isAlternativeAlleleTypeOf(AlleleType.Minor, siteIndex)) return mafs[siteIndex];
+        if (this.isAlternativeAlleleTypeOf(AlleleType.Major, siteIndex)) return 1-mafs[siteIndex];
+        return (float)((double)this.getAlternativeAlleleNumberBySite(siteIndex)/(this.getNonMissingNumberBySite(siteIndex)*2));
+    }
+
+    @Override
+    public int getStartIndexOfChromosome(short chromosome) {
+        int index = this.getSiteIndex(chromosome, Integer.MIN_VALUE);
+        if (index < 0) {
+            index = -index - 1;
+            if (index < this.getSiteNumber() && this.getChromosome(index) == chromosome) return index;
+            return -1;
+        }
+        else {
+            while (index > 0 && this.getChromosome(index-1) == chromosome) {
+                index--;
+            }
+            return index;
+        }
+    }
+
+    @Override
+    public int getEndIndexOfChromosome(short chromosome) {
+        int index = this.getSiteIndex(chromosome, Integer.MAX_VALUE);
+        if (index < 0) {
+            index = -index - 2;
+            if (index >= 0 && this.getChromosome(index) == chromosome) return index+1;
+            else return -1;
+        }
+        else {
+            while ((index+1) < this.getSiteNumber() && this.getChromosome(index+1) == chromosome) {
+                index++;
+            }
+            return index+1;
+        }
+    }
+
+    /**
+     * Return bitmaps of sparse sites by taxon restricted to selected sites, with unions used by {@link #count(RoaringBitmap[], RoaringBitmap[], long[])}
+     * @param selection selected sites, null for all sites
+     * @return
+     */
+    private RoaringBitmap[][] getTaxonSites (RoaringBitmap selection) {
+        RoaringBitmap[][] bitmaps = this.getTaxonSites();
+        RoaringBitmap[][] selected = new RoaringBitmap[bitmaps.length][];
+        IntStream.range(0, bitmaps.length).parallel().forEach(i -> {
+            selected[i] = this.getTaxonSites(bitmaps[i], selection);
+        });
+        return selected;
+    }
+
+    /**
+     * Return bitmaps of sparse sites of a taxon restricted to selected sites, followed by the union of heterozygous and missing sites,
+     * and the union of all three
+     * @param bitmaps
+     * @param selection selected sites, null for all sites
+     * @return
+     */
+    private RoaringBitmap[] getTaxonSites (RoaringBitmap[] bitmaps, RoaringBitmap selection) {
+        RoaringBitmap[] selected = new RoaringBitmap[5];
+        for (int i = 0; i < 3; i++) {
+            selected[i] = selection == null ? bitmaps[i] : RoaringBitmap.and(bitmaps[i], selection);
+        }
+        selected[3] = RoaringBitmap.or(selected[0], selected[2]);
+        selected[4] = RoaringBitmap.or(selected[3], selected[1]);
+        return selected;
+    }
+
+    /**
+     * Count different alleles and missing sites of two taxa on sparse sites, from their bitmaps of sites.
+     * A site contributes 2 of 4 when either taxon is heterozygous, and 4 of 4 when the two taxa are homozygous for different alleles,
+     * as in {@link IBSDistanceKernel}. Flipping the stored allele does not change the counts, so only intersections of bitmaps are counted.
+     * @param x bitmaps of the first taxon from {@link #getTaxonSites(RoaringBitmap[], RoaringBitmap)}
+     * @param y bitmaps of the second taxon
+     * @param counts number of different alleles and number of sites missing in either taxon are added
+     */
+    private static void count (RoaringBitmap[] x, RoaringBitmap[] y, long[] counts) {
+        long missing = x[2].getCardinality()+y[2].getCardinality()-getAndCardinality(x[2], y[2]);
+        long het = x[0].getCardinality()-getAndCardinality(x[0], y[2])+y[0].getCardinality()-getAndCardinality(y[0], x[3]);
+        long hom = x[1].getCardinality()-getAndCardinality(x[1], y[4])+y[1].getCardinality()-getAndCardinality(y[1], x[4]);
+        counts[0]+=2*het+4*hom;
+        counts[1]+=missing;
+    }
+
+    private static int getAndCardinality (RoaringBitmap x, RoaringBitmap y) {
+        if (x.isEmpty() || y.isEmpty()) return 0;
+        return RoaringBitmap.andCardinality(x, y);
+    }
+
+    private static float getDistance (long diff, long missing, int siteNumber) {
+        return (float) ((double)diff/4/(siteNumber-missing));
+    }
+
+    /**
+     * Return the IBS kernel of selected dense sites
+     * @param siteIndices sorted selected sites
+     * @return
+     */
+    private IBSDistanceKernel getDenseKernel (int[] siteIndices) {
+        BitPlane[] planes = this.getDenseTaxon();
+        int[] ordinals = Arrays.stream(siteIndices).map(i -> denseOrdinals[i]).filter(i -> i > -1).toArray();
+        return new IBSDistanceKernel(planes, ordinals);
+    }
+
+    /**
+     * Return the IBS kernel of dense sites in a range of sites
+     * @param startSiteIndex inclusive
+     * @param endSiteIndex exclusive
+     * @return
+     */
+    private IBSDistanceKernel getDenseKernel (int startSiteIndex, int endSiteIndex) {
+        BitPlane[] planes = this.getDenseTaxon();
+        int start = 0;
+        int end = 0;
+        for (int i = 0; i < endSiteIndex; i++) {
+            if (denseOrdinals[i] < 0) continue;
+            if (i < startSiteIndex) start++;
+            end++;
+        }
+        return new IBSDistanceKernel(planes, start, end);
+    }
+
+    private static int[] getSortedIndices (int[] siteIndices) {
+        int[] indices = siteIndices.clone();
+        Arrays.sort(indices);
+        return indices;
+    }
+
+    private RoaringBitmap getSelection (int startSiteIndex, int endSiteIndex) {
+        if (startSiteIndex <= 0 && endSiteIndex >= this.getSiteNumber()) return null;
+        RoaringBitmap selection = new RoaringBitmap();
+        selection.add((long)startSiteIndex, (long)endSiteIndex);
+        return selection;
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2) {
+        return this.getIBSDistance(taxonIndex1, taxonIndex2, 0, this.getSiteNumber());
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2, int startSiteIndex, int endSiteIndex) {
+        return this.getIBSDistance(taxonIndex1, taxonIndex2, this.getSelection(startSiteIndex, endSiteIndex),
+                this.getDenseKernel(startSiteIndex, endSiteIndex), endSiteIndex-startSiteIndex);
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2, int[] siteIndices) {
+        int[] indices = getSortedIndices(siteIndices);
+        return this.getIBSDistance(taxonIndex1, taxonIndex2, RoaringBitmap.bitmapOf(indices), this.getDenseKernel(indices), indices.length);
+    }
+
+    private float getIBSDistance (int taxonIndex1, int taxonIndex2, RoaringBitmap selection, IBSDistanceKernel kernel, int siteNumber) {
+        RoaringBitmap[][] bitmaps = this.getTaxonSites();
+        RoaringBitmap[] x = this.getTaxonSites(bitmaps[taxonIndex1], selection);
+        RoaringBitmap[] y = this.getTaxonSites(bitmaps[taxonIndex2], selection);
+        long[] counts = new long[2];
+        kernel.count(taxonIndex1, taxonIndex2, counts);
+        count(x, y, counts);
+        return getDistance(counts[0], counts[1], siteNumber);
+    }
+
+    @Override
+    public float[][] getIBSDistanceMatrix() {
+        return this.getIBSDistanceMatrix(0, this.getSiteNumber());
+    }
+
+    @Override
+    public float[][] getIBSDistanceMatrix(int startIndex, int endIndex) {
+        return this.getIBSDistanceMatrix(this.getSelection(startIndex, endIndex), this.getDenseKernel(startIndex, endIndex), endIndex-startIndex);
+    }
+
+    @Override
+    public float[][] getIBSDistanceMatrix(int[] siteIndices) {
+        int[] indices = getSortedIndices(siteIndices);
+        return this.getIBSDistanceMatrix(RoaringBitmap.bitmapOf(indices), this.getDenseKernel(indices), indices.length);
+    }
+
+    /**
+     * Return the IBS distance matrix. Tiles of taxa pairs are counted by the kernel on dense sites, then by bitmaps on sparse sites.
+     * @param selection selected sites, null for all sites
+     * @param kernel kernel of the selected dense sites
+     * @param siteNumber number of the selected sites
+     * @return
+     */
+    private float[][] getIBSDistanceMatrix (RoaringBitmap selection, IBSDistanceKernel kernel, int siteNumber) {
+        RoaringBitmap[][] bitmaps = this.getTaxonSites(selection);
+        int taxaNumber = this.getTaxaNumber();
+        float[][] matrix = new float[taxaNumber][taxaNumber];
+        int tileSize = IBSDistanceKernel.taxaTileSize;
+        int tileNumber = (taxaNumber+tileSize-1)/tileSize;
+        IntStream.range(0, tileNumber*tileNumber).parallel().forEach(k -> {
+            int ti = k/tileNumber;
+            int tj = k%tileNumber;
+            if (tj < ti) return;
+            int i0 = ti*tileSize;
+            int i1 = Math.min(i0+tileSize, taxaNumber);
+            int j0 = tj*tileSize;
+            int j1 = Math.min(j0+tileSize, taxaNumber);
+            int width = j1-j0;
+            long[] diffs = new long[(i1-i0)*width];
+            long[] missings = new long[diffs.length];
+            kernel.countTile(i0, i1, j0, j1, diffs, missings);
+            long[] counts = new long[2];
+            for (int i = i0; i < i1; i++) {
+                for (int j = Math.max(j0, i+1); j < j1; j++) {
+                    int index = (i-i0)*width+j-j0;
+                    counts[0] = diffs[index];
+                    counts[1] = missings[index];
+                    count(bitmaps[i], bitmaps[j], counts);
+                    matrix[i][j] = getDistance(counts[0], counts[1], siteNumber);
+                    matrix[j][i] = matrix[i][j];
+                }
+            }
+        });
+        return matrix;
+    }
+
+    /**
+     * Return a sub table of sites, sites are shared with this table
+     * @param siteIndices
+     * @return
+     */
+    @Override
+    public GenotypeSparse getSubGenotypeTableBySite(int[] siteIndices) {
+        BiSNP[] nsnps = new BiSNP[siteIndices.length];
+        boolean[] nAltMajors = new boolean[siteIndices.length];
+        RoaringBitmap[][] nSparseSites = new RoaringBitmap[siteIndices.length][];
+        long[][] nDenseSites = new long[siteIndices.length][];
+        for (int i = 0; i < siteIndices.length; i++) {
+            nsnps[i] = this.snps[siteIndices[i]];
+            nAltMajors[i] = this.altMajors[siteIndices[i]];
+            nSparseSites[i] = this.sparseSites[siteIndices[i]];
+            nDenseSites[i] = this.denseSites[siteIndices[i]];
+        }
+        return new GenotypeSparse(this.taxa, nsnps, nAltMajors, nSparseSites, nDenseSites);
+    }
+
+    /**
+     * Return a sub table of taxa, sites are encoded again since minor alleles may change
+     * @param taxaIndices
+     * @return
+     */
+    @Override
+    public GenotypeSparse getSubGenotypeTableByTaxa(int[] taxaIndices) {
+        String[] nTaxa = new String[taxaIndices.length];
+        for (int i = 0; i < taxaIndices.length; i++) {
+            nTaxa[i] = this.getTaxonName(taxaIndices[i]);
+        }
+        int siteNumber = this.getSiteNumber();
+        BiSNP[] nsnps = new BiSNP[siteNumber];
+        GenotypeSparse gs = new GenotypeSparse(nTaxa, nsnps, new boolean[siteNumber], new RoaringBitmap[siteNumber][], new long[siteNumber][]);
+        int nStride = gs.stride;
+        IntStream.range(0, siteNumber).parallel().forEach(i -> {
+            nsnps[i] = this.snps[i].replicateWithoutFeature();
+            long[] words = this.decode(i);
+            long[] nWords = new long[3*nStride];
+            for (int j = 0; j < taxaIndices.length; j++) {
+                int t = taxaIndices[j];
+                for (int k = 0; k < 3; k++) {
+                    if ((words[k*stride+(t >>> 6)] & (1L << t)) != 0) nWords[k*nStride+(j >>> 6)]|=1L << j;
+                }
+            }
+            gs.altMajors[i] = gs.encode(Arrays.copyOfRange(nWords, 0, nStride), Arrays.copyOfRange(nWords, nStride, 2*nStride),
+                    Arrays.copyOfRange(nWords, 2*nStride, 3*nStride), 0, gs.sparseSites, gs.denseSites, i);
+        });
+        return gs;
+    }
+
+    @Override
+    public void getSiteWords(int startSiteIndex, int endSiteIndex, long[] phase1, long[] phase2, long[] missing) {
+        IntStream.range(startSiteIndex, endSiteIndex).parallel().forEach(i -> {
+            int offset = (i-startSiteIndex)*stride;
+            this.decode(i, phase1, offset, phase2, offset, missing, offset);
+        });
+    }
+
+    @Override
+    public String getSNPInfo(int siteIndex) {
+        return this.snps[siteIndex].getSNPInfo();
+    }
+
+    @Override
+    public String getUnphasedVCFRecord(int siteIndex) {
+        StringBuilder vsb = new StringBuilder();
+        char delimiter = '/';
+        vsb.append(this.getChromosome(siteIndex)).append("\t").append(this.getPosition(siteIndex)).append("\t").append(this.getChromosome(siteIndex)).append("-").append(this.getPosition(siteIndex)).append("\t");
+        vsb.append(this.getReferenceAlleleBase(siteIndex)).append("\t").append(this.getAlternativeAlleleBase(siteIndex)).append("\t.\t.\t");
+        if (this.snps[siteIndex].getSNPInfo() == null) vsb.append(".");
+        else vsb.append(this.snps[siteIndex].getSNPInfo());
+        vsb.append("\t").append("GT");
+        long[] words = this.decode(siteIndex);
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            int w = i >>> 6;
+            long bit = 1L << i;
+            if ((words[2*stride+w] & bit) != 0) vsb.append("\t").append(".").append(delimiter).append(".");
+            else {
+                vsb.append("\t");
+                if ((words[w] & bit) != 0) vsb.append("1");
+                else vsb.append("0");
+                vsb.append(delimiter);
+                if ((words[stride+w] & bit) != 0) vsb.append("1");
+                else vsb.append("0");
+            }
+        }
+        return vsb.toString();
+    }
+
+    @Override
+    public ByteBuffer getBinaryOutput(int siteIndex, ByteBuffer bb) {
+        bb.putShort(this.getChromosome(siteIndex));
+        bb.putInt(this.getPosition(siteIndex));
+        bb.put(AlleleEncoder.getGenotypeByte(this.getReferenceAlleleByte(siteIndex), this.getAlternativeAlleleByte(siteIndex)));
+        bb.put(this.snps[siteIndex].getReferenceAlleleFeature());
+        bb.put(this.snps[siteIndex].getAlternativeAlleleFeature());
+        long[] words = this.decode(siteIndex);
+        for (int i = 0; i < words.length; i++) {
+            bb.putLong(Long.reverseBytes(words[i]));
+        }
+        return bb;
+    }
+
+    @Override
+    public void setAlternativeAlleleType(AlleleType at, int siteIndex) {
+        this.snps[siteIndex].setAlternativeAlleleType(at);
+    }
+
+    @Override
+    public void setReferenceAlleleType(AlleleType at, int siteIndex) {
+        this.snps[siteIndex].setReferenceAlleleType(at);
+    }
+}
@@ -0,0 +1,260 @@
+package pgl.infra.dna.genot;
+
+import pgl.infra.utils.IOUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.stream.IntStream;
+
+/**
+ * Per-site and per-taxon summary statistics of a genotype table, i.e. the numbers of missing genotypes, heterozygotes, and alternative alleles.
+ * MAF and major alleles are derived from them.
+ * <p>
+ * Statistics are computed in one parallel pass over the bit planes of {@link GenotypeGrid}, or over the accessors of any {@link GenotypeTable}.
+ * They can be saved alongside a binary genotype file (see {@link #getStatisticsFileName(String)}), and are read back when the binary file is loaded,
+ * as long as the binary file is not changed afterwards.
+ *
+ * @author feilu
+ */
+public class GenotypeStatistics {
+    int siteNumber = 0;
+    int taxaNumber = 0;
+    int[] siteMissingNumbers = null;
+    int[] siteHeterozygoteNumbers = null;
+    int[] siteAlternativeNumbers = null;
+    int[] taxonMissingNumbers = null;
+    int[] taxonHeterozygoteNumbers = null;
+    int[] taxonAlternativeNumbers = null;
+
+    private GenotypeStatistics (int siteNumber, int taxaNumber) {
+        this.siteNumber = siteNumber;
+        this.taxaNumber = taxaNumber;
+        siteMissingNumbers = new int[siteNumber];
+        siteHeterozygoteNumbers = new int[siteNumber];
+        siteAlternativeNumbers = new int[siteNumber];
+        taxonMissingNumbers = new int[taxaNumber];
+        taxonHeterozygoteNumbers = new int[taxaNumber];
+        taxonAlternativeNumbers = new int[taxaNumber];
+    }
+
+    /**
+     * Compute statistics from bit planes of phase 1, phase 2, and missing
+     * @param genoSite rows are sites
+     * @param genoTaxon rows are taxa
+     */
+    public GenotypeStatistics (BitPlane[] genoSite, BitPlane[] genoTaxon) {
+        this(genoSite[0].getRowNumber(), genoTaxon[0].getRowNumber());
+        IntStream.range(0, siteNumber+taxaNumber).parallel().forEach(i -> {
+            if (i < siteNumber) {
+                countRow(genoSite, i, siteMissingNumbers, siteHeterozygoteNumbers, siteAlternativeNumbers);
+            }
+            else {
+                countRow(genoTaxon, i-siteNumber, taxonMissingNumbers, taxonHeterozygoteNumbers, taxonAlternativeNumbers);
+            }
+        });
+    }
+
+    /**
+     * Compute statistics from the accessors of a genotype table, sites are processed in parallel
+     * @param gt
+     */
+    public GenotypeStatistics (GenotypeTable gt) {
+        this(gt.getSiteNumber(), gt.getTaxaNumber());
+        int blockSize = 4096;
+        int blockNumber = (siteNumber+blockSize-1)/blockSize;
+        int[][] blockMissings = new int[blockNumber][];
+        int[][] blockHets = new int[blockNumber][];
+        int[][] blockAlts = new int[blockNumber][];
+        IntStream.range(0, blockNumber).parallel().forEach(b -> {
+            int[] missing = new int[taxaNumber];
+            int[] het = new int[taxaNumber];
+            int[] alt = new int[taxaNumber];
+            for (int i = b*blockSize; i < Math.min(siteNumber, (b+1)*blockSize); i++) {
+                int sm = 0;
+                int sh = 0;
+                int sa = 0;
+                for (int j = 0; j < taxaNumber; j++) {
+                    if (gt.isMissing(i, j)) {
+                        sm++;
+                        missing[j]++;
+                        continue;
+                    }
+                    boolean p1 = gt.isPhase1Alternative(i, j);
+                    boolean p2 = gt.isPhase2Alternative(i, j);
+                    if (p1 != p2 || (p1 && gt.isHeterozygous(i, j))) {
+                        sh++;
+                        het[j]++;
+                    }
+                    int a = (p1 ? 1 : 0)+(p2 ? 1 : 0);
+                    sa+=a;
+                    alt[j]+=a;
+                }
+                siteMissingNumbers[i] = sm;
+                siteHeterozygoteNumbers[i] = sh;
+                siteAlternativeNumbers[i] = sa;
+            }
+            blockMissings[b] = missing;
+            blockHets[b] = het;
+            blockAlts[b] = alt;
+        });
+        for (int b = 0; b < blockNumber; b++) {
+            for (int j = 0; j < taxaNumber; j++) {
+                taxonMissingNumbers[j]+=blockMissings[b][j];
+                taxonHeterozygoteNumbers[j]+=blockHets[b][j];
+                taxonAlternativeNumbers[j]+=blockAlts[b][j];
+            }
+        }
+    }
+
+    private static void countRow (BitPlane[] planes, int row, int[] missings, int[] hets, int[] alts) {
+        long[] w1 = planes[0].getWords(row);
+        long[] w2 = planes[1].getWords(row);
+        long[] wm = planes[2].getWords(row);
+        int offset = planes[0].getOffset(row);
+        int missing = 0;
+        int het = 0;
+        int alt = 0;
+        for (int i = offset; i < offset+planes[0].getStride(); i++) {
+            missing+=Long.bitCount(wm[i]);
+            het+=Long.bitCount(w1[i]^w2[i]);
+            alt+=Long.bitCount(w1[i])+Long.bitCount(w2[i]);
+        }
+        missings[row] = missing;
+        hets[row] = het;
+        alts[row] = alt;
+    }
+
+    public int getSiteNumber () {
+        return siteNumber;
+    }
+
+    public int getTaxaNumber () {
+        return taxaNumber;
+    }
+
+    public int getMissingNumberBySite (int siteIndex) {
+        return siteMissingNumbers[siteIndex];
+    }
+
+    public int getMissingNumberByTaxon (int taxonIndex) {
+        return taxonMissingNumbers[taxonIndex];
+    }
+
+    public int getNonMissingNumberBySite (int siteIndex) {
+        return taxaNumber-siteMissingNumbers[siteIndex];
+    }
+
+    public int getNonMissingNumberByTaxon (int taxonIndex) {
+        return siteNumber-taxonMissingNumbers[taxonIndex];
+    }
+
+    public int getHeterozygoteNumberBySite (int siteIndex) {
+        return siteHeterozygoteNumbers[siteIndex];
+    }
+
+    public int getHeterozygoteNumberByTaxon (int taxonIndex) {
+        return taxonHeterozygoteNumbers[taxonIndex];
+    }
+
+    /**
+     * Return the number of alternative alleles of a site, phase 1 and phase 2 are both counted
+     * @param siteIndex
+     * @return
+     */
+    public int getAlternativeAlleleNumberBySite (int siteIndex) {
+        return siteAlternativeNumbers[siteIndex];
+    }
+
+    /**
+     * Return the number of alternative alleles of a taxon, phase 1 and phase 2 are both counted
+     * @param taxonIndex
+     * @return
+     */
+    public int getAlternativeAlleleNumberByTaxon (int taxonIndex) {
+        return taxonAlternativeNumbers[taxonIndex];
+    }
+
+    public float getAlternativeAlleleFrequency (int siteIndex) {
+        return (float)((double)siteAlternativeNumbers[siteIndex]/(this.getNonMissingNumberBySite(siteIndex)*2));
+    }
+
+    public float getMinorAlleleFrequency (int siteIndex) {
+        float altFre = this.getAlternativeAlleleFrequency(siteIndex);
+        if (altFre < 0.5) return altFre;
+        return 1 - altFre;
+    }
+
+    /**
+     * Return if the alternative allele is the major allele, i.e. alternative allele frequency is no less than 0.5
+     * @param siteIndex
+     * @return
+     */
+    public boolean isAlternativeMajor (int siteIndex) {
+        return !(this.getAlternativeAlleleFrequency(siteIndex) < 0.5);
+    }
+
+    /**
+     * Return the name of the statistics file of a binary genotype file
+     * @param binaryFileS
+     * @return
+     */
+    public static String getStatisticsFileName (String binaryFileS) {
+        return binaryFileS+".stat";
+    }
+
+    /**
+     * Save the statistics alongside a binary genotype file, the size of the binary file is recorded to validate the statistics on reading
+     * @param binaryFileS
+     */
+    public void writeAlongside (String binaryFileS) {
+        try {
+            DataOutputStream dos = IOUtils.getBinaryWriter(getStatisticsFileName(binaryFileS));
+            dos.writeLong(new File(binaryFileS).length());
+            dos.writeInt(siteNumber);
+            dos.writeInt(taxaNumber);
+            int[][] arrays = {siteMissingNumbers, siteHeterozygoteNumbers, siteAlternativeNumbers, taxonMissingNumbers, taxonHeterozygoteNumbers, taxonAlternativeNumbers};
+            for (int i = 0; i < arrays.length; i++) {
+                for (int j = 0; j < arrays[i].length; j++) {
+                    dos.writeInt(arrays[i][j]);
+                }
+            }
+            dos.flush();
+            dos.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read the statistics saved alongside a binary genotype file
+     * @param binaryFileS
+     * @return null if the statistics file does not exist, or is older than or does not match the binary file
+     */
+    public static GenotypeStatistics readAlongside (String binaryFileS) {
+        File binaryFile = new File(binaryFileS);
+        File statFile = new File(getStatisticsFileName(binaryFileS));
+        if (!statFile.exists() || statFile.lastModified() < binaryFile.lastModified()) return null;
+        try {
+            DataInputStream dis = IOUtils.getBinaryReader(statFile.getAbsolutePath());
+            if (dis.readLong() != binaryFile.length()) {
+                dis.close();
+                return null;
+            }
+            GenotypeStatistics gs = new GenotypeStatistics(dis.readInt(), dis.readInt());
+            int[][] arrays = {gs.siteMissingNumbers, gs.siteHeterozygoteNumbers, gs.siteAlternativeNumbers, gs.taxonMissingNumbers, gs.taxonHeterozygoteNumbers, gs.taxonAlternativeNumbers};
+            for (int i = 0; i < arrays.length; i++) {
+                for (int j = 0; j < arrays[i].length; j++) {
+                    arrays[i][j] = dis.readInt();
+                }
+            }
+            dis.close();
+            return gs;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
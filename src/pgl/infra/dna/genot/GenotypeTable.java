@@ -3,6 +3,7 @@ package pgl.infra.dna.genot;
 import pgl.infra.dna.allele.AlleleType;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Interface for methods of a genotype table
@@ -404,6 +405,23 @@ public interface GenotypeTable {
      */
     public String getUnphasedVCFRecord(int siteIndex);
 
+    /**
+     * Return if the table holds bi-allelic sites only, records of tables that may hold multi-allelic sites are formatted by the table
+     * @return
+     */
+    default boolean isBiallelic () {
+        return true;
+    }
+
+    /**
+     * Return the annotation information (INFO in VCF) of a site
+     * @param siteIndex
+     * @return null if the table does not keep it
+     */
+    default String getSNPInfo (int siteIndex) {
+        return null;
+    }
+
     /**
      * Return a binary genotype output at a specific site, see {@link ByteBuffer}
      * @param index
@@ -424,4 +442,86 @@ public interface GenotypeTable {
      * @param siteIndex
      */
     public void setReferenceAlleleType (AlleleType at, int siteIndex);
+
+    /**
+     * Return the number of 64-bit words of a site in {@link #getSiteWords(int, int, long[], long[], long[])}
+     * @return
+     */
+    default int getWordNumberBySite () {
+        return (this.getTaxaNumber()+63) >>> 6;
+    }
+
+    /**
+     * Return the number of 64-bit words of a taxon in {@link #getTaxonWords(int, int, long[], long[], long[])}
+     * @return
+     */
+    default int getWordNumberByTaxon () {
+        return (this.getSiteNumber()+63) >>> 6;
+    }
+
+    /**
+     * Copy the bit words of phase 1 alternative, phase 2 alternative, and missing of a range of sites into buffers.
+     * Site i takes the words from (i-startSiteIndex)*{@link #getWordNumberBySite()}, bit j of word k of a site is taxon 64*k+j.
+     * Phase bits of missing genotypes and unused bits of the last word are 0. A buffer can be null if it is not needed.
+     * <p>
+     * The default implementation goes through the accessors of genotypes, implementations backed by bit words override it with array copies.
+     * @param startSiteIndex inclusive
+     * @param endSiteIndex exclusive
+     * @param phase1
+     * @param phase2
+     * @param missing
+     */
+    default void getSiteWords (int startSiteIndex, int endSiteIndex, long[] phase1, long[] phase2, long[] missing) {
+        int stride = this.getWordNumberBySite();
+        int taxaNumber = this.getTaxaNumber();
+        long[][] buffers = {phase1, phase2, missing};
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] != null) Arrays.fill(buffers[i], 0, (endSiteIndex-startSiteIndex)*stride, 0);
+        }
+        for (int i = startSiteIndex; i < endSiteIndex; i++) {
+            int offset = (i-startSiteIndex)*stride;
+            for (int j = 0; j < taxaNumber; j++) {
+                int w = offset+(j >>> 6);
+                long bit = 1L << j;
+                if (this.isMissing(i, j)) {
+                    if (missing != null) missing[w]|=bit;
+                    continue;
+                }
+                if (phase1 != null && this.isPhase1Alternative(i, j)) phase1[w]|=bit;
+                if (phase2 != null && this.isPhase2Alternative(i, j)) phase2[w]|=bit;
+            }
+        }
+    }
+
+    /**
+     * Copy the bit words of phase 1 alternative, phase 2 alternative, and missing of a range of taxa into buffers.
+     * Taxon j takes the words from (j-startTaxonIndex)*{@link #getWordNumberByTaxon()}, bit i of word k of a taxon is site 64*k+i.
+     * Phase bits of missing genotypes and unused bits of the last word are 0. A buffer can be null if it is not needed.
+     * @param startTaxonIndex inclusive
+     * @param endTaxonIndex exclusive
+     * @param phase1
+     * @param phase2
+     * @param missing
+     */
+    default void getTaxonWords (int startTaxonIndex, int endTaxonIndex, long[] phase1, long[] phase2, long[] missing) {
+        int stride = this.getWordNumberByTaxon();
+        int siteNumber = this.getSiteNumber();
+        long[][] buffers = {phase1, phase2, missing};
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] != null) Arrays.fill(buffers[i], 0, (endTaxonIndex-startTaxonIndex)*stride, 0);
+        }
+        for (int i = 0; i < siteNumber; i++) {
+            int w = i >>> 6;
+            long bit = 1L << i;
+            for (int j = startTaxonIndex; j < endTaxonIndex; j++) {
+                int offset = (j-startTaxonIndex)*stride+w;
+                if (this.isMissing(i, j)) {
+                    if (missing != null) missing[offset]|=bit;
+                    continue;
+                }
+                if (phase1 != null && this.isPhase1Alternative(i, j)) phase1[offset]|=bit;
+                if (phase2 != null && this.isPhase2Alternative(i, j)) phase2[offset]|=bit;
+            }
+        }
+    }
 }
@@ -0,0 +1,845 @@
+package pgl.infra.dna.genot;
+
+import cern.colt.GenericSorting;
+import pgl.infra.dna.allele.AlleleEncoder;
+import pgl.infra.dna.allele.AlleleType;
+import pgl.infra.dna.snp.BiSNP;
+import pgl.infra.utils.PArrayUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * A read-through view of a subset of sites and taxa of a genotype table. Nothing is copied, genotypes are read from the parent table
+ * through index maps, i.e. a range or an array of site indices, and an array of taxon indices.
+ * <p>
+ * When the parent is a {@link GenotypeGrid}, counts by site and by taxon are computed on the words of the parent bit planes,
+ * masked by the selected taxa or sites. Views of views map directly to the first parent.
+ * <p>
+ * Allele types set on a view are kept in the view, the parent is not changed. A view of all taxa inherits the allele types of the parent,
+ * a view of a subset of taxa does not, since types like {@link AlleleType#Minor} depend on taxa.
+ * The parent should not be sorted or changed while the view is in use. Call {@link #materialize()} to get an independent {@link GenotypeGrid}.
+ *
+ * @author feilu
+ */
+public class GenotypeView implements GenotypeTable {
+    GenotypeTable parent = null;
+    /**
+     * Parent index of the first site, used when siteMap is null
+     */
+    int siteStart = 0;
+    int siteNumber = 0;
+    /**
+     * Parent indices of sites, null if sites are a range
+     */
+    int[] siteMap = null;
+    /**
+     * Parent indices of taxa, null if all taxa are in the view
+     */
+    int[] taxonMap = null;
+    String[] taxa = null;
+    /**
+     * Taxa sorted by name and their indices in the view, null if taxa of the view are sorted
+     */
+    String[] sortedTaxa = null;
+    int[] sortedTaxonIndices = null;
+    /**
+     * Masks of the selected columns of the parent site planes (taxa) and taxon planes (sites), null if not applicable
+     */
+    long[] taxonMask = null;
+    long[] siteMask = null;
+    /**
+     * Allele features set in the view, allocated on the first setting
+     */
+    byte[] refFeatures = null;
+    byte[] altFeatures = null;
+
+    /**
+     * Construct a view of sites and taxa
+     * @param parent
+     * @param siteIndices parent indices of sites, null for all sites
+     * @param taxaIndices parent indices of taxa, null for all taxa
+     */
+    public GenotypeView (GenotypeTable parent, int[] siteIndices, int[] taxaIndices) {
+        this.initialize(parent, siteIndices, 0, siteIndices == null ? parent.getSiteNumber() : siteIndices.length, taxaIndices);
+    }
+
+    /**
+     * Construct a view of a range of sites and all taxa
+     * @param parent
+     * @param startSiteIndex inclusive
+     * @param endSiteIndex exclusive
+     */
+    public GenotypeView (GenotypeTable parent, int startSiteIndex, int endSiteIndex) {
+        this.initialize(parent, null, startSiteIndex, Math.max(0, endSiteIndex-startSiteIndex), null);
+    }
+
+    /**
+     * Construct a view of sites and taxa selected by bitmaps
+     * @param parent
+     * @param siteSelection selected sites, null for all sites
+     * @param taxonSelection selected taxa, null for all taxa
+     */
+    public GenotypeView (GenotypeTable parent, BitSet siteSelection, BitSet taxonSelection) {
+        this(parent, siteSelection == null ? null : siteSelection.stream().toArray(), taxonSelection == null ? null : taxonSelection.stream().toArray());
+    }
+
+    private void initialize (GenotypeTable parent, int[] siteIndices, int siteStart, int siteNumber, int[] taxaIndices) {
+        GenotypeView pv = null;
+        if (parent instanceof GenotypeView) {
+            pv = (GenotypeView)parent;
+            if (siteIndices == null) {
+                siteIndices = IntStream.range(siteStart, siteStart+siteNumber).toArray();
+                siteStart = 0;
+            }
+            int[] pSiteIndices = new int[siteIndices.length];
+            for (int i = 0; i < siteIndices.length; i++) {
+                pSiteIndices[i] = pv.getParentSiteIndex(siteIndices[i]);
+            }
+            if (taxaIndices == null) {
+                taxaIndices = pv.taxonMap;
+            }
+            else if (pv.taxonMap != null) {
+                int[] pTaxaIndices = new int[taxaIndices.length];
+                for (int i = 0; i < taxaIndices.length; i++) {
+                    pTaxaIndices[i] = pv.taxonMap[taxaIndices[i]];
+                }
+                taxaIndices = pTaxaIndices;
+            }
+            if (pv.refFeatures != null) {
+                this.refFeatures = new byte[siteIndices.length];
+                this.altFeatures = new byte[siteIndices.length];
+                for (int i = 0; i < siteIndices.length; i++) {
+                    refFeatures[i] = pv.refFeatures[siteIndices[i]];
+                    altFeatures[i] = pv.altFeatures[siteIndices[i]];
+                }
+            }
+            siteIndices = pSiteIndices;
+            parent = pv.parent;
+        }
+        this.parent = parent;
+        this.siteMap = siteIndices;
+        this.siteStart = siteStart;
+        this.siteNumber = siteNumber;
+        this.taxonMap = taxaIndices;
+        if (taxonMap == null) {
+            this.taxa = parent.getTaxaNames();
+        }
+        else {
+            this.taxa = new String[taxonMap.length];
+            for (int i = 0; i < taxa.length; i++) {
+                taxa[i] = parent.getTaxonName(taxonMap[i]);
+            }
+        }
+        this.initializeSortedTaxa();
+        this.initializeMasks();
+    }
+
+    private void initializeMasks () {
+        if (!(parent instanceof GenotypeGrid)) return;
+        if (taxonMap != null) {
+            taxonMask = new long[(parent.getTaxaNumber()+63) >>> 6];
+            for (int i = 0; i < taxonMap.length; i++) {
+                taxonMask[taxonMap[i] >>> 6] |= 1L << taxonMap[i];
+            }
+        }
+        if (siteMap != null || siteNumber != parent.getSiteNumber()) {
+            siteMask = new long[(parent.getSiteNumber()+63) >>> 6];
+            for (int i = 0; i < siteNumber; i++) {
+                int s = this.getParentSiteIndex(i);
+                siteMask[s >>> 6] |= 1L << s;
+            }
+        }
+    }
+
+    /**
+     * Return the parent table of the view
+     * @return
+     */
+    public GenotypeTable getParent () {
+        return parent;
+    }
+
+    /**
+     * Return the index of a site in the parent table
+     * @param siteIndex
+     * @return
+     */
+    public int getParentSiteIndex (int siteIndex) {
+        if (siteMap == null) return siteStart+siteIndex;
+        return siteMap[siteIndex];
+    }
+
+    /**
+     * Return the index of a taxon in the parent table
+     * @param taxonIndex
+     * @return
+     */
+    public int getParentTaxonIndex (int taxonIndex) {
+        if (taxonMap == null) return taxonIndex;
+        return taxonMap[taxonIndex];
+    }
+
+    /**
+     * Copy the genotypes of the view into a new {@link GenotypeGrid}, allele types and INFO of sites of the view are kept
+     * @return
+     */
+    public GenotypeGrid materialize () {
+        BiSNP[] snps = new BiSNP[siteNumber];
+        for (int i = 0; i < siteNumber; i++) {
+            snps[i] = new BiSNP(this.getChromosome(i), this.getPosition(i), this.getReferenceAlleleBase(i), this.getAlternativeAlleleBase(i), this.getSNPInfo(i));
+            for (AlleleType at : AlleleType.values()) {
+                if (this.isReferenceAlleleTypeOf(at, i)) snps[i].setReferenceAlleleType(at);
+                if (this.isAlternativeAlleleTypeOf(at, i)) snps[i].setAlternativeAlleleType(at);
+            }
+        }
+        BitPlane[] planes = new BitPlane[3];
+        if (parent instanceof GenotypeGrid) {
+            int[] siteIndices = siteMap == null ? IntStream.range(siteStart, siteStart+siteNumber).toArray() : siteMap;
+            for (int i = 0; i < planes.length; i++) {
+                planes[i] = ((GenotypeGrid)parent).genoSite[i].getRows(siteIndices);
+                if (taxonMap != null) planes[i] = planes[i].getColumns(taxonMap);
+            }
+        }
+        else {
+            for (int i = 0; i < planes.length; i++) {
+                planes[i] = new BitPlane(siteNumber, this.getTaxaNumber());
+            }
+            IntStream.range(0, siteNumber).parallel().forEach(i -> {
+                for (int j = 0; j < this.getTaxaNumber(); j++) {
+                    if (this.isMissing(i, j)) {
+                        planes[2].set(i, j);
+                        continue;
+                    }
+                    if (this.isPhase1Alternative(i, j)) planes[0].set(i, j);
+                    if (this.isPhase2Alternative(i, j)) planes[1].set(i, j);
+                }
+            });
+        }
+        return new GenotypeGrid(planes, GenotypeGrid.GridDirection.BySite, taxa.clone(), snps);
+    }
+
+    /**
+     * Count bits of a row of the parent planes, masked by selected columns
+     * @param planes planes of phase 1, phase 2, and missing of the parent
+     * @param row
+     * @param mask
+     * @return counts of missing, heterozygote, alternative allele, and alternative allele occurrence
+     */
+    private static int[] countRow (BitPlane[] planes, int row, long[] mask) {
+        long[] w1 = planes[0].getWords(row);
+        long[] w2 = planes[1].getWords(row);
+        long[] wm = planes[2].getWords(row);
+        int offset = planes[0].getOffset(row);
+        int[] counts = new int[4];
+        for (int i = 0; i < planes[0].getStride(); i++) {
+            long m = mask[i];
+            counts[0]+=Long.bitCount(wm[offset+i] & m);
+            counts[1]+=Long.bitCount((w1[offset+i] ^ w2[offset+i]) & m);
+            counts[2]+=Long.bitCount(w1[offset+i] & m)+Long.bitCount(w2[offset+i] & m);
+            counts[3]+=Long.bitCount((w1[offset+i] | w2[offset+i]) & m);
+        }
+        return counts;
+    }
+
+    private int[] countSite (int siteIndex) {
+        return countRow(((GenotypeGrid)parent).genoSite, this.getParentSiteIndex(siteIndex), taxonMask);
+    }
+
+    private int[] countTaxon (int taxonIndex) {
+        return countRow(((GenotypeGrid)parent).genoTaxon, this.getParentTaxonIndex(taxonIndex), siteMask);
+    }
+
+    @Override
+    public int getTaxaNumber() {
+        return taxa.length;
+    }
+
+    @Override
+    public int getSiteNumber() {
+        return siteNumber;
+    }
+
+    @Override
+    public String getTaxonName(int taxonIndex) {
+        return taxa[taxonIndex];
+    }
+
+    @Override
+    public String[] getTaxaNames() {
+        return taxa;
+    }
+
+    @Override
+    public short getChromosome(int siteIndex) {
+        return parent.getChromosome(this.getParentSiteIndex(siteIndex));
+    }
+
+    @Override
+    public int getPosition(int siteIndex) {
+        return parent.getPosition(this.getParentSiteIndex(siteIndex));
+    }
+
+    /**
+     * Sort sites by position through the index map, the parent is not changed
+     */
+    @Override
+    public void sortBySite() {
+        int[] indices = IntStream.range(0, siteNumber).toArray();
+        GenericSorting.quickSort(0, siteNumber, (index1, index2) -> {
+            int i1 = indices[index1];
+            int i2 = indices[index2];
+            short c1 = this.getChromosome(i1);
+            short c2 = this.getChromosome(i2);
+            if (c1 != c2) return c1 < c2 ? -1 : 1;
+            return Integer.compare(this.getPosition(i1), this.getPosition(i2));
+        }, (index1, index2) -> {
+            int temp = indices[index1];
+            indices[index1] = indices[index2];
+            indices[index2] = temp;
+        });
+        int[] nMap = new int[siteNumber];
+        for (int i = 0; i < siteNumber; i++) {
+            nMap[i] = this.getParentSiteIndex(indices[i]);
+        }
+        if (refFeatures != null) {
+            byte[] nRef = new byte[siteNumber];
+            byte[] nAlt = new byte[siteNumber];
+            for (int i = 0; i < siteNumber; i++) {
+                nRef[i] = refFeatures[indices[i]];
+                nAlt[i] = altFeatures[indices[i]];
+            }
+            refFeatures = nRef;
+            altFeatures = nAlt;
+        }
+        this.siteMap = nMap;
+    }
+
+    /**
+     * Sort taxa by name through the index map, the parent is not changed
+     */
+    @Override
+    public void sortByTaxa() {
+        int[] indices = PArrayUtils.getIndicesByAscendingValue(this.taxa);
+        boolean ifSorted = true;
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] == i) continue;
+            ifSorted = false;
+            break;
+        }
+        if (ifSorted) return;
+        int[] nMap = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            nMap[i] = this.getParentTaxonIndex(indices[i]);
+        }
+        this.taxa = this.taxa.clone();
+        Arrays.sort(this.taxa);
+        this.taxonMap = nMap;
+        this.sortedTaxa = null;
+        this.sortedTaxonIndices = null;
+    }
+
+    @Override
+    public int getTaxonIndex(String taxon) {
+        if (sortedTaxa == null) return Arrays.binarySearch(taxa, taxon);
+        int index = Arrays.binarySearch(sortedTaxa, taxon);
+        if (index < 0) return -1;
+        return sortedTaxonIndices[index];
+    }
+
+    /**
+     * Build a sorted copy of taxa when taxa of the view are not sorted, e.g. taxa indices are given in an arbitrary order
+     */
+    private void initializeSortedTaxa () {
+        boolean ifSorted = true;
+        for (int i = 1; i < taxa.length; i++) {
+            if (taxa[i-1].compareTo(taxa[i]) <= 0) continue;
+            ifSorted = false;
+            break;
+        }
+        if (ifSorted) return;
+        int[] indices = PArrayUtils.getIndicesByAscendingValue(this.taxa);
+        String[] nTaxa = new String[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            nTaxa[i] = taxa[indices[i]];
+        }
+        this.sortedTaxonIndices = indices;
+        this.sortedTaxa = nTaxa;
+    }
+
+    @Override
+    public int getSiteIndex(short chromosome, int position) {
+        int low = 0;
+        int high = siteNumber-1;
+        while (low <= high) {
+            int mid = (low+high) >>> 1;
+            short chr = this.getChromosome(mid);
+            int cmp = chr == chromosome ? Integer.compare(this.getPosition(mid), position) : (chr < chromosome ? -1 : 1);
+            if (cmp < 0) low = mid+1;
+            else if (cmp > 0) high = mid-1;
+            else return mid;
+        }
+        return -(low+1);
+    }
+
+    @Override
+    public byte getGenotypeByte(int siteIndex, int taxonIndex) {
+        return parent.getGenotypeByte(this.getParentSiteIndex(siteIndex), this.getParentTaxonIndex(taxonIndex));
+    }
+
+    @Override
+    public boolean isHeterozygous(int siteIndex, int taxonIndex) {
+        return parent.isHeterozygous(this.getParentSiteIndex(siteIndex), this.getParentTaxonIndex(taxonIndex));
+    }
+
+    @Override
+    public boolean isHomozygous(int siteIndex, int taxonIndex) {
+        return parent.isHomozygous(this.getParentSiteIndex(siteIndex), this.getParentTaxonIndex(taxonIndex));
+    }
+
+    @Override
+    public boolean isMissing(int siteIndex, int taxonIndex) {
+        return parent.isMissing(this.getParentSiteIndex(siteIndex), this.getParentTaxonIndex(taxonIndex));
+    }
+
+    @Override
+    public boolean isPhase1Alternative(int siteIndex, int taxonIndex) {
+        return parent.isPhase1Alternative(this.getParentSiteIndex(siteIndex), this.getParentTaxonIndex(taxonIndex));
+    }
+
+    @Override
+    public boolean isPhase2Alternative(int siteIndex, int taxonIndex) {
+        return parent.isPhase2Alternative(this.getParentSiteIndex(siteIndex), this.getParentTaxonIndex(taxonIndex));
+    }
+
+    @Override
+    public boolean isPhase1Reference(int siteIndex, int taxonIndex) {
+        return parent.isPhase1Reference(this.getParentSiteIndex(siteIndex), this.getParentTaxonIndex(taxonIndex));
+    }
+
+    @Override
+    public boolean isPhase2Reference(int siteIndex, int taxonIndex) {
+        return parent.isPhase2Reference(this.getParentSiteIndex(siteIndex), this.getParentTaxonIndex(taxonIndex));
+    }
+
+    @Override
+    public boolean isAlternativeAlleleTypeOf(AlleleType at, int siteIndex) {
+        if (altFeatures != null && (altFeatures[siteIndex] & at.getFeature()) != 0) return true;
+        if (taxonMap != null) return false;
+        return parent.isAlternativeAlleleTypeOf(at, this.getParentSiteIndex(siteIndex));
+    }
+
+    @Override
+    public boolean isReferenceAlleleTypeOf(AlleleType at, int siteIndex) {
+        if (refFeatures != null && (refFeatures[siteIndex] & at.getFeature()) != 0) return true;
+        if (taxonMap != null) return false;
+        return parent.isReferenceAlleleTypeOf(at, this.getParentSiteIndex(siteIndex));
+    }
+
+    @Override
+    public int getMissingNumberBySite(int siteIndex) {
+        if (taxonMap == null) return parent.getMissingNumberBySite(this.getParentSiteIndex(siteIndex));
+        if (taxonMask != null) return this.countSite(siteIndex)[0];
+        int cnt = 0;
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            if (this.isMissing(siteIndex, i)) cnt++;
+        }
+        return cnt;
+    }
+
+    @Override
+    public int getMissingNumberByTaxon(int taxonIndex) {
+        if (siteMap == null && siteNumber == parent.getSiteNumber()) return parent.getMissingNumberByTaxon(this.getParentTaxonIndex(taxonIndex));
+        if (siteMask != null) return this.countTaxon(taxonIndex)[0];
+        return (int)IntStream.range(0, siteNumber).parallel().filter(i -> this.isMissing(i, taxonIndex)).count();
+    }
+
+    @Override
+    public int getNonMissingNumberBySite(int siteIndex) {
+        return this.getTaxaNumber()-this.getMissingNumberBySite(siteIndex);
+    }
+
+    @Override
+    public int getNonMissingNumberByTaxon(int taxonIndex) {
+        return this.getSiteNumber()-this.getMissingNumberByTaxon(taxonIndex);
+    }
+
+    @Override
+    public int getHomozygoteNumberBySite(int siteIndex) {
+        return this.getNonMissingNumberBySite(siteIndex)-this.getHeterozygoteNumberBySite(siteIndex);
+    }
+
+    @Override
+    public int getHomozygoteNumberByTaxon(int taxonIndex) {
+        return this.getNonMissingNumberByTaxon(taxonIndex)-this.getHeterozygoteNumberByTaxon(taxonIndex);
+    }
+
+    @Override
+    public int getHeterozygoteNumberBySite(int siteIndex) {
+        if (taxonMap == null) return parent.getHeterozygoteNumberBySite(this.getParentSiteIndex(siteIndex));
+        if (taxonMask != null) return this.countSite(siteIndex)[1];
+        int cnt = 0;
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            if (this.isHeterozygous(siteIndex, i)) cnt++;
+        }
+        return cnt;
+    }
+
+    @Override
+    public int getHeterozygoteNumberByTaxon(int taxonIndex) {
+        if (siteMap == null && siteNumber == parent.getSiteNumber()) return parent.getHeterozygoteNumberByTaxon(this.getParentTaxonIndex(taxonIndex));
+        if (siteMask != null) return this.countTaxon(taxonIndex)[1];
+        return (int)IntStream.range(0, siteNumber).parallel().filter(i -> this.isHeterozygous(i, taxonIndex)).count();
+    }
+
+    @Override
+    public int getAlternativeAlleleNumberBySite(int siteIndex) {
+        if (taxonMap == null) return parent.getAlternativeAlleleNumberBySite(this.getParentSiteIndex(siteIndex));
+        if (taxonMask != null) return this.countSite(siteIndex)[2];
+        int cnt = 0;
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            if (this.isPhase1Alternative(siteIndex, i)) cnt++;
+            if (this.isPhase2Alternative(siteIndex, i)) cnt++;
+        }
+        return cnt;
+    }
+
+    @Override
+    public int getAlternativeAlleleOccurrenceBySite(int siteIndex) {
+        if (taxonMap == null) return parent.getAlternativeAlleleOccurrenceBySite(this.getParentSiteIndex(siteIndex));
+        if (taxonMask != null) return this.countSite(siteIndex)[3];
+        int cnt = 0;
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            if (this.isPhase1Alternative(siteIndex, i) || this.isPhase2Alternative(siteIndex, i)) cnt++;
+        }
+        return cnt;
+    }
+
+    @Override
+    public float getHeterozygousProportionByTaxon(int taxonIndex) {
+        return (float)((double)this.getHeterozygoteNumberByTaxon(taxonIndex)/this.getNonMissingNumberByTaxon(taxonIndex));
+    }
+
+    @Override
+    public float getHeterozygousProportionBySite(int siteIndex) {
+        return (float)((double)this.getHeterozygoteNumberBySite(siteIndex)/this.getNonMissingNumberBySite(siteIndex));
+    }
+
+    /**
+     * Return if the alternative allele is the minor allele, allele types of the view are used when available
+     * @param siteIndex
+     * @return
+     */
+    private boolean isAlternativeMinor (int siteIndex) {
+        if (this.isAlternativeAlleleTypeOf(AlleleType.Minor, siteIndex)) return true;
+        if (this.isReferenceAlleleTypeOf(AlleleType.Minor, siteIndex)) return false;
+        return this.getAlternativeAlleleFrequency(siteIndex) < 0.5;
+    }
+
+    @Override
+    public byte getMinorAlleleByte(int siteIndex) {
+        if (this.isAlternativeMinor(siteIndex)) return this.getAlternativeAlleleByte(siteIndex);
+        return this.getReferenceAlleleByte(siteIndex);
+    }
+
+    @Override
+    public char getMinorAlleleBase(int siteIndex) {
+        return AlleleEncoder.getAlleleBaseFromByte(this.getMinorAlleleByte(siteIndex));
+    }
+
+    @Override
+    public float getMinorAlleleFrequency(int siteIndex) {
+        float altFre = this.getAlternativeAlleleFrequency(siteIndex);
+        if (this.isAlternativeMinor(siteIndex)) return altFre;
+        return 1-altFre;
+    }
+
+    @Override
+    public byte getMajorAlleleByte(int siteIndex) {
+        if (this.isAlternativeMinor(siteIndex)) return this.getReferenceAlleleByte(siteIndex);
+        return this.getAlternativeAlleleByte(siteIndex);
+    }
+
+    @Override
+    public char getMajorAlleleBase(int siteIndex) {
+        return AlleleEncoder.getAlleleBaseFromByte(this.getMajorAlleleByte(siteIndex));
+    }
+
+    @Override
+    public float getMajorAlleleFrequency(int siteIndex) {
+        return 1-this.getMinorAlleleFrequency(siteIndex);
+    }
+
+    @Override
+    public byte getReferenceAlleleByte(int siteIndex) {
+        return parent.getReferenceAlleleByte(this.getParentSiteIndex(siteIndex));
+    }
+
+    @Override
+    public char getReferenceAlleleBase(int siteIndex) {
+        return parent.getReferenceAlleleBase(this.getParentSiteIndex(siteIndex));
+    }
+
+    @Override
+    public float getReferenceAlleleFrequency(int siteIndex) {
+        return 1-this.getAlternativeAlleleFrequency(siteIndex);
+    }
+
+    @Override
+    public byte getAlternativeAlleleByte(int siteIndex) {
+        return parent.getAlternativeAlleleByte(this.getParentSiteIndex(siteIndex));
+    }
+
+    @Override
+    public char getAlternativeAlleleBase(int siteIndex) {
+        return parent.getAlternativeAlleleBase(this.getParentSiteIndex(siteIndex));
+    }
+
+    @Override
+    public float getAlternativeAlleleFrequency(int siteIndex) {
+        return (float)((double)this.getAlternativeAlleleNumberBySite(siteIndex)/(this.getNonMissingNumberBySite(siteIndex)*2));
+    }
+
+    @Override
+    public int getStartIndexOfChromosome(short chromosome) {
+        int index = this.getSiteIndex(chromosome, Integer.MIN_VALUE);
+        if (index < 0) {
+            index = -index - 1;
+            if (index < this.getSiteNumber() && this.getChromosome(index) == chromosome) return index;
+            return -1;
+        }
+        else {
+            while (index > 0 && this.getChromosome(index-1) == chromosome) {
+                index--;
+            }
+            return index;
+        }
+    }
+
+    @Override
+    public int getEndIndexOfChromosome(short chromosome) {
+        int index = this.getSiteIndex(chromosome, Integer.MAX_VALUE);
+        if (index < 0) {
+            index = -index - 2;
+            if (index >= 0 && this.getChromosome(index) == chromosome) return index+1;
+            else return -1;
+        }
+        else {
+            while ((index+1) < this.getSiteNumber() && this.getChromosome(index+1) == chromosome) {
+                index++;
+            }
+            return index+1;
+        }
+    }
+
+    private int[] getParentSiteIndices (int[] siteIndices) {
+        int[] indices = new int[siteIndices.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = this.getParentSiteIndex(siteIndices[i]);
+        }
+        return indices;
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2) {
+        return this.getIBSDistance(taxonIndex1, taxonIndex2, 0, siteNumber);
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2, int startSiteIndex, int endSiteIndex) {
+        if (siteMap == null) {
+            return parent.getIBSDistance(this.getParentTaxonIndex(taxonIndex1), this.getParentTaxonIndex(taxonIndex2), siteStart+startSiteIndex, siteStart+endSiteIndex);
+        }
+        return this.getIBSDistance(taxonIndex1, taxonIndex2, IntStream.range(startSiteIndex, endSiteIndex).toArray());
+    }
+
+    @Override
+    public float getIBSDistance(int taxonIndex1, int taxonIndex2, int[] siteIndices) {
+        return parent.getIBSDistance(this.getParentTaxonIndex(taxonIndex1), this.getParentTaxonIndex(taxonIndex2), this.getParentSiteIndices(siteIndices));
+    }
+
+    @Override
+    public float[][] getIBSDistanceMatrix() {
+        return this.getIBSDistanceMatrix(0, siteNumber);
+    }
+
+    @Override
+    public float[][] getIBSDistanceMatrix(int startIndex, int endIndex) {
+        return this.getIBSDistanceMatrix(IntStream.range(startIndex, endIndex).toArray());
+    }
+
+    /**
+     * Return the IBS distance matrix. When the parent is a {@link GenotypeGrid}, the kernel runs on the parent taxon planes,
+     * only the rows of the taxa of the view are copied
+     * @param siteIndices
+     * @return
+     */
+    @Override
+    public float[][] getIBSDistanceMatrix(int[] siteIndices) {
+        int[] pSiteIndices = this.getParentSiteIndices(siteIndices);
+        if (taxonMap == null) return parent.getIBSDistanceMatrix(pSiteIndices);
+        if (parent instanceof GenotypeGrid) {
+            BitPlane[] genoTaxon = new BitPlane[3];
+            for (int i = 0; i < genoTaxon.length; i++) {
+                genoTaxon[i] = ((GenotypeGrid)parent).genoTaxon[i].getRows(taxonMap);
+            }
+            return new IBSDistanceKernel(genoTaxon, pSiteIndices).getDistanceMatrix();
+        }
+        float[][] matrix = new float[taxonMap.length][taxonMap.length];
+        IntStream.range(0, taxonMap.length).parallel().forEach(i -> {
+            for (int j = i+1; j < taxonMap.length; j++) {
+                matrix[i][j] = parent.getIBSDistance(taxonMap[i], taxonMap[j], pSiteIndices);
+                matrix[j][i] = matrix[i][j];
+            }
+        });
+        return matrix;
+    }
+
+    /**
+     * Copy the bit words of a range of sites, words are copied from the parent when the view holds a range of sites and all taxa
+     * @param startSiteIndex inclusive
+     * @param endSiteIndex exclusive
+     * @param phase1
+     * @param phase2
+     * @param missing
+     */
+    @Override
+    public void getSiteWords(int startSiteIndex, int endSiteIndex, long[] phase1, long[] phase2, long[] missing) {
+        if (siteMap == null && taxonMap == null) {
+            parent.getSiteWords(siteStart+startSiteIndex, siteStart+endSiteIndex, phase1, phase2, missing);
+        }
+        else {
+            GenotypeTable.super.getSiteWords(startSiteIndex, endSiteIndex, phase1, phase2, missing);
+        }
+    }
+
+    /**
+     * Copy the bit words of a range of taxa, words are copied from the parent when the view holds all sites and all taxa
+     * @param startTaxonIndex inclusive
+     * @param endTaxonIndex exclusive
+     * @param phase1
+     * @param phase2
+     * @param missing
+     */
+    @Override
+    public void getTaxonWords(int startTaxonIndex, int endTaxonIndex, long[] phase1, long[] phase2, long[] missing) {
+        if (siteMap == null && taxonMap == null && siteStart == 0 && siteNumber == parent.getSiteNumber()) {
+            parent.getTaxonWords(startTaxonIndex, endTaxonIndex, phase1, phase2, missing);
+        }
+        else {
+            GenotypeTable.super.getTaxonWords(startTaxonIndex, endTaxonIndex, phase1, phase2, missing);
+        }
+    }
+
+    /**
+     * Return a view of sites of this view
+     * @param siteIndices
+     * @return
+     */
+    @Override
+    public GenotypeView getSubGenotypeTableBySite(int[] siteIndices) {
+        return new GenotypeView(this, siteIndices, null);
+    }
+
+    /**
+     * Return a view of taxa of this view
+     * @param taxaIndices
+     * @return
+     */
+    @Override
+    public GenotypeView getSubGenotypeTableByTaxa(int[] taxaIndices) {
+        return new GenotypeView(this, null, taxaIndices);
+    }
+
+    @Override
+    public boolean isBiallelic() {
+        return parent.isBiallelic();
+    }
+
+    @Override
+    public String getSNPInfo(int siteIndex) {
+        return parent.getSNPInfo(this.getParentSiteIndex(siteIndex));
+    }
+
+    @Override
+    public String getUnphasedVCFRecord(int siteIndex) {
+        StringBuilder vsb = new StringBuilder();
+        char delimiter = '/';
+        vsb.append(this.getChromosome(siteIndex)).append("\t").append(this.getPosition(siteIndex)).append("\t").append(this.getChromosome(siteIndex)).append("-").append(this.getPosition(siteIndex)).append("\t");
+        vsb.append(this.getReferenceAlleleBase(siteIndex)).append("\t").append(this.getAlternativeAlleleBase(siteIndex)).append("\t.\t.\t");
+        String info = this.getSNPInfo(siteIndex);
+        if (info == null) vsb.append(".");
+        else vsb.append(info);
+        vsb.append("\t").append("GT");
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            if (isMissing(siteIndex, i)) vsb.append("\t").append(".").append(delimiter).append(".");
+            else {
+                vsb.append("\t");
+                if (isPhase1Alternative(siteIndex, i)) vsb.append("1");
+                else vsb.append("0");
+                vsb.append(delimiter);
+                if (isPhase2Alternative(siteIndex, i)) vsb.append("1");
+                else vsb.append("0");
+            }
+        }
+        return vsb.toString();
+    }
+
+    @Override
+    public ByteBuffer getBinaryOutput(int siteIndex, ByteBuffer bb) {
+        bb.putShort(this.getChromosome(siteIndex));
+        bb.putInt(this.getPosition(siteIndex));
+        bb.put(AlleleEncoder.getGenotypeByte(this.getReferenceAlleleByte(siteIndex), this.getAlternativeAlleleByte(siteIndex)));
+        byte refFeature = 0;
+        byte altFeature = 0;
+        for (AlleleType at : AlleleType.values()) {
+            if (this.isReferenceAlleleTypeOf(at, siteIndex)) refFeature|=at.getFeature();
+            if (this.isAlternativeAlleleTypeOf(at, siteIndex)) altFeature|=at.getFeature();
+        }
+        bb.put(refFeature);
+        bb.put(altFeature);
+        if (taxonMap == null && parent instanceof GenotypeGrid) {
+            for (int i = 0; i < 3; i++) {
+                ((GenotypeGrid)parent).genoSite[i].writeRow(this.getParentSiteIndex(siteIndex), bb);
+            }
+            return bb;
+        }
+        int wordNumber = (this.getTaxaNumber()+63) >>> 6;
+        long[][] words = new long[3][wordNumber];
+        for (int i = 0; i < this.getTaxaNumber(); i++) {
+            if (this.isMissing(siteIndex, i)) {
+                words[2][i >>> 6] |= 1L << i;
+                continue;
+            }
+            if (this.isPhase1Alternative(siteIndex, i)) words[0][i >>> 6] |= 1L << i;
+            if (this.isPhase2Alternative(siteIndex, i)) words[1][i >>> 6] |= 1L << i;
+        }
+        for (int i = 0; i < words.length; i++) {
+            for (int j = 0; j < wordNumber; j++) {
+                bb.putLong(Long.reverseBytes(words[i][j]));
+            }
+        }
+        return bb;
+    }
+
+    @Override
+    public void setAlternativeAlleleType(AlleleType at, int siteIndex) {
+        this.initializeFeatures();
+        altFeatures[siteIndex] = (byte)(altFeatures[siteIndex] | at.getFeature());
+    }
+
+    @Override
+    public void setReferenceAlleleType(AlleleType at, int siteIndex) {
+        this.initializeFeatures();
+        refFeatures[siteIndex] = (byte)(refFeatures[siteIndex] | at.getFeature());
+    }
+
+    private synchronized void initializeFeatures () {
+        if (refFeatures != null) return;
+        byte[] nAlt = new byte[siteNumber];
+        altFeatures = nAlt;
+        refFeatures = new byte[siteNumber];
+    }
+}
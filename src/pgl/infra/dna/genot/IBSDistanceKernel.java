@@ -0,0 +1,236 @@
+package pgl.infra.dna.genot;
+
+import java.util.stream.IntStream;
+
+/**
+ * Kernel of IBS distance between taxa, working directly on the words of taxon {@link BitPlane}s of {@link GenotypeGrid}.
+ * <p>
+ * For a pair of taxa, the distance is the proportion of different alleles among the four phase combinations,
+ * sites missing in either taxon are excluded. Differences are counted by {@link Long#bitCount(long)} on 64 sites at a time:
+ * a site contributes 2 of 4 when either taxon is heterozygous, and 4 of 4 when both are homozygous for different alleles.
+ * <p>
+ * The distance matrix is computed in square tiles of taxa pairs. Within a tile, sites are processed in word blocks,
+ * so that the words of the taxa of a tile stay in cache. Only the tiles of the upper triangle are computed,
+ * they are of equal size and are scheduled independently, so that the triangular work is balanced across threads.
+ *
+ * @author feilu
+ */
+public class IBSDistanceKernel {
+    /**
+     * Number of taxa of a side of a tile
+     */
+    public static final int taxaTileSize = 64;
+    /**
+     * Number of site words processed at a time in a tile, 8192 sites
+     */
+    public static final int wordTileSize = 128;
+
+    BitPlane[] genoTaxon = null;
+    /**
+     * Index of the site word of the first mask
+     */
+    int firstWord = 0;
+    /**
+     * Masks of the selected sites, one per site word starting from firstWord
+     */
+    long[] masks = null;
+    /**
+     * Number of the selected sites
+     */
+    int siteNumber = 0;
+
+    /**
+     * Construct a kernel on a range of sites
+     * @param genoTaxon planes of phase 1, phase 2, and missing, rows are taxa
+     * @param startSiteIndex inclusive
+     * @param endSiteIndex exclusive
+     */
+    public IBSDistanceKernel (BitPlane[] genoTaxon, int startSiteIndex, int endSiteIndex) {
+        this.genoTaxon = genoTaxon;
+        this.siteNumber = Math.max(endSiteIndex-startSiteIndex, 0);
+        if (siteNumber == 0) {
+            masks = new long[0];
+            return;
+        }
+        this.firstWord = startSiteIndex >>> 6;
+        int lastWord = (endSiteIndex-1) >>> 6;
+        masks = new long[lastWord-firstWord+1];
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] = -1L;
+        }
+        masks[0] &= -1L << startSiteIndex;
+        masks[masks.length-1] &= -1L >>> (63-((endSiteIndex-1) & 63));
+    }
+
+    /**
+     * Construct a kernel on selected sites
+     * @param genoTaxon planes of phase 1, phase 2, and missing, rows are taxa
+     * @param siteIndices
+     */
+    public IBSDistanceKernel (BitPlane[] genoTaxon, int[] siteIndices) {
+        this.genoTaxon = genoTaxon;
+        this.siteNumber = siteIndices.length;
+        masks = new long[genoTaxon[0].getStride()];
+        for (int i = 0; i < siteIndices.length; i++) {
+            masks[siteIndices[i] >>> 6] |= 1L << siteIndices[i];
+        }
+    }
+
+    public int getTaxaNumber () {
+        return genoTaxon[0].getRowNumber();
+    }
+
+    /**
+     * Return the IBS distance of two taxa
+     * @param taxonIndex1
+     * @param taxonIndex2
+     * @return
+     */
+    public float getDistance (int taxonIndex1, int taxonIndex2) {
+        long[] counts = new long[2];
+        this.count(taxonIndex1, taxonIndex2, 0, masks.length, counts);
+        return this.getDistance(counts[0], counts[1]);
+    }
+
+    /**
+     * Return the IBS distance matrix of all taxa, the diagonal is 0
+     * @return
+     */
+    public float[][] getDistanceMatrix () {
+        int taxaNumber = this.getTaxaNumber();
+        float[][] matrix = new float[taxaNumber][taxaNumber];
+        int tileNumber = (taxaNumber+taxaTileSize-1)/taxaTileSize;
+        int[] tileI = new int[tileNumber*(tileNumber+1)/2];
+        int[] tileJ = new int[tileI.length];
+        int cnt = 0;
+        for (int i = 0; i < tileNumber; i++) {
+            for (int j = i; j < tileNumber; j++) {
+                tileI[cnt] = i;
+                tileJ[cnt] = j;
+                cnt++;
+            }
+        }
+        IntStream.range(0, tileI.length).parallel().forEach(k -> {
+            int i0 = tileI[k]*taxaTileSize;
+            int i1 = Math.min(i0+taxaTileSize, taxaNumber);
+            int j0 = tileJ[k]*taxaTileSize;
+            int j1 = Math.min(j0+taxaTileSize, taxaNumber);
+            float[] tile = new float[taxaTileSize*taxaTileSize];
+            this.computeTile(i0, i1, j0, j1, tile);
+            for (int i = i0; i < i1; i++) {
+                for (int j = j0; j < j1; j++) {
+                    matrix[i][j] = tile[(i-i0)*(j1-j0)+j-j0];
+                    matrix[j][i] = matrix[i][j];
+                }
+            }
+        });
+        return matrix;
+    }
+
+    /**
+     * Compute the IBS distance of a tile of taxa pairs. When the two taxa ranges are the same,
+     * only pairs of the upper triangle are computed and mirrored, the diagonal is 0.
+     * @param i0 start index of the first taxa range, inclusive
+     * @param i1 end index of the first taxa range, exclusive
+     * @param j0 start index of the second taxa range, inclusive
+     * @param j1 end index of the second taxa range, exclusive
+     * @param tile distance of taxon i and j at (i-i0)*(j1-j0)+j-j0, the size should be at least (i1-i0)*(j1-j0)
+     */
+    public void computeTile (int i0, int i1, int j0, int j1, float[] tile) {
+        int width = j1-j0;
+        boolean ifDiagonal = i0 == j0 && i1 == j1;
+        long[] diffs = new long[(i1-i0)*width];
+        long[] missings = new long[diffs.length];
+        this.countTile(i0, i1, j0, j1, diffs, missings);
+        for (int i = i0; i < i1; i++) {
+            for (int j = j0; j < j1; j++) {
+                int k = (i-i0)*width+j-j0;
+                if (!ifDiagonal) {
+                    tile[k] = this.getDistance(diffs[k], missings[k]);
+                }
+                else if (j > i) {
+                    tile[k] = this.getDistance(diffs[k], missings[k]);
+                    tile[(j-j0)*width+i-i0] = tile[k];
+                }
+                else if (j == i) {
+                    tile[k] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count different alleles and missing sites of a tile of taxa pairs, which are added to the arrays.
+     * When the two taxa ranges are the same, only pairs of the upper triangle are counted.
+     * @param i0 start index of the first taxa range, inclusive
+     * @param i1 end index of the first taxa range, exclusive
+     * @param j0 start index of the second taxa range, inclusive
+     * @param j1 end index of the second taxa range, exclusive
+     * @param diffs number of different alleles of four phase combinations of taxon i and j at (i-i0)*(j1-j0)+j-j0
+     * @param missings number of sites missing in either taxon, indexed as diffs
+     */
+    void countTile (int i0, int i1, int j0, int j1, long[] diffs, long[] missings) {
+        int width = j1-j0;
+        boolean ifDiagonal = i0 == j0 && i1 == j1;
+        long[] counts = new long[2];
+        for (int w0 = 0; w0 < masks.length; w0+=wordTileSize) {
+            int w1 = Math.min(w0+wordTileSize, masks.length);
+            for (int i = i0; i < i1; i++) {
+                int jStart = ifDiagonal ? i+1 : j0;
+                for (int j = jStart; j < j1; j++) {
+                    this.count(i, j, w0, w1, counts);
+                    int k = (i-i0)*width+j-j0;
+                    diffs[k]+=counts[0];
+                    missings[k]+=counts[1];
+                }
+            }
+        }
+    }
+
+    /**
+     * Count different alleles and missing sites of two taxa
+     * @param taxonIndex1
+     * @param taxonIndex2
+     * @param counts number of different alleles of four phase combinations, and number of sites missing in either taxon
+     */
+    void count (int taxonIndex1, int taxonIndex2, long[] counts) {
+        this.count(taxonIndex1, taxonIndex2, 0, masks.length, counts);
+    }
+
+    /**
+     * Count different alleles and missing sites of two taxa in a range of mask words
+     * @param taxonIndex1
+     * @param taxonIndex2
+     * @param w0 start index of masks, inclusive
+     * @param w1 end index of masks, exclusive
+     * @param counts number of different alleles of four phase combinations, and number of sites missing in either taxon
+     */
+    private void count (int taxonIndex1, int taxonIndex2, int w0, int w1, long[] counts) {
+        long[] a1 = genoTaxon[0].getWords(taxonIndex1);
+        long[] a2 = genoTaxon[1].getWords(taxonIndex1);
+        long[] am = genoTaxon[2].getWords(taxonIndex1);
+        long[] b1 = genoTaxon[0].getWords(taxonIndex2);
+        long[] b2 = genoTaxon[1].getWords(taxonIndex2);
+        long[] bm = genoTaxon[2].getWords(taxonIndex2);
+        int aOffset = genoTaxon[0].getOffset(taxonIndex1)+firstWord;
+        int bOffset = genoTaxon[0].getOffset(taxonIndex2)+firstWord;
+        long diff = 0;
+        long missing = 0;
+        for (int w = w0; w < w1; w++) {
+            long mask = masks[w];
+            long m = (am[aOffset+w] | bm[bOffset+w]) & mask;
+            long valid = mask & ~m;
+            long x1 = a1[aOffset+w];
+            long y1 = b1[bOffset+w];
+            long het = (x1^a2[aOffset+w]) | (y1^b2[bOffset+w]);
+            diff+=(Long.bitCount(het & valid) << 1)+(Long.bitCount((x1^y1) & ~het & valid) << 2);
+            missing+=Long.bitCount(m);
+        }
+        counts[0] = diff;
+        counts[1] = missing;
+    }
+
+    private float getDistance (long diff, long missing) {
+        return (float) ((double)diff/4/(siteNumber-missing));
+    }
+}
@@ -429,6 +429,24 @@ public class SiteGenotypeBit extends BiSNP {
         return sgb;
     }
 
+    /**
+     * Build and return an object of {@link SiteGenotypeBit} from a VCF record in raw bytes, see {@link GenoSiteBlockVCF#buildFromVCFLine(byte[], int, int, BitPlane[], int)}
+     * @param line
+     * @param start start index of the record, inclusive
+     * @param end end index of the record, exclusive
+     * @param taxaNumber
+     * @return
+     */
+    public static SiteGenotypeBit buildFromVCFLine (byte[] line, int start, int end, int taxaNumber) {
+        BitPlane[] planes = new BitPlane[3];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = new BitPlane(1, taxaNumber);
+        }
+        BiSNP snp = GenoSiteBlockVCF.buildFromVCFLine(line, start, end, planes, 0);
+        return new SiteGenotypeBit(snp.getChromosome(), snp.getPosition(), snp.getReferenceAlleleBase(), snp.getAlternativeAlleleBase(), null,
+                planes[0].getBitSet(0), planes[1].getBitSet(0), planes[2].getBitSet(0), taxaNumber);
+    }
+
     /**
      * Build and return an object of {@link SiteGenotypeBit} from line of VCF format
      * @param line
@@ -0,0 +1,151 @@
+package pgl.infra.dna.genot;
+
+import pgl.infra.utils.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reader of VCF files in raw bytes, records are read in blocks of lines without decoding them to strings.
+ * <p>
+ * Gzip files are decompressed by {@link IOUtils#getGzipInputStream(String)}, BGZF files are decompressed in parallel.
+ * Records of a block are parsed by {@link GenoSiteBlockVCF#buildFromVCFLine(byte[], int, int, BitPlane[], int)}.
+ *
+ * @author feilu
+ */
+public class VCFByteReader {
+    InputStream is = null;
+    byte[] buffer = new byte[1 << 20];
+    int position = 0;
+    int limit = 0;
+    boolean ifEnd = false;
+    List<String> annotationList = new ArrayList<>();
+    String[] taxa = null;
+    byte[] lines = null;
+    int lineNumber = 0;
+
+    /**
+     * Open a VCF file, the annotation and the header are read
+     * @param infileS
+     */
+    public VCFByteReader (String infileS) {
+        try {
+            if (infileS.endsWith(".gz")) {
+                is = IOUtils.getGzipInputStream(infileS);
+            }
+            else {
+                is = new BufferedInputStream(new FileInputStream(infileS), 65536);
+            }
+            String temp = null;
+            while ((temp = this.readLine()) != null && temp.startsWith("##")) {
+                annotationList.add(temp);
+            }
+            String[] header = temp.split("\t");
+            taxa = Arrays.copyOfRange(header, 9, header.length);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String[] getTaxa () {
+        return taxa;
+    }
+
+    public List<String> getAnnotationList () {
+        return annotationList;
+    }
+
+    /**
+     * Read a block of records
+     * @param maxLineNumber maximum number of records to read
+     * @return number of records read, 0 if the end of the file is reached
+     */
+    public int readLines (int maxLineNumber) {
+        int cnt = 0;
+        int current = position;
+        try {
+            while (cnt < maxLineNumber) {
+                if (current == limit) {
+                    int start = position;
+                    this.fill();
+                    current-=start-position;
+                    if (current == limit) break;
+                }
+                if (buffer[current++] == '\n') {
+                    cnt++;
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (current > position && buffer[current-1] != '\n') cnt++;
+        lines = Arrays.copyOfRange(buffer, position, current);
+        position = current;
+        lineNumber = cnt;
+        return cnt;
+    }
+
+    /**
+     * Return the records read by the last {@link #readLines(int)}, each record ends with a line break except for the last line of the file
+     * @return
+     */
+    public byte[] getLines () {
+        return lines;
+    }
+
+    public int getLineNumber () {
+        return lineNumber;
+    }
+
+    public void close () {
+        try {
+            is.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private String readLine () throws Exception {
+        int current = position;
+        while (true) {
+            if (current == limit) {
+                int start = position;
+                this.fill();
+                current-=start-position;
+                if (current == limit) break;
+            }
+            if (buffer[current] == '\n') break;
+            current++;
+        }
+        if (current == position && ifEnd) return null;
+        int end = current;
+        if (end > position && buffer[end-1] == '\r') end--;
+        String line = new String(buffer, position, end-position);
+        position = Math.min(current+1, limit);
+        return line;
+    }
+
+    /**
+     * Move unread bytes to the start of the buffer and read more data, the buffer is enlarged when it is full
+     * @throws Exception
+     */
+    private void fill () throws Exception {
+        if (ifEnd) return;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit-position);
+            limit-=position;
+            position = 0;
+        }
+        if (limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length*2);
+        int n = is.read(buffer, limit, buffer.length-limit);
+        if (n < 0) ifEnd = true;
+        else limit+=n;
+    }
+}
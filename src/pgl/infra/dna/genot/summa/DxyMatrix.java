@@ -0,0 +1,330 @@
+package pgl.infra.dna.genot.summa;
+
+import pgl.infra.dna.genot.IBSDistanceKernel;
+import pgl.infra.utils.IOFileFormat;
+import pgl.infra.utils.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.stream.IntStream;
+
+/**
+ * A memory-mapped, symmetric IBS distance (Dxy) matrix of taxa, for panels too large for a dense float[n][n].
+ * <p>
+ * Taxa are cut into fixed-size tiles, only the tiles of the upper triangle (including the diagonal) are stored, as raw floats in row-major order.
+ * Tiles are written in the order they are computed, a tile index at the end of the file records the offset of each tile.
+ * <p>
+ * File layout: header (taxa number, taxa names, tile size, padded to 8 bytes), tiles, tile index (offset of each tile
+ * in the order of upper-triangular tile rows), offset of the index.
+ *
+ * @author feilu
+ */
+public class DxyMatrix {
+    /**
+     * Default number of taxa of a side of a tile
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+    /**
+     * Size of a mapped segment is 1 GB
+     */
+    private static final int segmentShift = 30;
+    private static final long segmentMask = (1L << segmentShift)-1;
+
+    String[] taxa = null;
+    int tileSize = DEFAULT_TILE_SIZE;
+    int tileNumber = 0;
+    long[] tileOffsets = null;
+    MappedByteBuffer[] segments = null;
+    RandomAccessFile raf = null;
+
+    /**
+     * Open a matrix file for queries
+     * @param infileS
+     */
+    public DxyMatrix (String infileS) {
+        try {
+            raf = new RandomAccessFile(infileS, "r");
+            taxa = new String[raf.readInt()];
+            for (int i = 0; i < taxa.length; i++) {
+                taxa[i] = raf.readUTF();
+            }
+            tileSize = raf.readInt();
+            tileNumber = getTileNumber(taxa.length, tileSize);
+            long length = raf.length();
+            raf.seek(length-Long.BYTES);
+            raf.seek(raf.readLong());
+            tileOffsets = new long[getTileIndex(tileNumber-1, tileNumber-1, tileNumber)+1];
+            for (int i = 0; i < tileOffsets.length; i++) {
+                tileOffsets[i] = raf.readLong();
+            }
+            FileChannel fc = raf.getChannel();
+            segments = new MappedByteBuffer[(int)((length+segmentMask) >>> segmentShift)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long)i << segmentShift;
+                segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length-start, 1L << segmentShift));
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String[] getTaxa () {
+        return taxa;
+    }
+
+    public int getTaxaNumber () {
+        return taxa.length;
+    }
+
+    public int getTaxonIndex (String taxon) {
+        for (int i = 0; i < taxa.length; i++) {
+            if (taxa[i].equals(taxon)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the distance of two taxa
+     * @param taxonIndex1
+     * @param taxonIndex2
+     * @return
+     */
+    public float getDxy (int taxonIndex1, int taxonIndex2) {
+        if (taxonIndex1 > taxonIndex2) {
+            int temp = taxonIndex1;
+            taxonIndex1 = taxonIndex2;
+            taxonIndex2 = temp;
+        }
+        int ti = taxonIndex1/tileSize;
+        int tj = taxonIndex2/tileSize;
+        int width = this.getTileWidth(tj);
+        long offset = tileOffsets[getTileIndex(ti, tj, tileNumber)]+((long)(taxonIndex1-ti*tileSize)*width+taxonIndex2-tj*tileSize)*Float.BYTES;
+        return this.getFloat(offset);
+    }
+
+    /**
+     * Return distances of a taxon to all taxa
+     * @param taxonIndex
+     * @return
+     */
+    public float[] getRow (int taxonIndex) {
+        float[] row = new float[taxa.length];
+        this.getRow(taxonIndex, row);
+        return row;
+    }
+
+    /**
+     * Read distances of a taxon to all taxa
+     * @param taxonIndex
+     * @param row the size should be at least the taxa number
+     */
+    public void getRow (int taxonIndex, float[] row) {
+        int ti = taxonIndex/tileSize;
+        int r = taxonIndex-ti*tileSize;
+        int height = this.getTileWidth(ti);
+        for (int i = 0; i < tileNumber; i++) {
+            int width = this.getTileWidth(i);
+            if (i >= ti) {
+                long offset = tileOffsets[getTileIndex(ti, i, tileNumber)]+(long)r*width*Float.BYTES;
+                for (int j = 0; j < width; j++) {
+                    row[i*tileSize+j] = this.getFloat(offset+(long)j*Float.BYTES);
+                }
+            }
+            else {
+                long offset = tileOffsets[getTileIndex(i, ti, tileNumber)]+(long)r*Float.BYTES;
+                for (int j = 0; j < width; j++) {
+                    row[i*tileSize+j] = this.getFloat(offset+(long)j*height*Float.BYTES);
+                }
+            }
+        }
+    }
+
+    /**
+     * Export the matrix to a text file, the same as {@link SumTaxaDivergence#writeDxyMatrix(String, IOFileFormat)}
+     * @param outfileS
+     * @param format
+     */
+    public void writeText (String outfileS, IOFileFormat format) {
+        try {
+            BufferedWriter bw = null;
+            if (format == IOFileFormat.Text) {
+                bw = IOUtils.getTextWriter(outfileS);
+            }
+            else if (format == IOFileFormat.TextGzip) {
+                bw = IOUtils.getTextGzipWriter(outfileS);
+            }
+            else {
+                throw new UnsupportedOperationException("Not supported yet.");
+            }
+            StringBuilder sb = new StringBuilder("Dxy");
+            for (int i = 0; i < taxa.length; i++) {
+                sb.append("\t").append(taxa[i]);
+            }
+            bw.write(sb.toString());
+            bw.newLine();
+            String[] lines = new String[tileSize];
+            for (int i = 0; i < tileNumber; i++) {
+                int start = i*tileSize;
+                int height = this.getTileWidth(i);
+                IntStream.range(0, height).parallel().forEach(j -> {
+                    float[] row = this.getRow(start+j);
+                    StringBuilder lsb = new StringBuilder(taxa.length*6+taxa[start+j].length());
+                    lsb.append(taxa[start+j]);
+                    for (int k = 0; k < row.length; k++) {
+                        lsb.append("\t");
+                        appendDxy(lsb, row[k]);
+                    }
+                    lines[j] = lsb.toString();
+                });
+                for (int j = 0; j < height; j++) {
+                    bw.write(lines[j]);
+                    bw.newLine();
+                }
+            }
+            bw.flush();
+            bw.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void close () {
+        try {
+            segments = null;
+            raf.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private float getFloat (long offset) {
+        return segments[(int)(offset >>> segmentShift)].getFloat((int)(offset & segmentMask));
+    }
+
+    private int getTileWidth (int tileIndex) {
+        return Math.min(tileSize, taxa.length-tileIndex*tileSize);
+    }
+
+    /**
+     * Append a distance with 3 decimals, the same as String.format("%.3f")
+     * @param sb
+     * @param value
+     */
+    static void appendDxy (StringBuilder sb, float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            sb.append(String.format("%.3f", value));
+            return;
+        }
+        long v = Math.round((double)value*1000);
+        if (v < 0) {
+            sb.append('-');
+            v = -v;
+        }
+        sb.append(v/1000).append('.');
+        long f = v%1000;
+        if (f < 100) sb.append('0');
+        if (f < 10) sb.append('0');
+        sb.append(f);
+    }
+
+    private static int getTileNumber (int taxaNumber, int tileSize) {
+        return (taxaNumber+tileSize-1)/tileSize;
+    }
+
+    /**
+     * Return the index of a tile in the upper triangle
+     * @param ti tile row
+     * @param tj tile column, should not be less than ti
+     * @param tileNumber
+     * @return
+     */
+    private static int getTileIndex (int ti, int tj, int tileNumber) {
+        return ti*tileNumber-ti*(ti-1)/2+tj-ti;
+    }
+
+    /**
+     * Compute the distance matrix tile by tile and stream it to a file, tiles are computed in parallel
+     * @param kernel
+     * @param taxa
+     * @param outfileS
+     */
+    public static void write (IBSDistanceKernel kernel, String[] taxa, String outfileS) {
+        write(kernel, taxa, outfileS, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Compute the distance matrix tile by tile and stream it to a file, tiles are computed in parallel
+     * @param kernel
+     * @param taxa
+     * @param outfileS
+     * @param tileSize number of taxa of a side of a tile
+     */
+    public static void write (IBSDistanceKernel kernel, String[] taxa, String outfileS, int tileSize) {
+        int taxaNumber = taxa.length;
+        int tileNumber = getTileNumber(taxaNumber, tileSize);
+        int[] tileI = new int[tileNumber*(tileNumber+1)/2];
+        int[] tileJ = new int[tileI.length];
+        for (int i = 0; i < tileNumber; i++) {
+            for (int j = i; j < tileNumber; j++) {
+                int index = getTileIndex(i, j, tileNumber);
+                tileI[index] = i;
+                tileJ[index] = j;
+            }
+        }
+        long[] tileOffsets = new long[tileI.length];
+        try (RandomAccessFile raf = new RandomAccessFile(outfileS, "rw")) {
+            raf.setLength(0);
+            raf.writeInt(taxaNumber);
+            for (int i = 0; i < taxaNumber; i++) {
+                raf.writeUTF(taxa[i]);
+            }
+            raf.writeInt(tileSize);
+            while (raf.getFilePointer()%Long.BYTES != 0) {
+                raf.writeByte(0);
+            }
+            FileChannel fc = raf.getChannel();
+            long[] position = {raf.getFilePointer()};
+            IntStream.range(0, tileI.length).parallel().forEach(k -> {
+                int i0 = tileI[k]*tileSize;
+                int i1 = Math.min(i0+tileSize, taxaNumber);
+                int j0 = tileJ[k]*tileSize;
+                int j1 = Math.min(j0+tileSize, taxaNumber);
+                int size = (i1-i0)*(j1-j0);
+                float[] tile = new float[size];
+                kernel.computeTile(i0, i1, j0, j1, tile);
+                ByteBuffer bb = ByteBuffer.allocate(size*Float.BYTES);
+                bb.asFloatBuffer().put(tile);
+                long offset;
+                synchronized (position) {
+                    offset = position[0];
+                    position[0]+=bb.capacity();
+                }
+                tileOffsets[k] = offset;
+                try {
+                    while (bb.hasRemaining()) {
+                        offset+=fc.write(bb, offset);
+                    }
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            raf.seek(position[0]);
+            ByteBuffer bb = ByteBuffer.allocate((tileOffsets.length+1)*Long.BYTES);
+            for (int i = 0; i < tileOffsets.length; i++) {
+                bb.putLong(tileOffsets[i]);
+            }
+            bb.putLong(position[0]);
+            raf.write(bb.array());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -32,6 +32,20 @@ public class SumTaxaDivergence {
         taxa = gt.getTaxaNames();
     }
 
+    /**
+     * Compute the IBS distance matrix tile by tile and stream it to a binary {@link DxyMatrix} file, without holding the whole matrix in memory.
+     * The file can be queried by {@link DxyMatrix} or exported to text by {@link DxyMatrix#writeText(String, IOFileFormat)}
+     * @param gt
+     * @param outfileS
+     */
+    public static void writeDxyMatrixBinary (GenotypeGrid gt, String outfileS) {
+        long start = System.nanoTime();
+        DxyMatrix.write(gt.getIBSDistanceKernel(0, gt.getSiteNumber()), gt.getTaxaNames(), outfileS);
+        StringBuilder sb = new StringBuilder("IBS distance matrix calculation takes ");
+        sb.append(Benchmark.getTimeSpanSeconds(start)).append(" seconds, written to ").append(outfileS);
+        System.out.println(sb.toString());
+    }
+
     private String getDxyMatrixHeader() {
         StringBuilder sb = new StringBuilder("Dxy");
         for (int i = 0; i < taxa.length; i++) {
@@ -47,7 +61,8 @@ public class SumTaxaDivergence {
             StringBuilder sb = new StringBuilder();
             sb.append(taxa[i]);
             for (int j = 0; j < taxa.length; j++) {
-                sb.append("\t").append(String.format("%.3f", dxyMatrix[i][j]));
+                sb.append("\t");
+                DxyMatrix.appendDxy(sb, dxyMatrix[i][j]);
             }
             content[i] = sb.toString();
         });
@@ -7,6 +7,7 @@ import pgl.infra.dna.allele.AlleleEncoder;
 import pgl.infra.dna.allele.AlleleType;
 import pgl.infra.dna.genot.GenotypeGrid;
 import pgl.infra.dna.genot.GenotypeOperation;
+import pgl.infra.dna.genot.GenotypeView;
 
 import java.util.Arrays;
 
@@ -16,13 +17,13 @@ public class ChromosomeFd {
     GenotypeGrid oriGT = null;
 
     //The genotype table of P1, only SNPs with ancestral allele were picked up from the original genotype table
-    GenotypeGrid p1 = null;
+    GenotypeView p1 = null;
 
     //The genotype table of P2, only SNPs with ancestral allele were picked up from the original genotype table
-    GenotypeGrid p2 = null;
+    GenotypeView p2 = null;
 
     //The genotype table of P3, only SNPs with ancestral allele were picked up from the original genotype table
-    GenotypeGrid p3 = null;
+    GenotypeView p3 = null;
 
     double regionD = Double.NaN;
 
@@ -62,20 +63,20 @@ public class ChromosomeFd {
                 ancestralAlleleByteList.add(currentAlleleByte);
             }
         }
-        GenotypeGrid gt = GenotypeOperation.getSubsetGenotypeBySite(oriGT, posIndexList.toArray());
+        GenotypeView gt = GenotypeOperation.getSubsetGenotypeViewBySite(oriGT, posIndexList.toArray());
         byte[] ancestralAlleleBytes = ancestralAlleleByteList.toArray();
         p1 = this.initializeGTPop(gt, p1Taxa, ancestralAlleleBytes);
         p2 = this.initializeGTPop(gt, p2Taxa, ancestralAlleleBytes);
         p3 = this.initializeGTPop(gt, p3Taxa, ancestralAlleleBytes);
     }
 
-    private GenotypeGrid initializeGTPop (GenotypeGrid gt, String[] subTaxa, byte[] ancestralAlleleBytes) {
+    private GenotypeView initializeGTPop (GenotypeView gt, String[] subTaxa, byte[] ancestralAlleleBytes) {
         Arrays.sort(subTaxa);
         int[] taxaIndex = new int[subTaxa.length];
         for (int i = 0; i < subTaxa.length; i++) {
             taxaIndex[i] = this.oriGT.getTaxonIndex(subTaxa[i]);
         }
-        GenotypeGrid gg = GenotypeOperation.getSubsetGenotypeByTaxon(gt, taxaIndex);
+        GenotypeView gg = GenotypeOperation.getSubsetGenotypeViewByTaxon(gt, taxaIndex);
         for (int i = 0; i < gg.getSiteNumber(); i++) {
             if (gg.getReferenceAlleleByte(i) == ancestralAlleleBytes[i]) {
                 gg.setReferenceAlleleType(AlleleType.Ancestral, i);
@@ -1,4 +1,275 @@
 package pgl.infra.popg;
 
+import pgl.infra.dna.genot.GenotypeTable;
+import pgl.infra.utils.IOFileFormat;
+
+import java.io.BufferedWriter;
+
+/**
+ * Fixation index (Fst) between groups of taxa of a {@link GenotypeTable}, in sliding windows and genome-wide
+ * <p>
+ * Per-site counts of each group come from popcounts of the words of a site AND-ed with the bit mask of the group, so a site is
+ * counted once for all groups, and Fst of all pairs of groups is computed in one parallel pass over sites.
+ * Hudson Fst (Bhatia et al. 2013) and Weir and Cockerham Fst (1984) are computed for each pair; when there are more than two groups,
+ * Weir and Cockerham Fst of all groups is computed as well. Fst of a window is the ratio of the sums of numerators and denominators of its sites.
+ * <p>
+ * Sites should be sorted by chromosome and position, genotypes are diploid, and missing genotypes are excluded per group.
+ *
+ * @author feilu
+ */
 public class Fst {
+    GenotypeTable gt = null;
+    String[] groupNames = null;
+    long[][] groupMasks = null;
+    /**
+     * Pairs of groups, the first dimension is pair, the second dimension is the indices of the two groups
+     */
+    int[][] pairs = null;
+    int windowSize = 100000;
+    int windowStep = 50000;
+    WindowAccumulator wa = null;
+
+    /**
+     * Construct an Fst engine
+     * @param gt
+     * @param groupNames names of groups, at least two groups
+     * @param groupTaxa the first dimension is group, the second dimension is taxon name
+     */
+    public Fst (GenotypeTable gt, String[] groupNames, String[][] groupTaxa) {
+        if (groupNames.length < 2 || groupNames.length != groupTaxa.length) {
+            throw new IllegalArgumentException("At least two groups of taxa are needed, with one name per group");
+        }
+        this.gt = gt;
+        this.groupNames = groupNames;
+        this.groupMasks = PopgUtils.getGroupMasks(gt, groupTaxa);
+        this.pairs = new int[groupNames.length*(groupNames.length-1)/2][];
+        int cnt = 0;
+        for (int i = 0; i < groupNames.length-1; i++) {
+            for (int j = i+1; j < groupNames.length; j++) {
+                pairs[cnt++] = new int[]{i, j};
+            }
+        }
+    }
+
+    /**
+     * Set the size and step of sliding windows in bp, the default is 100 kb windows with a 50 kb step
+     * @param windowSize
+     * @param windowStep
+     */
+    public void setWindow (int windowSize, int windowStep) {
+        this.windowSize = windowSize;
+        this.windowStep = windowStep;
+        this.wa = null;
+    }
+
+    /**
+     * Return the number of pairs of groups
+     * @return
+     */
+    public int getPairNumber () {
+        return pairs.length;
+    }
+
+    /**
+     * Return the name of a pair of groups, e.g. A_vs_B
+     * @param pairIndex
+     * @return
+     */
+    public String getPairName (int pairIndex) {
+        return groupNames[pairs[pairIndex][0]]+"_vs_"+groupNames[pairs[pairIndex][1]];
+    }
+
+    /**
+     * Return the index of a pair of groups
+     * @param groupName1
+     * @param groupName2
+     * @return -1 if the pair does not exist
+     */
+    public int getPairIndex (String groupName1, String groupName2) {
+        for (int i = 0; i < pairs.length; i++) {
+            String g1 = groupNames[pairs[i][0]];
+            String g2 = groupNames[pairs[i][1]];
+            if ((g1.equals(groupName1) && g2.equals(groupName2)) || (g1.equals(groupName2) && g2.equals(groupName1))) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Compute Fst of all pairs of groups in one pass over sites
+     */
+    public void compute () {
+        wa = new WindowAccumulator(gt, windowSize, windowStep);
+        int valueNumber = pairs.length*4;
+        if (groupNames.length > 2) valueNumber+=2;
+        wa.accumulate(valueNumber, this::getSiteValues);
+    }
+
+    /**
+     * Return Hudson Fst of a pair of groups in windows
+     * @param pairIndex
+     * @return
+     */
+    public double[] getHudsonFst (int pairIndex) {
+        if (wa == null) this.compute();
+        return wa.getRatios(pairIndex*4, pairIndex*4+1);
+    }
+
+    /**
+     * Return Weir and Cockerham Fst of a pair of groups in windows
+     * @param pairIndex
+     * @return
+     */
+    public double[] getWeirCockerhamFst (int pairIndex) {
+        if (wa == null) this.compute();
+        return wa.getRatios(pairIndex*4+2, pairIndex*4+3);
+    }
+
+    /**
+     * Return Weir and Cockerham Fst of all groups in windows, the same as the Fst of the pair when there are two groups
+     * @return
+     */
+    public double[] getWeirCockerhamFstOfAllGroups () {
+        if (groupNames.length == 2) return this.getWeirCockerhamFst(0);
+        if (wa == null) this.compute();
+        return wa.getRatios(pairs.length*4, pairs.length*4+1);
+    }
+
+    /**
+     * Return genome-wide Hudson Fst of a pair of groups
+     * @param pairIndex
+     * @return
+     */
+    public double getGenomeHudsonFst (int pairIndex) {
+        if (wa == null) this.compute();
+        return wa.getTotal(pairIndex*4)/wa.getTotal(pairIndex*4+1);
+    }
+
+    /**
+     * Return genome-wide Weir and Cockerham Fst of a pair of groups
+     * @param pairIndex
+     * @return
+     */
+    public double getGenomeWeirCockerhamFst (int pairIndex) {
+        if (wa == null) this.compute();
+        return wa.getTotal(pairIndex*4+2)/wa.getTotal(pairIndex*4+3);
+    }
+
+    /**
+     * Write Fst in windows, columns are Chr, WindowStart, WindowEnd (exclusive), SiteNumber, then Hudson and Weir and Cockerham Fst of each pair,
+     * and Weir and Cockerham Fst of all groups when there are more than two groups
+     * @param outfileS
+     * @param format {@link IOFileFormat#Text} or {@link IOFileFormat#TextGzip}
+     */
+    public void writeWindows (String outfileS, IOFileFormat format) {
+        if (wa == null) this.compute();
+        int columnNumber = pairs.length*2;
+        if (groupNames.length > 2) columnNumber++;
+        String[] header = new String[columnNumber];
+        double[][] statistics = new double[columnNumber][];
+        for (int i = 0; i < pairs.length; i++) {
+            header[i*2] = "Hudson_"+this.getPairName(i);
+            statistics[i*2] = this.getHudsonFst(i);
+            header[i*2+1] = "WC_"+this.getPairName(i);
+            statistics[i*2+1] = this.getWeirCockerhamFst(i);
+        }
+        if (groupNames.length > 2) {
+            header[columnNumber-1] = "WC_All";
+            statistics[columnNumber-1] = this.getWeirCockerhamFstOfAllGroups();
+        }
+        BufferedWriter bw = PopgUtils.getTextWriter(outfileS, format);
+        try {
+            wa.write(bw, header, statistics, null);
+            bw.flush();
+            bw.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compute numerators and denominators of sites of a block
+     * @param startSite
+     * @param endSite
+     * @param values
+     */
+    private void getSiteValues (int startSite, int endSite, double[][] values) {
+        int stride = gt.getWordNumberBySite();
+        long[] p1 = new long[(endSite-startSite)*stride];
+        long[] p2 = new long[p1.length];
+        long[] m = new long[p1.length];
+        gt.getSiteWords(startSite, endSite, p1, p2, m);
+        int groupNumber = groupNames.length;
+        int[] nonMissings = new int[groupNumber];
+        int[] alts = new int[groupNumber];
+        int[] hets = new int[groupNumber];
+        double[] wc = new double[2];
+        int[] allGroups = new int[groupNumber];
+        for (int i = 0; i < groupNumber; i++) {
+            allGroups[i] = i;
+        }
+        for (int i = 0; i < endSite-startSite; i++) {
+            PopgUtils.countGroups(p1, p2, m, i*stride, groupMasks, nonMissings, alts, hets);
+            for (int j = 0; j < pairs.length; j++) {
+                int g1 = pairs[j][0];
+                int g2 = pairs[j][1];
+                int n1 = nonMissings[g1]*2;
+                int n2 = nonMissings[g2]*2;
+                if (n1 < 2 || n2 < 2) continue;
+                double f1 = (double)alts[g1]/n1;
+                double f2 = (double)alts[g2]/n2;
+                values[j*4][i] = (f1-f2)*(f1-f2)-f1*(1-f1)/(n1-1)-f2*(1-f2)/(n2-1);
+                values[j*4+1][i] = f1*(1-f2)+f2*(1-f1);
+                if (getWeirCockerham(pairs[j], nonMissings, alts, hets, wc)) {
+                    values[j*4+2][i] = wc[0];
+                    values[j*4+3][i] = wc[1];
+                }
+            }
+            if (groupNumber > 2 && getWeirCockerham(allGroups, nonMissings, alts, hets, wc)) {
+                values[pairs.length*4][i] = wc[0];
+                values[pairs.length*4+1][i] = wc[1];
+            }
+        }
+    }
+
+    /**
+     * Compute the variance components of Weir and Cockerham Fst of a site
+     * @param groups indices of groups
+     * @param nonMissings
+     * @param alts
+     * @param hets
+     * @param wc a, and a+b+c
+     * @return false if the site is not informative
+     */
+    private static boolean getWeirCockerham (int[] groups, int[] nonMissings, int[] alts, int[] hets, double[] wc) {
+        double r = groups.length;
+        double nSum = 0, nSquareSum = 0, altSum = 0, hetSum = 0;
+        for (int i = 0; i < groups.length; i++) {
+            int n = nonMissings[groups[i]];
+            if (n == 0) return false;
+            nSum+=n;
+            nSquareSum+=(double)n*n;
+            altSum+=alts[groups[i]];
+            hetSum+=hets[groups[i]];
+        }
+        double nBar = nSum/r;
+        if (nBar <= 1) return false;
+        double nc = (nSum-nSquareSum/nSum)/(r-1);
+        double pBar = altSum/(2*nSum);
+        double hBar = hetSum/nSum;
+        double s2 = 0;
+        for (int i = 0; i < groups.length; i++) {
+            int n = nonMissings[groups[i]];
+            double p = (double)alts[groups[i]]/(2*n);
+            s2+=n*(p-pBar)*(p-pBar);
+        }
+        s2 = s2/((r-1)*nBar);
+        double pq = pBar*(1-pBar);
+        double a = nBar/nc*(s2-1/(nBar-1)*(pq-(r-1)/r*s2-hBar/4));
+        double b = nBar/(nBar-1)*(pq-(r-1)/r*s2-(2*nBar-1)/(4*nBar)*hBar);
+        double c = hBar/2;
+        wc[0] = a;
+        wc[1] = a+b+c;
+        return true;
+    }
 }
@@ -1,4 +1,407 @@
 package pgl.infra.popg;
 
+import gnu.trove.list.array.TIntArrayList;
+import pgl.infra.dna.genot.GenotypeTable;
+import pgl.infra.utils.IOFileFormat;
+
+import java.io.BufferedWriter;
+import java.util.stream.IntStream;
+
+/**
+ * Observed heterozygosity of taxa in sliding windows, and runs of homozygosity (ROH) of taxa, of a {@link GenotypeTable}
+ * <p>
+ * Taxa are computed in parallel. The words of a taxon, see {@link GenotypeTable#getTaxonWords(int, int, long[], long[], long[])}, are
+ * turned into words of heterozygous sites (phase 1 XOR phase 2) and non-missing sites, the bits of a site range are counted by popcounts.
+ * A {@link pgl.infra.dna.genot.GenotypeGrid} copies the words from its taxon-major planes, which is the fastest.
+ * <p>
+ * ROH are found by jumping from one heterozygous site to the next, zero words are skipped at once. Homozygous segments are separated by heterozygous sites,
+ * by gaps between adjacent sites of the table longer than the maximum gap, and by chromosomes. Starting from each segment, the following segments are merged
+ * across at most the tolerated number of heterozygous sites, and the run is kept if it meets the minimum length, the minimum number of non-missing sites,
+ * and the minimum SNP density. Runs do not overlap. A run starts and ends at non-missing sites of the taxon.
+ * <p>
+ * Sites should be sorted by chromosome and position.
+ *
+ * @author feilu
+ */
 public class Heterozygosity {
+    GenotypeTable gt = null;
+    int windowSize = 1000000;
+    int windowStep = 1000000;
+    int minROHLength = 1000000;
+    int minROHSNPNumber = 100;
+    double minROHSNPDensity = 0.02;
+    int maxROHGap = 1000000;
+    int maxROHHetNumber = 1;
+
+    WindowAccumulator wa = null;
+    /**
+     * Heterozygosity of taxa in windows, the first dimension is taxon, the second dimension is window
+     */
+    float[][] windowHeterozygosity = null;
+    int[] nonMissingNumbers = null;
+    int[] hetNumbers = null;
+    /**
+     * ROH of taxa, each ROH takes 4 values: first site, last site (inclusive), number of non-missing sites, and number of heterozygous sites
+     */
+    TIntArrayList[] rohs = null;
+
+    /**
+     * Construct a heterozygosity engine
+     * @param gt
+     */
+    public Heterozygosity (GenotypeTable gt) {
+        this.gt = gt;
+    }
+
+    /**
+     * Set the size and step of sliding windows in bp, the default is 1 Mb non-overlapping windows
+     * @param windowSize
+     * @param windowStep
+     */
+    public void setWindow (int windowSize, int windowStep) {
+        this.windowSize = windowSize;
+        this.windowStep = windowStep;
+        this.wa = null;
+    }
+
+    /**
+     * Set the minimum length of ROH in bp, the default is 1 Mb
+     * @param minROHLength
+     */
+    public void setMinROHLength (int minROHLength) {
+        this.minROHLength = minROHLength;
+        this.wa = null;
+    }
+
+    /**
+     * Set the minimum number of non-missing sites of ROH, the default is 100
+     * @param minROHSNPNumber
+     */
+    public void setMinROHSNPNumber (int minROHSNPNumber) {
+        this.minROHSNPNumber = minROHSNPNumber;
+        this.wa = null;
+    }
+
+    /**
+     * Set the minimum number of non-missing sites per kb of ROH, the default is 0.02, i.e. a site per 50 kb
+     * @param minROHSNPDensity
+     */
+    public void setMinROHSNPDensity (double minROHSNPDensity) {
+        this.minROHSNPDensity = minROHSNPDensity;
+        this.wa = null;
+    }
+
+    /**
+     * Set the maximum gap in bp between adjacent sites in ROH, the default is 1 Mb
+     * @param maxROHGap
+     */
+    public void setMaxROHGap (int maxROHGap) {
+        this.maxROHGap = maxROHGap;
+        this.wa = null;
+    }
+
+    /**
+     * Set the number of heterozygous sites tolerated in ROH, the default is 1
+     * @param maxROHHetNumber
+     */
+    public void setMaxROHHetNumber (int maxROHHetNumber) {
+        this.maxROHHetNumber = maxROHHetNumber;
+        this.wa = null;
+    }
+
+    /**
+     * Compute heterozygosity in windows and ROH of all taxa
+     */
+    public void compute () {
+        wa = new WindowAccumulator(gt, windowSize, windowStep);
+        int[][] windowRanges = wa.getWindowSiteRanges();
+        int[] breaks = this.getGapBreaks();
+        int taxaNumber = gt.getTaxaNumber();
+        windowHeterozygosity = new float[taxaNumber][];
+        nonMissingNumbers = new int[taxaNumber];
+        hetNumbers = new int[taxaNumber];
+        rohs = new TIntArrayList[taxaNumber];
+        IntStream.range(0, taxaNumber).parallel().forEach(i -> {
+            this.computeTaxon(i, windowRanges, breaks);
+        });
+    }
+
+    /**
+     * Return the sites after gaps, i.e. the first sites of chromosomes, and sites far away from the previous sites, ended by the site number
+     * @return
+     */
+    private int[] getGapBreaks () {
+        TIntArrayList breakList = new TIntArrayList();
+        int siteNumber = gt.getSiteNumber();
+        for (int i = 0; i < siteNumber; i++) {
+            if (i == 0 || wa.chrs[i] != wa.chrs[i-1] || wa.positions[i]-wa.positions[i-1] > maxROHGap) breakList.add(i);
+        }
+        breakList.add(siteNumber);
+        return breakList.toArray();
+    }
+
+    private void computeTaxon (int taxonIndex, int[][] windowRanges, int[] breaks) {
+        int siteNumber = gt.getSiteNumber();
+        int stride = gt.getWordNumberByTaxon();
+        long[] hets = new long[stride];
+        long[] nonMissings = new long[stride];
+        long[] missings = new long[stride];
+        //phase 1 and phase 2 are read into the buffers of heterozygous and non-missing sites, and then turned into them
+        gt.getTaxonWords(taxonIndex, taxonIndex+1, hets, nonMissings, missings);
+        long tailMask = PopgUtils.getTailMask(siteNumber);
+        for (int i = 0; i < stride; i++) {
+            hets[i]^=nonMissings[i];
+            nonMissings[i] = ~missings[i];
+        }
+        if (stride > 0) nonMissings[stride-1]&=tailMask;
+        nonMissingNumbers[taxonIndex] = PopgUtils.cardinality(nonMissings, 0, siteNumber);
+        hetNumbers[taxonIndex] = PopgUtils.cardinality(hets, 0, siteNumber);
+        float[] values = new float[windowRanges.length];
+        for (int i = 0; i < values.length; i++) {
+            int n = PopgUtils.cardinality(nonMissings, windowRanges[i][0], windowRanges[i][1]);
+            values[i] = n == 0 ? Float.NaN : (float)PopgUtils.cardinality(hets, windowRanges[i][0], windowRanges[i][1])/n;
+        }
+        windowHeterozygosity[taxonIndex] = values;
+        rohs[taxonIndex] = this.findROH(hets, nonMissings, breaks);
+    }
+
+    /**
+     * Find ROH of a taxon
+     * @param hets words of heterozygous sites
+     * @param nonMissings words of non-missing sites
+     * @param breaks sites after gaps
+     * @return
+     */
+    private TIntArrayList findROH (long[] hets, long[] nonMissings, int[] breaks) {
+        //homozygous segments [start, end), the end is a heterozygous site, a gap break, or the site number
+        TIntArrayList starts = new TIntArrayList();
+        TIntArrayList ends = new TIntArrayList();
+        TIntArrayList ifHetEnds = new TIntArrayList();
+        for (int i = 0; i < breaks.length-1; i++) {
+            int start = breaks[i];
+            int end = breaks[i+1];
+            int current = start;
+            int het;
+            while ((het = PopgUtils.nextSetBit(hets, current, end)) < end) {
+                starts.add(current);
+                ends.add(het);
+                ifHetEnds.add(1);
+                current = het+1;
+            }
+            starts.add(current);
+            ends.add(end);
+            ifHetEnds.add(0);
+        }
+        TIntArrayList result = new TIntArrayList();
+        int segmentNumber = starts.size();
+        int i = 0;
+        while (i < segmentNumber) {
+            int j = i;
+            int hetCount = 0;
+            while (j+1 < segmentNumber && ifHetEnds.get(j) == 1 && hetCount < maxROHHetNumber) {
+                hetCount++;
+                j++;
+            }
+            //the run is trimmed to non-missing sites, tolerated heterozygous sites are non-missing
+            int first = PopgUtils.nextSetBit(nonMissings, starts.get(i), ends.get(j));
+            int last = PopgUtils.previousSetBit(nonMissings, ends.get(j)-1, starts.get(i));
+            if (first <= last) {
+                int snpNumber = PopgUtils.cardinality(nonMissings, first, last+1);
+                int length = wa.positions[last]-wa.positions[first]+1;
+                if (length >= minROHLength && snpNumber >= minROHSNPNumber && snpNumber*1000.0/length >= minROHSNPDensity) {
+                    result.add(first);
+                    result.add(last);
+                    result.add(snpNumber);
+                    result.add(PopgUtils.cardinality(hets, first, last+1));
+                    i = j+1;
+                    continue;
+                }
+            }
+            i++;
+        }
+        return result;
+    }
+
+    /**
+     * Return the observed heterozygosity of a taxon in windows, NaN if a window has no non-missing site
+     * @param taxonIndex
+     * @return
+     */
+    public float[] getWindowHeterozygosity (int taxonIndex) {
+        if (wa == null) this.compute();
+        return windowHeterozygosity[taxonIndex];
+    }
+
+    /**
+     * Return the genome-wide observed heterozygosity of a taxon
+     * @param taxonIndex
+     * @return
+     */
+    public float getHeterozygosity (int taxonIndex) {
+        if (wa == null) this.compute();
+        return (float)hetNumbers[taxonIndex]/nonMissingNumbers[taxonIndex];
+    }
+
+    /**
+     * Return the number of ROH of a taxon
+     * @param taxonIndex
+     * @return
+     */
+    public int getROHNumber (int taxonIndex) {
+        if (wa == null) this.compute();
+        return rohs[taxonIndex].size()/4;
+    }
+
+    /**
+     * Return the first site of a ROH
+     * @param taxonIndex
+     * @param rohIndex
+     * @return
+     */
+    public int getROHStartSiteIndex (int taxonIndex, int rohIndex) {
+        if (wa == null) this.compute();
+        return rohs[taxonIndex].get(rohIndex*4);
+    }
+
+    /**
+     * Return the last site of a ROH, inclusive
+     * @param taxonIndex
+     * @param rohIndex
+     * @return
+     */
+    public int getROHEndSiteIndex (int taxonIndex, int rohIndex) {
+        if (wa == null) this.compute();
+        return rohs[taxonIndex].get(rohIndex*4+1);
+    }
+
+    /**
+     * Return the total length of ROH of a taxon in bp
+     * @param taxonIndex
+     * @return
+     */
+    public long getROHLength (int taxonIndex) {
+        if (wa == null) this.compute();
+        long length = 0;
+        for (int i = 0; i < this.getROHNumber(taxonIndex); i++) {
+            length+=wa.positions[this.getROHEndSiteIndex(taxonIndex, i)]-wa.positions[this.getROHStartSiteIndex(taxonIndex, i)]+1;
+        }
+        return length;
+    }
+
+    /**
+     * Return the inbreeding coefficient from ROH (FROH) of a taxon, i.e. the proportion of the genome spanned by sites in ROH
+     * @param taxonIndex
+     * @return
+     */
+    public double getFROH (int taxonIndex) {
+        return (double)this.getROHLength(taxonIndex)/this.getGenomeLength();
+    }
+
+    /**
+     * Return the length of the genome spanned by sites, the sum of spans of chromosomes
+     * @return
+     */
+    private long getGenomeLength () {
+        long length = 0;
+        int[] chrStarts = wa.chrStartSites;
+        for (int i = 0; i < chrStarts.length; i++) {
+            int end = i+1 < chrStarts.length ? chrStarts[i+1] : wa.positions.length;
+            length+=wa.positions[end-1]-wa.positions[chrStarts[i]]+1;
+        }
+        return length;
+    }
+
+    /**
+     * Write a summary of taxa, with columns Taxon, NonMissingSiteNumber, Heterozygosity, ROHNumber, ROHLength, and FROH
+     * @param outfileS
+     * @param format {@link IOFileFormat#Text} or {@link IOFileFormat#TextGzip}
+     */
+    public void writeTaxaSummary (String outfileS, IOFileFormat format) {
+        if (wa == null) this.compute();
+        BufferedWriter bw = PopgUtils.getTextWriter(outfileS, format);
+        try {
+            bw.write("Taxon\tNonMissingSiteNumber\tHeterozygosity\tROHNumber\tROHLength\tFROH");
+            bw.newLine();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < gt.getTaxaNumber(); i++) {
+                sb.setLength(0);
+                sb.append(gt.getTaxonName(i)).append("\t").append(nonMissingNumbers[i]).append("\t");
+                PopgUtils.appendValue(sb, this.getHeterozygosity(i));
+                sb.append("\t").append(this.getROHNumber(i)).append("\t").append(this.getROHLength(i)).append("\t");
+                PopgUtils.appendValue(sb, this.getFROH(i));
+                bw.write(sb.toString());
+                bw.newLine();
+            }
+            bw.flush();
+            bw.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write ROH of all taxa, with columns Taxon, Chr, StartPosition, EndPosition (inclusive), Length, SNPNumber, and HetNumber
+     * @param outfileS
+     * @param format {@link IOFileFormat#Text} or {@link IOFileFormat#TextGzip}
+     */
+    public void writeROH (String outfileS, IOFileFormat format) {
+        if (wa == null) this.compute();
+        BufferedWriter bw = PopgUtils.getTextWriter(outfileS, format);
+        try {
+            bw.write("Taxon\tChr\tStartPosition\tEndPosition\tLength\tSNPNumber\tHetNumber");
+            bw.newLine();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < gt.getTaxaNumber(); i++) {
+                TIntArrayList roh = rohs[i];
+                for (int j = 0; j < roh.size(); j+=4) {
+                    int start = wa.positions[roh.get(j)];
+                    int end = wa.positions[roh.get(j+1)];
+                    sb.setLength(0);
+                    sb.append(gt.getTaxonName(i)).append("\t").append(wa.chrs[roh.get(j)]).append("\t").append(start).append("\t").append(end).append("\t");
+                    sb.append(end-start+1).append("\t").append(roh.get(j+2)).append("\t").append(roh.get(j+3));
+                    bw.write(sb.toString());
+                    bw.newLine();
+                }
+            }
+            bw.flush();
+            bw.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write heterozygosity in windows, columns are Chr, WindowStart, WindowEnd (exclusive), SiteNumber, and taxa
+     * @param outfileS
+     * @param format {@link IOFileFormat#Text} or {@link IOFileFormat#TextGzip}
+     */
+    public void writeWindowHeterozygosity (String outfileS, IOFileFormat format) {
+        if (wa == null) this.compute();
+        BufferedWriter bw = PopgUtils.getTextWriter(outfileS, format);
+        try {
+            StringBuilder sb = new StringBuilder("Chr\tWindowStart\tWindowEnd\tSiteNumber");
+            for (int i = 0; i < gt.getTaxaNumber(); i++) {
+                sb.append("\t").append(gt.getTaxonName(i));
+            }
+            bw.write(sb.toString());
+            bw.newLine();
+            for (int i = 0; i < wa.getWindowNumber(); i++) {
+                sb.setLength(0);
+                wa.appendWindow(sb, i);
+                for (int j = 0; j < windowHeterozygosity.length; j++) {
+                    sb.append("\t");
+                    PopgUtils.appendValue(sb, windowHeterozygosity[j][i]);
+                }
+                bw.write(sb.toString());
+                bw.newLine();
+            }
+            bw.flush();
+            bw.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 }
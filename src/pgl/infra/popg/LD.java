@@ -1,4 +1,426 @@
 package pgl.infra.popg;
 
+import pgl.PGLConstraints;
+import pgl.infra.dna.genot.GenotypeTable;
+import pgl.infra.utils.BGZFOutputStream;
+import pgl.infra.utils.IOFileFormat;
+import pgl.infra.utils.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.stream.IntStream;
+
+/**
+ * Linkage disequilibrium (LD) of pairs of sites in a {@link GenotypeTable}
+ * <p>
+ * Pairs are sites on the same chromosome, within a distance window and a site-count window. The counts of a pair are popcounts
+ * of AND-ed words of phase 1, phase 2, and missing, see {@link GenotypeTable#getSiteWords(int, int, long[], long[], long[])}.
+ * Sites are cut into blocks of {@link #blockSize}, a batch of blocks is computed in parallel and written in order.
+ * <p>
+ * Genotypes are unphased by default, r2 is the squared correlation of alternative allele dosages, and D' is from the composite LD,
+ * i.e. half of the dosage covariance. When genotypes are phased, haplotypes are counted, r2 and D' are the haplotype estimates.
+ * Pairs with a monomorphic site after excluding missing genotypes have no LD, they are not written out.
+ * <p>
+ * LD decay is summarized in bins of distance in the same pass.
+ * <p>
+ * Text output has columns Chr, Pos1, Pos2, R2, and Dprime. Binary output is BGZF compressed, a record of a pair is short chr, int pos1, int pos2, float r2, and float dprime.
+ *
+ * @author feilu
+ */
 public class LD {
+    /**
+     * Number of sites of a block computed by a thread
+     */
+    public static final int blockSize = 256;
+
+    GenotypeTable gt = null;
+    short[] chrs = null;
+    int[] positions = null;
+    int maxDistance = 100000;
+    int maxSiteNumber = Integer.MAX_VALUE;
+    boolean ifPhased = false;
+    float minR2 = 0;
+    int decayBinSize = 1000;
+    double[] decayR2Sums = null;
+    double[] decayDprimeSums = null;
+    long[] decayPairNumbers = null;
+
+    /**
+     * Construct an LD engine, sites should be sorted by chromosome and position
+     * @param gt
+     */
+    public LD (GenotypeTable gt) {
+        this.gt = gt;
+        int siteNumber = gt.getSiteNumber();
+        chrs = new short[siteNumber];
+        positions = new int[siteNumber];
+        for (int i = 0; i < siteNumber; i++) {
+            chrs[i] = gt.getChromosome(i);
+            positions[i] = gt.getPosition(i);
+        }
+    }
+
+    /**
+     * Set the maximum distance in bp between sites of a pair, the default is 100 kb
+     * @param maxDistance
+     */
+    public void setMaxDistance (int maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Set the maximum number of sites from a site to its partners, no limit by default
+     * @param maxSiteNumber
+     */
+    public void setMaxSiteNumber (int maxSiteNumber) {
+        this.maxSiteNumber = maxSiteNumber;
+    }
+
+    /**
+     * Set if the genotypes are phased
+     * @param ifPhased
+     */
+    public void setPhased (boolean ifPhased) {
+        this.ifPhased = ifPhased;
+    }
+
+    /**
+     * Set the minimum r2 of pairs to be written out, LD decay is not affected
+     * @param minR2
+     */
+    public void setMinR2 (float minR2) {
+        this.minR2 = minR2;
+    }
+
+    /**
+     * Set the bin size in bp of LD decay, the default is 1 kb
+     * @param decayBinSize
+     */
+    public void setDecayBinSize (int decayBinSize) {
+        this.decayBinSize = decayBinSize;
+    }
+
+    /**
+     * Return r2 and D' of two sites
+     * @param siteIndex1
+     * @param siteIndex2
+     * @return r2 and D', NaN if either site is monomorphic
+     */
+    public double[] getLD (int siteIndex1, int siteIndex2) {
+        int stride = gt.getWordNumberBySite();
+        long[] p1 = new long[stride*2];
+        long[] p2 = new long[stride*2];
+        long[] m = new long[stride*2];
+        gt.getSiteWords(siteIndex1, siteIndex1+1, p1, p2, m);
+        long[] buffer = new long[stride];
+        gt.getSiteWords(siteIndex2, siteIndex2+1, buffer, null, null);
+        System.arraycopy(buffer, 0, p1, stride, stride);
+        gt.getSiteWords(siteIndex2, siteIndex2+1, null, buffer, null);
+        System.arraycopy(buffer, 0, p2, stride, stride);
+        gt.getSiteWords(siteIndex2, siteIndex2+1, null, null, buffer);
+        System.arraycopy(buffer, 0, m, stride, stride);
+        long[] counts = new long[7];
+        count(p1, p2, m, 0, stride, stride, PopgUtils.getTailMask(gt.getTaxaNumber()), counts);
+        double[] ld = new double[2];
+        this.getLD(counts, ld);
+        return ld;
+    }
+
+    /**
+     * Compute LD of all pairs and write them out, LD decay is computed in the same pass
+     * @param outfileS
+     * @param format {@link IOFileFormat#Text}, {@link IOFileFormat#TextGzip}, or {@link IOFileFormat#Binary}
+     */
+    public void writeLD (String outfileS, IOFileFormat format) {
+        BufferedWriter bw = null;
+        if (format != IOFileFormat.Binary) bw = PopgUtils.getTextWriter(outfileS, format);
+        try {
+            DataOutputStream dos = null;
+            if (format == IOFileFormat.Binary) {
+                dos = new DataOutputStream(new BGZFOutputStream(outfileS));
+            }
+            else {
+                bw.write("Chr\tPos1\tPos2\tR2\tDprime");
+                bw.newLine();
+            }
+            this.scan(format, bw, dos);
+            if (dos != null) dos.close();
+            else bw.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compute LD decay only, pairs are not written out
+     */
+    public void computeLDDecay () {
+        this.scan(null, null, null);
+    }
+
+    /**
+     * Return the mean r2 of bins of distance, available after {@link #writeLD(String, IOFileFormat)} or {@link #computeLDDecay()}
+     * @return
+     */
+    public double[] getLDDecayR2 () {
+        return getMeans(decayR2Sums, decayPairNumbers);
+    }
+
+    /**
+     * Return the mean absolute D' of bins of distance
+     * @return
+     */
+    public double[] getLDDecayDprime () {
+        return getMeans(decayDprimeSums, decayPairNumbers);
+    }
+
+    /**
+     * Return the number of pairs of bins of distance
+     * @return
+     */
+    public long[] getLDDecayPairNumbers () {
+        return decayPairNumbers;
+    }
+
+    /**
+     * Write LD decay, with columns BinStart, BinEnd (exclusive), PairNumber, MeanR2, and MeanDprime
+     * @param outfileS
+     */
+    public void writeLDDecay (String outfileS) {
+        if (decayPairNumbers == null) this.computeLDDecay();
+        double[] r2s = this.getLDDecayR2();
+        double[] dprimes = this.getLDDecayDprime();
+        try {
+            BufferedWriter bw = IOUtils.getTextWriter(outfileS);
+            bw.write("BinStart\tBinEnd\tPairNumber\tMeanR2\tMeanDprime");
+            bw.newLine();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < decayPairNumbers.length; i++) {
+                sb.setLength(0);
+                sb.append(i*decayBinSize).append("\t").append((i+1)*decayBinSize).append("\t").append(decayPairNumbers[i]).append("\t");
+                PopgUtils.appendValue(sb, r2s[i]);
+                sb.append("\t");
+                PopgUtils.appendValue(sb, dprimes[i]);
+                bw.write(sb.toString());
+                bw.newLine();
+            }
+            bw.flush();
+            bw.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static double[] getMeans (double[] sums, long[] numbers) {
+        if (numbers == null) return null;
+        double[] means = new double[numbers.length];
+        for (int i = 0; i < means.length; i++) {
+            means[i] = numbers[i] == 0 ? Double.NaN : sums[i]/numbers[i];
+        }
+        return means;
+    }
+
+    /**
+     * One pass over all pairs
+     * @param format null if pairs are not written out
+     * @param bw
+     * @param dos
+     */
+    private void scan (IOFileFormat format, BufferedWriter bw, DataOutputStream dos) {
+        int binNumber = maxDistance/decayBinSize+1;
+        decayR2Sums = new double[binNumber];
+        decayDprimeSums = new double[binNumber];
+        decayPairNumbers = new long[binNumber];
+        int siteNumber = gt.getSiteNumber();
+        int blockNumber = (siteNumber+blockSize-1)/blockSize;
+        LDBlock[] blocks = new LDBlock[PGLConstraints.parallelLevel];
+        try {
+            for (int i = 0; i < blockNumber; i+=blocks.length) {
+                int batchStart = i;
+                int batchSize = Math.min(blocks.length, blockNumber-i);
+                IntStream.range(0, batchSize).parallel().forEach(j -> {
+                    blocks[j] = this.computeBlock((batchStart+j)*blockSize, format);
+                });
+                for (int j = 0; j < batchSize; j++) {
+                    LDBlock block = blocks[j];
+                    if (bw != null) bw.write(block.text.toString());
+                    else if (dos != null) block.binary.writeTo(dos);
+                    for (int k = 0; k < binNumber; k++) {
+                        decayR2Sums[k]+=block.r2Sums[k];
+                        decayDprimeSums[k]+=block.dprimeSums[k];
+                        decayPairNumbers[k]+=block.pairNumbers[k];
+                    }
+                    blocks[j] = null;
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compute LD of all pairs starting from sites of a block
+     * @param startSite
+     * @param format
+     * @return
+     */
+    private LDBlock computeBlock (int startSite, IOFileFormat format) {
+        int endSite = Math.min(gt.getSiteNumber(), startSite+blockSize);
+        int[] windowEnds = new int[endSite-startSite];
+        int end = startSite+1;
+        for (int i = startSite; i < endSite; i++) {
+            end = Math.max(end, i+1);
+            while (end < chrs.length && chrs[end] == chrs[i] && positions[end]-positions[i] <= maxDistance && end-i <= maxSiteNumber) {
+                end++;
+            }
+            windowEnds[i-startSite] = end;
+        }
+        int wordEnd = Math.max(endSite, end);
+        int stride = gt.getWordNumberBySite();
+        long[] p1 = new long[(wordEnd-startSite)*stride];
+        long[] p2 = new long[p1.length];
+        long[] m = new long[p1.length];
+        gt.getSiteWords(startSite, wordEnd, p1, p2, m);
+        long tailMask = PopgUtils.getTailMask(gt.getTaxaNumber());
+        LDBlock block = new LDBlock(maxDistance/decayBinSize+1, format);
+        long[] counts = new long[7];
+        double[] ld = new double[2];
+        try {
+            for (int i = startSite; i < endSite; i++) {
+                int a = (i-startSite)*stride;
+                for (int j = i+1; j < windowEnds[i-startSite]; j++) {
+                    count(p1, p2, m, a, (j-startSite)*stride, stride, tailMask, counts);
+                    this.getLD(counts, ld);
+                    if (Double.isNaN(ld[0])) continue;
+                    int distance = positions[j]-positions[i];
+                    int bin = distance/decayBinSize;
+                    block.r2Sums[bin]+=ld[0];
+                    block.dprimeSums[bin]+=Math.abs(ld[1]);
+                    block.pairNumbers[bin]++;
+                    if (format == null || ld[0] < minR2) continue;
+                    if (block.text != null) {
+                        block.text.append(chrs[i]).append("\t").append(positions[i]).append("\t").append(positions[j]).append("\t");
+                        PopgUtils.appendValue(block.text, ld[0]);
+                        block.text.append("\t");
+                        PopgUtils.appendValue(block.text, ld[1]);
+                        block.text.append("\n");
+                    }
+                    else {
+                        block.binaryWriter.writeShort(chrs[i]);
+                        block.binaryWriter.writeInt(positions[i]);
+                        block.binaryWriter.writeInt(positions[j]);
+                        block.binaryWriter.writeFloat((float)ld[0]);
+                        block.binaryWriter.writeFloat((float)ld[1]);
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        return block;
+    }
+
+    /**
+     * Count a pair of sites, non-missing genotypes of both sites are counted
+     * @param p1 words of phase 1
+     * @param p2 words of phase 2
+     * @param m words of missing
+     * @param a offset of site a
+     * @param b offset of site b
+     * @param stride
+     * @param tailMask
+     * @param counts number of taxa, alleles of a, alleles of b, homozygous alternative of a, homozygous alternative of b, alleles of a and b on the same haplotype, alleles of a and b on different haplotypes
+     */
+    private static void count (long[] p1, long[] p2, long[] m, int a, int b, int stride, long tailMask, long[] counts) {
+        long n = 0, sa = 0, sb = 0, saa = 0, sbb = 0, hap = 0, cross = 0;
+        for (int k = 0; k < stride; k++) {
+            long v = ~(m[a+k] | m[b+k]);
+            if (k == stride-1) v&=tailMask;
+            long a1 = p1[a+k] & v;
+            long a2 = p2[a+k] & v;
+            long b1 = p1[b+k] & v;
+            long b2 = p2[b+k] & v;
+            n+=Long.bitCount(v);
+            sa+=Long.bitCount(a1)+Long.bitCount(a2);
+            sb+=Long.bitCount(b1)+Long.bitCount(b2);
+            saa+=Long.bitCount(a1 & a2);
+            sbb+=Long.bitCount(b1 & b2);
+            hap+=Long.bitCount(a1 & b1)+Long.bitCount(a2 & b2);
+            cross+=Long.bitCount(a1 & b2)+Long.bitCount(a2 & b1);
+        }
+        counts[0] = n;
+        counts[1] = sa;
+        counts[2] = sb;
+        counts[3] = saa;
+        counts[4] = sbb;
+        counts[5] = hap;
+        counts[6] = cross;
+    }
+
+    /**
+     * Compute r2 and D' from the counts of a pair
+     * @param counts
+     * @param ld r2 and D'
+     */
+    private void getLD (long[] counts, double[] ld) {
+        double n = counts[0];
+        double pA, pB, d, r2;
+        if (ifPhased) {
+            double hn = 2*n;
+            pA = counts[1]/hn;
+            pB = counts[2]/hn;
+            d = counts[5]/hn-pA*pB;
+            double var = pA*(1-pA)*pB*(1-pB);
+            r2 = var > 0 ? d*d/var : Double.NaN;
+        }
+        else {
+            double mA = counts[1]/n;
+            double mB = counts[2]/n;
+            double varA = (counts[1]+2*counts[3])/n-mA*mA;
+            double varB = (counts[2]+2*counts[4])/n-mB*mB;
+            double cov = (counts[5]+counts[6])/n-mA*mB;
+            r2 = varA > 0 && varB > 0 ? Math.min(1, cov*cov/varA/varB) : Double.NaN;
+            pA = mA/2;
+            pB = mB/2;
+            d = cov/2;
+        }
+        if (n < 2 || Double.isNaN(r2)) {
+            ld[0] = Double.NaN;
+            ld[1] = Double.NaN;
+            return;
+        }
+        double dMax = d < 0 ? Math.min(pA*pB, (1-pA)*(1-pB)) : Math.min(pA*(1-pB), (1-pA)*pB);
+        ld[0] = r2;
+        ld[1] = dMax > 0 ? Math.max(-1, Math.min(1, d/dMax)) : 0;
+    }
+
+    /**
+     * Results of a block
+     */
+    private static class LDBlock {
+        double[] r2Sums = null;
+        double[] dprimeSums = null;
+        long[] pairNumbers = null;
+        StringBuilder text = null;
+        ByteArrayOutputStream binary = null;
+        DataOutputStream binaryWriter = null;
+
+        LDBlock (int binNumber, IOFileFormat format) {
+            r2Sums = new double[binNumber];
+            dprimeSums = new double[binNumber];
+            pairNumbers = new long[binNumber];
+            if (format == IOFileFormat.Binary) {
+                binary = new ByteArrayOutputStream();
+                binaryWriter = new DataOutputStream(binary);
+            }
+            else if (format != null) {
+                text = new StringBuilder();
+            }
+        }
+    }
 }
@@ -1,4 +1,246 @@
 package pgl.infra.popg;
 
+import pgl.infra.dna.genot.GenotypeTable;
+import pgl.infra.utils.IOFileFormat;
+
+import java.io.BufferedWriter;
+
+/**
+ * Nucleotide diversity (pi), Watterson's theta, and Tajima's D of groups of taxa of a {@link GenotypeTable}, in sliding windows and genome-wide
+ * <p>
+ * Per-site allele counts of each group come from popcounts of the words of a site AND-ed with the bit mask of the group,
+ * all statistics of all groups are computed in one parallel pass over sites. Sites with fewer than 2 non-missing alleles in a group are not called in the group.
+ * pi and theta of a site use the number of non-missing alleles of the site, and they are divided by the number of called sites of a window,
+ * so missing data do not bias the estimates. When the table holds all callable sites, including monomorphic sites, the estimates are per bp.
+ * Tajima's D of a window uses the mean number of non-missing alleles of its segregating sites as the sample size of the variance, see {@link TajimasD}.
+ * <p>
+ * Sites should be sorted by chromosome and position, genotypes are diploid.
+ *
+ * @author feilu
+ */
 public class NucleotideDiversity {
+    /**
+     * Number of values of a group of a site: called, pi, theta, segregating, and number of alleles of segregating sites
+     */
+    private static final int valueNumber = 5;
+
+    GenotypeTable gt = null;
+    String[] groupNames = null;
+    long[][] groupMasks = null;
+    /**
+     * 1/a1 of numbers of alleles
+     */
+    double[] thetaDenominators = null;
+    int windowSize = 100000;
+    int windowStep = 50000;
+    WindowAccumulator wa = null;
+
+    /**
+     * Construct an engine of all taxa as a group
+     * @param gt
+     */
+    public NucleotideDiversity (GenotypeTable gt) {
+        this(gt, new String[]{"All"}, new String[][]{gt.getTaxaNames()});
+    }
+
+    /**
+     * Construct an engine of groups of taxa
+     * @param gt
+     * @param groupNames
+     * @param groupTaxa the first dimension is group, the second dimension is taxon name
+     */
+    public NucleotideDiversity (GenotypeTable gt, String[] groupNames, String[][] groupTaxa) {
+        if (groupNames.length == 0 || groupNames.length != groupTaxa.length) {
+            throw new IllegalArgumentException("At least one group of taxa is needed, with one name per group");
+        }
+        this.gt = gt;
+        this.groupNames = groupNames;
+        this.groupMasks = PopgUtils.getGroupMasks(gt, groupTaxa);
+        this.thetaDenominators = new double[gt.getTaxaNumber()*2+1];
+        double a1 = 0;
+        for (int i = 2; i < thetaDenominators.length; i++) {
+            a1+=1.0/(i-1);
+            thetaDenominators[i] = 1/a1;
+        }
+    }
+
+    /**
+     * Set the size and step of sliding windows in bp, the default is 100 kb windows with a 50 kb step
+     * @param windowSize
+     * @param windowStep
+     */
+    public void setWindow (int windowSize, int windowStep) {
+        this.windowSize = windowSize;
+        this.windowStep = windowStep;
+        this.wa = null;
+    }
+
+    public int getGroupNumber () {
+        return groupNames.length;
+    }
+
+    public String getGroupName (int groupIndex) {
+        return groupNames[groupIndex];
+    }
+
+    /**
+     * Compute all statistics of all groups in one pass over sites
+     */
+    public void compute () {
+        wa = new WindowAccumulator(gt, windowSize, windowStep);
+        wa.accumulate(groupNames.length*valueNumber, this::getSiteValues);
+    }
+
+    /**
+     * Return the number of called sites of a group in windows
+     * @param groupIndex
+     * @return
+     */
+    public int[] getCalledSiteNumbers (int groupIndex) {
+        if (wa == null) this.compute();
+        double[] sums = wa.getSums(groupIndex*valueNumber);
+        int[] numbers = new int[sums.length];
+        for (int i = 0; i < sums.length; i++) {
+            numbers[i] = (int)sums[i];
+        }
+        return numbers;
+    }
+
+    /**
+     * Return pi per called site of a group in windows
+     * @param groupIndex
+     * @return
+     */
+    public double[] getPi (int groupIndex) {
+        if (wa == null) this.compute();
+        return wa.getRatios(groupIndex*valueNumber+1, groupIndex*valueNumber);
+    }
+
+    /**
+     * Return Watterson's theta per called site of a group in windows
+     * @param groupIndex
+     * @return
+     */
+    public double[] getThetaW (int groupIndex) {
+        if (wa == null) this.compute();
+        return wa.getRatios(groupIndex*valueNumber+2, groupIndex*valueNumber);
+    }
+
+    /**
+     * Return Tajima's D of a group in windows
+     * @param groupIndex
+     * @return
+     */
+    public double[] getTajimasD (int groupIndex) {
+        if (wa == null) this.compute();
+        int base = groupIndex*valueNumber;
+        double[] pis = wa.getSums(base+1);
+        double[] thetas = wa.getSums(base+2);
+        double[] segregatings = wa.getSums(base+3);
+        double[] sampleSizes = wa.getSums(base+4);
+        double[] ds = new double[wa.getWindowNumber()];
+        for (int i = 0; i < ds.length; i++) {
+            int s = (int)segregatings[i];
+            ds[i] = s == 0 ? Double.NaN : TajimasD.getTajimasD(pis[i], thetas[i], s, (int)Math.round(sampleSizes[i]/s));
+        }
+        return ds;
+    }
+
+    /**
+     * Return genome-wide pi per called site of a group
+     * @param groupIndex
+     * @return
+     */
+    public double getGenomePi (int groupIndex) {
+        if (wa == null) this.compute();
+        return wa.getTotal(groupIndex*valueNumber+1)/wa.getTotal(groupIndex*valueNumber);
+    }
+
+    /**
+     * Return genome-wide Watterson's theta per called site of a group
+     * @param groupIndex
+     * @return
+     */
+    public double getGenomeThetaW (int groupIndex) {
+        if (wa == null) this.compute();
+        return wa.getTotal(groupIndex*valueNumber+2)/wa.getTotal(groupIndex*valueNumber);
+    }
+
+    /**
+     * Return genome-wide Tajima's D of a group
+     * @param groupIndex
+     * @return
+     */
+    public double getGenomeTajimasD (int groupIndex) {
+        if (wa == null) this.compute();
+        int base = groupIndex*valueNumber;
+        int s = (int)wa.getTotal(base+3);
+        if (s == 0) return Double.NaN;
+        return TajimasD.getTajimasD(wa.getTotal(base+1), wa.getTotal(base+2), s, (int)Math.round(wa.getTotal(base+4)/s));
+    }
+
+    /**
+     * Write statistics in windows, columns are Chr, WindowStart, WindowEnd (exclusive), SiteNumber, then called site number, pi, theta, and Tajima's D of each group
+     * @param outfileS
+     * @param format {@link IOFileFormat#Text} or {@link IOFileFormat#TextGzip}
+     */
+    public void writeWindows (String outfileS, IOFileFormat format) {
+        if (wa == null) this.compute();
+        String[] header = new String[groupNames.length*4];
+        double[][] statistics = new double[header.length][];
+        boolean[] ifCounts = new boolean[header.length];
+        for (int i = 0; i < groupNames.length; i++) {
+            header[i*4] = groupNames[i]+"_CalledSiteNumber";
+            statistics[i*4] = wa.getSums(i*valueNumber);
+            ifCounts[i*4] = true;
+            header[i*4+1] = groupNames[i]+"_Pi";
+            statistics[i*4+1] = this.getPi(i);
+            header[i*4+2] = groupNames[i]+"_ThetaW";
+            statistics[i*4+2] = this.getThetaW(i);
+            header[i*4+3] = groupNames[i]+"_TajimasD";
+            statistics[i*4+3] = this.getTajimasD(i);
+        }
+        BufferedWriter bw = PopgUtils.getTextWriter(outfileS, format);
+        try {
+            wa.write(bw, header, statistics, ifCounts);
+            bw.flush();
+            bw.close();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compute values of sites of a block
+     * @param startSite
+     * @param endSite
+     * @param values
+     */
+    private void getSiteValues (int startSite, int endSite, double[][] values) {
+        int stride = gt.getWordNumberBySite();
+        long[] p1 = new long[(endSite-startSite)*stride];
+        long[] p2 = new long[p1.length];
+        long[] m = new long[p1.length];
+        gt.getSiteWords(startSite, endSite, p1, p2, m);
+        int groupNumber = groupNames.length;
+        int[] nonMissings = new int[groupNumber];
+        int[] alts = new int[groupNumber];
+        int[] hets = new int[groupNumber];
+        for (int i = 0; i < endSite-startSite; i++) {
+            PopgUtils.countGroups(p1, p2, m, i*stride, groupMasks, nonMissings, alts, hets);
+            for (int j = 0; j < groupNumber; j++) {
+                int n = nonMissings[j]*2;
+                if (n < 2) continue;
+                int k = alts[j];
+                int base = j*valueNumber;
+                values[base][i] = 1;
+                if (k == 0 || k == n) continue;
+                values[base+1][i] = 2.0*k*(n-k)/((double)n*(n-1));
+                values[base+2][i] = thetaDenominators[n];
+                values[base+3][i] = 1;
+                values[base+4][i] = n;
+            }
+        }
+    }
 }
@@ -0,0 +1,183 @@
+package pgl.infra.popg;
+
+import pgl.infra.dna.genot.GenotypeTable;
+import pgl.infra.utils.BGZFOutputStream;
+import pgl.infra.utils.IOFileFormat;
+import pgl.infra.utils.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Shared facilities of the population genetics engines
+ *
+ * @author feilu
+ */
+class PopgUtils {
+
+    /**
+     * Return a text writer, gzipped text is written as BGZF, which is deflated in parallel
+     * @param outfileS
+     * @param format {@link IOFileFormat#Text} or {@link IOFileFormat#TextGzip}
+     * @return
+     * @throws IllegalArgumentException if the format is not supported
+     */
+    static BufferedWriter getTextWriter (String outfileS, IOFileFormat format) {
+        if (format != IOFileFormat.Text && format != IOFileFormat.TextGzip) {
+            throw new IllegalArgumentException("Unsupported output format "+format+", use Text or TextGzip");
+        }
+        try {
+            if (format == IOFileFormat.Text) {
+                return IOUtils.getTextWriter(outfileS);
+            }
+            return new BufferedWriter(new OutputStreamWriter(new BGZFOutputStream(outfileS), StandardCharsets.UTF_8), 1 << 20);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Return the mask of the used bits of the last word of a site
+     * @param taxaNumber
+     * @return
+     */
+    static long getTailMask (int taxaNumber) {
+        int remainder = taxaNumber & 63;
+        if (remainder == 0) return -1L;
+        return -1L >>> (64-remainder);
+    }
+
+    /**
+     * Return the bit masks of groups of taxa, in the layout of words of a site, see {@link GenotypeTable#getSiteWords(int, int, long[], long[], long[])}
+     * @param gt
+     * @param groupTaxa the first dimension is group, the second dimension is taxon name; taxa not in the table are ignored
+     * @return
+     */
+    static long[][] getGroupMasks (GenotypeTable gt, String[][] groupTaxa) {
+        long[][] masks = new long[groupTaxa.length][gt.getWordNumberBySite()];
+        for (int i = 0; i < groupTaxa.length; i++) {
+            for (int j = 0; j < groupTaxa[i].length; j++) {
+                int index = gt.getTaxonIndex(groupTaxa[i][j]);
+                if (index < 0) {
+                    System.out.println("Taxon "+groupTaxa[i][j]+" is not in the genotype table, it is ignored");
+                    continue;
+                }
+                masks[i][index >>> 6] |= 1L << index;
+            }
+        }
+        return masks;
+    }
+
+    /**
+     * Count genotypes of groups of taxa at a site
+     * @param p1 words of phase 1
+     * @param p2 words of phase 2
+     * @param m words of missing
+     * @param offset offset of the site
+     * @param masks masks of groups, see {@link #getGroupMasks(GenotypeTable, String[][])}
+     * @param nonMissings number of taxa with non-missing genotypes of groups
+     * @param alts number of alternative alleles of groups
+     * @param hets number of heterozygous taxa of groups
+     */
+    static void countGroups (long[] p1, long[] p2, long[] m, int offset, long[][] masks, int[] nonMissings, int[] alts, int[] hets) {
+        int stride = masks[0].length;
+        for (int i = 0; i < masks.length; i++) {
+            long[] mask = masks[i];
+            int n = 0, alt = 0, het = 0;
+            for (int k = 0; k < stride; k++) {
+                long v = mask[k] & ~m[offset+k];
+                long a1 = p1[offset+k] & mask[k];
+                long a2 = p2[offset+k] & mask[k];
+                n+=Long.bitCount(v);
+                alt+=Long.bitCount(a1)+Long.bitCount(a2);
+                het+=Long.bitCount(a1 ^ a2);
+            }
+            nonMissings[i] = n;
+            alts[i] = alt;
+            hets[i] = het;
+        }
+    }
+
+    /**
+     * Return the number of set bits in a range of bits of words
+     * @param words
+     * @param fromIndex inclusive
+     * @param toIndex exclusive
+     * @return
+     */
+    static int cardinality (long[] words, int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) return 0;
+        int first = fromIndex >>> 6;
+        int last = (toIndex-1) >>> 6;
+        long firstMask = -1L << fromIndex;
+        long lastMask = -1L >>> -toIndex;
+        if (first == last) return Long.bitCount(words[first] & firstMask & lastMask);
+        int cnt = Long.bitCount(words[first] & firstMask);
+        for (int i = first+1; i < last; i++) {
+            cnt+=Long.bitCount(words[i]);
+        }
+        return cnt+Long.bitCount(words[last] & lastMask);
+    }
+
+    /**
+     * Return the index of the next set bit of words, zero words are skipped at once
+     * @param words
+     * @param fromIndex inclusive
+     * @param toIndex exclusive
+     * @return toIndex if there is no set bit in the range
+     */
+    static int nextSetBit (long[] words, int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) return toIndex;
+        int i = fromIndex >>> 6;
+        long word = words[i] & (-1L << fromIndex);
+        while (word == 0) {
+            if (++i<<6 >= toIndex) return toIndex;
+            word = words[i];
+        }
+        return Math.min(toIndex, (i << 6)+Long.numberOfTrailingZeros(word));
+    }
+
+    /**
+     * Return the index of the previous set bit of words
+     * @param words
+     * @param fromIndex inclusive, the search goes down from it
+     * @param toIndex inclusive, the lowest index
+     * @return toIndex-1 if there is no set bit in the range
+     */
+    static int previousSetBit (long[] words, int fromIndex, int toIndex) {
+        if (fromIndex < toIndex) return toIndex-1;
+        int i = fromIndex >>> 6;
+        long word = words[i] & (-1L >>> (63-(fromIndex & 63)));
+        while (word == 0) {
+            if (--i < 0 || (i << 6)+63 < toIndex) return toIndex-1;
+            word = words[i];
+        }
+        return Math.max(toIndex-1, (i << 6)+63-Long.numberOfLeadingZeros(word));
+    }
+
+    /**
+     * Append a value with 4 decimals, much faster than {@link String#format(String, Object...)}
+     * @param sb
+     * @param value
+     */
+    static void appendValue (StringBuilder sb, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append(value);
+            return;
+        }
+        long v = Math.round(value*10000);
+        if (v < 0) {
+            sb.append('-');
+            v = -v;
+        }
+        sb.append(v/10000).append('.');
+        long f = v%10000;
+        if (f < 1000) sb.append('0');
+        if (f < 100) sb.append('0');
+        if (f < 10) sb.append('0');
+        sb.append(f);
+    }
+}
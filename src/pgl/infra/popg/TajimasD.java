@@ -1,4 +1,63 @@
 package pgl.infra.popg;
 
+/**
+ * Tajima's D (Tajima 1989) and the constants of its variance
+ * <p>
+ * The difference of diversity estimates is taken from sums over sites, so that each site uses its own number of non-missing alleles.
+ * The variance uses a single sample size, e.g. the mean number of non-missing alleles of segregating sites, see {@link NucleotideDiversity}.
+ *
+ * @author feilu
+ */
 public class TajimasD {
+
+    /**
+     * Return a1 of Tajima's D, the sum of 1/i for i from 1 to n-1, which is the denominator of Watterson's theta of a site
+     * @param sampleSize number of alleles
+     * @return
+     */
+    public static double getA1 (int sampleSize) {
+        double a1 = 0;
+        for (int i = 1; i < sampleSize; i++) {
+            a1+=1.0/i;
+        }
+        return a1;
+    }
+
+    /**
+     * Return a2 of Tajima's D, the sum of 1/i^2 for i from 1 to n-1
+     * @param sampleSize number of alleles
+     * @return
+     */
+    public static double getA2 (int sampleSize) {
+        double a2 = 0;
+        for (int i = 1; i < sampleSize; i++) {
+            a2+=1.0/i/i;
+        }
+        return a2;
+    }
+
+    /**
+     * Return Tajima's D of a region
+     * @param piSum sum of nucleotide diversity of sites
+     * @param thetaWSum sum of Watterson's theta of sites
+     * @param segregatingSiteNumber number of segregating sites
+     * @param sampleSize number of alleles used in the variance
+     * @return NaN if there is no segregating site, or the variance is 0
+     */
+    public static double getTajimasD (double piSum, double thetaWSum, int segregatingSiteNumber, int sampleSize) {
+        if (segregatingSiteNumber == 0 || sampleSize < 2) return Double.NaN;
+        double n = sampleSize;
+        double a1 = getA1(sampleSize);
+        double a2 = getA2(sampleSize);
+        double b1 = (n+1)/(3*(n-1));
+        double b2 = 2*(n*n+n+3)/(9*n*(n-1));
+        double c1 = b1-1/a1;
+        double c2 = b2-(n+2)/(a1*n)+a2/(a1*a1);
+        double e1 = c1/a1;
+        double e2 = c2/(a1*a1+a2);
+        double s = segregatingSiteNumber;
+        double variance = e1*s+e2*s*(s-1);
+        if (variance <= 0) return Double.NaN;
+        return (piSum-thetaWSum)/Math.sqrt(variance);
+    }
 }
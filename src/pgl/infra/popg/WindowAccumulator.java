@@ -0,0 +1,307 @@
+package pgl.infra.popg;
+
+import gnu.trove.list.array.TIntArrayList;
+import pgl.PGLConstraints;
+import pgl.infra.dna.genot.GenotypeTable;
+import pgl.infra.window.SimpleWindow;
+
+import java.io.BufferedWriter;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Sums of per-site values in sliding windows of all chromosomes of a {@link GenotypeTable}, computed in one parallel pass over sites
+ * <p>
+ * Windows of a chromosome are those of a {@link SimpleWindow}, they are numbered across chromosomes in the order of the table.
+ * Sites are cut into blocks, a batch of blocks is computed in parallel, each block sums its own windows, and blocks are added in order.
+ * The number of sites of each window is always counted.
+ *
+ * @author feilu
+ */
+class WindowAccumulator {
+    /**
+     * Number of sites of a block computed by a thread
+     */
+    static final int blockSize = 1024;
+
+    short[] chrs = null;
+    int[] positions = null;
+    /**
+     * Windows of chromosomes, in the order of the table
+     */
+    short[] windowChrs = null;
+    SimpleWindow[] windows = null;
+    int[] windowOffsets = null;
+    int[] chrStartSites = null;
+    int windowNumber = 0;
+    /**
+     * Sums of values, the first dimension is value, the second dimension is window
+     */
+    double[][] sums = null;
+    int[] siteNumbers = null;
+    /**
+     * Sums of values of all sites
+     */
+    double[] totals = null;
+
+    /**
+     * Values of sites of a block
+     */
+    interface SiteValues {
+        /**
+         * Compute values of sites
+         * @param startSite inclusive
+         * @param endSite exclusive
+         * @param values the first dimension is value, the second dimension is site from startSite
+         */
+        void getValues (int startSite, int endSite, double[][] values);
+    }
+
+    /**
+     * Build windows, sites should be sorted by chromosome and position
+     * @param gt
+     * @param windowSize
+     * @param windowStep
+     */
+    WindowAccumulator (GenotypeTable gt, int windowSize, int windowStep) {
+        int siteNumber = gt.getSiteNumber();
+        chrs = new short[siteNumber];
+        positions = new int[siteNumber];
+        TIntArrayList startList = new TIntArrayList();
+        for (int i = 0; i < siteNumber; i++) {
+            chrs[i] = gt.getChromosome(i);
+            positions[i] = gt.getPosition(i);
+            if (i == 0 || chrs[i] != chrs[i-1]) startList.add(i);
+        }
+        chrStartSites = startList.toArray();
+        windowChrs = new short[chrStartSites.length];
+        windows = new SimpleWindow[chrStartSites.length];
+        windowOffsets = new int[chrStartSites.length+1];
+        for (int i = 0; i < windows.length; i++) {
+            int endSite = i+1 < chrStartSites.length ? chrStartSites[i+1] : siteNumber;
+            windowChrs[i] = chrs[chrStartSites[i]];
+            windows[i] = new SimpleWindow(positions[endSite-1]+1, windowSize, windowStep);
+            windowOffsets[i+1] = windowOffsets[i]+windows[i].getWindowStarts().length;
+        }
+        windowNumber = windowOffsets[windows.length];
+    }
+
+    /**
+     * Sum values of all sites in windows, previous sums are cleared
+     * @param valueNumber number of values of a site
+     * @param sv
+     */
+    void accumulate (int valueNumber, SiteValues sv) {
+        sums = new double[valueNumber][windowNumber];
+        siteNumbers = new int[windowNumber];
+        totals = new double[valueNumber];
+        int blockNumber = (chrs.length+blockSize-1)/blockSize;
+        WindowBlock[] blocks = new WindowBlock[PGLConstraints.parallelLevel];
+        for (int i = 0; i < blockNumber; i+=blocks.length) {
+            int batchStart = i;
+            int batchSize = Math.min(blocks.length, blockNumber-i);
+            IntStream.range(0, batchSize).parallel().forEach(j -> {
+                blocks[j] = this.accumulateBlock((batchStart+j)*blockSize, valueNumber, sv);
+            });
+            for (int j = 0; j < batchSize; j++) {
+                WindowBlock block = blocks[j];
+                for (int v = 0; v < valueNumber; v++) {
+                    totals[v]+=block.totals[v];
+                }
+                for (int k = 0; k < block.siteNumbers.length; k++) {
+                    siteNumbers[block.firstWindow+k]+=block.siteNumbers[k];
+                    for (int v = 0; v < valueNumber; v++) {
+                        sums[v][block.firstWindow+k]+=block.sums[v][k];
+                    }
+                }
+                blocks[j] = null;
+            }
+        }
+    }
+
+    /**
+     * Return the range of sites of each window, the site numbers of windows are set as well
+     * @return the first dimension is window, the second dimension is the first site (inclusive) and the last site (exclusive)
+     */
+    int[][] getWindowSiteRanges () {
+        int[][] ranges = new int[windowNumber][2];
+        siteNumbers = new int[windowNumber];
+        for (int i = 0; i < windows.length; i++) {
+            int chrStart = chrStartSites[i];
+            int chrEnd = i+1 < chrStartSites.length ? chrStartSites[i+1] : chrs.length;
+            int[] starts = windows[i].getWindowStarts();
+            int[] ends = windows[i].getWindowEnds();
+            for (int j = 0; j < starts.length; j++) {
+                int w = windowOffsets[i]+j;
+                ranges[w][0] = this.getFirstSiteIndex(chrStart, chrEnd, starts[j]);
+                ranges[w][1] = this.getFirstSiteIndex(chrStart, chrEnd, ends[j]);
+                siteNumbers[w] = ranges[w][1]-ranges[w][0];
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Return the index of the first site at or after a position in a range of sites of a chromosome
+     * @param startSite
+     * @param endSite
+     * @param position
+     * @return endSite if all sites are before the position
+     */
+    private int getFirstSiteIndex (int startSite, int endSite, int position) {
+        int low = startSite;
+        int high = endSite;
+        while (low < high) {
+            int mid = (low+high) >>> 1;
+            if (positions[mid] < position) low = mid+1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private WindowBlock accumulateBlock (int startSite, int valueNumber, SiteValues sv) {
+        int endSite = Math.min(chrs.length, startSite+blockSize);
+        double[][] values = new double[valueNumber][endSite-startSite];
+        sv.getValues(startSite, endSite, values);
+        int[] firstWindows = new int[endSite-startSite];
+        int[] lastWindows = new int[endSite-startSite];
+        int firstWindow = Integer.MAX_VALUE;
+        int lastWindow = Integer.MIN_VALUE;
+        int chrIndex = this.getChromosomeIndex(startSite);
+        for (int i = startSite; i < endSite; i++) {
+            while (chrIndex+1 < chrStartSites.length && chrStartSites[chrIndex+1] <= i) chrIndex++;
+            SimpleWindow w = windows[chrIndex];
+            firstWindows[i-startSite] = windowOffsets[chrIndex]+w.getFirstWindowIndex(positions[i]);
+            lastWindows[i-startSite] = windowOffsets[chrIndex]+w.getLastWindowIndex(positions[i]);
+            firstWindow = Math.min(firstWindow, firstWindows[i-startSite]);
+            lastWindow = Math.max(lastWindow, lastWindows[i-startSite]);
+        }
+        WindowBlock block = new WindowBlock(firstWindow, lastWindow-firstWindow, valueNumber);
+        for (int i = 0; i < firstWindows.length; i++) {
+            for (int v = 0; v < valueNumber; v++) {
+                block.totals[v]+=values[v][i];
+            }
+            for (int j = firstWindows[i]; j < lastWindows[i]; j++) {
+                block.siteNumbers[j-firstWindow]++;
+                for (int v = 0; v < valueNumber; v++) {
+                    block.sums[v][j-firstWindow]+=values[v][i];
+                }
+            }
+        }
+        return block;
+    }
+
+    private int getChromosomeIndex (int siteIndex) {
+        int index = Arrays.binarySearch(chrStartSites, siteIndex);
+        if (index < 0) index = -index-2;
+        return index;
+    }
+
+    int getWindowNumber () {
+        return windowNumber;
+    }
+
+    /**
+     * Return the sums of a value in windows
+     * @param valueIndex
+     * @return
+     */
+    double[] getSums (int valueIndex) {
+        return sums[valueIndex];
+    }
+
+    /**
+     * Return the sum of a value of all sites
+     * @param valueIndex
+     * @return
+     */
+    double getTotal (int valueIndex) {
+        return totals[valueIndex];
+    }
+
+    /**
+     * Return the number of sites in windows
+     * @return
+     */
+    int[] getSiteNumbers () {
+        return siteNumbers;
+    }
+
+    /**
+     * Return the ratio of sums of two values in windows, NaN if the denominator is 0
+     * @param numeratorIndex
+     * @param denominatorIndex
+     * @return
+     */
+    double[] getRatios (int numeratorIndex, int denominatorIndex) {
+        double[] ratios = new double[windowNumber];
+        for (int i = 0; i < windowNumber; i++) {
+            ratios[i] = sums[denominatorIndex][i] == 0 ? Double.NaN : sums[numeratorIndex][i]/sums[denominatorIndex][i];
+        }
+        return ratios;
+    }
+
+    /**
+     * Write the chromosome, start (inclusive), end (exclusive), and site number of a window
+     * @param sb
+     * @param windowIndex
+     */
+    void appendWindow (StringBuilder sb, int windowIndex) {
+        int chrIndex = this.getWindowChromosomeIndex(windowIndex);
+        int index = windowIndex-windowOffsets[chrIndex];
+        sb.append(windowChrs[chrIndex]).append("\t").append(windows[chrIndex].getWindowStarts()[index]).append("\t");
+        sb.append(windows[chrIndex].getWindowEnds()[index]).append("\t").append(siteNumbers[windowIndex]);
+    }
+
+    /**
+     * Write windows with columns Chr, WindowStart, WindowEnd, SiteNumber, and the given columns
+     * @param bw
+     * @param header names of columns of statistics
+     * @param statistics the first dimension is column, the second dimension is window
+     * @param ifCounts if columns are counts, which are written as integers; null if no column is a count
+     * @throws Exception
+     */
+    void write (BufferedWriter bw, String[] header, double[][] statistics, boolean[] ifCounts) throws Exception {
+        StringBuilder sb = new StringBuilder("Chr\tWindowStart\tWindowEnd\tSiteNumber");
+        for (int i = 0; i < header.length; i++) {
+            sb.append("\t").append(header[i]);
+        }
+        bw.write(sb.toString());
+        bw.newLine();
+        for (int i = 0; i < windowNumber; i++) {
+            sb.setLength(0);
+            this.appendWindow(sb, i);
+            for (int j = 0; j < statistics.length; j++) {
+                sb.append("\t");
+                if (ifCounts != null && ifCounts[j]) sb.append((long)statistics[j][i]);
+                else PopgUtils.appendValue(sb, statistics[j][i]);
+            }
+            bw.write(sb.toString());
+            bw.newLine();
+        }
+    }
+
+    private int getWindowChromosomeIndex (int windowIndex) {
+        int index = Arrays.binarySearch(windowOffsets, windowIndex);
+        if (index < 0) return -index-2;
+        while (index+1 < windowOffsets.length && windowOffsets[index+1] == windowIndex) index++;
+        return index;
+    }
+
+    /**
+     * Sums of windows touched by a block
+     */
+    private static class WindowBlock {
+        int firstWindow = 0;
+        double[][] sums = null;
+        int[] siteNumbers = null;
+        double[] totals = null;
+
+        WindowBlock (int firstWindow, int windowNumber, int valueNumber) {
+            this.firstWindow = firstWindow;
+            this.totals = new double[valueNumber];
+            this.sums = new double[valueNumber][windowNumber];
+            this.siteNumbers = new int[windowNumber];
+        }
+    }
+}
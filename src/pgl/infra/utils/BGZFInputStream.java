@@ -0,0 +1,179 @@
+package pgl.infra.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream of a BGZF (blocked gzip) file, e.g. a VCF compressed by bgzip.
+ * <p>
+ * A BGZF file is a series of gzip members of at most 64 KB, the compressed size of each member is recorded in its header.
+ * Compressed members are read sequentially, which is cheap, and a batch of members is inflated in parallel.
+ * Plain gzip files can not be split, use {@link java.util.zip.GZIPInputStream} for them, see {@link #isBGZF(String)}.
+ *
+ * @author feilu
+ */
+public class BGZFInputStream extends InputStream {
+    /**
+     * Number of members inflated in a batch, about 32 MB of uncompressed data
+     */
+    public static final int batchMemberNumber = 512;
+    private static final int headerSize = 12;
+
+    DataInputStream dis = null;
+    byte[][] members = new byte[batchMemberNumber][];
+    int[] memberSizes = new int[batchMemberNumber];
+    int[] inflatedSizes = new int[batchMemberNumber];
+    int[] crcs = new int[batchMemberNumber];
+    byte[] buffer = new byte[0];
+    int position = 0;
+    int limit = 0;
+    boolean ifEnd = false;
+
+    public BGZFInputStream (String infileS) throws IOException {
+        this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(infileS), 1 << 20));
+    }
+
+    public BGZFInputStream (InputStream in) {
+        this.dis = new DataInputStream(in);
+    }
+
+    @Override
+    public int read () throws IOException {
+        if (position == limit && !this.fill()) return -1;
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read (byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (position == limit && !this.fill()) return -1;
+        int n = Math.min(len, limit-position);
+        System.arraycopy(buffer, position, b, off, n);
+        position+=n;
+        return n;
+    }
+
+    @Override
+    public int available () {
+        return limit-position;
+    }
+
+    @Override
+    public void close () throws IOException {
+        dis.close();
+    }
+
+    /**
+     * Read a batch of members and inflate them in parallel
+     * @return false if the end of the file is reached
+     * @throws IOException
+     */
+    private boolean fill () throws IOException {
+        while (!ifEnd) {
+            int memberNumber = 0;
+            while (memberNumber < batchMemberNumber && this.readMember(memberNumber)) {
+                memberNumber++;
+            }
+            if (memberNumber < batchMemberNumber) ifEnd = true;
+            int[] offsets = new int[memberNumber+1];
+            for (int i = 0; i < memberNumber; i++) {
+                offsets[i+1] = offsets[i]+inflatedSizes[i];
+            }
+            if (buffer.length < offsets[memberNumber]) buffer = new byte[offsets[memberNumber]];
+            boolean[] ifCorrupted = new boolean[1];
+            IntStream.range(0, memberNumber).parallel().forEach(i -> {
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(members[i], 0, memberSizes[i]);
+                    int cnt = 0;
+                    while (cnt < inflatedSizes[i]) {
+                        int n = inflater.inflate(buffer, offsets[i]+cnt, inflatedSizes[i]-cnt);
+                        if (n == 0 && (inflater.finished() || inflater.needsInput())) break;
+                        cnt+=n;
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(buffer, offsets[i], inflatedSizes[i]);
+                    if (cnt != inflatedSizes[i] || (int)crc.getValue() != crcs[i]) ifCorrupted[0] = true;
+                }
+                catch (DataFormatException e) {
+                    ifCorrupted[0] = true;
+                }
+                finally {
+                    inflater.end();
+                }
+            });
+            if (ifCorrupted[0]) throw new IOException("Corrupted BGZF block");
+            position = 0;
+            limit = offsets[memberNumber];
+            if (limit > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read the compressed data of a member
+     * @param index
+     * @return false if the end of the file is reached
+     * @throws IOException
+     */
+    private boolean readMember (int index) throws IOException {
+        byte[] header = new byte[headerSize];
+        int n = dis.read(header, 0, 1);
+        if (n < 0) return false;
+        dis.readFully(header, 1, headerSize-1);
+        if ((header[0] & 0xFF) != 0x1f || (header[1] & 0xFF) != 0x8b || (header[3] & 0x04) == 0) {
+            throw new IOException("Not a BGZF file");
+        }
+        int xlen = getUnsignedShort(header, 10);
+        byte[] extra = new byte[xlen];
+        dis.readFully(extra);
+        int blockSize = -1;
+        for (int i = 0; i+4 <= xlen; i+=4+getUnsignedShort(extra, i+2)) {
+            if (extra[i] == 'B' && extra[i+1] == 'C') {
+                blockSize = getUnsignedShort(extra, i+4)+1;
+                break;
+            }
+        }
+        if (blockSize < 0) throw new IOException("Not a BGZF file");
+        int size = blockSize-headerSize-xlen-8;
+        if (members[index] == null || members[index].length < size) members[index] = new byte[size];
+        dis.readFully(members[index], 0, size);
+        memberSizes[index] = size;
+        crcs[index] = Integer.reverseBytes(dis.readInt());
+        inflatedSizes[index] = Integer.reverseBytes(dis.readInt());
+        return true;
+    }
+
+    private static int getUnsignedShort (byte[] b, int offset) {
+        return (b[offset] & 0xFF) | ((b[offset+1] & 0xFF) << 8);
+    }
+
+    /**
+     * Return if a file is BGZF, i.e. the first gzip member has a BC extra subfield
+     * @param infileS
+     * @return
+     */
+    public static boolean isBGZF (String infileS) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(infileS))) {
+            byte[] header = new byte[18];
+            in.readFully(header);
+            if ((header[0] & 0xFF) != 0x1f || (header[1] & 0xFF) != 0x8b || (header[3] & 0x04) == 0) return false;
+            return getUnsignedShort(header, 10) >= 6 && header[12] == 'B' && header[13] == 'C';
+        }
+        catch (EOFException e) {
+            return false;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,159 @@
+package pgl.infra.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream of a BGZF (blocked gzip) file, which can be read by gzip readers, by bgzip/tabix, and in parallel by {@link BGZFInputStream}.
+ * <p>
+ * Data are cut into members of at most {@link #blockDataSize} bytes. A batch of members is deflated in parallel, and written in order.
+ * The empty end-of-file member is written on {@link #close()}.
+ *
+ * @author feilu
+ */
+public class BGZFOutputStream extends OutputStream {
+    /**
+     * Maximum number of uncompressed bytes of a member, the compressed member always fits in 64 KB
+     */
+    public static final int blockDataSize = 65280;
+    /**
+     * Number of members deflated in a batch, about 32 MB of uncompressed data
+     */
+    public static final int batchBlockNumber = 512;
+    private static final int headerSize = 18;
+    private static final int footerSize = 8;
+    private static final int maxMemberSize = 65536;
+    private static final byte[] emptyMember = {0x1f, (byte)0x8b, 0x08, 0x04, 0, 0, 0, 0, 0, (byte)0xff, 0x06, 0, 0x42, 0x43, 0x02, 0, 0x1b, 0, 0x03, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    OutputStream os = null;
+    int level = Deflater.DEFAULT_COMPRESSION;
+    byte[][] blocks = new byte[batchBlockNumber][];
+    int[] blockSizes = new int[batchBlockNumber];
+    byte[][] members = new byte[batchBlockNumber][];
+    int[] memberSizes = new int[batchBlockNumber];
+    int blockIndex = 0;
+
+    public BGZFOutputStream (String outfileS) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(outfileS), 1 << 20));
+    }
+
+    public BGZFOutputStream (OutputStream os) {
+        this.os = os;
+        blocks[0] = new byte[blockDataSize];
+    }
+
+    /**
+     * Set the compression level of {@link Deflater}
+     * @param level
+     */
+    public void setLevel (int level) {
+        this.level = level;
+    }
+
+    @Override
+    public void write (int b) throws IOException {
+        if (blockSizes[blockIndex] == blockDataSize) this.nextBlock();
+        blocks[blockIndex][blockSizes[blockIndex]++] = (byte)b;
+    }
+
+    @Override
+    public void write (byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockSizes[blockIndex] == blockDataSize) this.nextBlock();
+            int n = Math.min(len, blockDataSize-blockSizes[blockIndex]);
+            System.arraycopy(b, off, blocks[blockIndex], blockSizes[blockIndex], n);
+            blockSizes[blockIndex]+=n;
+            off+=n;
+            len-=n;
+        }
+    }
+
+    private void nextBlock () throws IOException {
+        blockIndex++;
+        if (blockIndex == batchBlockNumber) {
+            this.writeBatch();
+        }
+        if (blocks[blockIndex] == null) blocks[blockIndex] = new byte[blockDataSize];
+        blockSizes[blockIndex] = 0;
+    }
+
+    /**
+     * Deflate the filled blocks in parallel and write them in order
+     * @throws IOException
+     */
+    private void writeBatch () throws IOException {
+        int blockNumber = blockIndex;
+        if (blockIndex < batchBlockNumber && blockSizes[blockIndex] > 0) blockNumber++;
+        IntStream.range(0, blockNumber).parallel().forEach(i -> {
+            if (members[i] == null) members[i] = new byte[maxMemberSize];
+            memberSizes[i] = this.deflate(blocks[i], blockSizes[i], members[i]);
+        });
+        for (int i = 0; i < blockNumber; i++) {
+            os.write(members[i], 0, memberSizes[i]);
+        }
+        blockIndex = 0;
+        blockSizes[0] = 0;
+    }
+
+    /**
+     * Deflate a block into a BGZF member
+     * @param block
+     * @param size
+     * @param member
+     * @return size of the member
+     */
+    private int deflate (byte[] block, int size, byte[] member) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setInput(block, 0, size);
+        deflater.finish();
+        int cSize = deflater.deflate(member, headerSize, member.length-headerSize-footerSize);
+        if (!deflater.finished()) {
+            deflater.reset();
+            deflater.setLevel(Deflater.NO_COMPRESSION);
+            deflater.setInput(block, 0, size);
+            deflater.finish();
+            cSize = deflater.deflate(member, headerSize, member.length-headerSize-footerSize);
+        }
+        deflater.end();
+        int memberSize = headerSize+cSize+footerSize;
+        System.arraycopy(emptyMember, 0, member, 0, headerSize-2);
+        putShort(member, 16, memberSize-1);
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, size);
+        putInt(member, headerSize+cSize, (int)crc.getValue());
+        putInt(member, headerSize+cSize+4, size);
+        return memberSize;
+    }
+
+    private static void putShort (byte[] b, int offset, int v) {
+        b[offset] = (byte)v;
+        b[offset+1] = (byte)(v >>> 8);
+    }
+
+    private static void putInt (byte[] b, int offset, int v) {
+        putShort(b, offset, v);
+        putShort(b, offset+2, v >>> 16);
+    }
+
+    /**
+     * Write out the filled blocks, members are always complete after flushing
+     * @throws IOException
+     */
+    @Override
+    public void flush () throws IOException {
+        this.writeBatch();
+        os.flush();
+    }
+
+    @Override
+    public void close () throws IOException {
+        this.writeBatch();
+        os.write(emptyMember);
+        os.close();
+    }
+}
@@ -0,0 +1,39 @@
+package pgl.infra.utils;
+
+/**
+ * Utilities of bit matrices held in 64-bit words.
+ * <p>
+ * Bits follow the order of {@link java.util.BitSet#toLongArray()}, bit j of a row is bit (j%64) of word j/64.
+ *
+ * @author feilu
+ */
+public class BitMatrixUtils {
+    /**
+     * Number of bits in a word
+     */
+    public static final int wordSize = 64;
+
+    /**
+     * Return the number of words holding a number of bits
+     * @param bitNumber
+     * @return
+     */
+    public static int getWordNumber (int bitNumber) {
+        return (bitNumber+wordSize-1) >>> 6;
+    }
+
+    /**
+     * Transpose a 64 × 64 bit block in place, bit j of block[i] becomes bit i of block[j]
+     * @param block 64 words, one row per word
+     */
+    public static void transpose64 (long[] block) {
+        long mask = 0x00000000FFFFFFFFL;
+        for (int j = 32; j != 0; j >>>= 1, mask ^= (mask << j)) {
+            for (int k = 0; k < wordSize; k = ((k | j) + 1) & ~j) {
+                long t = ((block[k] >>> j) ^ block[k | j]) & mask;
+                block[k] ^= t << j;
+                block[k | j] ^= t;
+            }
+        }
+    }
+}
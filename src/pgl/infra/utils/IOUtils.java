@@ -17,6 +17,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -65,6 +66,27 @@ public class IOUtils {
         return br;
     }
     
+    /**
+     * Return a decompressed input stream of a gzip file, BGZF files are decompressed in parallel by {@link BGZFInputStream}
+     * @param infileS
+     * @return
+     */
+    public static InputStream getGzipInputStream (String infileS) {
+        InputStream is = null;
+        try {
+            if (BGZFInputStream.isBGZF(infileS)) {
+                is = new BGZFInputStream(infileS);
+            }
+            else {
+                is = new GZIPInputStream(new FileInputStream(infileS), 65536);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+        return is;
+    }
+
     public static BufferedWriter getTextGzipWriter (String outfileS) {
         BufferedWriter bw = null;
         try {